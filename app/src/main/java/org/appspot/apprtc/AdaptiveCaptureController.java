@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Adapts the capture format to CPU load and bandwidth estimates during a call.
+ *
+ * <p>The controller walks a ladder of capture levels, each with half the capture bandwidth
+ * (pixels per second) of the level above, mapped to formats by a CaptureFormatLadder like
+ * the capture quality slider. It steps down when the CPU or the send bandwidth is
+ * saturated and back up when there is headroom for the next level. Hysteresis comes from
+ * separate up and down thresholds, a number of consecutive samples required for each
+ * direction and a minimum time between changes.
+ *
+ * <p>Decisions depend only on the fed samples and their timestamps, so recorded stats can
+ * be replayed through it deterministically. Not thread safe.
+ */
+public class AdaptiveCaptureController {
+  private static final String TAG = "AdaptiveCaptureCtrl";
+
+  // Average CPU usage in percent above which to step down, and below which stepping up is
+  // allowed.
+  private static final int CPU_HIGH_PERCENT = 85;
+  private static final int CPU_LOW_PERCENT = 60;
+  // Rough encoded bits per captured pixel, to turn a level into a bitrate need.
+  private static final double BITS_PER_PIXEL = 0.1;
+  // Step down when the bandwidth is below this share of the need of the current level, step
+  // up when it is above this share of the need of the next level.
+  private static final double BANDWIDTH_LOW_RATIO = 0.75;
+  private static final double BANDWIDTH_HIGH_RATIO = 1.25;
+  private static final int DOWN_SAMPLES = 3;
+  private static final int UP_SAMPLES = 10;
+  private static final long MIN_DOWN_INTERVAL_MS = 4000;
+  private static final long MIN_UP_INTERVAL_MS = 15000;
+  // Capture bandwidth ratio between two levels.
+  private static final double LEVEL_STEP = 0.5;
+  private static final int MIN_FRAMERATE = 7;
+
+  /** One rung of the ladder. */
+  static class Level {
+    final int width;
+    final int height;
+    final int framerate;
+    // Bitrate the level needs, in bits per second.
+    final long bitrateNeed;
+
+    Level(int width, int height, int framerate) {
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+      this.bitrateNeed = (long) (width * height * framerate * BITS_PER_PIXEL);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + "@" + framerate;
+    }
+  }
+
+  private final CallFragment.OnCallEvents callEvents;
+  private final List<Level> levels = new ArrayList<>();
+  private int level;
+  private int downSamples;
+  private int upSamples;
+  private long lastChangeMs = -1;
+
+  /**
+   * Creates a controller that starts at, and never exceeds, |maxWidth|x|maxHeight| at
+   * |maxFramerate|. Zero values select the PeerConnectionClient defaults.
+   */
+  public AdaptiveCaptureController(
+      CallFragment.OnCallEvents callEvents, int maxWidth, int maxHeight, int maxFramerate) {
+    this(callEvents, CaptureQualityController.DEFAULT_LADDER, maxWidth, maxHeight, maxFramerate);
+  }
+
+  /** As above, with the lower levels taken from |ladder|. */
+  public AdaptiveCaptureController(CallFragment.OnCallEvents callEvents,
+      CaptureFormatLadder ladder, int maxWidth, int maxHeight, int maxFramerate) {
+    this.callEvents = callEvents;
+    // Same defaults as PeerConnectionClient for unspecified values.
+    if (maxWidth == 0 || maxHeight == 0) {
+      maxWidth = 1280;
+      maxHeight = 720;
+    }
+    if (maxFramerate == 0) {
+      maxFramerate = 30;
+    }
+    levels.add(new Level(maxWidth, maxHeight, maxFramerate));
+    // In millipixels / second like the slider model.
+    double bandwidth = (double) maxWidth * maxHeight * maxFramerate * 1000;
+    while (true) {
+      bandwidth *= LEVEL_STEP;
+      final CaptureFormat format = ladder.getFormat(bandwidth);
+      final int framerate = CaptureFormatLadder.calculateFramerate(bandwidth, format);
+      if (framerate < MIN_FRAMERATE) {
+        break;
+      }
+      final Level previous = levels.get(levels.size() - 1);
+      if (format.width * format.height * framerate
+          < previous.width * previous.height * previous.framerate) {
+        levels.add(new Level(format.width, format.height, framerate));
+      }
+    }
+    Log.d(TAG, "Capture levels: " + levels);
+  }
+
+  /** Returns the current level, 0 being the highest quality. */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Feeds one stats sample. |cpuUsageAverage| is CpuMonitor's average in percent, or -1 if
+   * unknown. May call onCaptureFormatChange().
+   */
+  public void onStats(StatsSnapshot snapshot, int cpuUsageAverage) {
+    final long nowMs = snapshot.timestampMs;
+    // Prefer the bandwidth estimate: the encoder target is capped by the current format and
+    // would never show headroom for a higher one.
+    final long bandwidth = snapshot.availableSendBandwidth != StatsSnapshot.UNKNOWN
+        ? snapshot.availableSendBandwidth
+        : snapshot.targetEncBitrate;
+
+    final boolean cpuSaturated = cpuUsageAverage > CPU_HIGH_PERCENT;
+    final boolean cpuHeadroom = cpuUsageAverage < CPU_LOW_PERCENT;
+    final boolean bandwidthSaturated = bandwidth != StatsSnapshot.UNKNOWN
+        && bandwidth < levels.get(level).bitrateNeed * BANDWIDTH_LOW_RATIO;
+    final boolean bandwidthHeadroom = level > 0
+        && (bandwidth == StatsSnapshot.UNKNOWN
+            || bandwidth > levels.get(level - 1).bitrateNeed * BANDWIDTH_HIGH_RATIO);
+
+    if (cpuSaturated || bandwidthSaturated) {
+      downSamples++;
+      upSamples = 0;
+    } else if (cpuHeadroom && bandwidthHeadroom) {
+      upSamples++;
+      downSamples = 0;
+    } else {
+      downSamples = 0;
+      upSamples = 0;
+    }
+
+    if (downSamples >= DOWN_SAMPLES && level < levels.size() - 1
+        && isChangeAllowed(nowMs, MIN_DOWN_INTERVAL_MS)) {
+      Log.d(TAG, "Stepping down, cpu: " + cpuUsageAverage + ", bandwidth: " + bandwidth);
+      setLevel(level + 1, nowMs);
+    } else if (upSamples >= UP_SAMPLES && isChangeAllowed(nowMs, MIN_UP_INTERVAL_MS)) {
+      Log.d(TAG, "Stepping up, cpu: " + cpuUsageAverage + ", bandwidth: " + bandwidth);
+      setLevel(level - 1, nowMs);
+    }
+  }
+
+  /** Returns to the highest level without notifying, e.g. when a new call starts. */
+  public void reset() {
+    level = 0;
+    downSamples = 0;
+    upSamples = 0;
+    lastChangeMs = -1;
+  }
+
+  private boolean isChangeAllowed(long nowMs, long minIntervalMs) {
+    return lastChangeMs < 0 || nowMs - lastChangeMs >= minIntervalMs;
+  }
+
+  private void setLevel(int newLevel, long nowMs) {
+    level = newLevel;
+    downSamples = 0;
+    upSamples = 0;
+    lastChangeMs = nowMs;
+    final Level current = levels.get(level);
+    Log.d(TAG, "Capture level " + level + ": " + current);
+    callEvents.onCaptureFormatChange(current.width, current.height, current.framerate);
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes audio chunks to a series of segment files on its own thread.
+ *
+ * <p>The producer, typically the audio record thread, copies each chunk into a preallocated
+ * single-producer/single-consumer byte ring and returns without locking or touching the
+ * disk. The writer thread wakes up every BATCH_INTERVAL_MS, or earlier once the ring is half
+ * full, and hands everything pending to an AudioFileSink in as few calls as the ring layout
+ * allows. A chunk that does not fit into the ring is dropped whole and counted as an
+ * overrun, so the output stays aligned to frames.
+ *
+ * <p>Instead of stopping at a size cap, the writer can roll segments: it closes the current
+ * file once it holds |maxSegmentBytes| of audio and continues in the next one, named
+ * &lt;prefix&gt;_&lt;index&gt; plus the suffix of the sink. write() may only be called from
+ * one thread at a time, but may race with close().
+ */
+public class AudioDumpWriter {
+  private static final String TAG = "AudioDumpWriter";
+  private static final long BATCH_INTERVAL_MS = 100;
+
+  private final File dir;
+  private final String prefix;
+  private final AudioFileSink sink;
+  private final long maxSegmentBytes;
+  private final byte[] ring;
+  private final ByteBuffer ringBuffer;
+  // Total number of bytes put into and taken out of the ring. Only the producer advances
+  // |writePosition| and only the writer thread advances |readPosition|.
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+  private final Thread thread;
+  private final BatchTimer batchTimer;
+  private volatile boolean running;
+  // Set by the producer for the duration of write(). close() waits for it to clear after
+  // clearing |running| and only then sets |stopping|, so that the final drain of the writer
+  // thread sees every chunk write() accepted.
+  private volatile boolean writing;
+  private volatile boolean stopping;
+  // Only modified by the producer.
+  private volatile long overrunCount;
+  private volatile long droppedBytes;
+  // Only modified by the writer thread.
+  private boolean segmentOpen;
+  private long segmentBytes;
+  private volatile int segmentCount;
+  private volatile long bytesWritten;
+  private boolean failed;
+
+  /** Paces the batches of the writer thread. */
+  interface BatchTimer {
+    /** Called on the writer thread between batches. Returns after |intervalMs| or wake(). */
+    void await(long intervalMs);
+
+    /** Makes the current or next await() return early. */
+    void wake();
+  }
+
+  /**
+   * Creates a writer with a ring of |ringBytes| that writes segments of at most
+   * |maxSegmentBytes| of audio into |dir| through |sink|. |maxSegmentBytes| should be a
+   * multiple of the frame size, or 0 to write a single file of any size.
+   */
+  public AudioDumpWriter(
+      File dir, String prefix, AudioFileSink sink, long maxSegmentBytes, int ringBytes) {
+    this(dir, prefix, sink, maxSegmentBytes, ringBytes, null);
+  }
+
+  /** Creates a writer whose batches are paced by |batchTimer|, or by the system clock. */
+  AudioDumpWriter(File dir, String prefix, AudioFileSink sink, long maxSegmentBytes,
+      int ringBytes, @Nullable BatchTimer batchTimer) {
+    if (maxSegmentBytes < 0 || ringBytes <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid sizes: " + maxSegmentBytes + ", " + ringBytes);
+    }
+    this.dir = dir;
+    this.prefix = prefix;
+    this.sink = sink;
+    this.maxSegmentBytes = maxSegmentBytes > 0 ? maxSegmentBytes : Long.MAX_VALUE;
+    ring = new byte[ringBytes];
+    ringBuffer = ByteBuffer.wrap(ring);
+    thread = new Thread(this ::run, TAG);
+    this.batchTimer = batchTimer != null ? batchTimer : new BatchTimer() {
+      @Override
+      public void await(long intervalMs) {
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(intervalMs));
+      }
+
+      @Override
+      public void wake() {
+        LockSupport.unpark(thread);
+      }
+    };
+  }
+
+  /** Starts the writer thread. The first segment is created with the first data. */
+  public void start() {
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Queues |data| for writing. Returns false if the writer is closed or if the ring is too
+   * full, in which case |data| is dropped and counted as an overrun.
+   */
+  public boolean write(byte[] data) {
+    // Announced before checking |running|, the reverse order of close(), so that either
+    // close() waits for this call or this call sees the writer closed.
+    writing = true;
+    try {
+      if (!running) {
+        return false;
+      }
+      final long write = writePosition.get();
+      final long used = write - readPosition.get();
+      if (data.length > ring.length - used) {
+        overrunCount++;
+        droppedBytes += data.length;
+        return false;
+      }
+      final int index = (int) (write % ring.length);
+      final int first = Math.min(data.length, ring.length - index);
+      System.arraycopy(data, 0, ring, index, first);
+      System.arraycopy(data, first, ring, 0, data.length - first);
+      // Ordered store, publishes the copied bytes to the writer thread.
+      writePosition.lazySet(write + data.length);
+      if (used + data.length >= ring.length / 2) {
+        batchTimer.wake();
+      }
+      return true;
+    } finally {
+      writing = false;
+    }
+  }
+
+  /**
+   * Writes all queued data, closes the current segment and stops the writer thread. May be
+   * called while write() runs on another thread: every chunk write() accepted is written.
+   */
+  public void close() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    // A write() that saw the writer running is copying its chunk; the copy is short.
+    while (writing) {
+      Thread.yield();
+    }
+    stopping = true;
+    batchTimer.wake();
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    Log.d(TAG, "Wrote " + bytesWritten + " bytes in " + segmentCount + " segments, "
+        + overrunCount + " overruns");
+  }
+
+  /** Returns the number of chunks dropped because the ring was full. */
+  public long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /** Returns the number of bytes dropped because the ring was full. */
+  public long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /** Returns the number of bytes written to the segment files. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /** Returns the number of segments started so far. */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  private void run() {
+    while (true) {
+      // Checked before draining, so everything queued before close() is written.
+      final boolean stop = stopping;
+      drain();
+      if (stop) {
+        break;
+      }
+      batchTimer.await(BATCH_INTERVAL_MS);
+    }
+    closeSegment();
+  }
+
+  private void drain() {
+    long read = readPosition.get();
+    final long write = writePosition.get();
+    while (read < write) {
+      final int index = (int) (read % ring.length);
+      int length = (int) Math.min(write - read, ring.length - index);
+      if (!segmentOpen && !failed) {
+        openSegment();
+      }
+      if (segmentOpen) {
+        length = (int) Math.min(length, maxSegmentBytes - segmentBytes);
+        ringBuffer.limit(index + length).position(index);
+        try {
+          sink.write(ringBuffer);
+          segmentBytes += length;
+          bytesWritten += length;
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+          failed = true;
+          closeSegment();
+        }
+        if (segmentBytes >= maxSegmentBytes) {
+          closeSegment();
+        }
+      }
+      // Data that could not be written is discarded to keep the ring moving.
+      read += length;
+      readPosition.lazySet(read);
+    }
+  }
+
+  private void openSegment() {
+    final File file = new File(
+        dir, String.format(Locale.US, "%s_%03d%s", prefix, segmentCount, sink.getSuffix()));
+    try {
+      sink.open(file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+      failed = true;
+      return;
+    }
+    segmentOpen = true;
+    segmentBytes = 0;
+    segmentCount++;
+    Log.d(TAG, "Opened file for recording: " + file);
+  }
+
+  private void closeSegment() {
+    if (!segmentOpen) {
+      return;
+    }
+    segmentOpen = false;
+    try {
+      sink.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close file with saved input audio: " + e);
+    }
+  }
+}
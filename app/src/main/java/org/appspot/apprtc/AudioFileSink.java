@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Container format for the audio files written by AudioDumpWriter. A sink writes one file at
+ * a time and is reused for the following segments; all calls come from the writer thread.
+ */
+public interface AudioFileSink {
+  /** Returns the file name extension, e.g. ".wav". */
+  String getSuffix();
+
+  /** Creates or truncates |file| and prepares it for audio data. */
+  void open(File file) throws IOException;
+
+  /** Appends all remaining bytes of |data| to the open file. */
+  void write(ByteBuffer data) throws IOException;
+
+  /** Completes and closes the open file. Does nothing if no file is open. */
+  void close() throws IOException;
+}
@@ -32,6 +32,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
+import java.io.File;
 import java.io.IOException;
 import java.lang.RuntimeException;
 import java.util.ArrayList;
@@ -45,6 +46,7 @@ import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
 import org.webrtc.FileVideoCapturer;
@@ -54,11 +56,9 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFileRenderer;
-import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
 /**
@@ -81,6 +81,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_VIDEO_FPS = "org.appspot.apprtc.VIDEO_FPS";
   public static final String EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED =
       "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
+  public static final String EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED =
+      "org.appspot.apprtc.VIDEO_ADAPTIVE_CAPTURE";
   public static final String EXTRA_VIDEO_BITRATE = "org.appspot.apprtc.VIDEO_BITRATE";
   public static final String EXTRA_VIDEOCODEC = "org.appspot.apprtc.VIDEOCODEC";
   public static final String EXTRA_HWCODEC_ENABLED = "org.appspot.apprtc.HWCODEC";
@@ -129,24 +131,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
   // Peer connection statistics callback period in ms.
   private static final int STAT_CALLBACK_PERIOD = 1000;
-
-  private static class ProxyVideoSink implements VideoSink {
-    private VideoSink target;
-
-    @Override
-    synchronized public void onFrame(VideoFrame frame) {
-      if (target == null) {
-        Logging.d(TAG, "Dropping frame in proxy because target is null.");
-        return;
-      }
-
-      target.onFrame(frame);
-    }
-
-    synchronized public void setTarget(VideoSink target) {
-      this.target = target;
-    }
-  }
+  private static final String STATS_RECORDING_DIR_NAME = "stats_recording";
 
   private ProxyVideoSink remoteProxyRenderer;
   private ProxyVideoSink localProxyVideoSink;
@@ -175,6 +160,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private long callStartedTimeMs;
   private boolean micEnabled = true;
   private boolean screencaptureEnabled;
+  private boolean adaptiveCaptureEnabled;
   private static Intent mediaProjectionPermissionResultData;
   private static int mediaProjectionPermissionResultCode;
   // True if local view is in the fullscreen renderer.
@@ -183,6 +169,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   // Controls
   private CallFragment callFragment;
   private HudFragment hudFragment;
+  @Nullable private StatsRecorder statsRecorder;
+  @Nullable private AdaptiveCaptureController adaptiveCaptureController;
+  // Formats supported by the camera in use, or null when not capturing from a camera.
+  @Nullable private List<CaptureFormat> captureFormats;
   private CpuMonitor cpuMonitor;
 
   // Video enabled
@@ -302,6 +292,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
 
     screencaptureEnabled = intent.getBooleanExtra(EXTRA_SCREENCAPTURE, false);
+    adaptiveCaptureEnabled = intent.getBooleanExtra(EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED, false);
     // If capturing format is not specified for screencapture, use screen resolution.
     if (screencaptureEnabled && videoWidth == 0 && videoHeight == 0) {
       DisplayMetrics displayMetrics = getDisplayMetrics();
@@ -446,6 +437,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
         if (videoCapturer != null) {
+          setCaptureFormats(enumerator.getSupportedFormats(deviceName));
           return videoCapturer;
         }
       }
@@ -459,6 +451,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
         if (videoCapturer != null) {
+          setCaptureFormats(enumerator.getSupportedFormats(deviceName));
           return videoCapturer;
         }
       }
@@ -467,6 +460,16 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     return null;
   }
 
+  // Lets the capture quality slider and the adaptive capture pick from the formats the camera
+  // supports rather than from the default ones.
+  private void setCaptureFormats(@Nullable List<CaptureFormat> formats) {
+    if (formats == null || formats.isEmpty()) {
+      return;
+    }
+    captureFormats = formats;
+    callFragment.setCaptureFormats(formats);
+  }
+
   @TargetApi(21)
   private @Nullable VideoCapturer createScreenCapturer() {
     if (mediaProjectionPermissionResultCode != Activity.RESULT_OK) {
@@ -612,9 +615,36 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
     // Enable statistics callback.
     peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+    if (peerConnectionParameters.enableRtcEventLog) {
+      startStatsRecorder();
+    }
+    if (adaptiveCaptureEnabled && peerConnectionParameters.videoCallEnabled
+        && !screencaptureEnabled) {
+      if (captureFormats != null) {
+        adaptiveCaptureController = new AdaptiveCaptureController(this,
+            new CaptureFormatLadder(captureFormats), peerConnectionParameters.videoWidth,
+            peerConnectionParameters.videoHeight, peerConnectionParameters.videoFps);
+      } else {
+        adaptiveCaptureController = new AdaptiveCaptureController(this,
+            peerConnectionParameters.videoWidth, peerConnectionParameters.videoHeight,
+            peerConnectionParameters.videoFps);
+      }
+    }
     setSwappedFeeds(false /* isSwappedFeeds */);
   }
 
+  // Records the stats of this call next to the RTC event log, for triage after the call.
+  private void startStatsRecorder() {
+    final File outputFile = new File(
+        getDir(STATS_RECORDING_DIR_NAME, Context.MODE_PRIVATE),
+        "stats_" + callStartedTimeMs + ".ring");
+    try {
+      statsRecorder = new StatsRecorder(outputFile, StatsRecorder.DEFAULT_CAPACITY);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to start stats recording", e);
+    }
+  }
+
   // This method is called when the audio manager reports audio device change,
   // e.g. from wired headset to speakerphone.
   private void onAudioManagerDevicesChanged(
@@ -645,6 +675,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       fullscreenRenderer.release();
       fullscreenRenderer = null;
     }
+    if (statsRecorder != null) {
+      statsRecorder.close();
+      statsRecorder = null;
+    }
+    adaptiveCaptureController = null;
     if (peerConnectionClient != null) {
       peerConnectionClient.close();
       peerConnectionClient = null;
@@ -960,12 +995,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public void onPeerConnectionClosed() {}
 
   @Override
-  public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+  public void onPeerConnectionStatsReady(final StatsSnapshot snapshot) {
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
         if (!isError && connected) {
-          if (hudFragment !=null ) hudFragment.updateEncoderStatistics(reports);
+          snapshot.updateThreadCpu(cpuMonitor);
+          if (adaptiveCaptureController != null) {
+            adaptiveCaptureController.onStats(
+                snapshot, cpuMonitor != null ? cpuMonitor.getCpuUsageAverage() : -1);
+          }
+          if (statsRecorder != null) statsRecorder.record(snapshot, cpuMonitor);
+          if (hudFragment !=null ) hudFragment.updateEncoderStatistics(snapshot);
         }
       }
     });
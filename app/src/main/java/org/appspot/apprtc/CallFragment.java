@@ -19,7 +19,10 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import androidx.annotation.Nullable;
+import java.util.List;
 
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.RendererCommon.ScalingType;
 
 /**
@@ -35,6 +38,8 @@ public class CallFragment extends Fragment {
   private OnCallEvents callEvents;
   private ScalingType scalingType;
   private boolean videoCallEnabled = true;
+  @Nullable private CaptureQualityController captureQualityController;
+  @Nullable private List<CaptureFormat> captureFormats;
 
   /**
    * Call control interface for container activity.
@@ -119,14 +124,25 @@ public class CallFragment extends Fragment {
       cameraSwitchButton.setVisibility(View.INVISIBLE);
     }
     if (captureSliderEnabled) {
-      captureFormatSlider.setOnSeekBarChangeListener(
-          new CaptureQualityController(captureFormatText, callEvents));
+      captureQualityController = new CaptureQualityController(captureFormatText, callEvents);
+      if (captureFormats != null) {
+        captureQualityController.setCaptureFormats(captureFormats);
+      }
+      captureFormatSlider.setOnSeekBarChangeListener(captureQualityController);
     } else {
       captureFormatText.setVisibility(View.GONE);
       captureFormatSlider.setVisibility(View.GONE);
     }
   }
 
+  /** Sets the formats the capture quality slider picks from, e.g. the ones of the camera. */
+  public void setCaptureFormats(List<CaptureFormat> formats) {
+    captureFormats = formats;
+    if (captureQualityController != null) {
+      captureQualityController.setCaptureFormats(formats);
+    }
+  }
+
   // TODO(sakal): Replace with onAttach(Context) once we only support API level 23+.
   @SuppressWarnings("deprecation")
   @Override
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Maps a target capture bandwidth, in millipixels / second, to the capture format and frame
+ * rate that give the best quality for it.
+ *
+ * <p>Which format is best only changes where the frame rate of some format changes, so the
+ * ladder evaluates the choice once per interval between those bandwidths when it is built
+ * and merges neighbouring intervals with the same format into one rung. A lookup is then a
+ * binary search over the rung bandwidths and allocates nothing, whichever thread calls it.
+ * The ladder is immutable.
+ */
+public class CaptureFormatLadder {
+  // Prioritize framerate below this threshold and resolution above the threshold.
+  private static final int FRAMERATE_THRESHOLD = 15;
+
+  // Rung i covers bandwidths from rungBandwidths[i] up to, excluding, rungBandwidths[i + 1].
+  private final double[] rungBandwidths;
+  private final CaptureFormat[] rungFormats;
+  private final long maxBandwidth;
+
+  /** Builds the ladder for |formats|, which must not be empty. */
+  public CaptureFormatLadder(List<CaptureFormat> formats) {
+    if (formats.isEmpty()) {
+      throw new IllegalArgumentException("No capture formats");
+    }
+    long maxBandwidth = Long.MIN_VALUE;
+    // Bandwidths at which calculateFramerate() of a format steps to the next integer.
+    final List<Double> steps = new ArrayList<>();
+    for (CaptureFormat format : formats) {
+      final double pixels = format.width * format.height;
+      maxBandwidth = Math.max(maxBandwidth, (long) pixels * format.framerate.max);
+      // The frame rate reaches |fps| once the rounded per pixel bandwidth reaches
+      // fps * 1000 - 500, as long as the format supports that.
+      for (int fps = 1; fps * 1000 - 500 <= format.framerate.max; fps++) {
+        steps.add((fps * 1000 - 500.5) * pixels);
+      }
+    }
+    this.maxBandwidth = maxBandwidth;
+    Collections.sort(steps);
+
+    // Evaluate each interval in its middle, away from rounding at its edges.
+    final double[] bandwidths = new double[steps.size() + 1];
+    final CaptureFormat[] rungs = new CaptureFormat[steps.size() + 1];
+    int count = 0;
+    double start = 0;
+    for (int i = 0; i <= steps.size(); i++) {
+      final double end = i < steps.size() ? steps.get(i) : Math.max(2 * start, 1);
+      if (i < steps.size() && end == start) {
+        continue;
+      }
+      final CaptureFormat best = chooseBestFormat(formats, (start + end) / 2);
+      if (count == 0 || rungs[count - 1] != best) {
+        bandwidths[count] = start;
+        rungs[count] = best;
+        count++;
+      }
+      start = end;
+    }
+    rungBandwidths = Arrays.copyOf(bandwidths, count);
+    rungFormats = Arrays.copyOf(rungs, count);
+  }
+
+  /** Returns the highest capture bandwidth any of the formats supports. */
+  public long getMaxBandwidth() {
+    return maxBandwidth;
+  }
+
+  /** Returns the format that gives the best quality for |targetBandwidth|. */
+  public CaptureFormat getFormat(double targetBandwidth) {
+    int low = 0;
+    int high = rungBandwidths.length - 1;
+    // Find the last rung that starts at or below |targetBandwidth|.
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (rungBandwidths[mid] <= targetBandwidth) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return rungFormats[low];
+  }
+
+  /** Returns the highest frame rate possible based on bandwidth and format. */
+  public static int calculateFramerate(double bandwidth, CaptureFormat format) {
+    return (int) Math.round(
+        Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
+        / 1000.0);
+  }
+
+  // Reference choice over all formats, only used to build the rungs.
+  private static CaptureFormat chooseBestFormat(
+      List<CaptureFormat> formats, final double targetBandwidth) {
+    return Collections.max(formats, new Comparator<CaptureFormat>() {
+      @Override
+      public int compare(CaptureFormat first, CaptureFormat second) {
+        int firstFps = calculateFramerate(targetBandwidth, first);
+        int secondFps = calculateFramerate(targetBandwidth, second);
+
+        if ((firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD)
+            || firstFps == secondFps) {
+          // Compare resolution.
+          return first.width * first.height - second.width * second.height;
+        } else {
+          // Compare fps.
+          return firstFps - secondFps;
+        }
+      }
+    });
+  }
+}
@@ -521,6 +521,11 @@ public class ConnectActivity extends Activity {
         CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
         R.string.pref_capturequalityslider_default, useValuesFromIntent);
 
+    // Check adaptive capture flag.
+    boolean adaptiveCapture = sharedPrefGetBoolean(R.string.pref_adaptivecapture_key,
+        CallActivity.EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED, R.string.pref_adaptivecapture_default,
+        useValuesFromIntent);
+
     // Get video and audio start bitrate.
     int videoStartBitrate = 0;
     if (useValuesFromIntent) {
@@ -599,6 +604,7 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
       intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
       intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
+      intent.putExtra(CallActivity.EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED, adaptiveCapture);
       intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
       intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
       intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
@@ -19,14 +19,7 @@ import android.os.Build;
 import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.util.Log;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -90,6 +83,13 @@ public class CpuMonitor {
   private final MovingAverage totalCpuUsage;
   // CPU frequency in percentage from maximum.
   private final MovingAverage frequencyScale;
+  // Wall time spent in sampleCpuUtilization(), in microseconds.
+  private final MovingAverage sampleDurationUs;
+  private final ProcSampler procSampler = new ProcSampler();
+  private final ThreadCpuSampler threadCpuSampler = new ThreadCpuSampler();
+  // Scratch space for the log line.
+  private final String[] logThreadNames = new String[3];
+  private final int[] logThreadCpuPercents = new int[3];
 
   @Nullable
   private ScheduledExecutorService executor;
@@ -99,23 +99,10 @@ public class CpuMonitor {
   private int actualCpusPresent;
   private boolean initialized;
   private boolean cpuOveruse;
-  private String[] maxPath;
-  private String[] curPath;
   private double[] curFreqScales;
-  @Nullable
-  private ProcStat lastProcStat;
-
-  private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
-
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
-    }
-  }
+  // User, system and idle time of the previous and the current sample, see ProcSampler.
+  private long[] lastProcStat = new long[3];
+  private long[] procStat = new long[3];
 
   private static class MovingAverage {
     private final int size;
@@ -174,6 +161,7 @@ public class CpuMonitor {
     systemCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     totalCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     frequencyScale = new MovingAverage(MOVING_AVERAGE_SAMPLES);
+    sampleDurationUs = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
 
     scheduleCpuUtilizationTask();
@@ -185,6 +173,10 @@ public class CpuMonitor {
       executor.shutdownNow();
       executor = null;
     }
+    synchronized (this) {
+      procSampler.close();
+      threadCpuSampler.close();
+    }
   }
 
   public void resume() {
@@ -221,6 +213,24 @@ public class CpuMonitor {
     return doubleToPercent(frequencyScale.getAverage());
   }
 
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  /** Returns the average time the monitor spends per sample, its own overhead. */
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getSampleDurationUsAverage() {
+    return (int) (sampleDurationUs.getAverage() + 0.5);
+  }
+
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  /**
+   * Copies the thread groups of this process that used the most CPU during the last sample
+   * period into |names| and |cpuPercents|, busiest first, in percent of one core. Returns
+   * the number of groups copied, at most the length of the arrays.
+   */
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getTopThreads(String[] names, int[] cpuPercents) {
+    return threadCpuSampler.getTopThreads(names, cpuPercents);
+  }
+
   private void scheduleCpuUtilizationTask() {
     if (executor != null) {
       executor.shutdownNow();
@@ -238,7 +248,12 @@ public class CpuMonitor {
   }
 
   private void cpuUtilizationTask() {
+    final long startTimeNs = System.nanoTime();
     boolean cpuMonitorAvailable = sampleCpuUtilization();
+    synchronized (this) {
+      threadCpuSampler.sample(SystemClock.elapsedRealtime());
+      sampleDurationUs.addValue((System.nanoTime() - startTimeNs) / 1000.0);
+    }
     if (cpuMonitorAvailable
         && SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
       lastStatLogTimeMs = SystemClock.elapsedRealtime();
@@ -248,33 +263,19 @@ public class CpuMonitor {
   }
 
   private void init() {
-    try (FileInputStream fin = new FileInputStream("/sys/devices/system/cpu/present");
-         InputStreamReader streamReader = new InputStreamReader(fin, Charset.forName("UTF-8"));
-         BufferedReader reader = new BufferedReader(streamReader);
-         Scanner scanner = new Scanner(reader).useDelimiter("[-\n]");) {
-      scanner.nextInt(); // Skip leading number 0.
-      cpusPresent = 1 + scanner.nextInt();
-      scanner.close();
-    } catch (FileNotFoundException e) {
+    cpusPresent = procSampler.readCpusPresent();
+    if (cpusPresent == 0) {
       Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-    } catch (IOException e) {
-      Log.e(TAG, "Error closing file");
-    } catch (Exception e) {
-      Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
     }
 
     cpuFreqMax = new long[cpusPresent];
-    maxPath = new String[cpusPresent];
-    curPath = new String[cpusPresent];
     curFreqScales = new double[cpusPresent];
     for (int i = 0; i < cpusPresent; i++) {
       cpuFreqMax[i] = 0; // Frequency "not yet determined".
       curFreqScales[i] = 0;
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
     }
 
-    lastProcStat = new ProcStat(0, 0, 0);
+    Arrays.fill(lastProcStat, 0);
     resetStat();
 
     initialized = true;
@@ -285,6 +286,7 @@ public class CpuMonitor {
     systemCpuUsage.reset();
     totalCpuUsage.reset();
     frequencyScale.reset();
+    sampleDurationUs.reset();
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
   }
 
@@ -333,18 +335,17 @@ public class CpuMonitor {
       curFreqScales[i] = 0;
       if (cpuFreqMax[i] == 0) {
         // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
+        long cpufreqMax = procSampler.readCpuMaxFreq(i);
         if (cpufreqMax > 0) {
           Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
           lastSeenMaxFreq = cpufreqMax;
           cpuFreqMax[i] = cpufreqMax;
-          maxPath[i] = null; // Kill path to free its memory.
         }
       } else {
         lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
       }
 
-      long cpuFreqCur = readFreqFromFile(curPath[i]);
+      long cpuFreqCur = procSampler.readCpuCurFreq(i);
       if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
         // No current frequency information for this CPU core - ignore it.
         continue;
@@ -383,14 +384,15 @@ public class CpuMonitor {
       currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
     }
 
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
+    if (!procSampler.readProcStat(procStat)) {
+      Log.e(TAG, "Cannot read /proc/stat");
       return false;
     }
 
-    long diffUserTime = procStat.userTime - lastProcStat.userTime;
-    long diffSystemTime = procStat.systemTime - lastProcStat.systemTime;
-    long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
+    long diffUserTime = procStat[ProcSampler.USER_TIME] - lastProcStat[ProcSampler.USER_TIME];
+    long diffSystemTime =
+        procStat[ProcSampler.SYSTEM_TIME] - lastProcStat[ProcSampler.SYSTEM_TIME];
+    long diffIdleTime = procStat[ProcSampler.IDLE_TIME] - lastProcStat[ProcSampler.IDLE_TIME];
     long allTime = diffUserTime + diffSystemTime + diffIdleTime;
 
     if (currentFrequencyScale == 0 || allTime == 0) {
@@ -411,7 +413,9 @@ public class CpuMonitor {
     totalCpuUsage.addValue(currentTotalCpuUsage);
 
     // Save new measurements for next round's deltas.
+    final long[] previousProcStat = lastProcStat;
     lastProcStat = procStat;
+    procStat = previousProcStat;
 
     return true;
   }
@@ -445,79 +449,17 @@ public class CpuMonitor {
       stat.append(doubleToPercent(curFreqScales[i])).append(" ");
     }
     stat.append("). Battery: ").append(getBatteryLevel());
+    final int threadCount = threadCpuSampler.getTopThreads(logThreadNames, logThreadCpuPercents);
+    if (threadCount > 0) {
+      stat.append(". Threads:");
+      for (int i = 0; i < threadCount; i++) {
+        stat.append(" ").append(logThreadNames[i]).append("=").append(logThreadCpuPercents[i]);
+      }
+    }
+    stat.append(". Sample: ").append((int) (sampleDurationUs.getAverage() + 0.5)).append(" us");
     if (cpuOveruse) {
       stat.append(". Overuse.");
     }
     return stat.toString();
   }
-
-  /**
-   * Read a single integer value from the named file.  Return the read value
-   * or if an error occurs return 0.
-   */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
-    try (FileInputStream stream = new FileInputStream(fileName);
-         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
-         BufferedReader reader = new BufferedReader(streamReader)) {
-      String line = reader.readLine();
-      number = parseLong(line);
-    } catch (FileNotFoundException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is not present. This is not an error.
-    } catch (IOException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is empty. This is not an error.
-    }
-    return number;
-  }
-
-  private static long parseLong(String value) {
-    long number = 0;
-    try {
-      number = Long.parseLong(value);
-    } catch (NumberFormatException e) {
-      Log.e(TAG, "parseLong error.", e);
-    }
-    return number;
-  }
-
-  /*
-   * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
-   */
-  @SuppressWarnings("StringSplitter")
-  private @Nullable ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
-    try (FileInputStream stream = new FileInputStream("/proc/stat");
-         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
-         BufferedReader reader = new BufferedReader(streamReader)) {
-      // line should contain something like this:
-      // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-      //       user    nice  system     idle   iowait  irq   softirq
-      String line = reader.readLine();
-      String[] lines = line.split("\\s+");
-      int length = lines.length;
-      if (length >= 5) {
-        userTime = parseLong(lines[1]); // user
-        userTime += parseLong(lines[2]); // nice
-        systemTime = parseLong(lines[3]); // system
-        idleTime = parseLong(lines[4]); // idle
-      }
-      if (length >= 8) {
-        userTime += parseLong(lines[5]); // iowait
-        systemTime += parseLong(lines[6]); // irq
-        systemTime += parseLong(lines[7]); // softirq
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
-    } catch (Exception e) {
-      Log.e(TAG, "Problems parsing /proc/stat", e);
-      return null;
-    }
-    return new ProcStat(userTime, systemTime, idleTime);
-  }
 }
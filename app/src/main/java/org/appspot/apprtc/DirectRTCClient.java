@@ -51,6 +51,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
 
   private final ExecutorService executor;
   private final SignalingEvents events;
+  private final TCPChannelClient.Framing framing;
   @Nullable
   private TCPChannelClient tcpClient;
   private RoomConnectionParameters connectionParameters;
@@ -61,7 +62,16 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   private ConnectionState roomState;
 
   public DirectRTCClient(SignalingEvents events) {
+    this(events, TCPChannelClient.Framing.LINE);
+  }
+
+  /**
+   * Creates a client that uses |framing| on the TCP connection. See TCPChannelClient.Framing
+   * for how it is negotiated with the peer.
+   */
+  public DirectRTCClient(SignalingEvents events, TCPChannelClient.Framing framing) {
     this.events = events;
+    this.framing = framing;
 
     executor = Executors.newSingleThreadExecutor();
     roomState = ConnectionState.NEW;
@@ -128,7 +138,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       port = DEFAULT_PORT;
     }
 
-    tcpClient = new TCPChannelClient(executor, this, ip, port);
+    tcpClient = new TCPChannelClient(executor, this, ip, port, framing);
   }
 
   /**
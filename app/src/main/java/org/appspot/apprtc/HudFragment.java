@@ -19,9 +19,8 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
-import org.webrtc.StatsReport;
+import androidx.annotation.Nullable;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -38,6 +37,9 @@ public class HudFragment extends Fragment {
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  // Reused for every update.
+  private final StringBuilder encoderStat = new StringBuilder(128);
+  private final StringBuilder reportStat = new StringBuilder(1024);
 
   @Override
   public View onCreateView(
@@ -103,91 +105,31 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
-    }
-    return reportMap;
-  }
-
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  /**
+   * Shows |snapshot|. The full report listings are only rebuilt while they are visible.
+   */
+  public void updateEncoderStatistics(final StatsSnapshot snapshot) {
     if (!isRunning || !displayHud) {
       return;
     }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
+
+    if (hudViewBwe.getVisibility() == View.VISIBLE) {
+      setRatesText(hudViewBwe, snapshot);
+      setStatsText(hudViewConnection, "candidate-pair", snapshot.connectionStats);
+      setStatsText(hudViewVideoSend, "outbound-rtp", snapshot.videoSendStats);
+      setStatsText(hudViewVideoRecv, "inbound-rtp", snapshot.videoRecvStats);
     }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
 
+    encoderStat.setLength(0);
     if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
+      if (snapshot.sendFps != StatsSnapshot.UNKNOWN) {
+        encoderStat.append("Fps:  ").append(snapshot.sendFps).append("\n");
       }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+      if (snapshot.targetEncBitrate != StatsSnapshot.UNKNOWN) {
+        encoderStat.append("Target BR: ").append(snapshot.targetEncBitrate).append("\n");
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      if (snapshot.actualEncBitrate != StatsSnapshot.UNKNOWN) {
+        encoderStat.append("Actual BR: ").append(snapshot.actualEncBitrate).append("\n");
       }
     }
 
@@ -199,6 +141,52 @@ public class HudFragment extends Fragment {
           .append(". Freq: ")
           .append(cpuMonitor.getFrequencyScaleAverage());
     }
-    encoderStatView.setText(encoderStat.toString());
+    for (int i = 0; i < snapshot.topThreadCount; i++) {
+      encoderStat.append("\n")
+          .append(snapshot.topThreadNames[i])
+          .append(": ")
+          .append(snapshot.topThreadCpuPercents[i])
+          .append("%");
+    }
+    encoderStatView.setText(encoderStat);
+  }
+
+  // Lists the bitrates and bandwidth estimates in bits per second, and the receive rates.
+  private void setRatesText(TextView view, StatsSnapshot snapshot) {
+    reportStat.setLength(0);
+    appendRate(reportStat, "TargetEncBitrate", snapshot.targetEncBitrate);
+    appendRate(reportStat, "ActualEncBitrate", snapshot.actualEncBitrate);
+    appendRate(reportStat, "SendBandwidth", snapshot.availableSendBandwidth);
+    appendRate(reportStat, "ReceiveBandwidth", snapshot.availableReceiveBandwidth);
+    appendRate(reportStat, "TransmitBitrate", snapshot.transmitBitrate);
+    appendRate(reportStat, "RetransmitBitrate", snapshot.retransmitBitrate);
+    appendRate(reportStat, "SendPacketRate", snapshot.sendPacketRate);
+    appendRate(reportStat, "RecvBitrate", snapshot.recvBitrate);
+    appendRate(reportStat, "RecvPacketRate", snapshot.recvPacketRate);
+    if (snapshot.recvLossFraction != StatsSnapshot.UNKNOWN) {
+      reportStat.append("RecvLossPercent=")
+          .append(Math.round(snapshot.recvLossFraction * 100))
+          .append("\n");
+    }
+    view.setText(reportStat);
+  }
+
+  // Lists every member of |stats| under |title|.
+  private void setStatsText(
+      TextView view, String title, @Nullable Map<String, Object> stats) {
+    reportStat.setLength(0);
+    if (stats != null) {
+      reportStat.append(title).append("\n");
+      for (Map.Entry<String, Object> member : stats.entrySet()) {
+        reportStat.append(member.getKey()).append("=").append(member.getValue()).append("\n");
+      }
+    }
+    view.setText(reportStat);
+  }
+
+  private static void appendRate(StringBuilder out, String name, long value) {
+    if (value != StatsSnapshot.UNKNOWN) {
+      out.append(name).append("=").append(value).append("\n");
+    }
   }
 }
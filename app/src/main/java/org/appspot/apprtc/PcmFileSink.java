@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes headerless raw PCM files. The format is only known from the file name, so prefer
+ * WavFileSink unless the raw samples are needed.
+ */
+public class PcmFileSink implements AudioFileSink {
+  @Nullable private FileChannel channel;
+
+  @Override
+  public String getSuffix() {
+    return ".pcm";
+  }
+
+  @Override
+  public void open(File file) throws IOException {
+    close();
+    channel = new FileOutputStream(file).getChannel();
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      final FileChannel closing = channel;
+      channel = null;
+      closing.close();
+    }
+  }
+}
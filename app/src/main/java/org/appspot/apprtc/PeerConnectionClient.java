@@ -22,18 +22,13 @@ import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.RecordedAudioToFileController;
 import org.webrtc.AudioSource;
@@ -53,6 +48,7 @@ import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnection.PeerConnectionState;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
@@ -61,8 +57,6 @@ import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SoftwareVideoDecoderFactory;
 import org.webrtc.SoftwareVideoEncoderFactory;
-import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoDecoderFactory;
@@ -96,13 +90,11 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL =
       "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -113,14 +105,21 @@ public class PeerConnectionClient {
   private static final int BPS_IN_KBPS = 1000;
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
 
-  // Executor thread is started once in private ctor and is used for all
-  // peer connection API calls to ensure new peer connection factory is
-  // created on the same thread as previously destroyed factory.
-  private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Tasks that wait or run longer than this are logged.
+  private static final long SLOW_TASK_MS = 100;
+
+  // Default thread for the peer connection API calls of all clients, to ensure new peer
+  // connection factory is created on the same thread as previously destroyed factory.
+  private static final ExecutorService defaultExecutor =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+
+  // Serial queue of this client, on |defaultExecutor| unless another executor is given.
+  private final SerialExecutor executor;
 
   private final PCObserver pcObserver = new PCObserver();
   private final SDPObserver sdpObserver = new SDPObserver();
-  private final Timer statsTimer = new Timer();
+  private final StatsScheduler statsScheduler;
+  private final StatsDeltaEngine statsDeltaEngine = new StatsDeltaEngine();
   private final EglBase rootEglBase;
   private final Context appContext;
   private final PeerConnectionParameters peerConnectionParameters;
@@ -307,9 +306,10 @@ public class PeerConnectionClient {
     void onPeerConnectionClosed();
 
     /**
-     * Callback fired once peer connection statistics is ready.
+     * Callback fired once peer connection statistics is ready. |snapshot| is created for this
+     * call and belongs to the receiver.
      */
-    void onPeerConnectionStatsReady(final StatsReport[] reports);
+    void onPeerConnectionStatsReady(final StatsSnapshot snapshot);
 
     /**
      * Callback fired once peer connection error happened.
@@ -323,6 +323,18 @@ public class PeerConnectionClient {
    */
   public PeerConnectionClient(Context appContext, EglBase eglBase,
       PeerConnectionParameters peerConnectionParameters, PeerConnectionEvents events) {
+    this(appContext, eglBase, peerConnectionParameters, events, defaultExecutor);
+  }
+
+  /**
+   * Create a PeerConnectionClient that runs its peer connection API calls one at a time on
+   * |backingExecutor|, e.g. to give each of several clients its own thread.
+   */
+  public PeerConnectionClient(Context appContext, EglBase eglBase,
+      PeerConnectionParameters peerConnectionParameters, PeerConnectionEvents events,
+      Executor backingExecutor) {
+    this.executor = new SerialExecutor(TAG, backingExecutor, SLOW_TASK_MS);
+    this.statsScheduler = new StatsScheduler(executor, this ::getStats);
     this.rootEglBase = eglBase;
     this.appContext = appContext;
     this.events = events;
@@ -384,8 +396,18 @@ public class PeerConnectionClient {
     });
   }
 
+  /**
+   * Closes the peer connection on the executor. Tasks submitted after this call are
+   * dropped, onPeerConnectionClosed() is the last callback.
+   */
   public void close() {
     executor.execute(this ::closeInternal);
+    executor.shutdown();
+  }
+
+  /** Returns the executor of this client, e.g. to read its queue statistics. */
+  public SerialExecutor getExecutor() {
+    return executor;
   }
 
   private boolean isVideoCallEnabled() {
@@ -405,7 +427,7 @@ public class PeerConnectionClient {
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
 
-    // It is possible to save a copy in raw PCM format on a file by checking
+    // It is possible to save a copy in WAV format on files by checking
     // the "Save input audio to file" checkbox in the Settings UI. A callback
     // interface is set when this flag is enabled. As a result, a copy of recorded
     // audio samples are provided to this client directly from the native audio
@@ -413,7 +435,7 @@ public class PeerConnectionClient {
     if (peerConnectionParameters.saveInputAudioToFile) {
       if (!peerConnectionParameters.useOpenSLES) {
         Log.d(TAG, "Enable recording of microphone input audio to file");
-        saveRecordedAudioToFile = new RecordedAudioToFileController(executor);
+        saveRecordedAudioToFile = new RecordedAudioToFileController();
       } else {
         // TODO(henrika): ensure that the UI reflects that if OpenSL ES is selected,
         // then the "Save inut audio to file" option shall be grayed out.
@@ -683,7 +705,7 @@ public class PeerConnectionClient {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    statsScheduler.stop();
     if (dataChannel != null) {
       dataChannel.dispose();
       dataChannel = null;
@@ -735,7 +757,7 @@ public class PeerConnectionClient {
       factory = null;
     }
     rootEglBase.release();
-    Log.d(TAG, "Closing peer connection done.");
+    Log.d(TAG, "Closing peer connection done. " + executor);
     events.onPeerConnectionClosed();
     PeerConnectionFactory.stopInternalTracingCapture();
     PeerConnectionFactory.shutdownInternalTracer();
@@ -745,39 +767,50 @@ public class PeerConnectionClient {
     return isVideoCallEnabled() && videoWidth * videoHeight >= 1280 * 720;
   }
 
-  @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
-  private void getStats() {
+  // Requests the stats, returns false if no request was started.
+  private boolean getStats() {
     if (peerConnection == null || isError) {
-      return;
-    }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
+      return false;
+    }
+    final long requestTimeMs = System.currentTimeMillis();
+    peerConnection.getStats(report -> {
+      statsScheduler.onRequestDone();
+      final StatsSnapshot snapshot = new StatsSnapshot();
+      // A request that timed out in the scheduler may still complete next to a newer one.
+      final boolean current;
+      synchronized (statsDeltaEngine) {
+        statsDeltaEngine.begin(snapshot, requestTimeMs);
+        for (RTCStats stats : report.getStatsMap().values()) {
+          statsDeltaEngine.addStats(
+              stats.getId(), stats.getType(), stats.getTimestampUs(), stats.getMembers());
+        }
+        current = statsDeltaEngine.end();
       }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
-    }
+      if (current) {
+        events.onPeerConnectionStatsReady(snapshot);
+      }
+    });
+    return true;
   }
 
+  /**
+   * Starts or stops the periodic stats callbacks. Stats are requested every |periodMs|, but
+   * never while the previous request is still pending. Can be enabled again after it has been
+   * disabled.
+   */
   public void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats());
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
+      statsScheduler.start(periodMs);
     } else {
-      statsTimer.cancel();
+      statsScheduler.stop();
     }
   }
 
+  /** Changes the period of the stats callbacks if they are enabled. */
+  public void setStatsPeriod(int periodMs) {
+    statsScheduler.setPeriod(periodMs);
+  }
+
   public void setAudioEnabled(final boolean enable) {
     executor.execute(() -> {
       enableAudio = enable;
@@ -848,19 +881,19 @@ public class PeerConnectionClient {
       if (peerConnection == null || isError) {
         return;
       }
-      String sdp = desc.description;
+      SdpMunger munger = new SdpMunger(desc.description);
       if (preferIsac) {
-        sdp = preferCodec(sdp, AUDIO_CODEC_ISAC, true);
+        munger.preferCodec(AUDIO_CODEC_ISAC, true);
       }
       if (isVideoCallEnabled()) {
-        sdp = preferCodec(sdp, getSdpVideoCodecName(peerConnectionParameters), false);
+        munger.preferCodec(getSdpVideoCodecName(peerConnectionParameters), false);
       }
       if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdp = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdp, peerConnectionParameters.audioStartBitrate);
+        munger.setStartBitrate(
+            AUDIO_CODEC_OPUS, false, peerConnectionParameters.audioStartBitrate);
       }
       Log.d(TAG, "Set remote SDP.");
-      SessionDescription sdpRemote = new SessionDescription(desc.type, sdp);
+      SessionDescription sdpRemote = new SessionDescription(desc.type, munger.toString());
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
     });
   }
@@ -999,150 +1032,6 @@ public class PeerConnectionClient {
     return fieldTrials;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdp, int bitrateKbps) {
-    String[] lines = sdp.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdp;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-    }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
-    }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
-    }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
-  }
-
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdp, String codec, boolean isAudio) {
-    final String[] lines = sdp.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdp;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
-      }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdp;
-    }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdp;
-    }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
-  }
-
   private void drainCandidates() {
     if (queuedRemoteCandidates != null) {
       Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
@@ -1305,14 +1194,14 @@ public class PeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdp = desc.description;
+      SdpMunger munger = new SdpMunger(desc.description);
       if (preferIsac) {
-        sdp = preferCodec(sdp, AUDIO_CODEC_ISAC, true);
+        munger.preferCodec(AUDIO_CODEC_ISAC, true);
       }
       if (isVideoCallEnabled()) {
-        sdp = preferCodec(sdp, getSdpVideoCodecName(peerConnectionParameters), false);
+        munger.preferCodec(getSdpVideoCodecName(peerConnectionParameters), false);
       }
-      final SessionDescription newDesc = new SessionDescription(desc.type, sdp);
+      final SessionDescription newDesc = new SessionDescription(desc.type, munger.toString());
       localDescription = newDesc;
       executor.execute(() -> {
         if (peerConnection != null && !isError) {
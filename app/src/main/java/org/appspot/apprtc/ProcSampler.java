@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the CPU counters used by CpuMonitor from /proc and /sys.
+ *
+ * <p>Every file is opened once and re-read with a positional read from offset 0, which
+ * makes the kernel regenerate its contents, into one reusable buffer. Numbers are parsed
+ * straight from the bytes, so a sample opens no files and creates no Strings once the files
+ * are open. Files that cannot be read, such as the frequency files of an offline core, are
+ * closed and reopened on a later sample.
+ *
+ * <p>The roots are configurable so the sampler can be run against fixture trees. Plain Java,
+ * not thread safe.
+ */
+class ProcSampler {
+  private static final int READ_BUFFER_SIZE = 4096;
+
+  /** Indices into the array filled by readProcStat(). */
+  static final int USER_TIME = 0;
+  static final int SYSTEM_TIME = 1;
+  static final int IDLE_TIME = 2;
+
+  private final File procRoot;
+  private final File sysRoot;
+  private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private final byte[] bytes = buffer.array();
+  // Limit of the valid bytes in |bytes| after readFile().
+  private int length;
+  private final long[] values = new long[8];
+  @Nullable private FileChannel procStatChannel;
+  private FileChannel[] curFreqChannels = new FileChannel[0];
+
+  ProcSampler() {
+    this(new File("/proc"), new File("/sys"));
+  }
+
+  ProcSampler(File procRoot, File sysRoot) {
+    this.procRoot = procRoot;
+    this.sysRoot = sysRoot;
+  }
+
+  /**
+   * Returns the number of CPUs listed in devices/system/cpu/present, e.g. 8 for "0-7", or 0
+   * if the file cannot be read.
+   */
+  int readCpusPresent() {
+    final FileChannel channel = open(new File(sysRoot, "devices/system/cpu/present"));
+    if (channel == null) {
+      return 0;
+    }
+    try {
+      if (!readFile(channel)) {
+        return 0;
+      }
+    } finally {
+      close(channel);
+    }
+    // Either "0" or "0-<last>".
+    final int count = parseNumbers(0, 2);
+    return count == 2 ? (int) values[1] + 1 : (count == 1 ? (int) values[0] + 1 : 0);
+  }
+
+  /** Returns the maximum frequency of |cpu| in kHz, or 0 if it is not known (yet). */
+  long readCpuMaxFreq(int cpu) {
+    final FileChannel channel = open(getCpuFreqFile(cpu, "cpuinfo_max_freq"));
+    if (channel == null) {
+      return 0;
+    }
+    try {
+      return readFile(channel) && parseNumbers(0, 1) == 1 ? values[0] : 0;
+    } finally {
+      close(channel);
+    }
+  }
+
+  /** Returns the current frequency of |cpu| in kHz, or 0 if the core is offline. */
+  long readCpuCurFreq(int cpu) {
+    if (cpu >= curFreqChannels.length) {
+      final FileChannel[] channels = new FileChannel[cpu + 1];
+      System.arraycopy(curFreqChannels, 0, channels, 0, curFreqChannels.length);
+      curFreqChannels = channels;
+    }
+    if (curFreqChannels[cpu] == null) {
+      curFreqChannels[cpu] = open(getCpuFreqFile(cpu, "scaling_cur_freq"));
+      if (curFreqChannels[cpu] == null) {
+        return 0;
+      }
+    }
+    if (!readFile(curFreqChannels[cpu])) {
+      close(curFreqChannels[cpu]);
+      curFreqChannels[cpu] = null;
+      return 0;
+    }
+    return parseNumbers(0, 1) == 1 ? values[0] : 0;
+  }
+
+  /**
+   * Reads the cumulative "cpu" line of stat and stores user (user + nice + iowait), system
+   * (system + irq + softirq) and idle time at USER_TIME, SYSTEM_TIME and IDLE_TIME of |out|.
+   * Returns false if the file cannot be read or parsed.
+   */
+  boolean readProcStat(long[] out) {
+    if (procStatChannel == null) {
+      procStatChannel = open(new File(procRoot, "stat"));
+      if (procStatChannel == null) {
+        return false;
+      }
+    }
+    if (!readFile(procStatChannel)) {
+      close(procStatChannel);
+      procStatChannel = null;
+      return false;
+    }
+    // The line should contain something like this:
+    // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+    //       user    nice  system     idle   iowait  irq   softirq
+    if (length < 4 || bytes[0] != 'c' || bytes[1] != 'p' || bytes[2] != 'u' || bytes[3] != ' ') {
+      return false;
+    }
+    final int count = parseNumbers(3, 7);
+    if (count < 4) {
+      return false;
+    }
+    out[USER_TIME] = values[0] + values[1];
+    out[SYSTEM_TIME] = values[2];
+    out[IDLE_TIME] = values[3];
+    if (count >= 7) {
+      out[USER_TIME] += values[4];
+      out[SYSTEM_TIME] += values[5] + values[6];
+    }
+    return true;
+  }
+
+  /** Closes all open files. The sampler reopens them if it is used again. */
+  void close() {
+    if (procStatChannel != null) {
+      close(procStatChannel);
+      procStatChannel = null;
+    }
+    for (int i = 0; i < curFreqChannels.length; i++) {
+      if (curFreqChannels[i] != null) {
+        close(curFreqChannels[i]);
+        curFreqChannels[i] = null;
+      }
+    }
+  }
+
+  private File getCpuFreqFile(int cpu, String name) {
+    return new File(sysRoot, "devices/system/cpu/cpu" + cpu + "/cpufreq/" + name);
+  }
+
+  @Nullable
+  private static FileChannel open(File file) {
+    try {
+      return new FileInputStream(file).getChannel();
+    } catch (IOException e) {
+      // Missing files are expected, e.g. for offline cores.
+      return null;
+    }
+  }
+
+  private static void close(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing to do, the file was only read.
+    }
+  }
+
+  // Reads the file from the start into |bytes|, as much as fits. Sets |length|.
+  private boolean readFile(FileChannel channel) {
+    buffer.clear();
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, buffer.position()) <= 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    length = buffer.position();
+    return length > 0;
+  }
+
+  // Parses up to |maxCount| unsigned decimal numbers from the first line, starting at
+  // |offset| and separated by anything that is not a digit, into |values|. Returns how many
+  // were found.
+  private int parseNumbers(int offset, int maxCount) {
+    int count = 0;
+    int pos = offset;
+    while (count < maxCount && pos < length && bytes[pos] != '\n') {
+      final byte b = bytes[pos];
+      if (b < '0' || b > '9') {
+        pos++;
+        continue;
+      }
+      long value = 0;
+      while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9') {
+        value = value * 10 + (bytes[pos] - '0');
+        pos++;
+      }
+      values[count++] = value;
+    }
+    return count;
+  }
+}
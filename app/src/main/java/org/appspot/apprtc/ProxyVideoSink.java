@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.webrtc.Logging;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Forwards frames to a target sink that can be swapped at any time, e.g. when the local and
+ * remote renderers trade places.
+ *
+ * <p>The frame path takes no lock. Each delivery is counted in the epoch it started in, and
+ * setTarget() swaps the target, starts a new epoch and waits for the deliveries of the previous
+ * one to finish: once it returns, no frame is being or will be delivered to the previous
+ * target, which can then be released. Frames that arrive without a target are dropped and
+ * counted; only the first drop after each setTarget() is logged.
+ */
+public class ProxyVideoSink implements VideoSink {
+  private static final String TAG = "ProxyVideoSink";
+
+  private final AtomicReference<VideoSink> target = new AtomicReference<>();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  private final AtomicBoolean dropLogged = new AtomicBoolean();
+  // Deliveries in progress, by the parity of the epoch they started in.
+  private final AtomicInteger[] deliveries = {new AtomicInteger(), new AtomicInteger()};
+  private final AtomicLong epoch = new AtomicLong();
+  // Deliveries in progress on the current thread, to let a target call setTarget().
+  private final ThreadLocal<int[]> nestedDeliveries = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+  // The thread in setTarget() waiting for an epoch to drain, if any.
+  @Nullable private volatile Thread drainWaiter;
+
+  @Override
+  public void onFrame(VideoFrame frame) {
+    AtomicInteger counter;
+    while (true) {
+      final long deliveryEpoch = epoch.get();
+      counter = deliveries[(int) (deliveryEpoch & 1)];
+      counter.incrementAndGet();
+      if (epoch.get() == deliveryEpoch) {
+        break;
+      }
+      // setTarget() started a new epoch in between, count this delivery in that one.
+      release(counter);
+    }
+    final int[] nested = nestedDeliveries.get();
+    nested[0]++;
+    try {
+      final VideoSink currentTarget = target.get();
+      if (currentTarget == null) {
+        droppedFrames.incrementAndGet();
+        if (dropLogged.compareAndSet(false, true)) {
+          Logging.d(TAG, "Dropping frames in proxy because target is null.");
+        }
+        return;
+      }
+      currentTarget.onFrame(frame);
+    } finally {
+      nested[0]--;
+      release(counter);
+    }
+  }
+
+  private void release(AtomicInteger counter) {
+    if (counter.decrementAndGet() == 0) {
+      final Thread waiter = drainWaiter;
+      if (waiter != null) {
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+
+  /**
+   * Sets the sink that receives the following frames and waits for deliveries to the previous
+   * target to finish. Returns the previous target. When called from a target's onFrame(), the
+   * call does not wait, since the delivery on the calling thread is still in progress.
+   */
+  @Nullable
+  public VideoSink setTarget(@Nullable VideoSink target) {
+    if (nestedDeliveries.get()[0] > 0) {
+      // Waiting, or for another setTarget() that waits for this delivery, would deadlock.
+      dropLogged.set(false);
+      return this.target.getAndSet(target);
+    }
+    // One caller at a time, so that every epoch is drained before the next one ends.
+    synchronized (epoch) {
+      dropLogged.set(false);
+      final VideoSink previous = this.target.getAndSet(target);
+      final AtomicInteger counter = deliveries[(int) (epoch.getAndIncrement() & 1)];
+      drainWaiter = Thread.currentThread();
+      while (counter.get() != 0) {
+        LockSupport.park(this);
+      }
+      drainWaiter = null;
+      return previous;
+    }
+  }
+
+  /** Returns the number of frames dropped because there was no target. */
+  public long getDroppedFrames() {
+    return droppedFrames.get();
+  }
+}
@@ -14,38 +14,54 @@ import android.media.AudioFormat;
 import android.os.Environment;
 import androidx.annotation.Nullable;
 import android.util.Log;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.concurrent.ExecutorService;
 import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
 /**
  * Implements the AudioRecordSamplesReadyCallback interface and writes
- * recorded raw audio samples to an output file.
+ * recorded audio samples to output files.
+ *
+ * <p>The samples are handed to an AudioDumpWriter, which writes them on its own
+ * thread as WAV or raw PCM files. In segmenting mode it continues in a new file
+ * once the current one reaches a maximum size or duration, so long calls can be
+ * captured without a fixed cap.
  */
 public class RecordedAudioToFileController implements SamplesReadyCallback {
   private static final String TAG = "RecordedAudioToFile";
-  private static final long MAX_FILE_SIZE_IN_BYTES = 58348800L;
+  // 58348800 bytes corresponds to approximately 10 minutes of recording in mono
+  // at 48kHz.
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 58348800L;
+  public static final long DEFAULT_MAX_SEGMENT_MS = 10 * 60 * 1000;
+  // Audio the writer thread can fall behind by before samples are dropped.
+  private static final int RING_BUFFER_MS = 1000;
 
   private final Object lock = new Object();
-  private final ExecutorService executor;
-  @Nullable private OutputStream rawAudioFileOutputStream;
+  private final boolean wavOutput;
+  private final long maxSegmentBytes;
+  private final long maxSegmentMs;
   private boolean isRunning;
-  private long fileSizeInBytes;
+  // Created with the first callback, since it allows us to add audio parameters to
+  // the file name.
+  @Nullable private volatile AudioDumpWriter writer;
 
-  public RecordedAudioToFileController(ExecutorService executor) {
-    Log.d(TAG, "ctor");
-    this.executor = executor;
+  /** Writes WAV files in segments of the default size and duration. */
+  public RecordedAudioToFileController() {
+    this(true /* wavOutput */, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_MS);
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Writes WAV files if |wavOutput| is set and headerless PCM files otherwise. A new
+   * file is started after |maxSegmentBytes| of audio or |maxSegmentMs| of recording,
+   * whichever comes first; 0 disables the respective limit.
    */
+  public RecordedAudioToFileController(
+      boolean wavOutput, long maxSegmentBytes, long maxSegmentMs) {
+    Log.d(TAG, "ctor");
+    this.wavOutput = wavOutput;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMs = maxSegmentMs;
+  }
+
   public boolean start() {
     Log.d(TAG, "start");
     if (!isExternalStorageWritable()) {
@@ -58,23 +74,17 @@ public class RecordedAudioToFileController implements SamplesReadyCallback {
     return true;
   }
 
-  /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
-   */
+  /** Writes the remaining samples and closes the current file. */
   public void stop() {
     Log.d(TAG, "stop");
+    final AudioDumpWriter stoppedWriter;
     synchronized (lock) {
       isRunning = false;
-      if (rawAudioFileOutputStream != null) {
-        try {
-          rawAudioFileOutputStream.close();
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to close file with saved input audio: " + e);
-        }
-        rawAudioFileOutputStream = null;
-      }
-      fileSizeInBytes = 0;
+      stoppedWriter = writer;
+      writer = null;
+    }
+    if (stoppedWriter != null) {
+      stoppedWriter.close();
     }
   }
 
@@ -87,20 +97,26 @@ public class RecordedAudioToFileController implements SamplesReadyCallback {
     return false;
   }
 
-  // Utilizes audio parameters to create a file name which contains sufficient
-  // information so that the file can be played using an external file player.
-  // Example: /sdcard/recorded_audio_16bits_48000Hz_mono.pcm.
-  private void openRawAudioOutputFile(int sampleRate, int channelCount) {
-    final String fileName = Environment.getExternalStorageDirectory().getPath() + File.separator
-        + "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
-        + ((channelCount == 1) ? "_mono" : "_stereo") + ".pcm";
-    final File outputFile = new File(fileName);
-    try {
-      rawAudioFileOutputStream = new FileOutputStream(outputFile);
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+  // Utilizes audio parameters to create a file name prefix which contains sufficient
+  // information so that the files can be played using an external file player.
+  // Example: /sdcard/recorded_audio_16bits_48000Hz_mono_000.wav.
+  private AudioDumpWriter createWriter(int sampleRate, int channelCount) {
+    final String prefix = "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
+        + ((channelCount == 1) ? "_mono" : "_stereo");
+    final AudioFileSink sink =
+        wavOutput ? new WavFileSink(sampleRate, channelCount) : new PcmFileSink();
+    // 16-bit samples. Segments are counted in audio time and end on a frame boundary.
+    final int bytesPerFrame = 2 * channelCount;
+    long segmentBytes = maxSegmentBytes;
+    if (maxSegmentMs > 0) {
+      final long durationBytes = maxSegmentMs * sampleRate / 1000 * bytesPerFrame;
+      segmentBytes = segmentBytes > 0 ? Math.min(segmentBytes, durationBytes) : durationBytes;
     }
-    Log.d(TAG, "Opened file for recording: " + fileName);
+    final AudioDumpWriter writer = new AudioDumpWriter(Environment.getExternalStorageDirectory(),
+        prefix, sink, segmentBytes / bytesPerFrame * bytesPerFrame,
+        sampleRate * bytesPerFrame * RING_BUFFER_MS / 1000);
+    writer.start();
+    return writer;
   }
 
   // Called when new audio samples are ready.
@@ -111,33 +127,21 @@ public class RecordedAudioToFileController implements SamplesReadyCallback {
       Log.e(TAG, "Invalid audio format");
       return;
     }
-    synchronized (lock) {
-      // Abort early if stop() has been called.
-      if (!isRunning) {
-        return;
-      }
-      // Open a new file for the first callback only since it allows us to add audio parameters to
-      // the file name.
-      if (rawAudioFileOutputStream == null) {
-        openRawAudioOutputFile(samples.getSampleRate(), samples.getChannelCount());
-        fileSizeInBytes = 0;
-      }
-    }
-    // Append the recorded 16-bit audio samples to the open output file.
-    executor.execute(() -> {
-      if (rawAudioFileOutputStream != null) {
-        try {
-          // Set a limit on max file size. 58348800 bytes corresponds to
-          // approximately 10 minutes of recording in mono at 48kHz.
-          if (fileSizeInBytes < MAX_FILE_SIZE_IN_BYTES) {
-            // Writes samples.getData().length bytes to output stream.
-            rawAudioFileOutputStream.write(samples.getData());
-            fileSizeInBytes += samples.getData().length;
-          }
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+    AudioDumpWriter currentWriter = writer;
+    if (currentWriter == null) {
+      synchronized (lock) {
+        // Abort early if stop() has been called.
+        if (!isRunning) {
+          return;
         }
+        if (writer == null) {
+          writer = createWriter(samples.getSampleRate(), samples.getChannelCount());
+        }
+        currentWriter = writer;
       }
-    });
+    }
+    // Append the recorded 16-bit audio samples to the ring, the writer thread
+    // takes care of the file.
+    currentWriter.write(samples.getData());
   }
 }
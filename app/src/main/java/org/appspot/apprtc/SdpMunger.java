@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import org.appspot.apprtc.SessionDescriptionModel.MediaSection;
+import org.appspot.apprtc.SessionDescriptionModel.PayloadType;
+
+/**
+ * Applies codec preference and bitrate edits to an SDP blob.
+ *
+ * <p>The description is parsed into a {@link SessionDescriptionModel} once, so every edit
+ * is a lookup in its payload type index instead of a rescan, and the result is serialized
+ * once by {@link #toString()}. The output is identical to splitting the SDP, editing the
+ * lines and joining them again after every single edit.
+ *
+ * <p>This class is not thread safe.
+ */
+class SdpMunger {
+  private static final String TAG = "SdpMunger";
+  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+
+  private final SessionDescriptionModel model;
+
+  SdpMunger(String sdp) {
+    this.model = SessionDescriptionModel.parse(sdp);
+  }
+
+  /**
+   * Moves the payload types of |codec| to the front of the first audio or video media
+   * description. Returns false if the SDP was left untouched.
+   */
+  boolean preferCodec(String codec, boolean isAudio) {
+    final MediaSection mediaSection = model.getFirstMediaSection(isAudio ? "audio" : "video");
+    if (mediaSection == null) {
+      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
+      return false;
+    }
+    // A list with all the payload types with name |codec|. The payload types are integers in the
+    // range 96-127, but they are stored as strings here.
+    final List<String> codecPayloadTypes = new ArrayList<>();
+    for (MediaSection section : model.getSections()) {
+      for (PayloadType payloadType : section.getPayloadTypes(codec)) {
+        codecPayloadTypes.add(Integer.toString(payloadType.payloadType));
+      }
+    }
+    if (codecPayloadTypes.isEmpty()) {
+      Log.w(TAG, "No payload types with name " + codec);
+      return false;
+    }
+
+    final int mLineIndex = mediaSection.getMediaLineIndex();
+    final String mLine = model.getLine(mLineIndex);
+    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, mLine);
+    if (newMLine == null) {
+      return false;
+    }
+    Log.d(TAG, "Change media description from: " + mLine + " to " + newMLine);
+    model.setLine(mLineIndex, newMLine);
+    return true;
+  }
+
+  /**
+   * Sets the start bitrate of |codec|, either by extending its existing a=fmtp line or by
+   * adding a new one right after its a=rtpmap line. Returns false if the SDP was left
+   * untouched.
+   */
+  boolean setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+    PayloadType codecRtpMap = null;
+    for (MediaSection section : model.getSections()) {
+      final List<PayloadType> payloadTypes = section.getPayloadTypes(codec);
+      if (!payloadTypes.isEmpty()) {
+        codecRtpMap = payloadTypes.get(0);
+        break;
+      }
+    }
+    if (codecRtpMap == null) {
+      Log.w(TAG, "No rtpmap for " + codec + " codec");
+      return false;
+    }
+    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap.payloadType + " at "
+            + model.getLine(codecRtpMap.rtpmapLineIndex));
+
+    final String bitrateParam = isVideoCodec
+        ? VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps
+        : AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+
+    // Check if a=fmtp string already exist in the SDP for this codec and
+    // update it with new bitrate parameter.
+    for (MediaSection section : model.getSections()) {
+      final PayloadType payloadType = section.getPayloadType(codecRtpMap.payloadType);
+      if (payloadType == null) {
+        continue;
+      }
+      for (int fmtpLineIndex : payloadType.fmtpLineIndices) {
+        final String fmtpLine = model.getLine(fmtpLineIndex);
+        if (!hasNumericFirstParameter(fmtpLine)) {
+          continue;
+        }
+        Log.d(TAG, "Found " + codec + " " + fmtpLine);
+        final String newFmtpLine = fmtpLine + "; " + bitrateParam;
+        Log.d(TAG, "Update remote SDP line: " + newFmtpLine);
+        model.setLine(fmtpLineIndex, newFmtpLine);
+        return true;
+      }
+    }
+
+    // Append new a=fmtp line if no such line exist for a codec.
+    final String bitrateSet = FMTP_PREFIX + codecRtpMap.payloadType + " " + bitrateParam;
+    Log.d(TAG, "Add remote SDP line: " + bitrateSet);
+    model.insertLine(codecRtpMap.rtpmapLineIndex + 1, bitrateSet);
+    return true;
+  }
+
+  /** Returns the edited SDP, or the original string if no edit changed it. */
+  @Override
+  public String toString() {
+    return model.toString();
+  }
+
+  // Returns true for "a=fmtp:<payload type> <param>=<number>...", the only a=fmtp format
+  // that a bitrate parameter is appended to.
+  private static boolean hasNumericFirstParameter(String fmtpLine) {
+    int pos = fmtpLine.indexOf(' ') + 1;
+    final int nameStart = pos;
+    while (pos < fmtpLine.length() && isWordChar(fmtpLine.charAt(pos))) {
+      pos++;
+    }
+    if (pos == nameStart || pos >= fmtpLine.length() || fmtpLine.charAt(pos) != '=') {
+      return false;
+    }
+    pos++;
+    return pos < fmtpLine.length() && fmtpLine.charAt(pos) >= '0' && fmtpLine.charAt(pos) <= '9';
+  }
+
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private static @Nullable String movePayloadTypesToFront(
+      List<String> preferredPayloadTypes, String mLine) {
+    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
+    final String[] origLineParts = mLine.split(" ");
+    if (origLineParts.length <= 3) {
+      Log.e(TAG, "Wrong SDP media description format: " + mLine);
+      return null;
+    }
+    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
+    // types.
+    final StringBuilder newLine = new StringBuilder(mLine.length());
+    newLine.append(origLineParts[0]).append(' ').append(origLineParts[1]).append(' ').append(
+        origLineParts[2]);
+    for (String payloadType : preferredPayloadTypes) {
+      newLine.append(' ').append(payloadType);
+    }
+    for (int i = 3; i < origLineParts.length; i++) {
+      if (!preferredPayloadTypes.contains(origLineParts[i])) {
+        newLine.append(' ').append(origLineParts[i]);
+      }
+    }
+    return newLine.toString();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks one at a time, in submission order, on a backing executor, and measures how
+ * long they wait and run.
+ *
+ * <p>Each task is handed to the backing executor on its own, so several serial executors
+ * can share one backing thread and take turns instead of one starving the others. Tasks
+ * that wait or run longer than the slow task threshold are logged.
+ *
+ * <p>After shutdown() new tasks are dropped, while tasks queued before still run;
+ * awaitTermination() waits for them.
+ */
+public class SerialExecutor implements Executor {
+  private static final String TAG = "SerialExecutor";
+
+  private static class Task {
+    final Runnable command;
+    final long enqueueTimeNs;
+
+    Task(Runnable command, long enqueueTimeNs) {
+      this.command = command;
+      this.enqueueTimeNs = enqueueTimeNs;
+    }
+  }
+
+  private final String name;
+  private final Executor backingExecutor;
+  private final long slowTaskNs;
+  private final Object lock = new Object();
+  private final ArrayDeque<Task> queue = new ArrayDeque<>();
+  private final Runnable runNext = this ::runNext;
+  // All fields below are guarded by |lock|.
+  private boolean taskPending;
+  private boolean isShutdown;
+  private int maxQueueDepth;
+  private long taskCount;
+  private long slowTaskCount;
+  private long droppedTaskCount;
+  private long totalWaitNs;
+  private long maxWaitNs;
+  private long totalRunNs;
+  private long maxRunNs;
+
+  /**
+   * Creates an executor called |name| that runs its tasks on |backingExecutor| and logs tasks
+   * that wait or run for more than |slowTaskMs|.
+   */
+  public SerialExecutor(String name, Executor backingExecutor, long slowTaskMs) {
+    this.name = name;
+    this.backingExecutor = backingExecutor;
+    this.slowTaskNs = TimeUnit.MILLISECONDS.toNanos(slowTaskMs);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    synchronized (lock) {
+      if (isShutdown) {
+        droppedTaskCount++;
+        Log.d(TAG, name + ": dropping task after shutdown");
+        return;
+      }
+      queue.add(new Task(command, System.nanoTime()));
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+      if (taskPending) {
+        return;
+      }
+      taskPending = true;
+    }
+    backingExecutor.execute(runNext);
+  }
+
+  /** Drops all tasks submitted from now on. Tasks already queued still run. */
+  public void shutdown() {
+    synchronized (lock) {
+      isShutdown = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits until shutdown() has been called and all queued tasks have run. Returns false if
+   * that did not happen within |timeoutMs|.
+   */
+  public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    synchronized (lock) {
+      while (!isTerminated()) {
+        final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+        if (remainingMs <= 0) {
+          return false;
+        }
+        lock.wait(remainingMs);
+      }
+      return true;
+    }
+  }
+
+  public boolean isTerminated() {
+    synchronized (lock) {
+      return isShutdown && !taskPending;
+    }
+  }
+
+  /** Returns the number of tasks waiting to run, not counting the running one. */
+  public int getQueueDepth() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  public int getMaxQueueDepth() {
+    synchronized (lock) {
+      return maxQueueDepth;
+    }
+  }
+
+  public long getSlowTaskCount() {
+    synchronized (lock) {
+      return slowTaskCount;
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      final long averageDivisor = Math.max(taskCount, 1);
+      return name + ": " + taskCount + " tasks"
+          + ", queue: " + queue.size() + " (max " + maxQueueDepth + ")"
+          + ", wait avg/max: " + toMs(totalWaitNs / averageDivisor) + "/" + toMs(maxWaitNs)
+          + " ms, run avg/max: " + toMs(totalRunNs / averageDivisor) + "/" + toMs(maxRunNs)
+          + " ms, slow: " + slowTaskCount + ", dropped: " + droppedTaskCount;
+    }
+  }
+
+  private void runNext() {
+    final Task task;
+    synchronized (lock) {
+      task = queue.poll();
+    }
+    final long startTimeNs = System.nanoTime();
+    try {
+      task.command.run();
+    } finally {
+      final long endTimeNs = System.nanoTime();
+      onTaskDone(task, startTimeNs - task.enqueueTimeNs, endTimeNs - startTimeNs);
+    }
+  }
+
+  private void onTaskDone(Task task, long waitNs, long runNs) {
+    final boolean slow = waitNs > slowTaskNs || runNs > slowTaskNs;
+    final boolean hasNext;
+    final int queueDepth;
+    synchronized (lock) {
+      taskCount++;
+      totalWaitNs += waitNs;
+      maxWaitNs = Math.max(maxWaitNs, waitNs);
+      totalRunNs += runNs;
+      maxRunNs = Math.max(maxRunNs, runNs);
+      if (slow) {
+        slowTaskCount++;
+      }
+      queueDepth = queue.size();
+      hasNext = queueDepth > 0;
+      taskPending = hasNext;
+      if (!hasNext) {
+        lock.notifyAll();
+      }
+    }
+    if (slow) {
+      Log.w(TAG, name + ": slow task " + task.command.getClass().getName() + ", waited "
+          + toMs(waitNs) + " ms, ran " + toMs(runNs) + " ms, queue: " + queueDepth);
+    }
+    if (hasNext) {
+      backingExecutor.execute(runNext);
+    }
+  }
+
+  private static long toMs(long ns) {
+    return TimeUnit.NANOSECONDS.toMillis(ns);
+  }
+}
@@ -0,0 +1,468 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed view of an SDP blob with its media sections and payload types indexed.
+ *
+ * <p>The SDP is split into CRLF delimited lines once. Every m-section (and the session
+ * section before the first m= line) keeps a table of its payload types with the line
+ * numbers of their a=rtpmap, a=fmtp and a=rtcp-fb attributes, so codec and payload type
+ * lookups do not rescan the description. Lines are kept as spans of the original string
+ * until they are rewritten or inserted.
+ *
+ * <p>An unmodified model serializes back to the exact input string. Once a line has been
+ * changed, every line is terminated with CRLF as required by RFC 4566 and trailing empty
+ * lines are dropped.
+ *
+ * <p>This class is not thread safe.
+ */
+class SessionDescriptionModel {
+  private static final String LINE_BREAK = "\r\n";
+  private static final String MEDIA_PREFIX = "m=";
+  private static final String RTPMAP_PREFIX = "a=rtpmap:";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+  private static final String RTCP_FB_PREFIX = "a=rtcp-fb:";
+  private static final int MAX_PAYLOAD_TYPE = 127;
+
+  private enum LineKind { OTHER, MEDIA, RTPMAP, FMTP, RTCP_FB }
+
+  /** Attributes of one payload type within a media section. */
+  static class PayloadType {
+    final int payloadType;
+    @Nullable String encodingName;
+    int rtpmapLineIndex = -1;
+    final List<Integer> fmtpLineIndices = new ArrayList<>(1);
+    final List<Integer> rtcpFbLineIndices = new ArrayList<>(4);
+
+    PayloadType(int payloadType) {
+      this.payloadType = payloadType;
+    }
+  }
+
+  /**
+   * An m= section, or the session section that precedes the first m= line. The section
+   * spans lines [startLineIndex, endLineIndex).
+   */
+  static class MediaSection {
+    // "audio", "video", "application", ..., or null for the session section.
+    @Nullable String mediaType;
+    int startLineIndex;
+    int endLineIndex;
+    private final PayloadType[] payloadTypes = new PayloadType[MAX_PAYLOAD_TYPE + 1];
+    // Payload types by encoding name, in a=rtpmap line order.
+    private final Map<String, List<PayloadType>> codecs = new HashMap<>();
+
+    MediaSection(@Nullable String mediaType, int startLineIndex) {
+      this.mediaType = mediaType;
+      this.startLineIndex = startLineIndex;
+    }
+
+    boolean isSessionSection() {
+      return mediaType == null;
+    }
+
+    /** Returns the m= line number, or -1 for the session section. */
+    int getMediaLineIndex() {
+      return isSessionSection() ? -1 : startLineIndex;
+    }
+
+    @Nullable
+    PayloadType getPayloadType(int payloadType) {
+      return payloadType >= 0 && payloadType <= MAX_PAYLOAD_TYPE ? payloadTypes[payloadType]
+                                                                   : null;
+    }
+
+    /** Returns the payload types mapped to |encodingName|, in a=rtpmap line order. */
+    List<PayloadType> getPayloadTypes(String encodingName) {
+      final List<PayloadType> result = codecs.get(encodingName);
+      return result != null ? result : Collections.<PayloadType>emptyList();
+    }
+
+    private PayloadType getOrCreatePayloadType(int payloadType) {
+      PayloadType entry = payloadTypes[payloadType];
+      if (entry == null) {
+        entry = new PayloadType(payloadType);
+        payloadTypes[payloadType] = entry;
+      }
+      return entry;
+    }
+
+    private void shiftLineIndices(int fromIndex) {
+      for (PayloadType entry : payloadTypes) {
+        if (entry == null) {
+          continue;
+        }
+        if (entry.rtpmapLineIndex >= fromIndex) {
+          entry.rtpmapLineIndex++;
+        }
+        shiftLineIndices(entry.fmtpLineIndices, fromIndex);
+        shiftLineIndices(entry.rtcpFbLineIndices, fromIndex);
+      }
+    }
+
+    private static void shiftLineIndices(List<Integer> lineIndices, int fromIndex) {
+      for (int i = 0; i < lineIndices.size(); i++) {
+        if (lineIndices.get(i) >= fromIndex) {
+          lineIndices.set(i, lineIndices.get(i) + 1);
+        }
+      }
+    }
+  }
+
+  private final String sdp;
+  // Line i spans [lineStart[i], lineEnd[i]) of |sdp| unless lineText[i] is set, in which
+  // case the line has been rewritten or inserted.
+  private int[] lineStart;
+  private int[] lineEnd;
+  private String[] lineText;
+  private int lineCount;
+  private boolean modified;
+  private final List<MediaSection> sections = new ArrayList<>();
+
+  private SessionDescriptionModel(String sdp) {
+    this.sdp = sdp;
+  }
+
+  static SessionDescriptionModel parse(String sdp) {
+    final SessionDescriptionModel model = new SessionDescriptionModel(sdp);
+    model.tokenize();
+    model.index();
+    return model;
+  }
+
+  int getLineCount() {
+    return lineCount;
+  }
+
+  String getLine(int index) {
+    checkLineIndex(index);
+    return lineText[index] != null ? lineText[index]
+                                   : sdp.substring(lineStart[index], lineEnd[index]);
+  }
+
+  boolean lineStartsWith(int index, String prefix) {
+    checkLineIndex(index);
+    if (lineText[index] != null) {
+      return lineText[index].startsWith(prefix);
+    }
+    return lineEnd[index] - lineStart[index] >= prefix.length()
+        && sdp.startsWith(prefix, lineStart[index]);
+  }
+
+  /** Returns all sections in line order. The session section, if any, comes first. */
+  List<MediaSection> getSections() {
+    return Collections.unmodifiableList(sections);
+  }
+
+  /** Returns the first m= section of |mediaType|, e.g. "audio" or "video". */
+  @Nullable
+  MediaSection getFirstMediaSection(String mediaType) {
+    for (MediaSection section : sections) {
+      if (mediaType.equals(section.mediaType)) {
+        return section;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Replaces line |index|. An m= line can only be replaced with another m= line, and the
+   * payload type index is updated for attribute lines.
+   */
+  void setLine(int index, String line) {
+    checkLineIndex(index);
+    final MediaSection section = getSection(index);
+    final boolean isMediaLine = index == section.getMediaLineIndex();
+    if (isMediaLine != line.startsWith(MEDIA_PREFIX)) {
+      throw new IllegalArgumentException("Can not add or remove m= lines: " + line);
+    }
+    unindexLine(section, index);
+    lineText[index] = line;
+    modified = true;
+    indexLine(section, index);
+  }
+
+  /** Inserts |line| before line |index| into the section that line |index - 1| belongs to. */
+  void insertLine(int index, String line) {
+    if (index <= 0 || index > lineCount) {
+      throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+    }
+    if (line.startsWith(MEDIA_PREFIX)) {
+      throw new IllegalArgumentException("Can not add or remove m= lines: " + line);
+    }
+    if (lineCount == lineStart.length) {
+      final int capacity = lineStart.length * 2;
+      lineStart = Arrays.copyOf(lineStart, capacity);
+      lineEnd = Arrays.copyOf(lineEnd, capacity);
+      lineText = Arrays.copyOf(lineText, capacity);
+    }
+    System.arraycopy(lineStart, index, lineStart, index + 1, lineCount - index);
+    System.arraycopy(lineEnd, index, lineEnd, index + 1, lineCount - index);
+    System.arraycopy(lineText, index, lineText, index + 1, lineCount - index);
+    lineText[index] = line;
+    lineCount++;
+    modified = true;
+
+    final MediaSection owner = getSection(index - 1);
+    for (MediaSection section : sections) {
+      section.shiftLineIndices(index);
+      if (section.startLineIndex >= index) {
+        section.startLineIndex++;
+      }
+      if (section.endLineIndex >= index) {
+        section.endLineIndex++;
+      }
+    }
+    indexLine(owner, index);
+  }
+
+  @Override
+  public String toString() {
+    if (!modified) {
+      return sdp;
+    }
+    final StringBuilder builder = new StringBuilder(sdp.length() + 64);
+    for (int i = 0; i < lineCount; i++) {
+      if (lineText[i] != null) {
+        builder.append(lineText[i]);
+      } else {
+        builder.append(sdp, lineStart[i], lineEnd[i]);
+      }
+      builder.append(LINE_BREAK);
+    }
+    return builder.toString();
+  }
+
+  // Splits |sdp| the same way sdp.split("\r\n") does, including dropping trailing empty
+  // lines, but only records the line boundaries.
+  private void tokenize() {
+    int capacity = 32;
+    lineStart = new int[capacity];
+    lineEnd = new int[capacity];
+    int start = 0;
+    while (true) {
+      final int end = sdp.indexOf(LINE_BREAK, start);
+      if (lineCount == capacity) {
+        capacity *= 2;
+        lineStart = Arrays.copyOf(lineStart, capacity);
+        lineEnd = Arrays.copyOf(lineEnd, capacity);
+      }
+      lineStart[lineCount] = start;
+      lineEnd[lineCount] = end == -1 ? sdp.length() : end;
+      lineCount++;
+      if (end == -1) {
+        break;
+      }
+      start = end + LINE_BREAK.length();
+    }
+    while (lineCount > 1 && lineStart[lineCount - 1] == lineEnd[lineCount - 1]) {
+      lineCount--;
+    }
+    lineText = new String[lineStart.length];
+  }
+
+  private void index() {
+    MediaSection section = null;
+    for (int i = 0; i < lineCount; i++) {
+      if (lineStartsWith(i, MEDIA_PREFIX)) {
+        if (section != null) {
+          section.endLineIndex = i;
+        }
+        section = new MediaSection(parseMediaType(i), i);
+        sections.add(section);
+        continue;
+      }
+      if (section == null) {
+        section = new MediaSection(null, i);
+        sections.add(section);
+      }
+      indexLine(section, i);
+    }
+    if (section != null) {
+      section.endLineIndex = lineCount;
+    }
+  }
+
+  private MediaSection getSection(int index) {
+    // Sections are few (one per transceiver), so a linear walk is cheaper than a search.
+    for (MediaSection section : sections) {
+      if (index < section.endLineIndex) {
+        return section;
+      }
+    }
+    throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+  }
+
+  private void indexLine(MediaSection section, int index) {
+    if (index == section.getMediaLineIndex()) {
+      section.mediaType = parseMediaType(index);
+      return;
+    }
+    final LineKind kind = getLineKind(index);
+    if (kind == LineKind.OTHER) {
+      return;
+    }
+    final int payloadType = parsePayloadType(index, kind);
+    if (payloadType < 0) {
+      return;
+    }
+    final PayloadType entry = section.getOrCreatePayloadType(payloadType);
+    switch (kind) {
+      case RTPMAP:
+        final String encodingName = parseEncodingName(index, payloadType);
+        if (encodingName == null || entry.rtpmapLineIndex != -1) {
+          return;
+        }
+        entry.rtpmapLineIndex = index;
+        entry.encodingName = encodingName;
+        List<PayloadType> codec = section.codecs.get(encodingName);
+        if (codec == null) {
+          codec = new ArrayList<>(2);
+          section.codecs.put(encodingName, codec);
+        }
+        int position = codec.size();
+        while (position > 0 && codec.get(position - 1).rtpmapLineIndex > index) {
+          position--;
+        }
+        codec.add(position, entry);
+        break;
+      case FMTP:
+        addSorted(entry.fmtpLineIndices, index);
+        break;
+      case RTCP_FB:
+        addSorted(entry.rtcpFbLineIndices, index);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void unindexLine(MediaSection section, int index) {
+    if (index == section.getMediaLineIndex()) {
+      return;
+    }
+    final LineKind kind = getLineKind(index);
+    if (kind == LineKind.OTHER) {
+      return;
+    }
+    final PayloadType entry = section.getPayloadType(parsePayloadType(index, kind));
+    if (entry == null) {
+      return;
+    }
+    if (entry.rtpmapLineIndex == index) {
+      section.codecs.get(entry.encodingName).remove(entry);
+      entry.rtpmapLineIndex = -1;
+      entry.encodingName = null;
+    }
+    entry.fmtpLineIndices.remove(Integer.valueOf(index));
+    entry.rtcpFbLineIndices.remove(Integer.valueOf(index));
+  }
+
+  private LineKind getLineKind(int index) {
+    if (lineStartsWith(index, MEDIA_PREFIX)) {
+      return LineKind.MEDIA;
+    } else if (lineStartsWith(index, RTPMAP_PREFIX)) {
+      return LineKind.RTPMAP;
+    } else if (lineStartsWith(index, FMTP_PREFIX)) {
+      return LineKind.FMTP;
+    } else if (lineStartsWith(index, RTCP_FB_PREFIX)) {
+      return LineKind.RTCP_FB;
+    }
+    return LineKind.OTHER;
+  }
+
+  // Parses "<prefix><payload type> ..." and returns the payload type, or -1 if the line is
+  // malformed or the payload type is out of range.
+  private int parsePayloadType(int index, LineKind kind) {
+    final String text = lineText[index] != null ? lineText[index] : sdp;
+    final int start = lineText[index] != null ? 0 : lineStart[index];
+    final int end = lineText[index] != null ? text.length() : lineEnd[index];
+    final int prefixLength = kind == LineKind.RTPMAP ? RTPMAP_PREFIX.length()
+        : kind == LineKind.FMTP                      ? FMTP_PREFIX.length()
+                                                     : RTCP_FB_PREFIX.length();
+    int pos = start + prefixLength;
+    int payloadType = 0;
+    int digits = 0;
+    while (pos < end && isDigit(text.charAt(pos))) {
+      payloadType = payloadType * 10 + (text.charAt(pos) - '0');
+      if (payloadType > MAX_PAYLOAD_TYPE) {
+        return -1;
+      }
+      pos++;
+      digits++;
+    }
+    if (digits == 0 || pos >= end || text.charAt(pos) != ' ') {
+      return -1;
+    }
+    return payloadType;
+  }
+
+  // Returns the encoding name of "a=rtpmap:<payload type> <encoding name>/<clock rate>
+  // [/<encoding parameters>]", or null if the line does not have that format.
+  @Nullable
+  private String parseEncodingName(int index, int payloadType) {
+    final String text = lineText[index] != null ? lineText[index] : sdp;
+    final int start = lineText[index] != null ? 0 : lineStart[index];
+    int end = lineText[index] != null ? text.length() : lineEnd[index];
+    if (end > start && text.charAt(end - 1) == '\r') {
+      end--;
+    }
+    final int nameStart = text.indexOf(' ', start) + 1;
+    final int nameEnd = text.indexOf('/', nameStart);
+    if (nameStart <= start || nameEnd <= nameStart || nameEnd >= end) {
+      return null;
+    }
+    // Each "/" must be followed by at least one digit, up to the end of the line.
+    for (int pos = nameEnd; pos < end;) {
+      if (text.charAt(pos) != '/' || pos + 1 >= end || !isDigit(text.charAt(pos + 1))) {
+        return null;
+      }
+      pos++;
+      while (pos < end && isDigit(text.charAt(pos))) {
+        pos++;
+      }
+    }
+    return text.substring(nameStart, nameEnd);
+  }
+
+  private String parseMediaType(int index) {
+    final String line = getLine(index);
+    final int end = line.indexOf(' ');
+    return line.substring(MEDIA_PREFIX.length(), end == -1 ? line.length() : end);
+  }
+
+  private void checkLineIndex(int index) {
+    if (index < 0 || index >= lineCount) {
+      throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+    }
+  }
+
+  private static void addSorted(List<Integer> lineIndices, int index) {
+    int position = lineIndices.size();
+    while (position > 0 && lineIndices.get(position - 1) > index) {
+      position--;
+    }
+    lineIndices.add(position, index);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
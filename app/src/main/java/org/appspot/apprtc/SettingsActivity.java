@@ -30,6 +30,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefResolution;
   private String keyprefFps;
   private String keyprefCaptureQualitySlider;
+  private String keyprefAdaptiveCapture;
   private String keyprefMaxVideoBitrateType;
   private String keyprefMaxVideoBitrateValue;
   private String keyPrefVideoCodec;
@@ -72,6 +73,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
+    keyprefAdaptiveCapture = getString(R.string.pref_adaptivecapture_key);
     keyprefMaxVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
     keyprefMaxVideoBitrateValue = getString(R.string.pref_maxvideobitratevalue_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
@@ -127,6 +129,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyprefResolution);
     updateSummary(sharedPreferences, keyprefFps);
     updateSummaryB(sharedPreferences, keyprefCaptureQualitySlider);
+    updateSummaryB(sharedPreferences, keyprefAdaptiveCapture);
     updateSummary(sharedPreferences, keyprefMaxVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefMaxVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
@@ -224,6 +227,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefCamera2)
         || key.equals(keyPrefTracing)
         || key.equals(keyprefCaptureQualitySlider)
+        || key.equals(keyprefAdaptiveCapture)
         || key.equals(keyprefHwCodec)
         || key.equals(keyprefCaptureToTexture)
         || key.equals(keyprefFlexfec)
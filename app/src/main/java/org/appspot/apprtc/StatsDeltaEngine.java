@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Turns successive standard stats reports into a StatsSnapshot of current values and
+ * per-interval rates.
+ *
+ * <p>The engine keeps the members of the previous report by stats id, and computes bitrates,
+ * packet rates, the loss fraction, frame rates and the jitter buffer delay from the
+ * differences of the cumulative counters divided by the time between the two stats objects.
+ * Rates are UNKNOWN for the first report of an object, when no time passed since its previous
+ * sample and when a counter went backwards, e.g. after a reset.
+ *
+ * <p>A report may complete after a newer one, e.g. when a request timed out. Its values are
+ * still extracted, but it does not replace the newer samples and end() reports it as stale.
+ *
+ * <p>Plain Java without any dependency on the WebRTC classes: feed every stats object of a
+ * report with addStats() between begin() and end(). Not thread safe.
+ */
+public class StatsDeltaEngine {
+  private static class Sample {
+    final double timestampUs;
+    final Map<String, Object> members;
+    boolean seen;
+
+    Sample(double timestampUs, Map<String, Object> members) {
+      this.timestampUs = timestampUs;
+      this.members = members;
+    }
+  }
+
+  private final Map<String, Sample> previous = new HashMap<>();
+  @Nullable private StatsSnapshot snapshot;
+  private long lastReportTimeMs = Long.MIN_VALUE;
+  private boolean stale;
+
+  /** Starts a new report whose values are written into |snapshot|, which is cleared. */
+  public void begin(StatsSnapshot snapshot, long timestampMs) {
+    snapshot.clear();
+    snapshot.timestampMs = timestampMs;
+    this.snapshot = snapshot;
+    stale = timestampMs < lastReportTimeMs;
+    if (!stale) {
+      lastReportTimeMs = timestampMs;
+    }
+  }
+
+  /**
+   * Adds one stats object of the current report. |members| maps the member names to Number,
+   * String or Boolean values like RTCStats.getMembers() and is kept until the next report.
+   */
+  public void addStats(String id, String type, double timestampUs, Map<String, Object> members) {
+    final Sample last = previous.get(id);
+    // Rates need an earlier sample of the same object.
+    final double elapsedSeconds = last != null ? (timestampUs - last.timestampUs) / 1e6 : 0;
+    final Map<String, Object> lastMembers = elapsedSeconds > 0 ? last.members : null;
+    switch (type) {
+      case "outbound-rtp":
+        if (snapshot.videoSendStats == null && isVideo(members)) {
+          addVideoSend(members, lastMembers, elapsedSeconds);
+        }
+        break;
+      case "inbound-rtp":
+        if (snapshot.videoRecvStats == null && isVideo(members)) {
+          addVideoRecv(members, lastMembers, elapsedSeconds);
+        }
+        break;
+      case "remote-inbound-rtp":
+        if (snapshot.sendRttMs == StatsSnapshot.UNKNOWN && isVideo(members)) {
+          snapshot.sendPacketsLost = getLong(members, "packetsLost");
+          snapshot.sendRttMs = toMs(getDouble(members, "roundTripTime"));
+        }
+        break;
+      case "media-source":
+        if (snapshot.sendInputFps == StatsSnapshot.UNKNOWN && isVideo(members)) {
+          snapshot.sendInputFps = toInt(getDouble(members, "framesPerSecond"));
+        }
+        break;
+      case "candidate-pair":
+        if (snapshot.connectionStats == null && Boolean.TRUE.equals(members.get("nominated"))
+            && "succeeded".equals(members.get("state"))) {
+          addConnection(members, lastMembers, elapsedSeconds);
+        }
+        break;
+      default:
+        break;
+    }
+    if (last != null && timestampUs <= last.timestampUs) {
+      // Keep the newer sample to compute the next rates from.
+      last.seen = true;
+      return;
+    }
+    final Sample sample = new Sample(timestampUs, members);
+    sample.seen = true;
+    previous.put(id, sample);
+  }
+
+  /**
+   * Completes the current report and forgets the stats objects that were not in it. Returns
+   * false if a newer report was completed before, so this one is outdated and should be
+   * dropped.
+   */
+  public boolean end() {
+    final Iterator<Sample> it = previous.values().iterator();
+    while (it.hasNext()) {
+      final Sample sample = it.next();
+      if (!sample.seen) {
+        it.remove();
+      }
+      sample.seen = false;
+    }
+    snapshot = null;
+    return !stale;
+  }
+
+  /** Forgets all previous reports, e.g. for a new call. */
+  public void reset() {
+    previous.clear();
+    lastReportTimeMs = Long.MIN_VALUE;
+  }
+
+  private void addVideoSend(
+      Map<String, Object> members, @Nullable Map<String, Object> last, double elapsedSeconds) {
+    snapshot.videoSendStats = members;
+    snapshot.sendFrameWidth = toInt(getLong(members, "frameWidth"));
+    snapshot.sendFrameHeight = toInt(getLong(members, "frameHeight"));
+    snapshot.sendFps = toInt(getDouble(members, "framesPerSecond"));
+    if (snapshot.sendFps == StatsSnapshot.UNKNOWN) {
+      snapshot.sendFps = toInt(rate(members, last, "framesEncoded", elapsedSeconds));
+    }
+    snapshot.targetEncBitrate = toLong(getDouble(members, "targetBitrate"));
+    snapshot.actualEncBitrate = bitrate(members, last, "bytesSent", elapsedSeconds);
+    snapshot.retransmitBitrate =
+        bitrate(members, last, "retransmittedBytesSent", elapsedSeconds);
+    snapshot.sendPacketRate = toLong(rate(members, last, "packetsSent", elapsedSeconds));
+  }
+
+  private void addVideoRecv(
+      Map<String, Object> members, @Nullable Map<String, Object> last, double elapsedSeconds) {
+    snapshot.videoRecvStats = members;
+    snapshot.recvFrameWidth = toInt(getLong(members, "frameWidth"));
+    snapshot.recvFrameHeight = toInt(getLong(members, "frameHeight"));
+    snapshot.recvFps = toInt(rate(members, last, "framesDecoded", elapsedSeconds));
+    snapshot.recvPacketsReceived = getLong(members, "packetsReceived");
+    snapshot.recvPacketsLost = getLong(members, "packetsLost");
+    snapshot.recvBitrate = bitrate(members, last, "bytesReceived", elapsedSeconds);
+    snapshot.recvPacketRate = toLong(rate(members, last, "packetsReceived", elapsedSeconds));
+
+    final double received = delta(members, last, "packetsReceived");
+    final double lost = delta(members, last, "packetsLost");
+    if (received >= 0 && lost >= 0 && received + lost > 0) {
+      snapshot.recvLossFraction = lost / (received + lost);
+    }
+    // Average time the frames emitted in this interval spent in the jitter buffer.
+    final double delay = delta(members, last, "jitterBufferDelay");
+    final double emitted = delta(members, last, "jitterBufferEmittedCount");
+    if (delay >= 0 && emitted > 0) {
+      snapshot.recvJitterBufferMs = toMs(delay / emitted);
+    }
+  }
+
+  private void addConnection(
+      Map<String, Object> members, @Nullable Map<String, Object> last, double elapsedSeconds) {
+    snapshot.connectionStats = members;
+    snapshot.connectionRttMs = toMs(getDouble(members, "currentRoundTripTime"));
+    snapshot.connectionBytesSent = getLong(members, "bytesSent");
+    snapshot.connectionBytesReceived = getLong(members, "bytesReceived");
+    snapshot.availableSendBandwidth = toLong(getDouble(members, "availableOutgoingBitrate"));
+    snapshot.availableReceiveBandwidth = toLong(getDouble(members, "availableIncomingBitrate"));
+    snapshot.transmitBitrate = bitrate(members, last, "bytesSent", elapsedSeconds);
+  }
+
+  private static boolean isVideo(Map<String, Object> members) {
+    // "mediaType" is the older name of "kind".
+    return "video".equals(members.get("kind")) || "video".equals(members.get("mediaType"));
+  }
+
+  // Returns how much the counter |name| grew since |last|, or -1 if that is not known.
+  private static double delta(
+      Map<String, Object> members, @Nullable Map<String, Object> last, String name) {
+    if (last == null) {
+      return StatsSnapshot.UNKNOWN;
+    }
+    final double current = getDouble(members, name);
+    final double previous = getDouble(last, name);
+    if (current < 0 || previous < 0 || current < previous) {
+      return StatsSnapshot.UNKNOWN;
+    }
+    return current - previous;
+  }
+
+  private static double rate(Map<String, Object> members, @Nullable Map<String, Object> last,
+      String name, double elapsedSeconds) {
+    final double delta = delta(members, last, name);
+    return delta < 0 ? StatsSnapshot.UNKNOWN : delta / elapsedSeconds;
+  }
+
+  private static long bitrate(Map<String, Object> members, @Nullable Map<String, Object> last,
+      String name, double elapsedSeconds) {
+    final double bytesPerSecond = rate(members, last, name, elapsedSeconds);
+    return bytesPerSecond < 0 ? StatsSnapshot.UNKNOWN : Math.round(bytesPerSecond * 8);
+  }
+
+  // Counters are Long or BigInteger, other values Integer or Double.
+  private static double getDouble(Map<String, Object> members, String name) {
+    final Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).doubleValue() : StatsSnapshot.UNKNOWN;
+  }
+
+  private static long getLong(Map<String, Object> members, String name) {
+    final Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).longValue() : StatsSnapshot.UNKNOWN;
+  }
+
+  private static long toLong(double value) {
+    return value < 0 ? StatsSnapshot.UNKNOWN : Math.round(value);
+  }
+
+  private static int toInt(double value) {
+    return value < 0 || value > Integer.MAX_VALUE ? StatsSnapshot.UNKNOWN
+                                                  : (int) Math.round(value);
+  }
+
+  // Converts seconds to milliseconds.
+  private static int toMs(double seconds) {
+    return seconds < 0 ? StatsSnapshot.UNKNOWN : toInt(seconds * 1000);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.appspot.apprtc.StatsRecordingReader.CAPACITY_OFFSET;
+import static org.appspot.apprtc.StatsRecordingReader.HEADER_BYTES;
+import static org.appspot.apprtc.StatsRecordingReader.MAGIC;
+import static org.appspot.apprtc.StatsRecordingReader.MAGIC_OFFSET;
+import static org.appspot.apprtc.StatsRecordingReader.RECORD_BYTES;
+import static org.appspot.apprtc.StatsRecordingReader.RECORD_BYTES_OFFSET;
+import static org.appspot.apprtc.StatsRecordingReader.RECORD_COUNT_OFFSET;
+import static org.appspot.apprtc.StatsRecordingReader.START_TIME_OFFSET;
+import static org.appspot.apprtc.StatsRecordingReader.VERSION;
+import static org.appspot.apprtc.StatsRecordingReader.VERSION_OFFSET;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records one StatsSnapshot per stats interval into a fixed size, memory-mapped ring file.
+ *
+ * <p>The file is sized and mapped once when the recorder is created; record() only stores
+ * primitives into the mapping, so recording costs no allocation and no system call, and the
+ * file never grows however long the call lasts. Once full, the oldest samples are
+ * overwritten. The file can be decoded with {@link StatsRecordingReader} after the call.
+ *
+ * <p>This class is not thread safe.
+ */
+public class StatsRecorder {
+  private static final String TAG = "StatsRecorder";
+  // Two hours of one second samples, about 500 kB.
+  public static final int DEFAULT_CAPACITY = 2 * 60 * 60;
+
+  private final File file;
+  private final int capacity;
+  @Nullable private RandomAccessFile raf;
+  @Nullable private MappedByteBuffer buffer;
+  private long recordCount;
+
+  /** Creates or truncates |file| and maps a ring of |capacity| samples. */
+  public StatsRecorder(File file, int capacity) throws IOException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.file = file;
+    this.capacity = capacity;
+    final long size = HEADER_BYTES + (long) RECORD_BYTES * capacity;
+    raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(size);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      raf.close();
+      raf = null;
+      throw e;
+    }
+    buffer.putInt(MAGIC_OFFSET, MAGIC);
+    buffer.putInt(VERSION_OFFSET, VERSION);
+    buffer.putInt(RECORD_BYTES_OFFSET, RECORD_BYTES);
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    buffer.putLong(START_TIME_OFFSET, System.currentTimeMillis());
+    buffer.putLong(RECORD_COUNT_OFFSET, 0);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Appends a sample with the values of |snapshot| and the CPU usage of |cpuMonitor|. */
+  public void record(StatsSnapshot snapshot, @Nullable CpuMonitor cpuMonitor) {
+    if (buffer == null) {
+      return;
+    }
+    int offset = HEADER_BYTES + (int) (recordCount % capacity) * RECORD_BYTES;
+    buffer.putLong(offset, snapshot.timestampMs);
+    offset += 8;
+    offset = putInt(offset, snapshot.sendFps);
+    offset = putInt(offset, snapshot.sendFrameWidth);
+    offset = putInt(offset, snapshot.sendFrameHeight);
+    offset = putInt(offset, snapshot.recvFps);
+    offset = putInt(offset, snapshot.recvFrameWidth);
+    offset = putInt(offset, snapshot.recvFrameHeight);
+    offset = putInt(offset, snapshot.targetEncBitrate);
+    offset = putInt(offset, snapshot.actualEncBitrate);
+    offset = putInt(offset, snapshot.availableSendBandwidth);
+    offset = putInt(offset, snapshot.availableReceiveBandwidth);
+    offset = putInt(offset, snapshot.connectionRttMs);
+    offset = putInt(offset, snapshot.recvPacketsLost);
+    offset = putInt(offset, snapshot.recvPacketsReceived);
+    offset = putInt(offset, snapshot.recvJitterBufferMs);
+    offset = putInt(offset, cpuMonitor != null ? cpuMonitor.getCpuUsageCurrent() : -1);
+    putInt(offset, cpuMonitor != null ? cpuMonitor.getCpuUsageAverage() : -1);
+    // Published after the record, so a reader never sees a count that covers a torn record.
+    recordCount++;
+    buffer.putLong(RECORD_COUNT_OFFSET, recordCount);
+  }
+
+  /** Flushes the samples to disk and closes the file. The file stays readable afterwards. */
+  public void close() {
+    if (buffer == null) {
+      return;
+    }
+    buffer.force();
+    buffer = null;
+    try {
+      raf.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close stats recording", e);
+    }
+    raf = null;
+    Log.d(TAG, "Recorded " + recordCount + " samples to " + file);
+  }
+
+  // Stores |value| saturated to int range, so large counters stay distinguishable from -1.
+  private int putInt(int offset, long value) {
+    buffer.putInt(offset, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+    return offset + 4;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a ring file written by {@link StatsRecorder}. Has no Android dependencies, so it can
+ * also be run on a desktop JVM to turn a pulled file into CSV:
+ *
+ * <pre>java org.appspot.apprtc.StatsRecordingReader stats.ring > stats.csv</pre>
+ *
+ * <p>File layout, all big-endian: a HEADER_BYTES header (magic, version, record size,
+ * capacity, start time, number of records ever written), followed by |capacity| fixed size
+ * records. Record n is stored in slot n % capacity, so once the ring has wrapped the oldest
+ * record is the one after the newest.
+ */
+public class StatsRecordingReader {
+  static final int MAGIC = 0x41525352; // "ARSR"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 4;
+  static final int RECORD_BYTES_OFFSET = 8;
+  static final int CAPACITY_OFFSET = 12;
+  static final int START_TIME_OFFSET = 16;
+  static final int RECORD_COUNT_OFFSET = 24;
+
+  /** Record columns. The timestamp is a long, every other column an int. */
+  public static final String[] COLUMNS = {"timestampMs", "sendFps", "sendFrameWidth",
+      "sendFrameHeight", "recvFps", "recvFrameWidth", "recvFrameHeight", "targetEncBitrate",
+      "actualEncBitrate", "availableSendBandwidth", "availableReceiveBandwidth", "rttMs",
+      "recvPacketsLost", "recvPacketsReceived", "recvJitterBufferMs", "cpuUsageCurrent",
+      "cpuUsageAverage"};
+  static final int RECORD_BYTES = 8 + 4 * (COLUMNS.length - 1);
+
+  private final ByteBuffer buffer;
+  private final int recordBytes;
+  private final int capacity;
+  private final long startTimeMs;
+  private final long recordCount;
+
+  public StatsRecordingReader(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      if (channel.size() < HEADER_BYTES) {
+        throw new IOException("File too short: " + channel.size());
+      }
+      buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) {
+          break;
+        }
+      }
+      buffer.flip();
+    }
+    if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+      throw new IOException("Not a stats recording");
+    }
+    if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+      throw new IOException("Unsupported version: " + buffer.getInt(VERSION_OFFSET));
+    }
+    recordBytes = buffer.getInt(RECORD_BYTES_OFFSET);
+    capacity = buffer.getInt(CAPACITY_OFFSET);
+    startTimeMs = buffer.getLong(START_TIME_OFFSET);
+    recordCount = buffer.getLong(RECORD_COUNT_OFFSET);
+    if (recordBytes < RECORD_BYTES || capacity <= 0
+        || HEADER_BYTES + (long) recordBytes * capacity > buffer.limit()) {
+      throw new IOException("Corrupt header");
+    }
+  }
+
+  public long getStartTimeMs() {
+    return startTimeMs;
+  }
+
+  /** Returns the number of records still in the file, at most the ring capacity. */
+  public int getSampleCount() {
+    return (int) Math.min(recordCount, capacity);
+  }
+
+  /**
+   * Returns sample |index|, 0 being the oldest one still in the file, with one value per
+   * entry of COLUMNS.
+   */
+  public long[] getSample(int index) {
+    if (index < 0 || index >= getSampleCount()) {
+      throw new IndexOutOfBoundsException("Sample " + index + " of " + getSampleCount());
+    }
+    final long recordNumber = recordCount - getSampleCount() + index;
+    final int offset = HEADER_BYTES + (int) (recordNumber % capacity) * recordBytes;
+    final long[] sample = new long[COLUMNS.length];
+    sample[0] = buffer.getLong(offset);
+    for (int i = 1; i < COLUMNS.length; i++) {
+      sample[i] = buffer.getInt(offset + 8 + 4 * (i - 1));
+    }
+    return sample;
+  }
+
+  /** Returns all samples, oldest first. */
+  public List<long[]> getSamples() {
+    final List<long[]> samples = new ArrayList<>(getSampleCount());
+    for (int i = 0; i < getSampleCount(); i++) {
+      samples.add(getSample(i));
+    }
+    return samples;
+  }
+
+  /** Writes all samples as CSV with a header line, oldest first. */
+  public void writeCsv(Writer out) throws IOException {
+    for (int i = 0; i < COLUMNS.length; i++) {
+      out.write(i == 0 ? COLUMNS[i] : "," + COLUMNS[i]);
+    }
+    out.write("\n");
+    for (int n = 0; n < getSampleCount(); n++) {
+      final long[] sample = getSample(n);
+      for (int i = 0; i < sample.length; i++) {
+        if (i > 0) {
+          out.write(",");
+        }
+        out.write(Long.toString(sample[i]));
+      }
+      out.write("\n");
+    }
+    out.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: StatsRecordingReader <file>");
+      System.exit(1);
+    }
+    new StatsRecordingReader(new File(args[0])).writeCsv(new OutputStreamWriter(System.out));
+  }
+}
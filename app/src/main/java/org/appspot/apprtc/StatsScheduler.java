@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Issues periodic stats requests with at most one request in flight.
+ *
+ * <p>Ticks are computed from the time the scheduler was started, so they do not drift with
+ * scheduling delays, and ticks missed entirely are skipped instead of delivered in a burst.
+ * A tick that finds the previous request still pending is skipped too, so a busy executor
+ * never accumulates stats requests. The period can be changed while running, and the
+ * scheduler can be stopped and started again any number of times.
+ */
+public class StatsScheduler {
+  private static final String TAG = "StatsScheduler";
+  // A request that has not completed after this long is given up on, so a lost callback
+  // cannot stop the stats for good.
+  private static final long REQUEST_TIMEOUT_MS = 10000;
+
+  // Only used to wait for the ticks, the requests run on the executor of the client.
+  private static final ScheduledExecutorService defaultTimer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      });
+  private static final LongSupplier monotonicClockMs =
+      () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+  /** Starts one stats request. */
+  public interface Requester {
+    /**
+     * Starts a request and returns true if it will call onRequestDone() when it completes,
+     * or false if no request was started.
+     */
+    boolean requestStats();
+  }
+
+  private final Executor executor;
+  private final ScheduledExecutorService timer;
+  private final LongSupplier clockMs;
+  private final Requester requester;
+  private final Runnable requestTask = this ::runRequest;
+  // All fields below are guarded by |this|.
+  private boolean running;
+  // Increased on every start and stop, so ticks of an earlier run are ignored.
+  private int generation;
+  private long periodMs;
+  private long startTimeMs;
+  private long tickCount;
+  @Nullable private ScheduledFuture<?> nextTick;
+  private boolean requestPending;
+  private long requestTimeMs;
+  private long skippedTicks;
+
+  /** Creates a scheduler that runs the requests of |requester| on |executor|. */
+  public StatsScheduler(Executor executor, Requester requester) {
+    this(executor, defaultTimer, monotonicClockMs, requester);
+  }
+
+  /**
+   * As above, with the ticks timed by |timer| and the time read from |clockMs|, a monotonic
+   * clock in milliseconds. The two must agree, e.g. a fake timer and clock in tests.
+   */
+  public StatsScheduler(Executor executor, ScheduledExecutorService timer, LongSupplier clockMs,
+      Requester requester) {
+    this.executor = executor;
+    this.timer = timer;
+    this.clockMs = clockMs;
+    this.requester = requester;
+  }
+
+  /** Starts requesting stats every |periodMs|, beginning now. Restarts if already running. */
+  public synchronized void start(long periodMs) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("Invalid period: " + periodMs);
+    }
+    cancelTick();
+    running = true;
+    generation++;
+    this.periodMs = periodMs;
+    startTimeMs = nowMs();
+    tickCount = 0;
+    scheduleTick(0);
+  }
+
+  /**
+   * Stops requesting stats. A request in flight still completes. Does nothing if not
+   * running.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    cancelTick();
+    running = false;
+    generation++;
+    if (skippedTicks > 0) {
+      Log.d(TAG, "Stopped, skipped " + skippedTicks + " ticks with a request pending");
+    }
+  }
+
+  /** Changes the period, counted from the last tick. Does nothing if not running. */
+  public synchronized void setPeriod(long periodMs) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("Invalid period: " + periodMs);
+    }
+    if (!running || periodMs == this.periodMs) {
+      return;
+    }
+    cancelTick();
+    generation++;
+    // Re-anchor at the last tick, if there was one yet.
+    if (tickCount > 0) {
+      startTimeMs += (tickCount - 1) * this.periodMs;
+      tickCount = 1;
+    }
+    this.periodMs = periodMs;
+    scheduleNextTick();
+  }
+
+  public synchronized boolean isRunning() {
+    return running;
+  }
+
+  /** Returns the number of ticks skipped because the previous request was still pending. */
+  public synchronized long getSkippedTicks() {
+    return skippedTicks;
+  }
+
+  /** Must be called when a request for which requestStats() returned true completes. */
+  public synchronized void onRequestDone() {
+    requestPending = false;
+  }
+
+  private void onTick(int tickGeneration) {
+    synchronized (this) {
+      if (!running || tickGeneration != generation) {
+        return;
+      }
+      tickCount++;
+      scheduleNextTick();
+      if (requestPending) {
+        if (nowMs() - requestTimeMs < REQUEST_TIMEOUT_MS) {
+          skippedTicks++;
+          return;
+        }
+        Log.w(TAG, "Stats request did not complete, requesting again");
+      }
+      requestPending = true;
+      requestTimeMs = nowMs();
+    }
+    executor.execute(requestTask);
+  }
+
+  private void runRequest() {
+    boolean started = false;
+    try {
+      started = requester.requestStats();
+    } finally {
+      if (!started) {
+        onRequestDone();
+      }
+    }
+  }
+
+  // Schedules the first tick that is not in the past yet, skipping the missed ones.
+  private void scheduleNextTick() {
+    final long nowMs = nowMs();
+    long tickTimeMs = startTimeMs + tickCount * periodMs;
+    if (tickTimeMs < nowMs) {
+      tickCount += (nowMs - tickTimeMs + periodMs - 1) / periodMs;
+      tickTimeMs = startTimeMs + tickCount * periodMs;
+    }
+    scheduleTick(tickTimeMs - nowMs);
+  }
+
+  private void scheduleTick(long delayMs) {
+    final int tickGeneration = generation;
+    nextTick = timer.schedule(() -> onTick(tickGeneration), delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelTick() {
+    if (nextTick != null) {
+      nextTick.cancel(false);
+      nextTick = null;
+    }
+  }
+
+  private long nowMs() {
+    return clockMs.getAsLong();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Typed view of one round of stats reports.
+ *
+ * <p>StatsDeltaEngine fills in current values and the rates over the last stats interval as
+ * primitive fields, so consumers never parse strings or difference counters themselves. Not
+ * thread safe; fill and read it on one thread at a time. Values missing from the reports are
+ * -1.
+ */
+public class StatsSnapshot {
+  public static final int UNKNOWN = -1;
+  public static final int MAX_TOP_THREADS = 3;
+
+  // Time the report was requested, in System.currentTimeMillis() units.
+  public long timestampMs;
+
+  // Outgoing video, from the "outbound-rtp", "remote-inbound-rtp" and "media-source" stats.
+  public int sendFps;
+  public int sendFrameWidth;
+  public int sendFrameHeight;
+  public int sendInputFps;
+  public long sendPacketsLost;
+  public int sendRttMs;
+  // Packets per second.
+  public long sendPacketRate;
+
+  // Incoming video, from the "inbound-rtp" stats. |recvFps| counts decoded frames.
+  public int recvFps;
+  public int recvFrameWidth;
+  public int recvFrameHeight;
+  public long recvPacketsReceived;
+  public long recvPacketsLost;
+  public int recvJitterBufferMs;
+  // Bits and packets per second.
+  public long recvBitrate;
+  public long recvPacketRate;
+  // Share of the packets lost in the last interval, between 0 and 1.
+  public double recvLossFraction;
+
+  // Bitrates and bandwidth estimates, in bits per second.
+  public long targetEncBitrate;
+  public long actualEncBitrate;
+  public long availableSendBandwidth;
+  public long availableReceiveBandwidth;
+  public long transmitBitrate;
+  public long retransmitBitrate;
+
+  // Nominated candidate pair.
+  public int connectionRttMs;
+  public long connectionBytesSent;
+  public long connectionBytesReceived;
+
+  // Busiest thread groups of this process, in percent of one core, from CpuMonitor.
+  public final String[] topThreadNames = new String[MAX_TOP_THREADS];
+  public final int[] topThreadCpuPercents = new int[MAX_TOP_THREADS];
+  public int topThreadCount;
+
+  // Members of the stats the values were taken from, for displays that list every value.
+  @Nullable public Map<String, Object> videoSendStats;
+  @Nullable public Map<String, Object> videoRecvStats;
+  @Nullable public Map<String, Object> connectionStats;
+
+  public StatsSnapshot() {
+    clear();
+  }
+
+  /** Resets every value to UNKNOWN and drops the stats references. */
+  public void clear() {
+    timestampMs = 0;
+    sendFps = UNKNOWN;
+    sendFrameWidth = UNKNOWN;
+    sendFrameHeight = UNKNOWN;
+    sendInputFps = UNKNOWN;
+    sendPacketsLost = UNKNOWN;
+    sendRttMs = UNKNOWN;
+    sendPacketRate = UNKNOWN;
+    recvFps = UNKNOWN;
+    recvFrameWidth = UNKNOWN;
+    recvFrameHeight = UNKNOWN;
+    recvPacketsReceived = UNKNOWN;
+    recvPacketsLost = UNKNOWN;
+    recvJitterBufferMs = UNKNOWN;
+    recvBitrate = UNKNOWN;
+    recvPacketRate = UNKNOWN;
+    recvLossFraction = UNKNOWN;
+    targetEncBitrate = UNKNOWN;
+    actualEncBitrate = UNKNOWN;
+    availableSendBandwidth = UNKNOWN;
+    availableReceiveBandwidth = UNKNOWN;
+    transmitBitrate = UNKNOWN;
+    retransmitBitrate = UNKNOWN;
+    connectionRttMs = UNKNOWN;
+    connectionBytesSent = UNKNOWN;
+    connectionBytesReceived = UNKNOWN;
+    topThreadCount = 0;
+    videoSendStats = null;
+    videoRecvStats = null;
+    connectionStats = null;
+  }
+
+  /** Takes the busiest threads from |cpuMonitor|. Call after the stats are filled in. */
+  public void updateThreadCpu(@Nullable CpuMonitor cpuMonitor) {
+    topThreadCount =
+        cpuMonitor != null ? cpuMonitor.getTopThreads(topThreadNames, topThreadCpuPercents) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return "StatsSnapshot{sendFps=" + sendFps + ", send=" + sendFrameWidth + "x" + sendFrameHeight
+        + ", recvFps=" + recvFps + ", recv=" + recvFrameWidth + "x" + recvFrameHeight
+        + ", targetBitrate=" + targetEncBitrate + ", actualBitrate=" + actualEncBitrate
+        + ", availableSendBandwidth=" + availableSendBandwidth + ", rttMs=" + connectionRttMs
+        + ", recvBitrate=" + recvBitrate + ", recvLossFraction=" + recvLossFraction
+        + ", recvJitterBufferMs=" + recvJitterBufferMs + "}";
+  }
+}
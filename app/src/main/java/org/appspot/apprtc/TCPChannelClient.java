@@ -12,17 +12,22 @@ package org.appspot.apprtc;
 
 import androidx.annotation.Nullable;
 import android.util.Log;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.webrtc.ThreadUtils;
 
 /**
@@ -35,12 +40,32 @@ import org.webrtc.ThreadUtils;
  */
 public class TCPChannelClient {
   private static final String TAG = "TCPChannelClient";
+  // How long a listening socket waits for the framing preamble before it falls back to
+  // line framing for peers that do not negotiate.
+  private static final int FRAMING_NEGOTIATION_TIMEOUT_MS = 250;
 
   private final ExecutorService executor;
   private final ThreadUtils.ThreadChecker executorThreadCheck;
   private final TCPChannelEvents eventListener;
+  private final Framing framing;
+  @Nullable
+  private TCPEventLoop eventLoop;
   private TCPSocket socket;
 
+  /**
+   * Message framing on the TCP connection.
+   */
+  public enum Framing {
+    /** One UTF-8 message per line. Compatible with every peer. */
+    LINE,
+    /**
+     * 4 byte length prefixed UTF-8 messages, which may contain newlines. Negotiated when the
+     * connection is established: the connecting side requires a listening side that also uses
+     * this framing, while a listening side falls back to LINE for peers that do not ask for it.
+     */
+    LENGTH_PREFIXED
+  }
+
   /**
    * Callback interface for messages delivered on TCP Connection. All callbacks are invoked from the
    * looper executor thread.
@@ -52,6 +77,16 @@ public class TCPChannelClient {
     void onTCPClose();
   }
 
+  /**
+   * Initializes the TCPChannelClient with line framing.
+   *
+   * @see #TCPChannelClient(ExecutorService, TCPChannelEvents, String, int, Framing)
+   */
+  public TCPChannelClient(
+      ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+    this(executor, eventListener, ip, port, Framing.LINE);
+  }
+
   /**
    * Initializes the TCPChannelClient. If IP is a local IP address, starts a listening server on
    * that IP. If not, instead connects to the IP.
@@ -59,13 +94,24 @@ public class TCPChannelClient {
    * @param eventListener Listener that will receive events from the client.
    * @param ip            IP address to listen on or connect to.
    * @param port          Port to listen on or connect to.
+   * @param framing       Preferred message framing.
    */
-  public TCPChannelClient(
-      ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+  public TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, String ip,
+      int port, Framing framing) {
+    this(executor, eventListener, ip, port, framing, null);
+  }
+
+  /**
+   * Initializes the TCPChannelClient on |eventLoop|, or on the shared default event loop if
+   * null. Any number of clients can share one event loop.
+   */
+  TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, String ip, int port,
+      Framing framing, @Nullable TCPEventLoop eventLoop) {
     this.executor = executor;
     executorThreadCheck = new ThreadUtils.ThreadChecker();
     executorThreadCheck.detachThread();
     this.eventListener = eventListener;
+    this.framing = framing;
 
     InetAddress address;
     try {
@@ -75,6 +121,16 @@ public class TCPChannelClient {
       return;
     }
 
+    if (eventLoop == null) {
+      try {
+        eventLoop = TCPEventLoop.getDefault();
+      } catch (IOException e) {
+        reportError("Failed to start event loop: " + e.getMessage());
+        return;
+      }
+    }
+    this.eventLoop = eventLoop;
+
     if (address.isAnyLocalAddress()) {
       socket = new TCPSocketServer(address, port);
     } else {
@@ -94,7 +150,8 @@ public class TCPChannelClient {
   }
 
   /**
-   * Sends a message on the socket.
+   * Sends a message on the socket. Messages sent from the same executor task are written
+   * together.
    *
    * @param message Message to be sent.
    */
@@ -118,67 +175,183 @@ public class TCPChannelClient {
   }
 
   /**
-   * Base class for server and client sockets. Contains a listening thread that will call
-   * eventListener.onTCPMessage on new messages.
+   * Base class for server and client sockets. Runs on the event loop thread, which calls
+   * eventListener.onTCPMessage through the executor on new messages.
    */
-  private abstract class TCPSocket extends Thread {
-    // Lock for editing out and rawSocket
-    protected final Object rawSocketLock;
+  private abstract class TCPSocket implements TCPEventLoop.ChannelHandler {
+    // Set once the connection is established and framing is agreed on. Read by send() on the
+    // executor thread, everything else is only touched on the event loop thread.
+    private volatile boolean connected;
+    private boolean closed;
+    @Nullable
+    private SocketChannel rawSocket;
     @Nullable
-    private PrintWriter out;
+    private SelectionKey rawSocketKey;
     @Nullable
-    private Socket rawSocket;
+    private TCPMessageFramer framer;
+    // Bytes of the framing preamble received so far.
+    private final ByteBuffer preambleIn = ByteBuffer.allocate(TCPMessageFramer.getPreambleLength());
+    @Nullable
+    private TCPEventLoop.Timeout negotiationTimeout;
+    private final List<String> messages = new ArrayList<>();
+    // Messages queued by send() on the executor thread, encoded by the next flush.
+    private final ConcurrentLinkedQueue<String> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this ::flush;
+    // Encoded bytes not yet accepted by the socket.
+    private final ArrayDeque<ByteBuffer> sendBuffers = new ArrayDeque<>();
+    private final List<ByteBuffer> encodeBuffers = new ArrayList<>();
 
     /**
-     * Connect to the peer, potentially a slow operation.
-     *
-     * @return Socket connection, null if connection failed.
+     * Starts listening or connecting. Called on the event loop thread, calls onConnected() once
+     * the connection is established.
      */
-    @Nullable
-    public abstract Socket connect();
+    protected abstract void open() throws IOException;
 
     /** Returns true if sockets is a server rawSocket. */
     public abstract boolean isServer();
 
-    TCPSocket() {
-      rawSocketLock = new Object();
+    /** Opens the socket on the event loop. */
+    void start() {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (closed) {
+            return;
+          }
+          try {
+            open();
+          } catch (IOException e) {
+            reportError(getOpenErrorPrefix() + e.getMessage());
+            close();
+          }
+        }
+      });
     }
 
+    protected abstract String getOpenErrorPrefix();
+
     /**
-     * The listening thread.
+     * Takes over a connected non-blocking channel and starts the framing negotiation. |key| is
+     * the registration of the channel with the event loop, if it already has one.
      */
-    @Override
-    public void run() {
-      Log.d(TAG, "Listening thread started...");
-
-      // Receive connection to temporary variable first, so we don't block.
-      Socket tempSocket = connect();
-      BufferedReader in;
-
+    protected void onConnected(SocketChannel channel, @Nullable SelectionKey key)
+        throws IOException {
       Log.d(TAG, "TCP connection established.");
+      rawSocket = channel;
+      if (key != null) {
+        key.attach(this);
+        key.interestOps(SelectionKey.OP_READ);
+        rawSocketKey = key;
+      } else {
+        rawSocketKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
+      }
 
-      synchronized (rawSocketLock) {
-        if (rawSocket != null) {
-          Log.e(TAG, "Socket already existed and will be replaced.");
-        }
+      if (framing == Framing.LINE) {
+        preambleIn.flip();
+        onFramingNegotiated(Framing.LINE);
+      } else if (!isServer()) {
+        // The listening side speaks first on direct connections, so a peer that only knows
+        // line framing answers with its first message instead of the preamble.
+        sendBuffers.add(TCPMessageFramer.createPreamble());
+        writeQueued();
+      } else {
+        // Wait briefly for the connecting side to ask for length prefixed framing.
+        negotiationTimeout = eventLoop.schedule(new Runnable() {
+          @Override
+          public void run() {
+            negotiationTimeout = null;
+            if (!closed && framer == null) {
+              preambleIn.flip();
+              onFramingNegotiated(Framing.LINE);
+            }
+          }
+        }, FRAMING_NEGOTIATION_TIMEOUT_MS);
+      }
+    }
 
-        rawSocket = tempSocket;
+    /** Handles readiness of the connected channel. */
+    @Override
+    public void onSelected(SelectionKey key) {
+      if (key.isValid() && key.isWritable()) {
+        writeQueued();
+      }
+      if (key.isValid() && key.isReadable()) {
+        read();
+      }
+    }
 
-        // Connecting failed, error has already been reported, just exit.
-        if (rawSocket == null) {
+    private void read() {
+      final ByteBuffer in = eventLoop.getReadBuffer();
+      try {
+        if (rawSocket.read(in) == -1) {
+          // No data received, rawSocket probably closed.
+          close();
           return;
         }
-
+      } catch (IOException e) {
+        reportError("Failed to read from rawSocket: " + e.getMessage());
+        close();
+        return;
+      }
+      in.flip();
+      if (framer == null) {
         try {
-          out = new PrintWriter(
-              new OutputStreamWriter(rawSocket.getOutputStream(), Charset.forName("UTF-8")), true);
-          in = new BufferedReader(
-              new InputStreamReader(rawSocket.getInputStream(), Charset.forName("UTF-8")));
+          negotiateFraming(in);
         } catch (IOException e) {
-          reportError("Failed to open IO on rawSocket: " + e.getMessage());
+          reportError("Failed to negotiate framing: " + e.getMessage());
+          close();
+          return;
+        }
+        if (framer == null) {
           return;
         }
       }
+      decode(in);
+    }
+
+    /**
+     * Collects the framing preamble from |in|. Once the framing is known, bytes that turned out
+     * not to be a preamble are decoded and the rest of |in| is left for the caller.
+     */
+    private void negotiateFraming(ByteBuffer in) throws IOException {
+      while (preambleIn.hasRemaining() && in.hasRemaining()) {
+        preambleIn.put(in.get());
+      }
+      preambleIn.flip();
+      if (TCPMessageFramer.startsWithPreamble(preambleIn)) {
+        if (isServer()) {
+          sendBuffers.add(TCPMessageFramer.createPreamble());
+          writeQueued();
+        }
+        preambleIn.position(preambleIn.limit());
+        onFramingNegotiated(Framing.LENGTH_PREFIXED);
+        return;
+      }
+      if (!TCPMessageFramer.mayStartWithPreamble(preambleIn)) {
+        if (!isServer()) {
+          throw new IOException("Peer does not support length prefixed framing.");
+        }
+        // Not a preamble, so the peer only knows line framing and these bytes start its first
+        // message.
+        onFramingNegotiated(Framing.LINE);
+        return;
+      }
+      // Keep collecting.
+      preambleIn.position(preambleIn.limit());
+      preambleIn.limit(preambleIn.capacity());
+    }
+
+    // Installs the framer, fires onTCPConnected and decodes bytes already read during the
+    // negotiation, which are in preambleIn in read mode.
+    private void onFramingNegotiated(Framing negotiatedFraming) {
+      Log.d(TAG, "Using " + negotiatedFraming + " framing.");
+      if (negotiationTimeout != null) {
+        negotiationTimeout.cancel();
+        negotiationTimeout = null;
+      }
+      framer = TCPMessageFramer.create(negotiatedFraming);
+      connected = true;
 
       Log.v(TAG, "Execute onTCPConnected");
       executor.execute(new Runnable() {
@@ -189,27 +362,23 @@ public class TCPChannelClient {
         }
       });
 
-      while (true) {
-        final String message;
-        try {
-          message = in.readLine();
-        } catch (IOException e) {
-          synchronized (rawSocketLock) {
-            // If socket was closed, this is expected.
-            if (rawSocket == null) {
-              break;
-            }
-          }
-
-          reportError("Failed to read from rawSocket: " + e.getMessage());
-          break;
-        }
-
-        // No data received, rawSocket probably closed.
-        if (message == null) {
-          break;
-        }
+      if (preambleIn.hasRemaining()) {
+        decode(preambleIn);
+      }
+      if (!sendQueue.isEmpty()) {
+        flush();
+      }
+    }
 
+    private void decode(ByteBuffer in) {
+      try {
+        framer.decode(in, messages);
+      } catch (IOException e) {
+        reportError("Failed to decode message: " + e.getMessage());
+        close();
+        return;
+      }
+      for (final String message : messages) {
         executor.execute(new Runnable() {
           @Override
           public void run() {
@@ -218,57 +387,131 @@ public class TCPChannelClient {
           }
         });
       }
-
-      Log.d(TAG, "Receiving thread exiting...");
-
-      // Close the rawSocket if it is still open.
-      disconnect();
+      messages.clear();
     }
 
-    /** Closes the rawSocket if it is still open. Also fires the onTCPClose event. */
+    /**
+     * Closes the socket from the executor thread and waits until it is closed. Also fires the
+     * onTCPClose event if the connection had been established.
+     */
     public void disconnect() {
+      final CountDownLatch closedLatch = new CountDownLatch(1);
+      final boolean queued = eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          close();
+          closedLatch.countDown();
+        }
+      });
+      if (!queued) {
+        // The event loop was shut down and has closed every channel already.
+        return;
+      }
       try {
-        synchronized (rawSocketLock) {
-          if (rawSocket != null) {
-            rawSocket.close();
-            rawSocket = null;
-            out = null;
-
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                eventListener.onTCPClose();
-              }
-            });
+        closedLatch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /** Closes all channels of this socket. Called on the event loop thread. */
+    protected void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      connected = false;
+      if (negotiationTimeout != null) {
+        negotiationTimeout.cancel();
+        negotiationTimeout = null;
+      }
+      sendQueue.clear();
+      sendBuffers.clear();
+      if (rawSocketKey != null) {
+        rawSocketKey.cancel();
+      }
+      if (rawSocket != null) {
+        closeQuietly(rawSocket);
+        rawSocket = null;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            eventListener.onTCPClose();
           }
-        }
-      } catch (IOException e) {
-        reportError("Failed to close rawSocket: " + e.getMessage());
+        });
       }
     }
 
     /**
-     * Sends a message on the socket. Should only be called on the executor thread.
+     * Queues a message on the socket. Should only be called on the executor thread.
      */
     public void send(String message) {
       Log.v(TAG, "Send: " + message);
 
-      synchronized (rawSocketLock) {
-        if (out == null) {
-          reportError("Sending data on closed socket.");
-          return;
-        }
+      if (!connected) {
+        reportError("Sending data on closed socket.");
+        return;
+      }
 
-        out.write(message + "\n");
-        out.flush();
+      sendQueue.add(message);
+      if (flushScheduled.compareAndSet(false, true)) {
+        eventLoop.execute(flushTask);
+      }
+    }
+
+    // Encodes all queued messages and writes them with a single gathering write. Runs on the
+    // event loop thread.
+    private void flush() {
+      flushScheduled.set(false);
+      if (closed || framer == null) {
+        return;
+      }
+      String message;
+      while ((message = sendQueue.poll()) != null) {
+        framer.encode(message, encodeBuffers);
       }
+      sendBuffers.addAll(encodeBuffers);
+      encodeBuffers.clear();
+      writeQueued();
+    }
+
+    // Writes as much of sendBuffers as the socket accepts and waits for OP_WRITE for the rest.
+    private void writeQueued() {
+      if (closed || sendBuffers.isEmpty()) {
+        return;
+      }
+      try {
+        rawSocket.write(sendBuffers.toArray(new ByteBuffer[0]));
+      } catch (IOException e) {
+        reportError("Failed to write to rawSocket: " + e.getMessage());
+        close();
+        return;
+      }
+      while (!sendBuffers.isEmpty() && !sendBuffers.peekFirst().hasRemaining()) {
+        sendBuffers.pollFirst();
+      }
+      final int interestOps = sendBuffers.isEmpty()
+          ? SelectionKey.OP_READ
+          : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+      if (rawSocketKey.interestOps() != interestOps) {
+        rawSocketKey.interestOps(interestOps);
+      }
+    }
+  }
+
+  private static void closeQuietly(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close socket: " + e.getMessage());
     }
   }
 
   private class TCPSocketServer extends TCPSocket {
-    // Server socket is also guarded by rawSocketLock.
     @Nullable
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
+    @Nullable
+    private SelectionKey serverSocketKey;
 
     final private InetAddress address;
     final private int port;
@@ -278,51 +521,58 @@ public class TCPChannelClient {
       this.port = port;
     }
 
-    /** Opens a listening socket and waits for a connection. */
-    @Nullable
+    /** Opens a listening socket and accepts the first connection on the event loop. */
     @Override
-    public Socket connect() {
+    protected void open() throws IOException {
       Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + Integer.toString(port));
 
-      final ServerSocket tempSocket;
-      try {
-        tempSocket = new ServerSocket(port, 0, address);
-      } catch (IOException e) {
-        reportError("Failed to create server socket: " + e.getMessage());
-        return null;
-      }
-
-      synchronized (rawSocketLock) {
-        if (serverSocket != null) {
-          Log.e(TAG, "Server rawSocket was already listening and new will be opened.");
-        }
+      serverSocket = ServerSocketChannel.open();
+      serverSocket.configureBlocking(false);
+      serverSocket.socket().bind(new InetSocketAddress(address, port));
+      serverSocketKey =
+          eventLoop.register(serverSocket, SelectionKey.OP_ACCEPT, new TCPEventLoop.ChannelHandler() {
+            @Override
+            public void onSelected(SelectionKey key) {
+              accept();
+            }
+          });
+    }
 
-        serverSocket = tempSocket;
-      }
+    @Override
+    protected String getOpenErrorPrefix() {
+      return "Failed to create server socket: ";
+    }
 
+    private void accept() {
+      final SocketChannel channel;
       try {
-        return tempSocket.accept();
+        channel = serverSocket.accept();
+        if (channel == null) {
+          return;
+        }
+        // Only one peer is served, stop accepting.
+        serverSocketKey.cancel();
+        channel.configureBlocking(false);
+        onConnected(channel, null);
       } catch (IOException e) {
         reportError("Failed to receive connection: " + e.getMessage());
-        return null;
+        close();
       }
     }
 
     /** Closes the listening socket and calls super. */
     @Override
-    public void disconnect() {
-      try {
-        synchronized (rawSocketLock) {
-          if (serverSocket != null) {
-            serverSocket.close();
-            serverSocket = null;
-          }
+    protected void close() {
+      if (serverSocket != null) {
+        // Not registered yet if binding failed.
+        if (serverSocketKey != null) {
+          serverSocketKey.cancel();
         }
-      } catch (IOException e) {
-        reportError("Failed to close server socket: " + e.getMessage());
+        closeQuietly(serverSocket);
+        serverSocket = null;
       }
 
-      super.disconnect();
+      super.close();
     }
 
     @Override
@@ -332,6 +582,9 @@ public class TCPChannelClient {
   }
 
   private class TCPSocketClient extends TCPSocket {
+    // Channel of a connect that has not completed yet.
+    @Nullable
+    private SocketChannel connecting;
     final private InetAddress address;
     final private int port;
 
@@ -340,18 +593,56 @@ public class TCPChannelClient {
       this.port = port;
     }
 
-    /** Connects to the peer. */
-    @Nullable
+    /** Starts a non-blocking connect to the peer. */
     @Override
-    public Socket connect() {
+    protected void open() throws IOException {
       Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + Integer.toString(port));
 
-      try {
-        return new Socket(address, port);
-      } catch (IOException e) {
-        reportError("Failed to connect: " + e.getMessage());
-        return null;
+      final SocketChannel channel = SocketChannel.open();
+      connecting = channel;
+      channel.configureBlocking(false);
+      if (channel.connect(new InetSocketAddress(address, port))) {
+        connecting = null;
+        onConnected(channel, null);
+        return;
       }
+      eventLoop.register(channel, SelectionKey.OP_CONNECT, new TCPEventLoop.ChannelHandler() {
+        @Override
+        public void onSelected(SelectionKey key) {
+          try {
+            if (!channel.finishConnect()) {
+              return;
+            }
+          } catch (IOException e) {
+            reportError("Failed to connect: " + e.getMessage());
+            close();
+            return;
+          }
+          connecting = null;
+          try {
+            onConnected(channel, key);
+          } catch (IOException e) {
+            reportError("Failed to connect: " + e.getMessage());
+            close();
+          }
+        }
+      });
+    }
+
+    @Override
+    protected String getOpenErrorPrefix() {
+      return "Failed to connect: ";
+    }
+
+    /** Aborts a pending connect and calls super. */
+    @Override
+    protected void close() {
+      if (connecting != null) {
+        closeQuietly(connecting);
+        connecting = null;
+      }
+
+      super.close();
     }
 
     @Override
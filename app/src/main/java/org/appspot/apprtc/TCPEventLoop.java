@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded NIO selector loop hosting the sockets of any number of TCPChannelClients.
+ *
+ * <p>Accepts, connects, reads and writes are all non-blocking and run on the loop thread,
+ * so one thread serves every connection. Methods other than execute() and shutdown() must
+ * be called on the loop thread.
+ */
+class TCPEventLoop {
+  private static final String TAG = "TCPEventLoop";
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  @Nullable private static TCPEventLoop defaultLoop;
+
+  /** Receives readiness events of a registered channel on the loop thread. */
+  interface ChannelHandler {
+    void onSelected(SelectionKey key);
+  }
+
+  /** A task scheduled with schedule(). */
+  static class Timeout implements Comparable<Timeout> {
+    private final long deadlineNs;
+    private final Runnable task;
+    private boolean cancelled;
+
+    private Timeout(long deadlineNs, Runnable task) {
+      this.deadlineNs = deadlineNs;
+      this.task = task;
+    }
+
+    /** Cancels the task if it has not run yet. Must be called on the loop thread. */
+    void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public int compareTo(Timeout other) {
+      // Compares the difference, as nanoTime() values may wrap around.
+      return Long.signum(deadlineNs - other.deadlineNs);
+    }
+  }
+
+  private final Selector selector;
+  private final Thread thread;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final PriorityQueue<Timeout> timeouts = new PriorityQueue<>();
+  // Shared by all connections: reads are drained into the message decoders right away.
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  // Guards the check of |running| in execute() against the loop stopping, so that every task
+  // execute() accepts runs before the channels are closed.
+  private final Object runningLock = new Object();
+  private volatile boolean running = true;
+
+  /** Returns the process wide loop, starting it on first use. */
+  static synchronized TCPEventLoop getDefault() throws IOException {
+    if (defaultLoop == null) {
+      defaultLoop = new TCPEventLoop(TAG);
+    }
+    return defaultLoop;
+  }
+
+  TCPEventLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this ::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Runs |task| on the loop thread. Can be called from any thread. Returns false if the loop
+   * has been shut down and the task will not run.
+   */
+  boolean execute(Runnable task) {
+    synchronized (runningLock) {
+      if (!running) {
+        return false;
+      }
+      tasks.add(task);
+    }
+    selector.wakeup();
+    return true;
+  }
+
+  boolean isLoopThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  /** Runs |task| on the loop thread after |delayMs|. */
+  Timeout schedule(Runnable task, long delayMs) {
+    checkIsLoopThread();
+    final Timeout timeout =
+        new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task);
+    timeouts.add(timeout);
+    return timeout;
+  }
+
+  SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler)
+      throws ClosedChannelException {
+    checkIsLoopThread();
+    return channel.register(selector, ops, handler);
+  }
+
+  /** Buffer for a single read, only valid until the calling handler returns. */
+  ByteBuffer getReadBuffer() {
+    checkIsLoopThread();
+    readBuffer.clear();
+    return readBuffer;
+  }
+
+  /**
+   * Stops the loop and closes every channel still registered with it. Can be called from any
+   * thread; tasks already queued still run first.
+   */
+  void shutdown() {
+    stopRunning();
+    selector.wakeup();
+  }
+
+  private void stopRunning() {
+    synchronized (runningLock) {
+      running = false;
+    }
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        selector.select(getSelectTimeoutMs());
+      } catch (IOException e) {
+        Log.e(TAG, "Select failed: " + e.getMessage());
+        break;
+      }
+      runTasks();
+      final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        final SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        try {
+          ((ChannelHandler) key.attachment()).onSelected(key);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Channel handler failed", e);
+        }
+      }
+      runTimeouts();
+    }
+    // Also stops accepting tasks if select() failed.
+    stopRunning();
+    closeAll();
+  }
+
+  // Returns how long select() may block before the next timeout is due, 0 meaning forever.
+  private long getSelectTimeoutMs() {
+    final Timeout next = timeouts.peek();
+    if (next == null) {
+      return 0;
+    }
+    final long remainingNs = next.deadlineNs - System.nanoTime();
+    // Round up, so that the loop does not wake up just before the deadline.
+    return Math.max(1, (remainingNs + 999_999) / 1_000_000);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Task failed", e);
+      }
+    }
+  }
+
+  private void runTimeouts() {
+    final long nowNs = System.nanoTime();
+    while (!timeouts.isEmpty() && timeouts.peek().deadlineNs - nowNs <= 0) {
+      final Timeout timeout = timeouts.poll();
+      if (timeout.cancelled) {
+        continue;
+      }
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Timeout task failed", e);
+      }
+    }
+  }
+
+  // Runs the tasks accepted before the loop stopped, e.g. TCPSocket.disconnect() waiting for
+  // its close task, and closes the remaining channels.
+  private void closeAll() {
+    runTasks();
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close channel: " + e.getMessage());
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close selector: " + e.getMessage());
+    }
+    timeouts.clear();
+  }
+
+  private void checkIsLoopThread() {
+    if (!isLoopThread()) {
+      throw new IllegalStateException("Not called on the event loop thread.");
+    }
+  }
+}
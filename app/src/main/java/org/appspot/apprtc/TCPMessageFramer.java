@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import org.appspot.apprtc.TCPChannelClient.Framing;
+
+/**
+ * Splits the byte stream of a TCPChannelClient connection into messages and back.
+ *
+ * <p>Decoders are incremental: they consume whatever bytes are available and keep partial
+ * messages until the rest arrives, so they work with both blocking and non-blocking reads.
+ */
+abstract class TCPMessageFramer {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Largest message accepted by the length prefixed framing.
+  static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+  // Decode buffers up to this size are reused, larger ones are dropped after their message.
+  static final int RETAINED_BUFFER_BYTES = 64 * 1024;
+  // Sent by the connecting side to ask for length prefixed framing, and echoed back by a
+  // listening side that accepts it. Starts with a NUL byte, which never begins a line based
+  // message.
+  private static final byte[] FRAMING_PREAMBLE = {0, 'A', 'R', 'T', 'F', 1};
+
+  static TCPMessageFramer create(Framing framing) {
+    switch (framing) {
+      case LENGTH_PREFIXED:
+        return new LengthPrefixedFramer();
+      case LINE:
+      default:
+        return new LineFramer();
+    }
+  }
+
+  static int getPreambleLength() {
+    return FRAMING_PREAMBLE.length;
+  }
+
+  static ByteBuffer createPreamble() {
+    return ByteBuffer.wrap(FRAMING_PREAMBLE);
+  }
+
+  /**
+   * Returns true if the first bytes of |in| (in read mode) are the framing preamble. Only
+   * meaningful once at least getPreambleLength() bytes are available.
+   */
+  static boolean startsWithPreamble(ByteBuffer in) {
+    if (in.remaining() < FRAMING_PREAMBLE.length) {
+      return false;
+    }
+    for (int i = 0; i < FRAMING_PREAMBLE.length; i++) {
+      if (in.get(in.position() + i) != FRAMING_PREAMBLE[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if |in| (in read mode) can still turn out to start with the preamble, i.e.
+   * all of its bytes so far match.
+   */
+  static boolean mayStartWithPreamble(ByteBuffer in) {
+    final int length = Math.min(in.remaining(), FRAMING_PREAMBLE.length);
+    for (int i = 0; i < length; i++) {
+      if (in.get(in.position() + i) != FRAMING_PREAMBLE[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Appends the buffers that make up the frame of |message| to |out|. */
+  abstract void encode(String message, List<ByteBuffer> out);
+
+  /**
+   * Consumes all remaining bytes of |in| and adds every completed message to |messages|.
+   * Throws IOException if the stream is not validly framed.
+   */
+  abstract void decode(ByteBuffer in, List<String> messages) throws IOException;
+
+  /** One UTF-8 message per line, terminated by "\n". Payloads must not contain newlines. */
+  private static class LineFramer extends TCPMessageFramer {
+    private static final int INITIAL_LINE_BYTES = 256;
+    // Bytes of the current line received so far.
+    private byte[] pendingLine = new byte[INITIAL_LINE_BYTES];
+    private int pendingLength;
+
+    @Override
+    void encode(String message, List<ByteBuffer> out) {
+      out.add(ByteBuffer.wrap((message + "\n").getBytes(UTF_8)));
+    }
+
+    @Override
+    void decode(ByteBuffer in, List<String> messages) {
+      while (in.hasRemaining()) {
+        // Copy everything up to the next newline at once.
+        int end = in.position();
+        while (end < in.limit() && in.get(end) != '\n') {
+          end++;
+        }
+        append(in, end - in.position());
+        if (!in.hasRemaining()) {
+          return;
+        }
+        // Skip the newline.
+        in.get();
+        int length = pendingLength;
+        // Accept "\r\n" terminated lines like BufferedReader.readLine() does.
+        if (length > 0 && pendingLine[length - 1] == '\r') {
+          length--;
+        }
+        messages.add(new String(pendingLine, 0, length, UTF_8));
+        if (pendingLine.length > RETAINED_BUFFER_BYTES) {
+          // Do not keep the buffer of an unusually long line for the rest of the connection.
+          pendingLine = new byte[INITIAL_LINE_BYTES];
+        }
+        pendingLength = 0;
+      }
+    }
+
+    // Moves the next |count| bytes of |in| to the end of the pending line.
+    private void append(ByteBuffer in, int count) {
+      if (pendingLength + count > pendingLine.length) {
+        pendingLine =
+            Arrays.copyOf(pendingLine, Math.max(2 * pendingLine.length, pendingLength + count));
+      }
+      in.get(pendingLine, pendingLength, count);
+      pendingLength += count;
+    }
+  }
+
+  /**
+   * 4 byte big-endian payload length followed by the UTF-8 payload.
+   *
+   * <p>Frames are encoded into heap buffers. SocketChannel copies them into its cached
+   * per-thread direct buffer in the same gathering write, which is cheaper than allocating
+   * a direct buffer per message, and a reused direct buffer could not be refilled while an
+   * earlier frame is still waiting in the socket's send queue.
+   */
+  static class LengthPrefixedFramer extends TCPMessageFramer {
+    private static final int HEADER_BYTES = 4;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    @Nullable
+    private byte[] payload;
+    private int payloadLength = -1;
+    private int payloadPosition;
+
+    /** Returns the size of the buffer kept for the next payload. */
+    int getPayloadCapacity() {
+      return payload != null ? payload.length : 0;
+    }
+
+    @Override
+    void encode(String message, List<ByteBuffer> out) {
+      final byte[] bytes = message.getBytes(UTF_8);
+      final ByteBuffer messageHeader = ByteBuffer.allocate(HEADER_BYTES);
+      messageHeader.putInt(bytes.length);
+      messageHeader.flip();
+      out.add(messageHeader);
+      out.add(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    void decode(ByteBuffer in, List<String> messages) throws IOException {
+      while (in.hasRemaining()) {
+        if (payloadLength == -1) {
+          while (header.hasRemaining() && in.hasRemaining()) {
+            header.put(in.get());
+          }
+          if (header.hasRemaining()) {
+            return;
+          }
+          header.flip();
+          payloadLength = header.getInt();
+          header.clear();
+          if (payloadLength < 0 || payloadLength > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid frame length: " + payloadLength);
+          }
+          if (payload == null || payload.length < payloadLength) {
+            payload = new byte[payloadLength];
+          }
+          payloadPosition = 0;
+        }
+        final int count = Math.min(in.remaining(), payloadLength - payloadPosition);
+        in.get(payload, payloadPosition, count);
+        payloadPosition += count;
+        if (payloadPosition == payloadLength) {
+          messages.add(new String(payload, 0, payloadLength, UTF_8));
+          if (payload.length > RETAINED_BUFFER_BYTES) {
+            payload = null;
+          }
+          payloadLength = -1;
+        }
+      }
+    }
+  }
+}
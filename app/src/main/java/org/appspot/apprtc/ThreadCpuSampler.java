@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes the CPU time of this process to its threads by sampling self/task/[tid]/stat.
+ *
+ * <p>Threads are grouped by name with digit runs folded, so e.g. all "pool-3-thread-N"
+ * executor threads or numbered RxJava threads form one group. After each sample the groups
+ * are ranked by the CPU they used since the previous sample, in percent of one core.
+ *
+ * <p>Like ProcSampler, the stat file of every thread stays open between samples and is
+ * re-read into a reusable buffer. Plain Java with a configurable /proc root, not thread
+ * safe.
+ */
+class ThreadCpuSampler {
+  // USER_HZ, the unit of utime and stime. 100 on Linux and Android.
+  private static final int CLOCK_TICKS_PER_SECOND = 100;
+  private static final int READ_BUFFER_SIZE = 1024;
+  // utime and stime are the 12th and 13th fields after the "(comm)" field.
+  private static final int UTIME_FIELD = 12;
+
+  private static class Task {
+    final FileChannel channel;
+    byte[] comm = new byte[0];
+    @Nullable ThreadGroup group;
+    long lastTicks = -1;
+    boolean seen;
+
+    Task(FileChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private static class ThreadGroup {
+    final String name;
+    long deltaTicks;
+    int cpuPercent;
+
+    ThreadGroup(String name) {
+      this.name = name;
+    }
+  }
+
+  private static final Comparator<ThreadGroup> BY_DELTA_TICKS = new Comparator<ThreadGroup>() {
+    @Override
+    public int compare(ThreadGroup first, ThreadGroup second) {
+      return Long.compare(second.deltaTicks, first.deltaTicks);
+    }
+  };
+
+  private final File taskDir;
+  private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private final byte[] bytes = buffer.array();
+  private final Map<String, Task> tasks = new HashMap<>();
+  private final Map<String, ThreadGroup> groups = new HashMap<>();
+  private final List<ThreadGroup> rankedGroups = new ArrayList<>();
+  private long lastSampleTimeMs = -1;
+
+  ThreadCpuSampler() {
+    this(new File("/proc"));
+  }
+
+  ThreadCpuSampler(File procRoot) {
+    taskDir = new File(procRoot, "self/task");
+  }
+
+  /**
+   * Samples all threads and ranks the thread groups by their CPU use since the previous
+   * sample. |nowMs| is a monotonic timestamp. Returns false if no thread could be read.
+   */
+  boolean sample(long nowMs) {
+    final String[] tids = taskDir.list();
+    if (tids == null) {
+      return false;
+    }
+    for (ThreadGroup group : groups.values()) {
+      group.deltaTicks = 0;
+    }
+    boolean anyRead = false;
+    for (String tid : tids) {
+      Task task = tasks.get(tid);
+      if (task == null) {
+        final FileChannel channel = open(new File(taskDir, tid + "/stat"));
+        if (channel == null) {
+          continue;
+        }
+        task = new Task(channel);
+        tasks.put(tid, task);
+      }
+      task.seen = true;
+      final long ticks = readTicks(task);
+      if (ticks < 0) {
+        continue;
+      }
+      anyRead = true;
+      // A thread first seen in this sample has no baseline and counts from the next one.
+      if (task.lastTicks >= 0) {
+        task.group.deltaTicks += ticks - task.lastTicks;
+      }
+      task.lastTicks = ticks;
+    }
+    // Drop threads that have exited.
+    final Iterator<Task> it = tasks.values().iterator();
+    while (it.hasNext()) {
+      final Task task = it.next();
+      if (!task.seen) {
+        close(task.channel);
+        it.remove();
+      }
+      task.seen = false;
+    }
+
+    final long elapsedMs = lastSampleTimeMs < 0 ? 0 : nowMs - lastSampleTimeMs;
+    lastSampleTimeMs = nowMs;
+    rankedGroups.clear();
+    final Iterator<ThreadGroup> groupIt = groups.values().iterator();
+    while (groupIt.hasNext()) {
+      final ThreadGroup group = groupIt.next();
+      if (group.deltaTicks == 0 && !hasTasks(group)) {
+        groupIt.remove();
+        continue;
+      }
+      group.cpuPercent = elapsedMs <= 0
+          ? 0
+          : (int) ((group.deltaTicks * 1000 * 100 + elapsedMs * CLOCK_TICKS_PER_SECOND / 2)
+              / (elapsedMs * CLOCK_TICKS_PER_SECOND));
+      rankedGroups.add(group);
+    }
+    Collections.sort(rankedGroups, BY_DELTA_TICKS);
+    return anyRead;
+  }
+
+  /**
+   * Copies the busiest thread groups of the last sample into |names| and |cpuPercents|, at
+   * most as many as the arrays hold. Returns the number of groups copied.
+   */
+  int getTopThreads(String[] names, int[] cpuPercents) {
+    final int count = Math.min(Math.min(names.length, cpuPercents.length), rankedGroups.size());
+    for (int i = 0; i < count; i++) {
+      names[i] = rankedGroups.get(i).name;
+      cpuPercents[i] = rankedGroups.get(i).cpuPercent;
+    }
+    return count;
+  }
+
+  /** Closes all open files. The sampler reopens them if it is used again. */
+  void close() {
+    for (Task task : tasks.values()) {
+      close(task.channel);
+    }
+    tasks.clear();
+    groups.clear();
+    rankedGroups.clear();
+    lastSampleTimeMs = -1;
+  }
+
+  private boolean hasTasks(ThreadGroup group) {
+    for (Task task : tasks.values()) {
+      if (task.group == group) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Reads utime + stime of |task| and updates its group if the thread was renamed. Returns
+  // -1 if the file cannot be read or parsed.
+  private long readTicks(Task task) {
+    buffer.clear();
+    try {
+      while (buffer.hasRemaining()) {
+        if (task.channel.read(buffer, buffer.position()) <= 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+    final int length = buffer.position();
+    // Format: "<tid> (<comm>) <state> <ppid> ...". comm may itself contain spaces and
+    // parentheses, so it ends at the last ')'.
+    final int commStart = indexOf('(', 0, length) + 1;
+    int commEnd = length - 1;
+    while (commEnd >= commStart && bytes[commEnd] != ')') {
+      commEnd--;
+    }
+    if (commStart <= 0 || commEnd < commStart) {
+      return -1;
+    }
+    if (task.group == null || !regionEquals(task.comm, commStart, commEnd)) {
+      task.comm = Arrays.copyOfRange(bytes, commStart, commEnd);
+      task.group = getGroup(task.comm);
+    }
+
+    int pos = commEnd + 1;
+    for (int field = 0; field < UTIME_FIELD; field++) {
+      pos = indexOf(' ', pos, length) + 1;
+      if (pos <= 0) {
+        return -1;
+      }
+    }
+    long ticks = 0;
+    for (int i = 0; i < 2; i++) {
+      if (pos >= length || bytes[pos] < '0' || bytes[pos] > '9') {
+        return -1;
+      }
+      long value = 0;
+      while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9') {
+        value = value * 10 + (bytes[pos] - '0');
+        pos++;
+      }
+      ticks += value;
+      pos++;
+    }
+    return ticks;
+  }
+
+  private ThreadGroup getGroup(byte[] comm) {
+    final StringBuilder name = new StringBuilder(comm.length);
+    boolean inDigits = false;
+    for (byte b : comm) {
+      final boolean isDigit = b >= '0' && b <= '9';
+      if (!isDigit) {
+        name.append((char) (b & 0xff));
+      } else if (!inDigits) {
+        name.append('#');
+      }
+      inDigits = isDigit;
+    }
+    final String key = name.toString();
+    ThreadGroup group = groups.get(key);
+    if (group == null) {
+      group = new ThreadGroup(key);
+      groups.put(key, group);
+    }
+    return group;
+  }
+
+  private boolean regionEquals(byte[] comm, int start, int end) {
+    if (comm.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < comm.length; i++) {
+      if (comm[i] != bytes[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int indexOf(char c, int from, int length) {
+    for (int i = from; i < length; i++) {
+      if (bytes[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Nullable
+  private static FileChannel open(File file) {
+    try {
+      return new FileInputStream(file).getChannel();
+    } catch (IOException e) {
+      // The thread has exited since the directory was listed.
+      return null;
+    }
+  }
+
+  private static void close(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing to do, the file was only read.
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes 16-bit PCM WAV files as a stream.
+ *
+ * <p>The header is written with zero sizes when the file is opened and the sizes are patched
+ * in on close, so a file cut short by a crash still holds all the audio that was written,
+ * only with a header that players may need to repair. A JUNK chunk reserves the space of a
+ * ds64 chunk: if the file outgrows the 4 GB limit of RIFF, close() turns it into an RF64
+ * file (EBU Tech 3306) in place instead of writing wrapped sizes.
+ */
+public class WavFileSink implements AudioFileSink {
+  private static final int BITS_PER_SAMPLE = 16;
+  private static final int DS64_BYTES = 28;
+  private static final int RIFF_SIZE_OFFSET = 4;
+  private static final int JUNK_OFFSET = 12;
+  private static final int FMT_OFFSET = JUNK_OFFSET + 8 + DS64_BYTES;
+  private static final int DATA_OFFSET = FMT_OFFSET + 8 + 16;
+  private static final int DATA_SIZE_OFFSET = DATA_OFFSET + 4;
+  private static final int HEADER_BYTES = DATA_OFFSET + 8;
+  private static final long MAX_RIFF_SIZE = 0xffffffffL;
+
+  private final int sampleRate;
+  private final int channelCount;
+  private final long maxRiffSize;
+  private final ByteBuffer header =
+      ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  @Nullable private RandomAccessFile file;
+  @Nullable private FileChannel channel;
+  private long dataBytes;
+
+  public WavFileSink(int sampleRate, int channelCount) {
+    this(sampleRate, channelCount, MAX_RIFF_SIZE);
+  }
+
+  /** Switches to RF64 above |maxRiffSize| instead of 4 GB, so tests need not write that much. */
+  WavFileSink(int sampleRate, int channelCount, long maxRiffSize) {
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.maxRiffSize = maxRiffSize;
+  }
+
+  @Override
+  public String getSuffix() {
+    return ".wav";
+  }
+
+  @Override
+  public void open(File file) throws IOException {
+    close();
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+    channel = this.file.getChannel();
+    dataBytes = 0;
+
+    final int blockAlign = channelCount * BITS_PER_SAMPLE / 8;
+    header.clear();
+    header.put(fourCc("RIFF")).putInt(0).put(fourCc("WAVE"));
+    header.put(fourCc("JUNK")).putInt(DS64_BYTES);
+    for (int i = 0; i < DS64_BYTES; i++) {
+      header.put((byte) 0);
+    }
+    header.put(fourCc("fmt ")).putInt(16);
+    // WAVE_FORMAT_PCM.
+    header.putShort((short) 1)
+        .putShort((short) channelCount)
+        .putInt(sampleRate)
+        .putInt(sampleRate * blockAlign)
+        .putShort((short) blockAlign)
+        .putShort((short) BITS_PER_SAMPLE);
+    header.put(fourCc("data")).putInt(0);
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    dataBytes += data.remaining();
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (file == null) {
+      return;
+    }
+    final RandomAccessFile closing = file;
+    file = null;
+    try {
+      // The data chunk is padded to an even size, the pad byte is not part of it.
+      if ((dataBytes & 1) != 0) {
+        writeFully(ByteBuffer.wrap(new byte[1]), HEADER_BYTES + dataBytes);
+      }
+      final long riffSize = HEADER_BYTES - 8 + dataBytes + (dataBytes & 1);
+      if (riffSize <= maxRiffSize) {
+        putInt(RIFF_SIZE_OFFSET, (int) riffSize);
+        putInt(DATA_SIZE_OFFSET, (int) dataBytes);
+      } else {
+        header.clear();
+        header.put(fourCc("RF64")).putInt(-1).put(fourCc("WAVE"));
+        header.put(fourCc("ds64")).putInt(DS64_BYTES);
+        header.putLong(riffSize)
+            .putLong(dataBytes)
+            .putLong(dataBytes / (channelCount * BITS_PER_SAMPLE / 8))
+            // No table entries.
+            .putInt(0);
+        header.flip();
+        writeFully(header, 0);
+        putInt(DATA_SIZE_OFFSET, -1);
+      }
+    } finally {
+      channel = null;
+      closing.close();
+    }
+  }
+
+  private void putInt(long position, int value) throws IOException {
+    header.clear();
+    header.putInt(value).flip();
+    writeFully(header, position);
+  }
+
+  private void writeFully(ByteBuffer data, long position) throws IOException {
+    while (data.hasRemaining()) {
+      position += channel.write(data, position);
+    }
+  }
+
+  private static byte[] fourCc(String id) {
+    return new byte[] {(byte) id.charAt(0), (byte) id.charAt(1), (byte) id.charAt(2),
+        (byte) id.charAt(3)};
+  }
+}
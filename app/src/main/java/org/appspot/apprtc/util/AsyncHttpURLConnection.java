@@ -10,25 +10,66 @@
 
 package org.appspot.apprtc.util;
 
+import androidx.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>Requests run on a small process-wide thread pool instead of a thread per request.
+ * Responses are read to the end and connections are not disconnected on success, so
+ * HttpURLConnection can keep the underlying socket alive and reuse it for the next request
+ * to the same server. Callbacks are always invoked on a pool thread, never on the thread
+ * that called send(). At most getMaxPendingRequests() requests wait or run at a time; the
+ * default fits bursts of a thousand requests, and further ones fail with onHttpError().
  */
 public class AsyncHttpURLConnection {
+  private static final String TAG = "AsyncHttpURLConnection";
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://appr.tc";
+  private static final int POOL_SIZE = 4;
+  private static final int DEFAULT_MAX_PENDING_REQUESTS = 4096;
+  private static final int POOL_KEEP_ALIVE_SECONDS = 30;
+  private static final int READ_BUFFER_SIZE = 4096;
+  // Larger Content-Lengths are not trusted for the initial size of the response buffer.
+  private static final int MAX_INITIAL_RESPONSE_CAPACITY = 64 * 1024;
+  private static final ThreadPoolExecutor executor = createExecutor();
+  // Reports requests rejected by |executor|, so that send() never calls back synchronously.
+  private static final ThreadPoolExecutor rejectionExecutor = createRejectionExecutor();
+  // Requests sent and not finished or cancelled yet.
+  private static final AtomicInteger pendingRequests = new AtomicInteger();
+  private static volatile int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+  // Read buffer of every pool thread, reused across responses.
+  private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[READ_BUFFER_SIZE];
+    }
+  };
+
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private int timeoutMs = HTTP_TIMEOUT_MS;
+  // Held while a callback runs, so that cancel() and callbacks are mutually exclusive.
+  private final Object callbackLock = new Object();
+  private volatile boolean cancelled;
+  @Nullable private Future<?> future;
+  @Nullable private volatile HttpURLConnection connection;
 
   /**
    * Http requests callbacks.
@@ -49,13 +90,68 @@ public class AsyncHttpURLConnection {
     this.contentType = contentType;
   }
 
+  /** Sets the connect and read timeout of this request. Must be called before send(). */
+  public void setTimeoutMs(int timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Sets how many requests may wait for or run on the pool at a time, process-wide. Requests
+   * sent beyond that fail with onHttpError().
+   */
+  public static void setMaxPendingRequests(int maxRequests) {
+    maxPendingRequests = maxRequests;
+  }
+
+  public static int getMaxPendingRequests() {
+    return maxPendingRequests;
+  }
+
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    if (pendingRequests.incrementAndGet() > maxPendingRequests) {
+      pendingRequests.decrementAndGet();
+      rejectionExecutor.execute(() -> deliverError(
+          "HTTP " + method + " to " + url + " rejected: too many pending requests"));
+      return;
+    }
+    final FutureTask<Void> task = new FutureTask<Void>(this ::sendHttpMessage, null) {
+      @Override
+      protected void done() {
+        // Also runs when a waiting request is cancelled and will never run.
+        pendingRequests.decrementAndGet();
+      }
+    };
+    future = task;
+    executor.execute(task);
+  }
+
+  /**
+   * Cancels the request. A request that is already in flight has its connection closed.
+   * If a callback of this request is running on another thread, cancel() waits for it to
+   * return; no callback is invoked once cancel() returns. Callbacks may call cancel()
+   * themselves, but must not wait for another thread that is calling cancel().
+   */
+  public void cancel() {
+    synchronized (callbackLock) {
+      cancelled = true;
+    }
+    if (future != null) {
+      future.cancel(false /* mayInterruptIfRunning */);
+    }
+    HttpURLConnection activeConnection = connection;
+    if (activeConnection != null) {
+      activeConnection.disconnect();
+    }
   }
 
   private void sendHttpMessage() {
+    if (cancelled) {
+      return;
+    }
+    HttpURLConnection connection = null;
     try {
-      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection = (HttpURLConnection) new URL(url).openConnection();
+      this.connection = connection;
       byte[] postData = new byte[0];
       if (message != null) {
         postData = message.getBytes("UTF-8");
@@ -63,8 +159,8 @@ public class AsyncHttpURLConnection {
       connection.setRequestMethod(method);
       connection.setUseCaches(false);
       connection.setDoInput(true);
-      connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-      connection.setReadTimeout(HTTP_TIMEOUT_MS);
+      connection.setConnectTimeout(timeoutMs);
+      connection.setReadTimeout(timeoutMs);
       // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
       connection.addRequestProperty("origin", HTTP_ORIGIN);
       boolean doOutput = false;
@@ -89,26 +185,86 @@ public class AsyncHttpURLConnection {
       // Get response.
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
-            + connection.getHeaderField(null));
-        connection.disconnect();
+        String statusLine = connection.getHeaderField(null);
+        // Drain the error body so that the connection can still be reused.
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+          drainStream(errorStream, connection.getContentLength());
+          errorStream.close();
+        }
+        deliverError("Non-200 response to " + method + " to URL: " + url + " : " + statusLine);
         return;
       }
       InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
+      String response = drainStream(responseStream, connection.getContentLength());
       responseStream.close();
-      connection.disconnect();
-      events.onHttpComplete(response);
+      deliverComplete(response);
     } catch (SocketTimeoutException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " timeout");
+      // The stream may still have unread data, so the connection can not be reused.
+      if (connection != null) {
+        connection.disconnect();
+      }
+      deliverError("HTTP " + method + " to " + url + " timeout");
     } catch (IOException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
+      if (connection != null) {
+        connection.disconnect();
+      }
+      deliverError("HTTP " + method + " to " + url + " error: " + e.getMessage());
+    } finally {
+      this.connection = null;
+    }
+  }
+
+  private void deliverComplete(String response) {
+    synchronized (callbackLock) {
+      if (!cancelled) {
+        events.onHttpComplete(response);
+      }
+    }
+  }
+
+  private void deliverError(String errorMessage) {
+    synchronized (callbackLock) {
+      if (!cancelled) {
+        events.onHttpError(errorMessage);
+      }
     }
   }
 
   // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private static String drainStream(InputStream in, int contentLength) throws IOException {
+    final byte[] buffer = readBuffer.get();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(
+        contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_RESPONSE_CAPACITY) : buffer.length);
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+        POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), runnable -> {
+          Thread thread = new Thread(runnable, TAG + "-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    // Let idle pool threads exit between bursts of requests.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static ThreadPoolExecutor createRejectionExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, POOL_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+          Thread thread = new Thread(runnable, TAG + "-rejected");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 }
@@ -0,0 +1,22 @@
+package org.appspot.apprtc.wrapper;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+/** Sends the signaling log messages to logcat. */
+public class AndroidSignalingLogger implements SignalingLogger {
+    @Override
+    public void log(Severity severity, String tag, String message, @Nullable Throwable error) {
+        switch (severity) {
+            case ERROR:
+                Log.e(tag, message, error);
+                break;
+            case WARNING:
+                Log.w(tag, message, error);
+                break;
+            default:
+                Log.d(tag, message, error);
+                break;
+        }
+    }
+}
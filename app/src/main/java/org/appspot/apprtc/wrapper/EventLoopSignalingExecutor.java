@@ -0,0 +1,129 @@
+package org.appspot.apprtc.wrapper;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs signaling tasks on one plain JVM thread, without a looper. Many signaling clients
+ * can share an instance to run headless in one process, e.g. for capacity tests.
+ *
+ * <p>Like a Handler after its looper quit, the executor drops tasks posted after
+ * shutdown(). A task that throws is logged and does not stop the thread.
+ */
+public class EventLoopSignalingExecutor implements SignalingExecutor {
+    private static final String TAG = "EventLoopExecutor";
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+    private volatile Thread thread;
+    // Pending delayed runs by task, for cancel(). Guarded by itself.
+    private final Map<Runnable, List<ScheduledFuture<?>>> delayedTasks = new IdentityHashMap<>();
+
+    public EventLoopSignalingExecutor(final String name) {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread newThread = new Thread(runnable, name);
+            newThread.setDaemon(true);
+            thread = newThread;
+            return newThread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // Start the thread now so isExecutorThread() never sees it unset.
+        executor.prestartCoreThread();
+        scheduler = Schedulers.from(executor);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        try {
+            executor.execute(() -> runGuarded(task));
+        } catch (RejectedExecutionException e) {
+            SignalingLog.w(TAG, "Executor is shut down, dropping task");
+        }
+    }
+
+    @Override
+    public void executeDelayed(final Runnable task, long delayMs) {
+        synchronized (delayedTasks) {
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            try {
+                // The task cannot start before |delayedTasks| is unlocked, so |future| is set.
+                future[0] = executor.schedule(() -> {
+                    synchronized (delayedTasks) {
+                        removeDelayedTask(task, future[0]);
+                    }
+                    runGuarded(task);
+                }, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                SignalingLog.w(TAG, "Executor is shut down, dropping delayed task");
+                return;
+            }
+            List<ScheduledFuture<?>> futures = delayedTasks.get(task);
+            if (futures == null) {
+                futures = new ArrayList<>(1);
+                delayedTasks.put(task, futures);
+            }
+            futures.add(future[0]);
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final List<ScheduledFuture<?>> futures;
+        synchronized (delayedTasks) {
+            futures = delayedTasks.remove(task);
+        }
+        if (futures != null) {
+            for (final ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public boolean isExecutorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        synchronized (delayedTasks) {
+            delayedTasks.clear();
+        }
+    }
+
+    /** Returns the number of tasks waiting to run, including delayed ones. */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    private void removeDelayedTask(Runnable task, ScheduledFuture<?> future) {
+        final List<ScheduledFuture<?>> futures = delayedTasks.get(task);
+        if (futures != null && futures.remove(future) && futures.isEmpty()) {
+            delayedTasks.remove(task);
+        }
+    }
+
+    private static void runGuarded(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            SignalingLog.e(TAG, "Signaling task failed", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.appspot.apprtc.wrapper;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+
+/** Runs signaling tasks on the looper of an Android {@link Handler}. */
+public class HandlerSignalingExecutor implements SignalingExecutor {
+    private final Handler handler;
+    private final Scheduler scheduler;
+
+    public HandlerSignalingExecutor(Handler handler) {
+        this.handler = handler;
+        this.scheduler = AndroidSchedulers.from(handler.getLooper());
+    }
+
+    /** Starts a HandlerThread named |name| and returns an executor on its looper. */
+    public static HandlerSignalingExecutor create(String name) {
+        final HandlerThread handlerThread = new HandlerThread(name);
+        handlerThread.start();
+        return new HandlerSignalingExecutor(new Handler(handlerThread.getLooper()));
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void executeDelayed(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isExecutorThread() {
+        return Thread.currentThread() == handler.getLooper().getThread();
+    }
+
+    @Override
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public void shutdown() {
+        handler.getLooper().quit();
+    }
+}
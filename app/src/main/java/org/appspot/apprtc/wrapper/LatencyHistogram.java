@@ -0,0 +1,85 @@
+package org.appspot.apprtc.wrapper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts latencies in buckets of powers of two milliseconds: below 1 ms, 1-2 ms, 2-4 ms, up
+ * to 2048 ms and more. Percentiles are reported as the upper bound of the bucket they fall
+ * into, which is accurate enough to compare setup latencies and cheap to record.
+ *
+ * <p>Thread safe.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 13;
+
+    private final String name;
+    // All fields below are guarded by |this|.
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long totalNs;
+    private long maxNs;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /** Records one latency of |latencyNs|. */
+    public synchronized void add(long latencyNs) {
+        latencyNs = Math.max(latencyNs, 0);
+        final long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNs);
+        // Bucket 0 holds [0, 1) ms, bucket i holds [2^(i-1), 2^i) ms.
+        final int bucket = latencyMs == 0 ? 0 : 64 - Long.numberOfLeadingZeros(latencyMs);
+        buckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+        count++;
+        totalNs += latencyNs;
+        maxNs = Math.max(maxNs, latencyNs);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the upper bound in ms of the bucket holding the |percentile| (0-100) latency,
+     * the maximum for the last bucket, or 0 if nothing was recorded.
+     */
+    public synchronized long getPercentileMs(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        // At least the first sample, so that percentile 0 is the minimum and not 1 ms.
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, TimeUnit.NANOSECONDS.toMillis(maxNs) + 1);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxNs);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        totalNs = 0;
+        maxNs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder(name).append(": ").append(count);
+        builder.append(" samples, avg ").append(TimeUnit.NANOSECONDS.toMillis(
+                totalNs / Math.max(count, 1)));
+        builder.append(" ms, p50 <").append(getPercentileMs(50));
+        builder.append(" ms, p90 <").append(getPercentileMs(90));
+        builder.append(" ms, p99 <").append(getPercentileMs(99));
+        builder.append(" ms, max ").append(TimeUnit.NANOSECONDS.toMillis(maxNs)).append(" ms [");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            builder.append(i == 0 ? "" : " ").append(buckets[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,153 @@
+package org.appspot.apprtc.wrapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded queue for the messages sent while the WebSocket is not registered.
+ *
+ * <p>Messages are replayed in two tiers: control messages, which include the SDP, in the
+ * order they were queued, then ICE candidates. When the queue is full the oldest candidate
+ * makes room, and candidates older than the maximum age are dropped since the partner has
+ * stopped checking them by then.
+ *
+ * <p>Not thread safe; use it on the signaling thread only.
+ */
+public class OutboundMessageQueue {
+  private static final String TAG = "OutboundMessageQueue";
+  public static final int DEFAULT_CAPACITY = 64;
+  public static final long DEFAULT_CANDIDATE_MAX_AGE_MS = 30000;
+  private static final LongSupplier monotonicClockMs =
+      () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+  public enum Priority { CONTROL, CANDIDATES }
+
+  /** A queued message. */
+  public static class Message {
+    public final String payload;
+    public final String destination;
+    public final Priority priority;
+    final long enqueueTimeMs;
+
+    Message(String payload, String destination, Priority priority, long enqueueTimeMs) {
+      this.payload = payload;
+      this.destination = destination;
+      this.priority = priority;
+      this.enqueueTimeMs = enqueueTimeMs;
+    }
+  }
+
+  private final int capacity;
+  private final long candidateMaxAgeMs;
+  private final LongSupplier clockMs;
+  private final ArrayDeque<Message> controlMessages = new ArrayDeque<>();
+  private final ArrayDeque<Message> candidateMessages = new ArrayDeque<>();
+  private long droppedCount;
+
+  public OutboundMessageQueue() {
+    this(DEFAULT_CAPACITY, DEFAULT_CANDIDATE_MAX_AGE_MS);
+  }
+
+  public OutboundMessageQueue(int capacity, long candidateMaxAgeMs) {
+    this(capacity, candidateMaxAgeMs, monotonicClockMs);
+  }
+
+  /**
+   * As above, with the message ages read from |clockMs|, a monotonic clock in milliseconds
+   * based on System.nanoTime() like the enqueue times of requeued messages.
+   */
+  OutboundMessageQueue(int capacity, long candidateMaxAgeMs, LongSupplier clockMs) {
+    this.capacity = capacity;
+    this.candidateMaxAgeMs = candidateMaxAgeMs;
+    this.clockMs = clockMs;
+  }
+
+  /** Queues a message. Returns false if it was dropped because the queue is full. */
+  public boolean add(String payload, String destination, Priority priority) {
+    final long nowMs = nowMs();
+    dropStaleCandidates(nowMs);
+    if (size() >= capacity) {
+      if (candidateMessages.isEmpty()) {
+        droppedCount++;
+        SignalingLog.e(TAG, "Queue full, dropping message to " + destination);
+        return false;
+      }
+      candidateMessages.poll();
+      droppedCount++;
+      SignalingLog.w(TAG, "Queue full, dropped the oldest ICE candidate message");
+    }
+    final Message message = new Message(payload, destination, priority, nowMs);
+    if (priority == Priority.CANDIDATES) {
+      candidateMessages.add(message);
+    } else {
+      controlMessages.add(message);
+    }
+    return true;
+  }
+
+  /**
+   * Puts back |messages| that were taken for sending but not sent, in their original order
+   * ahead of the messages queued since. If they do not all fit, the oldest candidates are
+   * dropped first, then the newest control messages.
+   */
+  public void requeue(List<Message> messages) {
+    for (int i = messages.size() - 1; i >= 0; i--) {
+      final Message message = messages.get(i);
+      if (message.priority == Priority.CANDIDATES) {
+        candidateMessages.addFirst(message);
+      } else {
+        controlMessages.addFirst(message);
+      }
+    }
+    dropStaleCandidates(nowMs());
+    while (size() > capacity) {
+      if (candidateMessages.isEmpty()) {
+        controlMessages.pollLast();
+      } else {
+        candidateMessages.poll();
+      }
+      droppedCount++;
+    }
+  }
+
+  /** Removes all messages and returns the ones still worth sending, in replay order. */
+  public List<Message> drain() {
+    dropStaleCandidates(nowMs());
+    final List<Message> messages = new ArrayList<>(size());
+    messages.addAll(controlMessages);
+    messages.addAll(candidateMessages);
+    controlMessages.clear();
+    candidateMessages.clear();
+    return messages;
+  }
+
+  public void clear() {
+    controlMessages.clear();
+    candidateMessages.clear();
+  }
+
+  public int size() {
+    return controlMessages.size() + candidateMessages.size();
+  }
+
+  /** Returns the number of messages dropped because the queue was full or they got stale. */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  private void dropStaleCandidates(long nowMs) {
+    final Iterator<Message> it = candidateMessages.iterator();
+    while (it.hasNext() && nowMs - it.next().enqueueTimeMs > candidateMaxAgeMs) {
+      it.remove();
+      droppedCount++;
+    }
+  }
+
+  private long nowMs() {
+    return clockMs.getAsLong();
+  }
+}
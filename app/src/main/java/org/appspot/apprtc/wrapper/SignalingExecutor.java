@@ -0,0 +1,30 @@
+package org.appspot.apprtc.wrapper;
+
+import io.reactivex.Scheduler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The single thread a signaling client runs on. All client state is confined to this
+ * thread, so any number of clients can share one executor.
+ *
+ * <p>{@link HandlerSignalingExecutor} runs tasks on an Android looper, and
+ * {@link EventLoopSignalingExecutor} runs them on a plain JVM thread for headless use.
+ * Tasks run in the order they were posted.
+ */
+public interface SignalingExecutor extends Executor {
+    /** Runs |task| on the executor thread after |delayMs|. */
+    void executeDelayed(Runnable task, long delayMs);
+
+    /** Removes the pending runs of |task| posted with executeDelayed(). */
+    void cancel(Runnable task);
+
+    /** Returns true if called on the executor thread. */
+    boolean isExecutorThread();
+
+    /** Returns a scheduler that runs on the executor thread. */
+    Scheduler getScheduler();
+
+    /** Stops the executor thread. Tasks that have not run yet may be dropped. */
+    void shutdown();
+}
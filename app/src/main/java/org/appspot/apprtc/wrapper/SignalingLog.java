@@ -0,0 +1,44 @@
+package org.appspot.apprtc.wrapper;
+
+import androidx.annotation.Nullable;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging of the signaling clients, forwarded to the installed {@link SignalingLogger}.
+ * Until one is installed, messages go to java.util.logging, which is what headless clients
+ * and unit tests use; the app installs an {@link AndroidSignalingLogger}.
+ */
+public final class SignalingLog {
+    private static final SignalingLogger DEFAULT_LOGGER = (severity, tag, message, error) -> {
+        final Level level = severity == SignalingLogger.Severity.ERROR ? Level.SEVERE
+                : severity == SignalingLogger.Severity.WARNING ? Level.WARNING : Level.FINE;
+        Logger.getLogger(tag).logp(level, tag, null, message, error);
+    };
+
+    private static volatile SignalingLogger logger = DEFAULT_LOGGER;
+
+    private SignalingLog() {}
+
+    /** Sends all signaling log messages to |newLogger|, or to java.util.logging if null. */
+    public static void setLogger(@Nullable SignalingLogger newLogger) {
+        logger = newLogger != null ? newLogger : DEFAULT_LOGGER;
+    }
+
+    public static void d(String tag, String message) {
+        logger.log(SignalingLogger.Severity.DEBUG, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        logger.log(SignalingLogger.Severity.WARNING, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        logger.log(SignalingLogger.Severity.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        logger.log(SignalingLogger.Severity.ERROR, tag, message, error);
+    }
+}
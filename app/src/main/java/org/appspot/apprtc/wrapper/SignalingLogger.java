@@ -0,0 +1,15 @@
+package org.appspot.apprtc.wrapper;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Receives the log messages of the signaling clients. Installed with
+ * {@link SignalingLog#setLogger(SignalingLogger)}, so the signaling core does not depend on
+ * android.util.Log and runs in a plain JVM.
+ */
+public interface SignalingLogger {
+    enum Severity { DEBUG, WARNING, ERROR }
+
+    /** Logs |message| of |tag|. May be called on any thread. */
+    void log(Severity severity, String tag, String message, @Nullable Throwable error);
+}
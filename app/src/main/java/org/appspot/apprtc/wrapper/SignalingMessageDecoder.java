@@ -0,0 +1,279 @@
+package org.appspot.apprtc.wrapper;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes messages from the signaling server in a single streaming pass.
+ *
+ * <p>The envelope ({@link BaseResponse} fields, room fields and the "msg" field of signal
+ * messages) is read with a {@link JsonReader} straight into a {@link SignalingMessage}, and
+ * the peer message carried in "msg" is decoded into an SDP or ICE candidates. The peer
+ * message may be an escaped JSON string or, as sent by {@link SignalingMessageEncoder} in
+ * nested mode, a JSON object. No intermediate JSON tree is built and nothing is parsed twice.
+ *
+ * <p>Not thread safe; use one decoder per signaling thread.
+ */
+public class SignalingMessageDecoder {
+    /** Kind of peer message carried by a {@link BaseResponse#TYPE_SIGNAL_MSG} message. */
+    public enum SignalType { NONE, OFFER, ANSWER, CANDIDATE, CANDIDATES, REMOVE_CANDIDATES, BYE, UNKNOWN }
+
+    /** A decoded server message. */
+    public static class SignalingMessage {
+        /** One of the BaseResponse.TYPE_* values. */
+        public int type;
+        /** Room fields, set for TYPE_ROOM_CHAT and TYPE_LEAVE_ROOM messages. */
+        @Nullable public RoomResponse room;
+        /** "error" field of a signal message, if any. */
+        @Nullable public String error;
+        public SignalType signalType = SignalType.NONE;
+        /** Raw "type" of the peer message, kept for error reporting. */
+        @Nullable public String signalTypeName;
+        /** Set for OFFER and ANSWER. */
+        @Nullable public SessionDescription sdp;
+        /** Set for CANDIDATE (one element), CANDIDATES and REMOVE_CANDIDATES. */
+        @Nullable public IceCandidate[] candidates;
+    }
+
+    private final TypeAdapter<PublicInfo> publicInfoAdapter;
+
+    public SignalingMessageDecoder(Gson gson) {
+        publicInfoAdapter = gson.getAdapter(PublicInfo.class);
+    }
+
+    /**
+     * Decodes one server message. Throws IOException for malformed JSON or a message
+     * without a type, and IllegalStateException or NumberFormatException for fields of the
+     * wrong kind.
+     */
+    public SignalingMessage decode(String message) throws IOException {
+        final SignalingMessage result = new SignalingMessage();
+        Integer type = null;
+        boolean hasStatus = false;
+        Integer status = null;
+        String code = null;
+        String roomId = null;
+        Boolean isInitiator = null;
+        String signature = null;
+        PublicInfo partnerInfo = null;
+        String partnerSID = null;
+        String msg = null;
+
+        final JsonReader reader = new JsonReader(new StringReader(message));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    type = reader.nextInt();
+                    break;
+                case "status":
+                    hasStatus = true;
+                    status = nextNullableInt(reader);
+                    break;
+                case "code":
+                    code = nextNullableString(reader);
+                    break;
+                case "roomId":
+                    roomId = nextNullableString(reader);
+                    break;
+                case "isInitiator":
+                    isInitiator = nextNullableBoolean(reader);
+                    break;
+                case "signature":
+                    signature = nextNullableString(reader);
+                    break;
+                case "partnerInfo":
+                    partnerInfo = publicInfoAdapter.read(reader);
+                    break;
+                case "partnerSID":
+                    partnerSID = nextNullableString(reader);
+                    break;
+                case "msg":
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        decodeSignal(reader, result);
+                    } else {
+                        msg = nextNullableString(reader);
+                    }
+                    break;
+                case "error":
+                    result.error = nextNullableString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (type == null) {
+            throw new IOException("Message has no type: " + message);
+        }
+        result.type = type;
+        if (type == BaseResponse.TYPE_ROOM_CHAT || type == BaseResponse.TYPE_LEAVE_ROOM) {
+            final RoomResponse room = new RoomResponse();
+            room.type = type;
+            // Like Gson, keep the SUCCESS default unless the message has a status.
+            if (hasStatus) {
+                room.status = status;
+            }
+            room.code = code;
+            room.roomId = roomId;
+            room.isInitiator = isInitiator;
+            room.signature = signature;
+            room.partnerInfo = partnerInfo;
+            room.partnerSID = partnerSID;
+            result.room = room;
+        }
+        if (msg != null && msg.length() > 0) {
+            final JsonReader msgReader = new JsonReader(new StringReader(msg));
+            decodeSignal(msgReader, result);
+        }
+        return result;
+    }
+
+    // Reads a peer message object: {"type": ..., "sdp": ...}, {"type": "candidate", "label": ...,
+    // "id": ..., "candidate": ...} or {"type": ..., "candidates": [...]}.
+    private void decodeSignal(JsonReader reader, SignalingMessage result) throws IOException {
+        String type = "";
+        String sdp = null;
+        String id = null;
+        int label = -1;
+        String candidate = null;
+        List<IceCandidate> candidates = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    type = reader.nextString();
+                    break;
+                case "sdp":
+                    sdp = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "label":
+                    label = reader.nextInt();
+                    break;
+                case "candidate":
+                    candidate = reader.nextString();
+                    break;
+                case "candidates":
+                    candidates = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        candidates.add(readCandidate(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        result.signalTypeName = type;
+        switch (type) {
+            case "offer":
+            case "answer":
+                if (sdp == null) {
+                    throw new IOException("No sdp in " + type + " message");
+                }
+                result.signalType = type.equals("offer") ? SignalType.OFFER : SignalType.ANSWER;
+                result.sdp = new SessionDescription(
+                        SessionDescription.Type.fromCanonicalForm(type), sdp);
+                break;
+            case "candidate":
+                if (id == null || label == -1 || candidate == null) {
+                    throw new IOException("Incomplete candidate message");
+                }
+                result.signalType = SignalType.CANDIDATE;
+                result.candidates = new IceCandidate[] {new IceCandidate(id, label, candidate)};
+                break;
+            case "candidates":
+            case "remove-candidates":
+                if (candidates == null) {
+                    throw new IOException("No candidates in " + type + " message");
+                }
+                result.signalType = type.equals("candidates") ? SignalType.CANDIDATES
+                                                              : SignalType.REMOVE_CANDIDATES;
+                result.candidates = candidates.toArray(new IceCandidate[0]);
+                break;
+            case "bye":
+                result.signalType = SignalType.BYE;
+                break;
+            default:
+                result.signalType = SignalType.UNKNOWN;
+                break;
+        }
+    }
+
+    private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+        String id = null;
+        int label = -1;
+        String candidate = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "label":
+                    label = reader.nextInt();
+                    break;
+                case "candidate":
+                    candidate = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (id == null || label == -1 || candidate == null) {
+            throw new IOException("Incomplete candidate");
+        }
+        return new IceCandidate(id, label, candidate);
+    }
+
+    @Nullable
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    @Nullable
+    private static Integer nextNullableInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+
+    @Nullable
+    private static Boolean nextNullableBoolean(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextBoolean();
+    }
+}
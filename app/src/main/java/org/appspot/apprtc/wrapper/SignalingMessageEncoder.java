@@ -0,0 +1,218 @@
+package org.appspot.apprtc.wrapper;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.webrtc.IceCandidate;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * Encodes messages to the partner in a single streaming pass.
+ *
+ * <p>The envelope {"cmd": "send", "toSID": ..., "roomID": ..., "msg": ...} is serialized once
+ * per partner and room and kept as a template. The peer message is written after it with a
+ * {@link JsonWriter} into a buffer that is reused for every message, so no intermediate JSON
+ * tree is built. By default the peer message is sent as an escaped JSON string, which every
+ * peer understands; in nested mode it is sent as a JSON object, so SDP text is escaped only
+ * once. {@link SignalingMessageDecoder} accepts both forms.
+ *
+ * <p>Not thread safe; use one encoder per signaling thread.
+ */
+public class SignalingMessageEncoder {
+    private final StringBuilder buffer = new StringBuilder();
+    private final Writer bufferWriter = new BufferWriter(buffer, false /* escape */);
+    private final Writer escapingWriter = new BufferWriter(buffer, true /* escape */);
+    private boolean nestedMessages;
+    // Serialized envelope up to the "msg" value, for |templateToSID| and |templateRoomID|.
+    @Nullable private String template;
+    @Nullable private String templateToSID;
+    @Nullable private String templateRoomID;
+
+    /** Sends peer messages as nested objects if |nestedMessages| is set, as strings otherwise. */
+    public void setNestedMessages(boolean nestedMessages) {
+        this.nestedMessages = nestedMessages;
+    }
+
+    public boolean isNestedMessages() {
+        return nestedMessages;
+    }
+
+    /** Encodes an "offer" or "answer" message with the SDP |description|. */
+    public String encodeSdp(String toSID, String roomID, String type, String description) {
+        try {
+            final JsonWriter writer = beginMessage(toSID, roomID);
+            writer.beginObject();
+            writer.name("sdp").value(description);
+            writer.name("type").value(type);
+            writer.endObject();
+            return endMessage(writer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Encodes |candidates| as a "candidates" or "remove-candidates" message as given by |type|.
+     * A single "candidates" entry is sent in the plain "candidate" form understood by every peer.
+     */
+    public String encodeCandidates(
+            String toSID, String roomID, String type, List<IceCandidate> candidates) {
+        try {
+            final JsonWriter writer = beginMessage(toSID, roomID);
+            if (candidates.size() == 1 && type.equals("candidates")) {
+                writer.beginObject();
+                writeCandidateFields(writer, candidates.get(0));
+                writer.name("type").value("candidate");
+                writer.endObject();
+            } else {
+                writer.beginObject();
+                writer.name("type").value(type);
+                writer.name("candidates").beginArray();
+                for (final IceCandidate candidate : candidates) {
+                    writer.beginObject();
+                    writeCandidateFields(writer, candidate);
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            return endMessage(writer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Resets the buffer to the envelope template and returns a writer for the peer message.
+    private JsonWriter beginMessage(String toSID, String roomID) throws IOException {
+        if (template == null || !equals(toSID, templateToSID) || !equals(roomID, templateRoomID)) {
+            template = createTemplate(toSID, roomID);
+            templateToSID = toSID;
+            templateRoomID = roomID;
+        }
+        buffer.setLength(0);
+        buffer.append(template);
+        if (nestedMessages) {
+            return new JsonWriter(bufferWriter);
+        }
+        buffer.append('"');
+        return new JsonWriter(escapingWriter);
+    }
+
+    private String endMessage(JsonWriter writer) throws IOException {
+        writer.flush();
+        if (!nestedMessages) {
+            buffer.append('"');
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    // Serializes the envelope and cuts it before the closing brace, ready for the "msg" value.
+    private static String createTemplate(String toSID, String roomID) throws IOException {
+        final StringWriter out = new StringWriter();
+        final JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("cmd").value("send");
+        writer.name("toSID").value(toSID);
+        writer.name("roomID").value(roomID);
+        writer.endObject();
+        writer.close();
+        final StringBuffer envelope = out.getBuffer();
+        envelope.setLength(envelope.length() - 1);
+        return envelope.append(",\"msg\":").toString();
+    }
+
+    private static void writeCandidateFields(JsonWriter writer, IceCandidate candidate)
+            throws IOException {
+        writer.name("label").value(candidate.sdpMLineIndex);
+        if (candidate.sdpMid != null) {
+            writer.name("id").value(candidate.sdpMid);
+        }
+        writer.name("candidate").value(candidate.sdp);
+    }
+
+    private static boolean equals(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Appends the characters written to it to a StringBuilder, optionally as the contents of a
+    // JSON string. Unlike StringWriter it is not synchronized.
+    private static class BufferWriter extends Writer {
+        private final StringBuilder out;
+        private final boolean escape;
+
+        BufferWriter(StringBuilder out, boolean escape) {
+            this.out = out;
+            this.escape = escape;
+        }
+
+        @Override
+        public void write(int c) {
+            if (!escape || (c >= 0x20 && c != '"' && c != '\\')) {
+                out.append((char) c);
+            } else {
+                copy(String.valueOf((char) c), 0, 1);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            copy(CharBuffer.wrap(chars), offset, offset + length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            copy(string, offset, offset + length);
+        }
+
+        private void copy(CharSequence chars, int offset, int end) {
+            if (!escape) {
+                out.append(chars, offset, end);
+                return;
+            }
+            // Copies the runs between characters that need escaping in one go.
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                final char c = chars.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    continue;
+                }
+                out.append(chars, start, i);
+                start = i + 1;
+                switch (c) {
+                    case '"':
+                        out.append("\\\"");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    default:
+                        out.append(String.format("\\u%04x", (int) c));
+                        break;
+                }
+            }
+            out.append(chars, start, end);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
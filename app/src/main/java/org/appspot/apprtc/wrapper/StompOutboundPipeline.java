@@ -0,0 +1,299 @@
+package org.appspot.apprtc.wrapper;
+
+import androidx.annotation.Nullable;
+
+import io.reactivex.CompletableObserver;
+import io.reactivex.disposables.Disposable;
+import ua.naiksoftware.stomp.StompClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived outbound path for the STOMP frames of one connection.
+ *
+ * <p>Frames are queued in a bounded queue and sent in order by a single sender, which hands
+ * up to a maximum number of frames to the StompClient without waiting for each one to
+ * complete. All pipelines share one sender thread, so sending does not create threads, and
+ * only frames still in flight are kept, so nothing accumulates over a long call. Frames that
+ * do not fit into the queue are dropped and counted. When the connection is lost, the frames
+ * not written yet can be taken back to be sent on the next connection.
+ *
+ * <p>Thread safe. Completion callbacks may arrive on any thread.
+ */
+public class StompOutboundPipeline {
+  private static final String TAG = "StompOutbound";
+  public static final int DEFAULT_CAPACITY = 256;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+  private static final Executor defaultSender = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "StompSender");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static class Frame {
+    final String destination;
+    final String payload;
+    final OutboundMessageQueue.Priority priority;
+    final long enqueueTimeNs;
+
+    Frame(String destination, String payload, OutboundMessageQueue.Priority priority,
+            long enqueueTimeNs) {
+      this.destination = destination;
+      this.payload = payload;
+      this.priority = priority;
+      this.enqueueTimeNs = enqueueTimeNs;
+    }
+  }
+
+  private final StompClient ws;
+  private final Executor sender;
+  private final int capacity;
+  private final int maxInFlight;
+  private final Object lock = new Object();
+  private final Runnable drainTask = this ::drain;
+  // All fields below are guarded by |lock|.
+  private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+  // In the order the frames were sent.
+  private final Set<FrameObserver> inFlight = new LinkedHashSet<>();
+  private boolean drainScheduled;
+  private boolean closed;
+  private int maxQueueDepth;
+  private long sentCount;
+  private long failedCount;
+  private long droppedCount;
+  private long totalLatencyNs;
+  private long maxLatencyNs;
+
+  /** Creates a pipeline for |ws| with the default queue capacity and in-flight limit. */
+  public StompOutboundPipeline(StompClient ws) {
+    this(ws, defaultSender, DEFAULT_CAPACITY, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Creates a pipeline for |ws| that sends on |sender|, queues up to |capacity| frames and
+   * has at most |maxInFlight| frames sent but not completed.
+   */
+  public StompOutboundPipeline(StompClient ws, Executor sender, int capacity, int maxInFlight) {
+    this.ws = ws;
+    this.sender = sender;
+    this.capacity = capacity;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Queues |payload| for |destination|. Returns false if the frame was dropped because the
+   * queue is full or the pipeline is closed.
+   */
+  public boolean send(String destination, String payload) {
+    return send(destination, payload, OutboundMessageQueue.Priority.CONTROL);
+  }
+
+  /** As above, with the |priority| the frame is given back with by closeAndTakeUnsent(). */
+  public boolean send(String destination, String payload,
+          OutboundMessageQueue.Priority priority) {
+    synchronized (lock) {
+      if (closed) {
+        droppedCount++;
+        return false;
+      }
+      if (queue.size() >= capacity) {
+        droppedCount++;
+        SignalingLog.w(TAG, "Queue full, dropping frame to " + destination);
+        return false;
+      }
+      queue.add(new Frame(destination, payload, priority, System.nanoTime()));
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+      if (!startDrainLocked()) {
+        return true;
+      }
+    }
+    sender.execute(drainTask);
+    return true;
+  }
+
+  /** Drops the queued frames and cancels the frames in flight. */
+  public void close() {
+    close(null);
+  }
+
+  /**
+   * Closes the pipeline like close(), and returns the frames that have not been written: the
+   * frames in flight, which the StompClient holds back until it is connected, and the queued
+   * frames, in the order they were sent.
+   */
+  public List<OutboundMessageQueue.Message> closeAndTakeUnsent() {
+    final List<OutboundMessageQueue.Message> unsent = new ArrayList<>();
+    close(unsent);
+    return unsent;
+  }
+
+  // Closes the pipeline. The unsent frames are added to |unsent|, or dropped if it is null.
+  private void close(@Nullable List<OutboundMessageQueue.Message> unsent) {
+    final Disposable[] disposables;
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (unsent != null) {
+        for (final FrameObserver observer : inFlight) {
+          unsent.add(toMessage(observer.frame));
+        }
+        for (final Frame frame : queue) {
+          unsent.add(toMessage(frame));
+        }
+      } else {
+        droppedCount += queue.size();
+      }
+      queue.clear();
+      disposables = new Disposable[inFlight.size()];
+      int i = 0;
+      for (final FrameObserver observer : inFlight) {
+        disposables[i++] = observer.disposable;
+      }
+      inFlight.clear();
+    }
+    for (final Disposable disposable : disposables) {
+      if (disposable != null) {
+        disposable.dispose();
+      }
+    }
+  }
+
+  /** Returns the number of frames waiting to be sent, not counting those in flight. */
+  public int getQueueDepth() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  public int getInFlight() {
+    synchronized (lock) {
+      return inFlight.size();
+    }
+  }
+
+  /** Returns the average time from send() to completion of the sent frames, in ms. */
+  public long getAverageLatencyMs() {
+    synchronized (lock) {
+      return toMs(totalLatencyNs / Math.max(sentCount, 1));
+    }
+  }
+
+  public long getMaxLatencyMs() {
+    synchronized (lock) {
+      return toMs(maxLatencyNs);
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return "sent: " + sentCount + ", failed: " + failedCount + ", dropped: " + droppedCount
+              + ", queue: " + queue.size() + " (max " + maxQueueDepth + ")"
+              + ", in flight: " + inFlight.size() + ", latency avg/max: "
+              + toMs(totalLatencyNs / Math.max(sentCount, 1)) + "/" + toMs(maxLatencyNs) + " ms";
+    }
+  }
+
+  // Returns true if the caller has to schedule the drain task.
+  private boolean startDrainLocked() {
+    if (drainScheduled || closed || queue.isEmpty() || inFlight.size() >= maxInFlight) {
+      return false;
+    }
+    drainScheduled = true;
+    return true;
+  }
+
+  // Hands queued frames to the StompClient until the in-flight limit is reached - runs on the
+  // sender thread.
+  private void drain() {
+    while (true) {
+      final FrameObserver observer;
+      synchronized (lock) {
+        if (closed || queue.isEmpty() || inFlight.size() >= maxInFlight) {
+          drainScheduled = false;
+          return;
+        }
+        observer = new FrameObserver(queue.poll());
+        inFlight.add(observer);
+      }
+      try {
+        ws.send(observer.frame.destination, observer.frame.payload).subscribe(observer);
+      } catch (RuntimeException e) {
+        observer.onError(e);
+      }
+    }
+  }
+
+  private void onFrameDone(FrameObserver observer, boolean success) {
+    final long latencyNs = System.nanoTime() - observer.frame.enqueueTimeNs;
+    synchronized (lock) {
+      if (!inFlight.remove(observer)) {
+        // Cancelled by close().
+        return;
+      }
+      if (success) {
+        sentCount++;
+        totalLatencyNs += latencyNs;
+        maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+      } else {
+        failedCount++;
+      }
+      if (!startDrainLocked()) {
+        return;
+      }
+    }
+    sender.execute(drainTask);
+  }
+
+  private static OutboundMessageQueue.Message toMessage(Frame frame) {
+    return new OutboundMessageQueue.Message(
+            frame.payload, frame.destination, frame.priority, toMs(frame.enqueueTimeNs));
+  }
+
+  private static long toMs(long ns) {
+    return TimeUnit.NANOSECONDS.toMillis(ns);
+  }
+
+  // Tracks one frame in flight. Its disposable is only kept until the frame completes.
+  private class FrameObserver implements CompletableObserver {
+    final Frame frame;
+    volatile Disposable disposable;
+
+    FrameObserver(Frame frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public void onSubscribe(Disposable d) {
+      disposable = d;
+      final boolean cancelled;
+      synchronized (lock) {
+        cancelled = !inFlight.contains(this);
+      }
+      if (cancelled) {
+        d.dispose();
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      onFrameDone(this, true);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      SignalingLog.e(TAG, "Error sending frame to " + frame.destination, e);
+      onFrameDone(this, false);
+    }
+  }
+}
@@ -10,36 +10,40 @@
 
 package org.appspot.apprtc.wrapper;
 
-import android.os.Handler;
 import androidx.annotation.Nullable;
-import android.util.Log;
 
 import com.google.gson.Gson;
 
-import io.reactivex.CompletableTransformer;
-import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.Scheduler;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 import ua.naiksoftware.stomp.Stomp;
 import ua.naiksoftware.stomp.StompClient;
+import ua.naiksoftware.stomp.dto.LifecycleEvent;
 import ua.naiksoftware.stomp.dto.StompHeader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * WebSocket client implementation.
  *
- * <p>All public methods should be called from a looper executor thread
+ * <p>All public methods should be called from the signaling executor thread
  * passed in a constructor, otherwise exception will be thrown.
- * All events are dispatched on the same thread.
+ * All events are dispatched on the same thread. Inbound STOMP events are observed
+ * on the inbound scheduler, which by default is that executor, so they reach it
+ * without passing through the main thread.
+ *
+ * <p>A connection that closes or fails without disconnect() is reopened with
+ * exponential backoff. Messages sent while not registered are kept in a bounded
+ * queue and replayed once the client is registered again; only when reconnecting
+ * gives up is onWebSocketClose() called.
  */
 public class StompWebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
@@ -48,11 +52,18 @@ public class StompWebSocketChannelClient {
   public static final String RANDOM_CHAT_URL = "/app/randomChat";
   public static final String LEAVE_ROOM_URL = "/app/leaveRoom";
   private static final int CLOSE_TIMEOUT = 1000;
+  private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+  private static final long RECONNECT_MAX_DELAY_MS = 16000;
+  private static final int MAX_RECONNECT_ATTEMPTS = 8;
   String signature = UUID.randomUUID().toString().replace("-","");
   private final WebSocketChannelEvents events;
-  private final Handler handler; // Local thread of WebRTCClient, not main thread
+  private final SignalingExecutor executor; // Local thread of WebRTCClient, not main thread
+  private final Scheduler inboundScheduler;
   private StompClient ws;
+  // Subscriptions of the lifecycle and topic streams.
   private CompositeDisposable compositeDisposable;
+  // Outbound frames of |ws|.
+  @Nullable private StompOutboundPipeline outbound;
   private Gson gson = new Gson();
   private RegisterUser registerUser;
 
@@ -69,8 +80,16 @@ public class StompWebSocketChannelClient {
   private final Object closeEventLock = new Object();
   private boolean closeEvent;
   // WebSocket send queue. Messages are added to the queue when WebSocket
-  // client is not registered and are consumed in register() call.
-  private final List<String> wsSendQueue = new ArrayList<>();
+  // client is not registered and are replayed once it is registered.
+  private final OutboundMessageQueue wsSendQueue = new OutboundMessageQueue();
+  private String myUuid;
+  private final Random random = new Random();
+  private final Runnable reconnectTask = this ::reconnect;
+  private boolean reconnectPending;
+  // Reconnect attempts since the client was last registered.
+  private int reconnectAttempts;
+  // System.nanoTime() when the message being dispatched arrived from the socket.
+  private long messageReceiptTimeNs;
 
   /**
    * Possible WebSocket connection states.
@@ -79,7 +98,7 @@ public class StompWebSocketChannelClient {
 
   /**
    * Callback interface for messages delivered on WebSocket.
-   * All events are dispatched from a looper executor thread.
+   * All events are dispatched from the signaling executor thread.
    */
   public interface WebSocketChannelEvents {
     void onWebSocketMessage(final String message);
@@ -87,9 +106,16 @@ public class StompWebSocketChannelClient {
     void onWebSocketError(final String description);
   }
 
-  public StompWebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
-    this.handler = handler;
+  /**
+   * Creates a client that observes inbound STOMP events on |inboundScheduler|, or on
+   * |executor| if it is null. Events observed on another thread are posted to |executor|.
+   */
+  public StompWebSocketChannelClient(SignalingExecutor executor, WebSocketChannelEvents events,
+          @Nullable Scheduler inboundScheduler) {
+    this.executor = executor;
     this.events = events;
+    this.inboundScheduler = inboundScheduler != null
+            ? inboundScheduler : executor.getScheduler();
     //roomID = null;
     //clientID = null;
     state = WebSocketConnectionState.NEW;
@@ -99,18 +125,30 @@ public class StompWebSocketChannelClient {
     return state;
   }
 
+  /**
+   * Returns the System.nanoTime() at which the message passed to the current
+   * onWebSocketMessage() call was received from the socket.
+   */
+  public long getMessageReceiptTimeNs() {
+    return messageReceiptTimeNs;
+  }
+
   public void connect(final String wsUrl, final String postUrl, final String myUuid) {
     checkIfCalledOnValidThread();
     if (state != WebSocketConnectionState.NEW) {
-      Log.e(TAG, "WebSocket is already connected.");
+      SignalingLog.e(TAG, "WebSocket is already connected.");
       return;
     }
     wsServerUrl = wsUrl;
     postServerUrl = postUrl;
+    this.myUuid = myUuid;
     closeEvent = false;
+    executor.cancel(reconnectTask);
+    reconnectPending = false;
 
-    Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
+    SignalingLog.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
     ws = Stomp.over(Stomp.ConnectionProvider.OKHTTP, wsServerUrl);
+    outbound = new StompOutboundPipeline(ws);
     wsObserver = new WebSocketObserver();
     try {
       connectStomp(ws, wsObserver, myUuid);
@@ -133,23 +171,31 @@ public class StompWebSocketChannelClient {
 
     Disposable dispLifecycle = ws.lifecycle()
             .subscribeOn(Schedulers.io())
-            .observeOn(AndroidSchedulers.mainThread())
+            // Signal the close right away, disconnect() may be blocking the executor waiting
+            // for it.
+            .doOnNext(lifecycleEvent -> {
+              if (lifecycleEvent.getType() == LifecycleEvent.Type.CLOSED) {
+                signalCloseEvent();
+              }
+            })
+            .observeOn(inboundScheduler)
             .subscribe(lifecycleEvent -> {
               switch (lifecycleEvent.getType()) {
                 case OPENED:
-                  Log.d(TAG, "Stomp connection opened");
+                  SignalingLog.d(TAG, "Stomp connection opened");
                   wsObserver.onOpen();
                   break;
                 case ERROR:
-                  Log.e(TAG, "Stomp connection error", lifecycleEvent.getException());
+                  SignalingLog.e(TAG, "Stomp connection error", lifecycleEvent.getException());
+                  wsObserver.onClose("ERROR");
                   break;
                 case CLOSED:
-                  Log.d(TAG, "Stomp connection closed");
+                  SignalingLog.d(TAG, "Stomp connection closed");
                   resetSubscriptions();
                   wsObserver.onClose("CLOSED");
                   break;
                 case FAILED_SERVER_HEARTBEAT:
-                  Log.d(TAG,"Stomp failed server heartbeat");
+                  SignalingLog.d(TAG,"Stomp failed server heartbeat");
                   break;
               }
             });
@@ -158,12 +204,13 @@ public class StompWebSocketChannelClient {
     // Receive greetings
     Disposable dispTopic = ws.topic("/user/"+myUuid+"/queue/messages")
             .subscribeOn(Schedulers.io())
-            .observeOn(AndroidSchedulers.mainThread())
-            .subscribe(topicMessage -> {
-              wsObserver.onTextMessage(topicMessage.getPayload());
-              Log.d(TAG, "Received " + topicMessage.getPayload());
+            .map(topicMessage -> new InboundMessage(topicMessage.getPayload(), System.nanoTime()))
+            .observeOn(inboundScheduler)
+            .subscribe(message -> {
+              SignalingLog.d(TAG, "Received " + message.payload);
+              wsObserver.onTextMessage(message.payload, message.receiptTimeNs);
             }, throwable -> {
-              Log.e(TAG, "Error on subscribe topic", throwable);
+              SignalingLog.e(TAG, "Error on subscribe topic", throwable);
             });
 
     compositeDisposable.add(dispTopic);
@@ -171,6 +218,22 @@ public class StompWebSocketChannelClient {
     ws.connect(headers);
   }
 
+  private void signalCloseEvent() {
+    synchronized (closeEventLock) {
+      closeEvent = true;
+      closeEventLock.notify();
+    }
+  }
+
+  // Runs |runnable| right away if called on the executor thread, posts it otherwise.
+  private void runOnExecutor(Runnable runnable) {
+    if (executor.isExecutorThread()) {
+      runnable.run();
+    } else {
+      executor.execute(runnable);
+    }
+  }
+
   private void resetSubscriptions() {
     if (compositeDisposable != null) {
       compositeDisposable.dispose();
@@ -184,32 +247,27 @@ public class StompWebSocketChannelClient {
     //this.clientID = clientID;
     this.registerUser = registerUser;
     if (state != WebSocketConnectionState.CONNECTED) {
-      Log.w(TAG, "WebSocket register() in state " + state);
+      SignalingLog.w(TAG, "WebSocket register() in state " + state);
       return;
     }
     try {
       String msg = gson.toJson(registerUser);
-      Log.d(TAG, "Send: " + msg);
+      SignalingLog.d(TAG, "Send: " + msg);
       registerSocket(msg);
       /*
       state = WebSocketConnectionState.REGISTERED;
       */
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
-      }
-      wsSendQueue.clear();
-
+      // Previously accumulated messages are sent once registered.
     } catch (Exception e) {
       reportError("WebSocket register JSON error: " + e.getMessage());
     }
-    /*Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
+    /*SignalingLog.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
     JSONObject json = new JSONObject();
     try {
       json.put("cmd", "register");
       json.put("roomid", roomID);
       json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
+      SignalingLog.d(TAG, "C->WSS: " + json.toString());
       sendSocket(json.toString());
       state = WebSocketConnectionState.REGISTERED;
       // Send any previously accumulated messages.
@@ -223,32 +281,25 @@ public class StompWebSocketChannelClient {
   }
 
   void registerSocket(String msg){
-    Log.d(TAG, "REGISTER SOCKET: " + msg);
-    compositeDisposable.add(ws.send(REGISTER_SOCKET, msg)
-            .compose(applySchedulers())
-            .subscribe(() -> {
-              Log.d(TAG, "STOMP echo send successfully");
-            }, throwable -> {
-              Log.e(TAG, "Error send STOMP echo", throwable);
-            }));
+    SignalingLog.d(TAG, "REGISTER SOCKET: " + msg);
+    sendSocket(msg, REGISTER_SOCKET, OutboundMessageQueue.Priority.CONTROL);
   }
 
-  private void sendSocket(String msg, String sendUrl){
-    Log.d(TAG, "SEND SOCKET: " + msg);
-    compositeDisposable.add(ws.send(sendUrl, msg)
-            .compose(applySchedulers())
-            .subscribe(() -> {
-              Log.d(TAG, "STOMP echo send successfully");
-            }, throwable -> {
-              Log.e(TAG, "Error send STOMP echo", throwable);
-            }));
+  private void sendSocket(String msg, String sendUrl, OutboundMessageQueue.Priority priority){
+    SignalingLog.d(TAG, "SEND SOCKET: " + msg);
+    if (!outbound.send(sendUrl, msg, priority)) {
+      SignalingLog.e(TAG, "STOMP send queue overflow, dropped message to " + sendUrl);
+    }
   }
 
-  protected CompletableTransformer applySchedulers() {
-    return upstream -> upstream
-            .unsubscribeOn(Schedulers.newThread())
-            .subscribeOn(Schedulers.io())
-            .observeOn(AndroidSchedulers.mainThread());
+  /** Returns the number of messages waiting in the outbound queue. */
+  public int getSendQueueDepth() {
+    return outbound != null ? outbound.getQueueDepth() : 0;
+  }
+
+  /** Returns the average time from send() until the message was written, in ms. */
+  public long getSendLatencyMs() {
+    return outbound != null ? outbound.getAverageLatencyMs() : 0;
   }
 
   public void send(String message) {
@@ -256,21 +307,29 @@ public class StompWebSocketChannelClient {
   }
 
   public void send(String message, String sendUrl) {
+    send(message, sendUrl, OutboundMessageQueue.Priority.CONTROL);
+  }
+
+  /**
+   * Sends |message| to |sendUrl|. Before the client is registered the message is
+   * queued; |priority| decides the replay order and which messages are dropped first.
+   */
+  public void send(String message, String sendUrl, OutboundMessageQueue.Priority priority) {
     checkIfCalledOnValidThread();
     switch (state) {
       case NEW:
       case CONNECTED:
         // Store outgoing messages and send them after websocket client
         // is registered.
-        Log.d(TAG, "WS ACC: " + message);
-        wsSendQueue.add(message);
+        SignalingLog.d(TAG, "WS ACC: " + message);
+        wsSendQueue.add(message, sendUrl, priority);
         return;
       case ERROR:
       case CLOSED:
-        Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+        SignalingLog.e(TAG, "WebSocket send() in error or closed state : " + message);
         return;
       case REGISTERED:
-        sendSocket(message, sendUrl);
+        sendSocket(message, sendUrl, priority);
         break;
     }
   }
@@ -284,7 +343,10 @@ public class StompWebSocketChannelClient {
 
   public void disconnect(boolean waitForComplete) {
     checkIfCalledOnValidThread();
-    Log.d(TAG, "Disconnect WebSocket. State: " + state);
+    SignalingLog.d(TAG, "Disconnect WebSocket. State: " + state);
+    wsSendQueue.clear();
+    executor.cancel(reconnectTask);
+    reconnectPending = false;
     if (state == WebSocketConnectionState.REGISTERED) {
       // Send "bye" to WebSocket server.
       //send("{\"type\": \"bye\"}");
@@ -292,8 +354,9 @@ public class StompWebSocketChannelClient {
       // Send http DELETE to http WebSocket server.
       sendWSSMessage("DELETE", "");
     }
-    // Close WebSocket in CONNECTED or ERROR states only.
-    if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
+    // Close WebSocket unless it is closed already. In NEW state it may still be opening, e.g.
+    // after a reconnect.
+    if (state != WebSocketConnectionState.CLOSED && ws != null) {
       ws.disconnect();
       state = WebSocketConnectionState.CLOSED;
 
@@ -306,19 +369,87 @@ public class StompWebSocketChannelClient {
               closeEventLock.wait(CLOSE_TIMEOUT);
               break;
             } catch (InterruptedException e) {
-              Log.e(TAG, "Wait error: " + e.toString());
+              SignalingLog.e(TAG, "Wait error: " + e.toString());
             }
           }
         }
       }
     }
+    releaseConnection(false);
+    SignalingLog.d(TAG, "Disconnecting WebSocket done.");
+  }
+
+  // Stops observing |ws| and closes its outbound pipeline. If |requeue| is true, the frames
+  // the pipeline has not written go back into |wsSendQueue| to be sent after reconnecting.
+  private void releaseConnection(boolean requeue) {
     resetSubscriptions();
-    Log.d(TAG, "Disconnecting WebSocket done.");
+    if (outbound != null) {
+      SignalingLog.d(TAG, "Outbound: " + outbound);
+      if (requeue) {
+        final List<OutboundMessageQueue.Message> unsent = outbound.closeAndTakeUnsent();
+        if (!unsent.isEmpty()) {
+          SignalingLog.d(TAG, "Requeueing " + unsent.size() + " unsent messages");
+          wsSendQueue.requeue(unsent);
+        }
+      } else {
+        outbound.close();
+      }
+      outbound = null;
+    }
+  }
+
+  // Called on the executor thread when the connection closed or failed without
+  // disconnect(). Reconnects after a backoff delay, or gives up after too many
+  // attempts.
+  private void onConnectionLost(String reason) {
+    if (state == WebSocketConnectionState.CLOSED || reconnectPending) {
+      return;
+    }
+    releaseConnection(true);
+    ws.disconnect();
+    if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+      SignalingLog.e(TAG, "Connection lost (" + reason + "), giving up after " + reconnectAttempts
+              + " reconnect attempts");
+      wsSendQueue.clear();
+      state = WebSocketConnectionState.CLOSED;
+      events.onWebSocketClose();
+      return;
+    }
+    // Full delay doubles with every attempt, half of it is randomized so that clients
+    // which lost their connections together do not come back together.
+    final long delayMs = Math.min(RECONNECT_MAX_DELAY_MS,
+            RECONNECT_INITIAL_DELAY_MS << reconnectAttempts);
+    final long jitteredDelayMs = delayMs / 2 + (long) (random.nextDouble() * delayMs / 2);
+    reconnectAttempts++;
+    SignalingLog.w(TAG, "Connection lost (" + reason + "), reconnect attempt " + reconnectAttempts
+            + " in " + jitteredDelayMs + " ms, " + wsSendQueue.size() + " messages queued");
+    state = WebSocketConnectionState.NEW;
+    reconnectPending = true;
+    executor.executeDelayed(reconnectTask, jitteredDelayMs);
+  }
+
+  private void reconnect() {
+    reconnectPending = false;
+    connect(wsServerUrl, postServerUrl, myUuid);
+  }
+
+  // Sends the messages queued while not registered.
+  private void replayQueuedMessages() {
+    final long droppedCount = wsSendQueue.getDroppedCount();
+    final List<OutboundMessageQueue.Message> messages = wsSendQueue.drain();
+    if (messages.isEmpty()) {
+      return;
+    }
+    SignalingLog.d(TAG, "Replaying " + messages.size() + " queued messages, dropped "
+        + droppedCount);
+    for (final OutboundMessageQueue.Message message : messages) {
+      sendSocket(message.payload, message.destination, message.priority);
+    }
   }
 
   private void reportError(final String errorMessage) {
-    Log.e(TAG, errorMessage);
-    handler.post(new Runnable() {
+    SignalingLog.e(TAG, errorMessage);
+    executor.execute(new Runnable() {
       @Override
       public void run() {
         if (state != WebSocketConnectionState.ERROR) {
@@ -332,7 +463,7 @@ public class StompWebSocketChannelClient {
   // Asynchronously send POST/DELETE to WebSocket server.
   private void sendWSSMessage(final String method, final String message) {
     /*String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
-    Log.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
+    SignalingLog.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
     AsyncHttpURLConnection httpConnection =
         new AsyncHttpURLConnection(method, postUrl, message, new AsyncHttpEvents() {
           @Override
@@ -347,9 +478,9 @@ public class StompWebSocketChannelClient {
   }
 
   // Helper method for debugging purposes. Ensures that WebSocket method is
-  // called on a looper thread.
+  // called on the executor thread.
   private void checkIfCalledOnValidThread() {
-    if (Thread.currentThread() != handler.getLooper().getThread()) {
+    if (!executor.isExecutorThread()) {
       throw new IllegalStateException("WebSocket method is not called on valid thread");
     }
   }
@@ -379,13 +510,27 @@ public class StompWebSocketChannelClient {
     }
   }
 
+  private static class InboundMessage {
+    final String payload;
+    final long receiptTimeNs;
+
+    InboundMessage(String payload, long receiptTimeNs) {
+      this.payload = payload;
+      this.receiptTimeNs = receiptTimeNs;
+    }
+  }
+
   private class WebSocketObserver implements WebSocketConnectionObserver {
     @Override
     public void onOpen() {
-      Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
-      handler.post(new Runnable() {
+      SignalingLog.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+      runOnExecutor(new Runnable() {
         @Override
         public void run() {
+          if (state != WebSocketConnectionState.NEW) {
+            // Disconnected while opening.
+            return;
+          }
           state = WebSocketConnectionState.CONNECTED;
           // Check if we have pending register request.
           //if (roomID != null && clientID != null && registerUser != null) {
@@ -397,41 +542,42 @@ public class StompWebSocketChannelClient {
 
     @Override
     public void onClose(String reason) {
-      Log.d(TAG, "WebSocket connection closed. Reason: " + reason + ". State: "
+      SignalingLog.d(TAG, "WebSocket connection closed. Reason: " + reason + ". State: "
               + state);
-      synchronized (closeEventLock) {
-        closeEvent = true;
-        closeEventLock.notify();
-      }
-      handler.post(new Runnable() {
+      signalCloseEvent();
+      runOnExecutor(new Runnable() {
         @Override
         public void run() {
-          if (state != WebSocketConnectionState.CLOSED) {
-            events.onWebSocketClose();
-            state = WebSocketConnectionState.CLOSED;
-          }
+          onConnectionLost(reason);
         }
       });
     }
 
     @Override
     public void onTextMessage(String payload) {
-      Log.d(TAG, "WSS->C: " + payload);
+      onTextMessage(payload, System.nanoTime());
+    }
+
+    void onTextMessage(String payload, long receiptTimeNs) {
+      SignalingLog.d(TAG, "WSS->C: " + payload);
       final String message = payload;
-      handler.post(new Runnable() {
+      runOnExecutor(new Runnable() {
         @Override
         public void run() {
+          messageReceiptTimeNs = receiptTimeNs;
           if (state == WebSocketConnectionState.CONNECTED) {
             // Handle registered response message
             RegisteredResponse response = gson.fromJson(payload, RegisteredResponse.class);
             if (response!=null && response.isSuccess()) {
               if (Code.REGISTERED.equals(response.code)) {
                 state = WebSocketConnectionState.REGISTERED;
-                Log.d(TAG, "Registered Success");
+                SignalingLog.d(TAG, "Registered Success");
+                reconnectAttempts = 0;
+                replayQueuedMessages();
                 events.onWebSocketMessage(message);
               }
             } else {
-              Log.d(TAG, "Socket failed with message: "+payload);
+              SignalingLog.d(TAG, "Socket failed with message: "+payload);
             }
           } else if (state == WebSocketConnectionState.REGISTERED) {
             // handle message
@@ -1,24 +1,23 @@
 package org.appspot.apprtc.wrapper;
 
-import android.os.Handler;
-import android.os.HandlerThread;
 import androidx.annotation.Nullable;
-import android.util.Log;
 
 import com.google.gson.Gson;
 
+import io.reactivex.Scheduler;
+
 import org.appspot.apprtc.AppRTCClient;
-import org.appspot.apprtc.RoomParametersFetcher;
-import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.wrapper.SignalingMessageDecoder.SignalingMessage;
 import org.appspot.apprtc.wrapper.StompWebSocketChannelClient.WebSocketConnectionState;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -30,18 +29,26 @@ import java.util.UUID;
  * onConnectedToRoom() callback with room parameters is invoked.
  * Messages to other party (with local Ice candidates and answer SDP) can
  * be sent after WebSocket connection is established.
+ *
+ * <p>The client runs on a {@link SignalingExecutor}: by default its own HandlerThread, or
+ * an executor passed in and shared with other clients, e.g. an
+ * {@link EventLoopSignalingExecutor} to run many signaling-only clients in a plain JVM.
  */
 public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChannelClient.WebSocketChannelEvents {
     private static final String TAG = "SWSRTCClient";
     private static final String ROOM_JOIN = "join";
     private static final String ROOM_MESSAGE = "message";
     private static final String ROOM_LEAVE = "leave";
+    // Local ICE candidates gathered within this window are sent as one message.
+    private static final long DEFAULT_CANDIDATE_BATCH_WINDOW_MS = 30;
 
     public enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
 
     private enum MessageType { MESSAGE, LEAVE }
 
-    private final Handler handler; // Local thread for this client
+    private final SignalingExecutor executor; // Local thread for this client
+    // Whether |executor| was created for this client and is shut down with it.
+    private final boolean ownsExecutor;
     private boolean initiator;
     private SignalingEvents events;
     private StompWebSocketChannelClient wsClient;
@@ -51,9 +58,19 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     private String leaveUrl;
     private RegisterUser registerUser;
     private final Gson gson = new Gson();
+    private final SignalingMessageDecoder decoder = new SignalingMessageDecoder(gson);
+    private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
     private RoomResponse room;
     private RoomResponse prevRoom;
     private OnServerMessage onServerMessage;
+    private long candidateBatchWindowMs = DEFAULT_CANDIDATE_BATCH_WINDOW_MS;
+    // Local ICE candidates waiting for the current batch window to close.
+    private final List<IceCandidate> pendingLocalCandidates = new ArrayList<>();
+    private final Runnable flushLocalCandidatesTask = this::flushLocalCandidates;
+    // Scheduler for inbound STOMP events, null for the executor thread.
+    @Nullable private Scheduler inboundScheduler;
+    // Time from receiving a message on the socket until it is dispatched to |events|.
+    private final LatencyHistogram inboundLatency = new LatencyHistogram("Inbound latency");
 
     public interface OnServerMessage {
         void onServerMessage(String msg, int type);
@@ -63,19 +80,61 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     }
 
     public StompWebSocketRTCClient(OnServerMessage onServerMessage, RegisterUser registerUser) {
+        this(onServerMessage, registerUser, HandlerSignalingExecutor.create(TAG), true);
+    }
+
+    /**
+     * Creates a client running on |executor|, which may be shared with other clients and is
+     * not shut down on disconnect.
+     */
+    public StompWebSocketRTCClient(OnServerMessage onServerMessage, RegisterUser registerUser,
+            SignalingExecutor executor) {
+        this(onServerMessage, registerUser, executor, false);
+    }
+
+    private StompWebSocketRTCClient(OnServerMessage onServerMessage, RegisterUser registerUser,
+            SignalingExecutor executor, boolean ownsExecutor) {
         this.onServerMessage = onServerMessage;
         //this.events = events;
         this.registerUser = registerUser;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
         roomState = ConnectionState.NEW;
-        final HandlerThread handlerThread = new HandlerThread(TAG);
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper());
     }
 
     public void setSignalingEvents(SignalingEvents events){
         this.events = events;
     }
 
+    /**
+     * Sets how long local ICE candidates are collected before they are sent together in one
+     * "candidates" message. A window of 0 sends every candidate as soon as it is gathered.
+     */
+    public void setCandidateBatchWindowMs(final long windowMs) {
+        executor.execute(() -> candidateBatchWindowMs = windowMs);
+    }
+
+    /**
+     * Sets whether messages to the partner carry the SDP or candidates as a nested JSON object
+     * instead of an escaped JSON string. Both forms are always accepted from the partner.
+     */
+    public void setNestedSignalMessages(final boolean nested) {
+        executor.execute(() -> encoder.setNestedMessages(nested));
+    }
+
+    /**
+     * Sets the scheduler inbound STOMP events are observed on, or null to observe them on the
+     * executor thread. Takes effect with the next WebSocket connection.
+     */
+    public void setInboundScheduler(@Nullable final Scheduler scheduler) {
+        executor.execute(() -> inboundScheduler = scheduler);
+    }
+
+    /** Returns the latencies from socket receipt to the SignalingEvents callbacks. */
+    public LatencyHistogram getInboundLatency() {
+        return inboundLatency;
+    }
+
     // --------------------------------------------------------------------
     // AppRTCClient interface implementation.
     // Asynchronously connect to an AppRTC room URL using supplied connection
@@ -84,7 +143,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     public void connectToRoom(RoomConnectionParameters connectionParameters) {
         this.connectionParameters = connectionParameters;
         if (onServerMessage!=null) onServerMessage.notifyMessage("WebSocket -> Connect to room");
-        handler.post(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 connectToRoomInternal();
@@ -95,11 +154,13 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     @Override
     public void disconnectFromRoom() {
         if (onServerMessage!=null) onServerMessage.notifyMessage("WebSocket -> Disconnect to room");
-        handler.post(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 disconnectFromRoomInternal();
-                handler.getLooper().quit();
+                if (ownsExecutor) {
+                    executor.shutdown();
+                }
             }
         });
     }
@@ -119,7 +180,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
         /*RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
             @Override
             public void onSignalingParametersReady(final SignalingParameters params) {
-                StompWebSocketRTCClient.this.handler.post(new Runnable() {
+                StompWebSocketRTCClient.this.executor.execute(new Runnable() {
                     @Override
                     public void run() {
                         StompWebSocketRTCClient.this.signalingParametersReady(params);
@@ -139,10 +200,10 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
 
     private void createWebSocketChannelClient(){
         if (wsClient==null || wsClient.getState()==WebSocketConnectionState.CLOSED) {
-            wsClient = new StompWebSocketChannelClient(handler, this);
+            wsClient = new StompWebSocketChannelClient(executor, this, inboundScheduler);
         } else if (wsClient.getState()==WebSocketConnectionState.ERROR) {
             wsClient.disconnect(true);
-            wsClient = new StompWebSocketChannelClient(handler, this);
+            wsClient = new StompWebSocketChannelClient(executor, this, inboundScheduler);
         } else {
             // no need to create new client
         }
@@ -150,14 +211,19 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
 
     // Disconnect from room and send bye messages - runs on a local looper thread.
     private void disconnectFromRoomInternal() {
-        Log.d(TAG, "Disconnect. Room state: " + roomState);
+        SignalingLog.d(TAG, "Disconnect. Room state: " + roomState);
+        SignalingLog.d(TAG, inboundLatency.toString());
+        executor.cancel(flushLocalCandidatesTask);
+        pendingLocalCandidates.clear();
         if (roomState == ConnectionState.CONNECTED) {
-            Log.d(TAG, "Closing room.");
+            SignalingLog.d(TAG, "Closing room.");
             sendPostMessage(MessageType.LEAVE, leaveUrl, null);
         }
         roomState = ConnectionState.CLOSED;
         if (wsClient != null) {
-            wsClient.disconnect(true);
+            // Waiting for the close only matters if the looper quits right after, and it
+            // would stall the other clients on a shared executor.
+            wsClient.disconnect(ownsExecutor);
             wsClient = null;
         }
     }
@@ -191,7 +257,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     // Callback issued when room parameters are extracted. Runs on local
     // looper thread.
     /*private void signalingParametersReady(final SignalingParameters signalingParameters) {
-        Log.d(TAG, "Room connection completed.");
+        SignalingLog.d(TAG, "Room connection completed.");
         if (connectionParameters.loopback
                 && (*//*!signalingParameters.room.isInitiator ||*//* signalingParameters.offerSdp != null)) {
             reportError("Loopback room is busy.");
@@ -199,15 +265,15 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
         }
         if (!connectionParameters.loopback *//*&& !signalingParameters.room.isInitiator*//*
                 && signalingParameters.offerSdp == null) {
-            Log.w(TAG, "No offer SDP in room response.");
+            SignalingLog.w(TAG, "No offer SDP in room response.");
         }
         //initiator = signalingParameters.room.isInitiator;
         // Use to send offer, ice candidate to server via post
         // messageUrl = getMessageUrl(connectionParameters, signalingParameters); // https://appr.tc/message/375970/84454575
         // Use to send leave message
         // leaveUrl = getLeaveUrl(connectionParameters, signalingParameters); // https://appr.tc/leave/375970/84454575
-        // Log.d(TAG, "Message URL: " + messageUrl);
-        // Log.d(TAG, "Leave URL: " + leaveUrl);
+        // SignalingLog.d(TAG, "Message URL: " + messageUrl);
+        // SignalingLog.d(TAG, "Leave URL: " + leaveUrl);
         roomState = ConnectionState.CONNECTED;
 
         // Fire connection and signaling parameters events.
@@ -219,11 +285,11 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     }*/
 
     public void sendRandomChatRequest(final RandomChatReq req){
-        handler.post(() -> wsClient.send(gson.toJson(req), StompWebSocketChannelClient.RANDOM_CHAT_URL));
+        executor.execute(() -> wsClient.send(gson.toJson(req), StompWebSocketChannelClient.RANDOM_CHAT_URL));
     }
 
     public void sendLeaveRoomMessage(){
-        handler.post(() -> wsClient.send("{}", StompWebSocketChannelClient.LEAVE_ROOM_URL));
+        executor.execute(() -> wsClient.send("{}", StompWebSocketChannelClient.LEAVE_ROOM_URL));
         if (room!=null) {
             prevRoom = room;
             room = null;
@@ -233,18 +299,16 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     // Send local offer SDP to the other participant.
     @Override
     public void sendOfferSdp(final SessionDescription sdp) {
-        Log.d(TAG, "SEND OFFER SDP: "+sdp.description);
+        SignalingLog.d(TAG, "SEND OFFER SDP: "+sdp.description);
         if (onServerMessage!=null) onServerMessage.notifyMessage("WebSocket -> Send Offer Sdp");
-        handler.post(() -> {
+        executor.execute(() -> {
             if (roomState != ConnectionState.CONNECTED) {
                 reportError("Sending offer SDP in non connected state.");
                 return;
             }
-            JSONObject json = new JSONObject();
-            jsonPut(json, "sdp", sdp.description);
-            jsonPut(json, "type", "offer");
             //sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-            sendMessageToPartner(json.toString());
+            wsClient.send(
+                    encoder.encodeSdp(room.partnerSID, room.roomId, "offer", sdp.description));
             if (connectionParameters.loopback) {
                 // In loopback mode rename this offer to answer and route it back.
                 SessionDescription sdpAnswer = new SessionDescription(
@@ -258,71 +322,80 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     // Send local answer SDP to the other participant.
     @Override
     public void sendAnswerSdp(final SessionDescription sdp) {
-        Log.d(TAG, "SEND ANSWER SDP: "+sdp.description);
+        SignalingLog.d(TAG, "SEND ANSWER SDP: "+sdp.description);
         if (onServerMessage!=null) onServerMessage.notifyMessage("WebSocket -> Send Answer Sdp");
-        handler.post(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 if (connectionParameters.loopback) {
-                    Log.e(TAG, "Sending answer in loopback mode.");
+                    SignalingLog.e(TAG, "Sending answer in loopback mode.");
                     return;
                 }
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "answer");
-                //wsClient.send(json.toString());
-                sendMessageToPartner(json.toString());
+                wsClient.send(
+                        encoder.encodeSdp(room.partnerSID, room.roomId, "answer", sdp.description));
             }
         });
     }
 
-    // Send Ice candidate to the other participant.
+    // Send Ice candidate to the other participant. Candidates are coalesced on the local
+    // looper thread and flushed once the batch window closes.
     @Override
     public void sendLocalIceCandidate(final IceCandidate candidate) {
-        Log.d(TAG, "SEND LOCAL ICE CANDIDATE: "+candidate.sdp);
-        handler.post(new Runnable() {
+        SignalingLog.d(TAG, "SEND LOCAL ICE CANDIDATE: "+candidate.sdp);
+        executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "candidate");
-                jsonPut(json, "label", candidate.sdpMLineIndex);
-                jsonPut(json, "id", candidate.sdpMid);
-                jsonPut(json, "candidate", candidate.sdp);
                 if (initiator) {
                     // Call initiator sends ice candidates to GAE server.
                     if (roomState != ConnectionState.CONNECTED) {
                         reportError("Sending ICE candidate in non connected state.");
                         return;
                     }
-                    //sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-                    sendMessageToPartner(json.toString());
                     if (connectionParameters.loopback) {
                         if (events!=null)
                             events.onRemoteIceCandidate(candidate);
                     }
-                } else {
-                    // Call receiver sends ice candidates to websocket server.
-                    //wsClient.send(json.toString());
-                    sendMessageToPartner(json.toString());
+                }
+                pendingLocalCandidates.add(candidate);
+                if (candidateBatchWindowMs <= 0) {
+                    flushLocalCandidates();
+                } else if (pendingLocalCandidates.size() == 1) {
+                    executor.executeDelayed(flushLocalCandidatesTask, candidateBatchWindowMs);
                 }
             }
         });
     }
 
+    // Sends all pending local ICE candidates - runs on a local looper thread. A single
+    // candidate is sent in the plain "candidate" form understood by every peer.
+    private void flushLocalCandidates() {
+        executor.cancel(flushLocalCandidatesTask);
+        if (pendingLocalCandidates.isEmpty()) {
+            return;
+        }
+        if (wsClient == null || room == null) {
+            SignalingLog.w(TAG, "Dropping " + pendingLocalCandidates.size()
+                    + " local ICE candidates, not in a room.");
+            pendingLocalCandidates.clear();
+            return;
+        }
+        SignalingLog.d(TAG, "Send " + pendingLocalCandidates.size() + " local ICE candidates");
+        final String message = encoder.encodeCandidates(
+                room.partnerSID, room.roomId, "candidates", pendingLocalCandidates);
+        pendingLocalCandidates.clear();
+        wsClient.send(message, StompWebSocketChannelClient.SEND_URL,
+                OutboundMessageQueue.Priority.CANDIDATES);
+    }
+
     // Send removed Ice candidates to the other participant.
     @Override
     public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
-        Log.d(TAG, "SEND LOCAL ICE CANDIDATE REMOVALS");
-        handler.post(new Runnable() {
+        SignalingLog.d(TAG, "SEND LOCAL ICE CANDIDATE REMOVALS");
+        executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "remove-candidates");
-                JSONArray jsonArray = new JSONArray();
-                for (final IceCandidate candidate : candidates) {
-                    jsonArray.put(toJsonCandidate(candidate));
-                }
-                jsonPut(json, "candidates", jsonArray);
+                // Removals must not overtake the candidates they refer to.
+                flushLocalCandidates();
                 if (initiator) {
                     // Call initiator sends ice candidates to GAE server.
                     if (roomState != ConnectionState.CONNECTED) {
@@ -330,7 +403,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
                         return;
                     }
                     //sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-                    sendMessageToPartner(json.toString());
+                    sendCandidateRemovals(candidates);
                     if (connectionParameters.loopback) {
                         if (events!=null)
                             events.onRemoteIceCandidatesRemoved(candidates);
@@ -338,7 +411,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
                 } else {
                     // Call receiver sends ice candidates to websocket server.
                     //wsClient.send(json.toString());
-                    sendMessageToPartner(json.toString());
+                    sendCandidateRemovals(candidates);
                 }
             }
         });
@@ -350,113 +423,111 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
     // (passed to WebSocket client constructor).
     @Override
     public void onWebSocketMessage(final String msg) {
-        Log.d(TAG, "ON WEB SOCKET MESSAGE: "+msg);
+        SignalingLog.d(TAG, "ON WEB SOCKET MESSAGE: "+msg);
         if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
-            Log.e(TAG, "Got WebSocket message in non registered state.");
+            SignalingLog.e(TAG, "Got WebSocket message in non registered state.");
             return;
         }
+        final SignalingMessage message;
         try {
-            JSONObject json = new JSONObject(msg);
-            int responseType = json.getInt("type");
-            if (onServerMessage!=null) {
-                onServerMessage.onServerMessage(msg, responseType);
-            }
-            switch (responseType) {
-                case BaseResponse.TYPE_CREATE_USER:
-                    if (onServerMessage!=null) onServerMessage.notifyMessage("Server TYPE_CREATE_USER");
-                    break;
-                case BaseResponse.TYPE_LEAVE_ROOM:
-                    RoomResponse leaveRoom = gson.fromJson(msg, RoomResponse.class);
-                    if(room!=null && leaveRoom.roomId.equals(room.roomId)) {
-                        if (onServerMessage!=null) onServerMessage.notifyMessage("Server LEAVE_ROOM ID = "+room.roomId);
-                        if(onServerMessage!=null) onServerMessage.onLeaveRoom();
-                    } else {
-                        if (onServerMessage!=null) onServerMessage.notifyMessage("Server REJECT LEAVE_ROOM ID = "+leaveRoom.roomId);
-                    }
-                    return;
-                case BaseResponse.TYPE_REGISTER_USR:
-                    if (onServerMessage!=null) onServerMessage.notifyMessage("REGISTER USER");
-                    return;
-                case BaseResponse.TYPE_ROOM_CHAT:
-                    RoomResponse roomResponse = gson.fromJson(msg, RoomResponse.class);
-                    if (roomResponse.isSuccess()) {
-                        // check
-                        this.room = roomResponse;
-                        this.initiator = room.isInitiator;
-                        SignalingParameters param = new SignalingParameters();
-                        param.room = room;
-                        if (this.events!=null) {
-                            this.events.onConnectedToRoom(param);
-                        }
-                        if (onServerMessage!=null) onServerMessage.notifyMessage("Server ROOM_CHAT ID = "+room.roomId);
-                    } else {
-                        if (onServerMessage!=null) onServerMessage.notifyMessage("Server ROOM_CHAT ERROR = "+roomResponse.code);
-                        Log.e(TAG, "Error Code: " + roomResponse.code);
+            message = decoder.decode(msg);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            reportError("WebSocket message JSON parsing error: " + e.toString());
+            return;
+        }
+        if (onServerMessage!=null) {
+            onServerMessage.onServerMessage(msg, message.type);
+        }
+        if (events != null && (message.type == BaseResponse.TYPE_SIGNAL_MSG
+                || message.type == BaseResponse.TYPE_ROOM_CHAT)) {
+            // The SignalingEvents callbacks follow right away.
+            inboundLatency.add(System.nanoTime() - wsClient.getMessageReceiptTimeNs());
+        }
+        switch (message.type) {
+            case BaseResponse.TYPE_CREATE_USER:
+                if (onServerMessage!=null) onServerMessage.notifyMessage("Server TYPE_CREATE_USER");
+                break;
+            case BaseResponse.TYPE_LEAVE_ROOM:
+                RoomResponse leaveRoom = message.room;
+                if(room!=null && leaveRoom.roomId.equals(room.roomId)) {
+                    if (onServerMessage!=null) onServerMessage.notifyMessage("Server LEAVE_ROOM ID = "+room.roomId);
+                    if(onServerMessage!=null) onServerMessage.onLeaveRoom();
+                } else {
+                    if (onServerMessage!=null) onServerMessage.notifyMessage("Server REJECT LEAVE_ROOM ID = "+leaveRoom.roomId);
+                }
+                return;
+            case BaseResponse.TYPE_REGISTER_USR:
+                if (onServerMessage!=null) onServerMessage.notifyMessage("REGISTER USER");
+                return;
+            case BaseResponse.TYPE_ROOM_CHAT:
+                RoomResponse roomResponse = message.room;
+                if (roomResponse.isSuccess()) {
+                    // check
+                    this.room = roomResponse;
+                    this.initiator = room.isInitiator;
+                    SignalingParameters param = new SignalingParameters();
+                    param.room = room;
+                    if (this.events!=null) {
+                        this.events.onConnectedToRoom(param);
                     }
-                    return;
-                case BaseResponse.TYPE_SIGNAL_MSG:
-                    break;
-            }
-            String msgText = json.getString("msg");
-            String errorText = json.optString("error");
-            //
-            String toSID = json.getString("toSID");
-            String fromSID = json.getString("fromSID");
-            String roomID = json.getString("roomID");
-
-            if (msgText.length() > 0) {
-                json = new JSONObject(msgText);
-                String type = json.optString("type");
-                if (type.equals("candidate")) {
+                    if (onServerMessage!=null) onServerMessage.notifyMessage("Server ROOM_CHAT ID = "+room.roomId);
+                } else {
+                    if (onServerMessage!=null) onServerMessage.notifyMessage("Server ROOM_CHAT ERROR = "+roomResponse.code);
+                    SignalingLog.e(TAG, "Error Code: " + roomResponse.code);
+                }
+                return;
+            case BaseResponse.TYPE_SIGNAL_MSG:
+                break;
+        }
+
+        switch (message.signalType) {
+            case CANDIDATE:
+            case CANDIDATES:
+                for (IceCandidate candidate : message.candidates) {
                     if (events!=null)
-                        events.onRemoteIceCandidate(toJavaCandidate(json));
-                } else if (type.equals("remove-candidates")) {
-                    JSONArray candidateArray = json.getJSONArray("candidates");
-                    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                    for (int i = 0; i < candidateArray.length(); ++i) {
-                        candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-                    }
+                        events.onRemoteIceCandidate(candidate);
+                }
+                break;
+            case REMOVE_CANDIDATES:
+                if (events!=null)
+                    events.onRemoteIceCandidatesRemoved(message.candidates);
+                break;
+            case ANSWER:
+                if (initiator) {
                     if (events!=null)
-                        events.onRemoteIceCandidatesRemoved(candidates);
-                } else if (type.equals("answer")) {
-                    if (initiator) {
-                        SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-                        if (events!=null)
-                            events.onRemoteDescription(sdp);
-                    } else {
-                        reportError("Received answer for call initiator: " + msg);
-                    }
-                } else if (type.equals("offer")) {
-                    if (!initiator) {
-                        SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-                        if (events!=null)
-                            events.onRemoteDescription(sdp);
-                    } else {
-                        reportError("Received offer for call receiver: " + msg);
-                    }
-                } else if (type.equals("bye")) {
+                        events.onRemoteDescription(message.sdp);
+                } else {
+                    reportError("Received answer for call initiator: " + msg);
+                }
+                break;
+            case OFFER:
+                if (!initiator) {
                     if (events!=null)
-                        events.onChannelClose();
+                        events.onRemoteDescription(message.sdp);
                 } else {
-                    reportError("Unexpected WebSocket message: " + msg);
+                    reportError("Received offer for call receiver: " + msg);
                 }
-            } else {
-                if (errorText != null && errorText.length() > 0) {
-                    reportError("WebSocket error message: " + errorText);
+                break;
+            case BYE:
+                if (events!=null)
+                    events.onChannelClose();
+                break;
+            case UNKNOWN:
+                reportError("Unexpected WebSocket message: " + msg);
+                break;
+            case NONE:
+                if (message.error != null && message.error.length() > 0) {
+                    reportError("WebSocket error message: " + message.error);
                 } else {
                     reportError("Unexpected WebSocket message: " + msg);
                 }
-            }
-        } catch (JSONException e) {
-            reportError("WebSocket message JSON parsing error: " + e.toString());
+                break;
         }
     }
 
     @Override
     public void onWebSocketClose() {
-        Log.d(TAG, "ON WEB SOCKET CLOSED");
+        SignalingLog.d(TAG, "ON WEB SOCKET CLOSED");
         if (onServerMessage!=null) onServerMessage.notifyMessage("ON WEB SOCKET CLOSED");
         if (events!=null)
             events.onChannelClose();
@@ -468,16 +539,16 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
 
     @Override
     public void onWebSocketError(String description) {
-        Log.d(TAG, "ON WEB SOCKET ERROR "+description);
+        SignalingLog.d(TAG, "ON WEB SOCKET ERROR "+description);
         reportError("WebSocket error: " + description);
     }
 
     // --------------------------------------------------------------------
     // Helper functions.
     private void reportError(final String errorMessage) {
-        Log.e(TAG, errorMessage);
+        SignalingLog.e(TAG, errorMessage);
         if (onServerMessage!=null) onServerMessage.notifyMessage("REPORT ERROR: "+errorMessage);
-        handler.post(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 if (roomState != ConnectionState.ERROR) {
@@ -490,15 +561,6 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
         });
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     // Send SDP or ICE candidate to a room server.
     private void sendPostMessage(
             final MessageType messageType, final String url, @Nullable final String message) {
@@ -506,7 +568,7 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
         if (message != null) {
             logInfo += ". Message: " + message;
         }
-        Log.d(TAG, "SEND POST MESSAGE: " + logInfo);
+        SignalingLog.d(TAG, "SEND POST MESSAGE: " + logInfo);
         /*AsyncHttpURLConnection httpConnection =
                 new AsyncHttpURLConnection("POST", url, message, new AsyncHttpEvents() {
                     @Override
@@ -532,30 +594,14 @@ public class StompWebSocketRTCClient implements AppRTCClient, StompWebSocketChan
         httpConnection.send();*/
     }
 
-    private void sendMessageToPartner(final String message){
-        JSONObject json = new JSONObject();
-
-        jsonPut(json, "cmd", "send");
-        jsonPut(json, "msg", message);
-        jsonPut(json, "toSID", room.partnerSID);
-        jsonPut(json, "roomID", room.roomId);
-
-        wsClient.send(json.toString());
-    }
-
-    // Converts a Java candidate to a JSONObject.
-    private JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        return json;
-    }
-
-    // Converts a JSON candidate to a Java object.
-    IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(
-                json.getString("id"), json.getInt("label"), json.getString("candidate"));
+    private void sendCandidateRemovals(final IceCandidate[] candidates){
+        if (wsClient == null || room == null) {
+            SignalingLog.w(TAG, "Dropping ICE candidate removals, not in a room.");
+            return;
+        }
+        wsClient.send(encoder.encodeCandidates(
+                room.partnerSID, room.roomId, "remove-candidates", Arrays.asList(candidates)),
+                StompWebSocketChannelClient.SEND_URL, OutboundMessageQueue.Priority.CANDIDATES);
     }
 }
 
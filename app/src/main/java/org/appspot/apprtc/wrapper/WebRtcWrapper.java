@@ -28,18 +28,24 @@ import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
 
+import org.appspot.apprtc.AdaptiveCaptureController;
 import org.appspot.apprtc.AppRTCAudioManager;
 import org.appspot.apprtc.AppRTCClient;
 import org.appspot.apprtc.CallFragment;
+import org.appspot.apprtc.CaptureFormatLadder;
 import org.appspot.apprtc.CpuMonitor;
 import org.appspot.apprtc.DirectRTCClient;
 import org.appspot.apprtc.HudFragment;
 import org.appspot.apprtc.PeerConnectionClient;
+import org.appspot.apprtc.ProxyVideoSink;
 import org.appspot.apprtc.R;
+import org.appspot.apprtc.StatsRecorder;
+import org.appspot.apprtc.StatsSnapshot;
 import org.appspot.apprtc.UnhandledExceptionHandler;
 import org.appspot.apprtc.WebSocketRTCClient;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
 import org.webrtc.FileVideoCapturer;
@@ -49,13 +55,12 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFileRenderer;
-import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -78,6 +83,8 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
     public static final String EXTRA_VIDEO_FPS = "org.appspot.apprtc.VIDEO_FPS";
     public static final String EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED =
             "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
+    public static final String EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED =
+            "org.appspot.apprtc.VIDEO_ADAPTIVE_CAPTURE";
     public static final String EXTRA_VIDEO_BITRATE = "org.appspot.apprtc.VIDEO_BITRATE";
     public static final String EXTRA_VIDEOCODEC = "org.appspot.apprtc.VIDEOCODEC";
     public static final String EXTRA_HWCODEC_ENABLED = "org.appspot.apprtc.HWCODEC";
@@ -126,24 +133,7 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
 
     // Peer connection statistics callback period in ms.
     private static final int STAT_CALLBACK_PERIOD = 1000;
-
-    private static class ProxyVideoSink implements VideoSink {
-        private VideoSink target;
-
-        @Override
-        synchronized public void onFrame(VideoFrame frame) {
-            if (target == null) {
-                Logging.d(TAG, "Dropping frame in proxy because target is null.");
-                return;
-            }
-
-            target.onFrame(frame);
-        }
-
-        synchronized public void setTarget(VideoSink target) {
-            this.target = target;
-        }
-    }
+    private static final String STATS_RECORDING_DIR_NAME = "stats_recording";
 
     private ProxyVideoSink remoteProxyRenderer;
     private ProxyVideoSink localProxyVideoSink;
@@ -173,6 +163,7 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
     private long callStartedTimeMs;
     private boolean micEnabled = true;
     private boolean screencaptureEnabled;
+    private boolean adaptiveCaptureEnabled;
     private static Intent mediaProjectionPermissionResultData;
     private static int mediaProjectionPermissionResultCode;
     // True if local view is in the fullscreen renderer.
@@ -181,6 +172,10 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
     // Controls
     private CallFragment callFragment;
     private HudFragment hudFragment;
+    @Nullable private StatsRecorder statsRecorder;
+    @Nullable private AdaptiveCaptureController adaptiveCaptureController;
+    // Formats supported by the camera in use, or null when not capturing from a camera.
+    @Nullable private List<CaptureFormat> captureFormats;
     private CpuMonitor cpuMonitor;
 
     // Video enabled
@@ -321,6 +316,7 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
         int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
 
         screencaptureEnabled = intent.getBooleanExtra(EXTRA_SCREENCAPTURE, false);
+        adaptiveCaptureEnabled = intent.getBooleanExtra(EXTRA_VIDEO_ADAPTIVE_CAPTURE_ENABLED, false);
         // If capturing format is not specified for screencapture, use screen resolution.
         if (screencaptureEnabled && videoWidth == 0 && videoHeight == 0) {
             DisplayMetrics displayMetrics = getDisplayMetrics();
@@ -509,6 +505,7 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
                 VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
                 if (videoCapturer != null) {
+                    setCaptureFormats(enumerator.getSupportedFormats(deviceName));
                     return videoCapturer;
                 }
             }
@@ -522,6 +519,7 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
                 VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
                 if (videoCapturer != null) {
+                    setCaptureFormats(enumerator.getSupportedFormats(deviceName));
                     return videoCapturer;
                 }
             }
@@ -530,6 +528,16 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
         return null;
     }
 
+    // Lets the capture quality slider and the adaptive capture pick from the formats the camera
+    // supports rather than from the default ones.
+    private void setCaptureFormats(@Nullable List<CaptureFormat> formats) {
+        if (formats == null || formats.isEmpty()) {
+            return;
+        }
+        captureFormats = formats;
+        callFragment.setCaptureFormats(formats);
+    }
+
     @TargetApi(21)
     private @Nullable VideoCapturer createScreenCapturer() {
         if (mediaProjectionPermissionResultCode != Activity.RESULT_OK) {
@@ -641,9 +649,37 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
         }
         // Enable statistics callback.
         peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        if (peerConnectionParameters.enableRtcEventLog) {
+            startStatsRecorder();
+        }
+        if (adaptiveCaptureEnabled && peerConnectionParameters.videoCallEnabled
+                && !screencaptureEnabled) {
+            if (captureFormats != null) {
+                adaptiveCaptureController = new AdaptiveCaptureController(this,
+                        new CaptureFormatLadder(captureFormats),
+                        peerConnectionParameters.videoWidth, peerConnectionParameters.videoHeight,
+                        peerConnectionParameters.videoFps);
+            } else {
+                adaptiveCaptureController = new AdaptiveCaptureController(this,
+                        peerConnectionParameters.videoWidth, peerConnectionParameters.videoHeight,
+                        peerConnectionParameters.videoFps);
+            }
+        }
         setSwappedFeeds(false /* isSwappedFeeds */);
     }
 
+    // Records the stats of this call next to the RTC event log, for triage after the call.
+    private void startStatsRecorder() {
+        final File outputFile = new File(
+                applicationContext.getDir(STATS_RECORDING_DIR_NAME, Context.MODE_PRIVATE),
+                "stats_" + callStartedTimeMs + ".ring");
+        try {
+            statsRecorder = new StatsRecorder(outputFile, StatsRecorder.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start stats recording", e);
+        }
+    }
+
     // This method is called when the audio manager reports audio device change,
     // e.g. from wired headset to speakerphone.
     private void onAudioManagerDevicesChanged(
@@ -675,6 +711,11 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
             fullscreenRenderer.release();
             fullscreenRenderer = null;
         }
+        if (statsRecorder != null) {
+            statsRecorder.close();
+            statsRecorder = null;
+        }
+        adaptiveCaptureController = null;
         if (peerConnectionClient != null) {
             peerConnectionClient.close();
             peerConnectionClient = null;
@@ -1025,12 +1066,18 @@ public class WebRtcWrapper implements AppRTCClient.SignalingEvents,
     }
 
     @Override
-    public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    public void onPeerConnectionStatsReady(final StatsSnapshot snapshot) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (!isError && connected) {
-                    if (hudFragment !=null ) hudFragment.updateEncoderStatistics(reports);
+                    snapshot.updateThreadCpu(cpuMonitor);
+                    if (adaptiveCaptureController != null) {
+                        adaptiveCaptureController.onStats(
+                                snapshot, cpuMonitor != null ? cpuMonitor.getCpuUsageAverage() : -1);
+                    }
+                    if (statsRecorder != null) statsRecorder.record(snapshot, cpuMonitor);
+                    if (hudFragment !=null ) hudFragment.updateEncoderStatistics(snapshot);
                 }
             }
         });
@@ -58,6 +58,7 @@ public class WebRtcWrapperService extends Service implements StompWebSocketRTCCl
     @Override
     public void onCreate() {
         super.onCreate();
+        SignalingLog.setLogger(new AndroidSignalingLogger());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         handler = new Handler(Looper.myLooper());
     }
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.RendererCommon.ScalingType;
+
+/**
+ * Replays synthetic stats traces, laid out like the records of a StatsRecordingReader, through
+ * AdaptiveCaptureController.
+ */
+public class AdaptiveCaptureControllerTest {
+  private static final long SAMPLE_INTERVAL_MS = 1000;
+  private static final long GOOD_BANDWIDTH = 5_000_000;
+  private static final int TIMESTAMP = column("timestampMs");
+  private static final int TARGET_ENC_BITRATE = column("targetEncBitrate");
+  private static final int AVAILABLE_SEND_BANDWIDTH = column("availableSendBandwidth");
+  private static final int CPU_USAGE_AVERAGE = column("cpuUsageAverage");
+
+  @Test
+  public void keepsTopLevelUnderGoodConditions() {
+    final Replay replay = new Replay().phase(120, 40, GOOD_BANDWIDTH).run();
+    assertEquals(0, replay.changes.size());
+    assertEquals(0, replay.controller.getLevel());
+  }
+
+  @Test
+  public void stepsDownUnderCpuLoadAndRecovers() {
+    final Replay replay =
+        new Replay().phase(30, 40, GOOD_BANDWIDTH).phase(30, 95, GOOD_BANDWIDTH).run();
+    assertTrue(replay.changes.size() >= 2);
+    // The third saturated sample triggers the first step.
+    assertEquals(30_000 + 2 * SAMPLE_INTERVAL_MS, replay.changes.get(0).timestampMs);
+    assertEquals(1, replay.changes.get(0).level);
+    for (int i = 1; i < replay.changes.size(); i++) {
+      assertEquals(replay.changes.get(i - 1).level + 1, replay.changes.get(i).level);
+      assertTrue(replay.changes.get(i).timestampMs - replay.changes.get(i - 1).timestampMs
+          >= 4000);
+      assertTrue(replay.changes.get(i).pixelRate() < replay.changes.get(i - 1).pixelRate());
+    }
+    final int lowestLevel = replay.controller.getLevel();
+
+    replay.changes.clear();
+    replay.phase(120, 30, GOOD_BANDWIDTH).run();
+    assertEquals(lowestLevel, replay.changes.size());
+    for (int i = 0; i < replay.changes.size(); i++) {
+      assertEquals(lowestLevel - 1 - i, replay.changes.get(i).level);
+      if (i > 0) {
+        assertTrue(replay.changes.get(i).timestampMs - replay.changes.get(i - 1).timestampMs
+            >= 15000);
+      }
+    }
+    assertEquals(0, replay.controller.getLevel());
+    assertEquals(1280 * 720 * 30, replay.changes.get(replay.changes.size() - 1).pixelRate());
+  }
+
+  @Test
+  public void ignoresCpuFlappingAroundThresholds() {
+    final Replay replay = new Replay();
+    for (int i = 0; i < 60; i++) {
+      // Two saturated samples, then one with headroom: neither direction ever persists.
+      replay.phase(2, 90, GOOD_BANDWIDTH).phase(1, 50, GOOD_BANDWIDTH);
+    }
+    replay.phase(60, 70, GOOD_BANDWIDTH).run();
+    assertEquals(0, replay.changes.size());
+  }
+
+  @Test
+  public void settlesAtLevelThatFitsBandwidth() {
+    final long bandwidth = 600_000;
+    final Replay replay =
+        new Replay().phase(10, 40, GOOD_BANDWIDTH).phase(120, 40, bandwidth).run();
+    assertTrue(replay.changes.size() >= 2);
+    final Change last = replay.changes.get(replay.changes.size() - 1);
+    assertTrue(last.pixelRate() * 0.1 * 0.75 <= bandwidth);
+    final Change previous = replay.changes.get(replay.changes.size() - 2);
+    assertTrue(previous.pixelRate() * 0.1 * 0.75 > bandwidth);
+    // Settled: nothing happened in the second half of the constrained phase.
+    assertTrue(last.timestampMs < 70_000);
+  }
+
+  @Test
+  public void usesEncoderTargetWithoutBandwidthEstimate() {
+    final Replay replay = new Replay().phase(30, 40, StatsSnapshot.UNKNOWN, 300_000).run();
+    assertTrue(replay.changes.size() > 0);
+    final Change last = replay.changes.get(replay.changes.size() - 1);
+    assertTrue(last.pixelRate() * 0.1 * 0.75 <= 300_000);
+  }
+
+  @Test
+  public void replayIsDeterministic() {
+    final Replay first = new Replay();
+    final Replay second = new Replay();
+    for (Replay replay : Arrays.asList(first, second)) {
+      replay.phase(20, 40, GOOD_BANDWIDTH)
+          .phase(20, 95, GOOD_BANDWIDTH)
+          .phase(40, 40, 400_000)
+          .phase(90, 20, GOOD_BANDWIDTH)
+          .run();
+    }
+    assertTrue(first.changes.size() > 4);
+    assertEquals(first.changes, second.changes);
+  }
+
+  @Test
+  public void resetReturnsToTopLevelWithoutNotifying() {
+    final Replay replay = new Replay().phase(30, 95, GOOD_BANDWIDTH).run();
+    assertTrue(replay.controller.getLevel() > 0);
+    final int changes = replay.changes.size();
+    replay.controller.reset();
+    assertEquals(0, replay.controller.getLevel());
+    assertEquals(changes, replay.changes.size());
+  }
+
+  private static int column(String name) {
+    return Arrays.asList(StatsRecordingReader.COLUMNS).indexOf(name);
+  }
+
+  private static class Change {
+    final long timestampMs;
+    final int level;
+    final int width;
+    final int height;
+    final int framerate;
+
+    Change(long timestampMs, int level, int width, int height, int framerate) {
+      this.timestampMs = timestampMs;
+      this.level = level;
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+    }
+
+    long pixelRate() {
+      return (long) width * height * framerate;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Change)) {
+        return false;
+      }
+      final Change change = (Change) other;
+      return timestampMs == change.timestampMs && level == change.level
+          && width == change.width && height == change.height && framerate == change.framerate;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new long[] {timestampMs, level, width, height, framerate});
+    }
+
+    @Override
+    public String toString() {
+      return timestampMs + ": " + level + " " + width + "x" + height + "@" + framerate;
+    }
+  }
+
+  /** Builds a trace of recorded samples and feeds the new ones to one controller. */
+  private static class Replay implements CallFragment.OnCallEvents {
+    final AdaptiveCaptureController controller = new AdaptiveCaptureController(this, 0, 0, 0);
+    final List<Change> changes = new ArrayList<>();
+    private final List<long[]> samples = new ArrayList<>();
+    private final StatsSnapshot snapshot = new StatsSnapshot();
+    private long nextTimestampMs;
+    private int replayed;
+    private long currentTimestampMs;
+
+    Replay phase(int seconds, int cpuUsageAverage, long availableSendBandwidth) {
+      return phase(seconds, cpuUsageAverage, availableSendBandwidth, availableSendBandwidth);
+    }
+
+    Replay phase(
+        int seconds, int cpuUsageAverage, long availableSendBandwidth, long targetEncBitrate) {
+      for (int i = 0; i < seconds; i++) {
+        final long[] sample = new long[StatsRecordingReader.COLUMNS.length];
+        Arrays.fill(sample, StatsSnapshot.UNKNOWN);
+        sample[TIMESTAMP] = nextTimestampMs;
+        sample[AVAILABLE_SEND_BANDWIDTH] = availableSendBandwidth;
+        sample[TARGET_ENC_BITRATE] = targetEncBitrate;
+        sample[CPU_USAGE_AVERAGE] = cpuUsageAverage;
+        samples.add(sample);
+        nextTimestampMs += SAMPLE_INTERVAL_MS;
+      }
+      return this;
+    }
+
+    Replay run() {
+      for (; replayed < samples.size(); replayed++) {
+        final long[] sample = samples.get(replayed);
+        snapshot.clear();
+        snapshot.timestampMs = sample[TIMESTAMP];
+        snapshot.availableSendBandwidth = sample[AVAILABLE_SEND_BANDWIDTH];
+        snapshot.targetEncBitrate = sample[TARGET_ENC_BITRATE];
+        currentTimestampMs = snapshot.timestampMs;
+        controller.onStats(snapshot, (int) sample[CPU_USAGE_AVERAGE]);
+      }
+      return this;
+    }
+
+    @Override
+    public void onCaptureFormatChange(int width, int height, int framerate) {
+      changes.add(
+          new Change(currentTimestampMs, controller.getLevel(), width, height, framerate));
+    }
+
+    @Override
+    public void onCallHangUp() {}
+
+    @Override
+    public void onCameraSwitch() {}
+
+    @Override
+    public void onVideoScalingSwitch(ScalingType scalingType) {}
+
+    @Override
+    public boolean onToggleMic() {
+      return true;
+    }
+  }
+}
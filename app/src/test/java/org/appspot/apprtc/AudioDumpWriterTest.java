@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AudioDumpWriterTest {
+  // 10 ms of 48 kHz mono 16 bit audio, like one WebRTC record callback.
+  private static final int CHUNK_BYTES = 960;
+  // 10 ms of 48 kHz stereo 16 bit audio.
+  private static final int STEREO_CHUNK_BYTES = 1920;
+  private static final int CALLBACKS_PER_SECOND = 100;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writesChunksInOrder() throws IOException {
+    final MemorySink sink = new MemorySink();
+    final AudioDumpWriter writer =
+        new AudioDumpWriter(folder.getRoot(), "dump", sink, 0, 4 * CHUNK_BYTES);
+    writer.start();
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 200; i++) {
+      final byte[] chunk = chunk(i);
+      // The ring holds four chunks, so wait for the writer thread instead of overrunning.
+      while (!writer.write(chunk)) {
+        Thread.yield();
+      }
+      expected.write(chunk);
+    }
+    writer.close();
+
+    assertEquals(1, sink.files.size());
+    assertArrayEquals(expected.toByteArray(), sink.contents.get(0).toByteArray());
+    assertEquals(200 * CHUNK_BYTES, writer.getBytesWritten());
+    assertEquals(1, writer.getSegmentCount());
+    assertTrue(sink.closed);
+    assertFalse(writer.write(chunk(0)));
+  }
+
+  @Test
+  public void rollsSegments() throws IOException {
+    final AudioDumpWriter writer = new AudioDumpWriter(
+        folder.getRoot(), "dump", new PcmFileSink(), 3 * CHUNK_BYTES, 16 * CHUNK_BYTES);
+    writer.start();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(writer.write(chunk(i)));
+    }
+    writer.close();
+
+    assertEquals(4, writer.getSegmentCount());
+    final String[] names = folder.getRoot().list();
+    Arrays.sort(names);
+    assertArrayEquals(
+        new String[] {"dump_000.pcm", "dump_001.pcm", "dump_002.pcm", "dump_003.pcm"}, names);
+    for (int segment = 0; segment < 4; segment++) {
+      final byte[] contents =
+          Files.readAllBytes(new File(folder.getRoot(), names[segment]).toPath());
+      final int chunks = segment < 3 ? 3 : 1;
+      assertEquals(chunks * CHUNK_BYTES, contents.length);
+      for (int i = 0; i < chunks; i++) {
+        assertArrayEquals(chunk(3 * segment + i),
+            Arrays.copyOfRange(contents, i * CHUNK_BYTES, (i + 1) * CHUNK_BYTES));
+      }
+    }
+  }
+
+  @Test
+  public void dropsWholeChunksOnOverrun() throws Exception {
+    final MemorySink sink = new MemorySink();
+    sink.blocked = new CountDownLatch(1);
+    // Not a multiple of the chunk size, so chunks wrap around the end of the ring.
+    final AudioDumpWriter writer =
+        new AudioDumpWriter(folder.getRoot(), "dump", sink, 0, 5 * CHUNK_BYTES / 2);
+    writer.start();
+    final List<byte[]> accepted = new ArrayList<>();
+    int overruns = 0;
+    for (int i = 0; i < 50; i++) {
+      final byte[] chunk = chunk(i);
+      if (writer.write(chunk)) {
+        accepted.add(chunk);
+      } else {
+        overruns++;
+      }
+      if (i == 25) {
+        // The writer thread is stuck in the sink until now.
+        sink.blocked.countDown();
+        Thread.sleep(50);
+      }
+    }
+    writer.close();
+
+    assertTrue(overruns > 0);
+    assertEquals(overruns, writer.getOverrunCount());
+    assertEquals(overruns * CHUNK_BYTES, writer.getDroppedBytes());
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (byte[] chunk : accepted) {
+      expected.write(chunk);
+    }
+    // What was written is exactly the accepted chunks, still frame aligned.
+    assertArrayEquals(expected.toByteArray(), sink.contents.get(0).toByteArray());
+    assertEquals(expected.size(), writer.getBytesWritten());
+  }
+
+  @Test
+  public void keepsEveryAcceptedChunkWhenClosedDuringWrites() throws Exception {
+    for (int run = 0; run < 200; run++) {
+      final MemorySink sink = new MemorySink();
+      final AudioDumpWriter writer =
+          new AudioDumpWriter(folder.getRoot(), "dump", sink, 0, 64 * CHUNK_BYTES);
+      writer.start();
+      final long[] acceptedBytes = new long[1];
+      final AtomicBoolean closed = new AtomicBoolean();
+      final CountDownLatch started = new CountDownLatch(1);
+      final byte[] chunk = chunk(run);
+      final Thread producer = new Thread(() -> {
+        started.countDown();
+        while (!closed.get()) {
+          if (writer.write(chunk)) {
+            acceptedBytes[0] += chunk.length;
+          }
+        }
+      });
+      producer.start();
+      started.await();
+      Thread.sleep(run % 3);
+      writer.close();
+      closed.set(true);
+      producer.join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(producer.isAlive());
+      assertEquals(acceptedBytes[0], writer.getBytesWritten());
+      // No file is created if close() won the race against the first write().
+      assertEquals(acceptedBytes[0], sink.contents.isEmpty() ? 0 : sink.contents.get(0).size());
+      folder.delete();
+      folder.create();
+    }
+  }
+
+  /**
+   * Feeds an hour of 48 kHz stereo audio at 100 callbacks per second of simulated time into
+   * 10 minute segments, with the writer batching every 100 ms of simulated time.
+   */
+  @Test
+  public void writesAnHourOfStereoAudio() {
+    final int seconds = 3600;
+    final long segmentBytes = 600L * CALLBACKS_PER_SECOND * STEREO_CHUNK_BYTES;
+    final byte[] second = new byte[CALLBACKS_PER_SECOND * STEREO_CHUNK_BYTES];
+    for (int i = 0; i < second.length; i++) {
+      second[i] = (byte) (i * 7 + i / 4);
+    }
+    final VerifyingSink sink = new VerifyingSink(second);
+    final SimulatedBatchTimer timer = new SimulatedBatchTimer();
+    // Half a second of audio, five batches.
+    final AudioDumpWriter writer = new AudioDumpWriter(
+        folder.getRoot(), "dump", sink, segmentBytes, second.length / 2, timer);
+    writer.start();
+    timer.awaitIdle();
+    final byte[] chunk = new byte[STEREO_CHUNK_BYTES];
+    long rejected = 0;
+    for (int callback = 0; callback < seconds * CALLBACKS_PER_SECOND; callback++) {
+      final int offset = (callback % CALLBACKS_PER_SECOND) * STEREO_CHUNK_BYTES;
+      System.arraycopy(second, offset, chunk, 0, STEREO_CHUNK_BYTES);
+      if (!writer.write(chunk)) {
+        rejected++;
+      }
+      // 100 ms of simulated time have passed.
+      if (callback % 10 == 9) {
+        timer.runBatch();
+      }
+    }
+    writer.close();
+
+    final long totalBytes = (long) seconds * second.length;
+    assertEquals(0, rejected);
+    assertEquals(0, writer.getOverrunCount());
+    assertEquals(0, writer.getDroppedBytes());
+    assertEquals(0, sink.mismatches);
+    assertEquals(totalBytes, writer.getBytesWritten());
+    assertEquals(totalBytes, sink.totalBytes);
+    assertEquals(6, writer.getSegmentCount());
+    assertEquals(6, sink.segmentSizes.size());
+    for (final long size : sink.segmentSizes) {
+      assertEquals(segmentBytes, size);
+    }
+    assertTrue(sink.closed);
+  }
+
+  private static byte[] chunk(int seq) {
+    final byte[] chunk = new byte[CHUNK_BYTES];
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) (seq * 31 + i);
+    }
+    return chunk;
+  }
+
+  /** Runs a batch of the writer thread whenever the test lets simulated time pass. */
+  private static class SimulatedBatchTimer implements AudioDumpWriter.BatchTimer {
+    private final Semaphore batches = new Semaphore(0);
+    private final Semaphore idle = new Semaphore(0);
+
+    @Override
+    public void await(long intervalMs) {
+      idle.release();
+      batches.acquireUninterruptibly();
+    }
+
+    @Override
+    public void wake() {
+      batches.release();
+    }
+
+    // Waits for the writer thread to wait for its next batch.
+    void awaitIdle() {
+      idle.acquireUninterruptibly();
+    }
+
+    // Lets the writer thread write everything pending and waits until it is done.
+    void runBatch() {
+      batches.release();
+      awaitIdle();
+    }
+  }
+
+  /** Checks the written audio against a repeated pattern without keeping it. */
+  private static class VerifyingSink implements AudioFileSink {
+    final List<Long> segmentSizes = new ArrayList<>();
+    private final byte[] pattern;
+    long totalBytes;
+    long mismatches;
+    boolean closed = true;
+
+    VerifyingSink(byte[] pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public String getSuffix() {
+      return ".raw";
+    }
+
+    @Override
+    public void open(File file) {
+      segmentSizes.add(0L);
+      closed = false;
+    }
+
+    @Override
+    public void write(ByteBuffer data) {
+      final int length = data.remaining();
+      for (int i = 0; i < length; i++) {
+        if (data.get() != pattern[(int) ((totalBytes + i) % pattern.length)]) {
+          mismatches++;
+        }
+      }
+      totalBytes += length;
+      final int last = segmentSizes.size() - 1;
+      segmentSizes.set(last, segmentSizes.get(last) + length);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /** Keeps the written files in memory; can hold the writer thread in its first write. */
+  private static class MemorySink implements AudioFileSink {
+    final List<File> files = new ArrayList<>();
+    final List<ByteArrayOutputStream> contents = new ArrayList<>();
+    volatile CountDownLatch blocked;
+    boolean closed = true;
+
+    @Override
+    public String getSuffix() {
+      return ".raw";
+    }
+
+    @Override
+    public void open(File file) {
+      files.add(file);
+      contents.add(new ByteArrayOutputStream());
+      closed = false;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+      final CountDownLatch latch = blocked;
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      final byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      contents.get(contents.size() - 1).write(bytes);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+public class CaptureFormatLadderTest {
+  private static final Logger LOG = Logger.getLogger(CaptureFormatLadderTest.class.getName());
+  private static final int[][] SIZES = {{3840, 2160}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+      {1280, 960}, {1280, 720}, {1024, 768}, {960, 540}, {800, 600}, {720, 480}, {640, 480},
+      {640, 360}, {480, 360}, {352, 288}, {320, 240}, {176, 144}};
+  private static final int LOOKUPS = 200_000;
+
+  /** Formats of a typical phone camera: 40 size and frame rate range combinations. */
+  private static List<CaptureFormat> cameraFormats() {
+    final List<CaptureFormat> formats = new ArrayList<>();
+    for (int[] size : SIZES) {
+      formats.add(new CaptureFormat(size[0], size[1], 15000, 30000));
+      formats.add(new CaptureFormat(size[0], size[1], 7000, 15000));
+      if (size[0] <= 1280 && size[0] >= 640) {
+        formats.add(new CaptureFormat(size[0], size[1], 30000, 60000));
+      }
+    }
+    return formats;
+  }
+
+  @Test
+  public void hasFortyFormats() {
+    assertEquals(40, cameraFormats().size());
+  }
+
+  @Test
+  public void matchesCollectionsMax() {
+    for (List<CaptureFormat> formats :
+        Arrays.asList(cameraFormats(), CaptureQualityController.DEFAULT_FORMATS)) {
+      final CaptureFormatLadder ladder = new CaptureFormatLadder(formats);
+      final Random random = new Random(7);
+      for (int i = 0; i < 100_000; i++) {
+        final double bandwidth = i < 1000
+            ? ladder.getMaxBandwidth() * i / 1000.0
+            : Math.exp(random.nextDouble() * Math.log(2.0 * ladder.getMaxBandwidth()));
+        final CaptureFormat expected = chooseWithCollectionsMax(formats, bandwidth);
+        final CaptureFormat actual = ladder.getFormat(bandwidth);
+        assertEquals(
+            "At " + bandwidth, describe(expected, bandwidth), describe(actual, bandwidth));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyFormats() {
+    new CaptureFormatLadder(new ArrayList<CaptureFormat>());
+  }
+
+  /**
+   * Compares the time and allocations of a ladder lookup with the Collections.max() search the
+   * slider used to run, over the 40 formats.
+   */
+  @Test
+  public void benchmarkAgainstCollectionsMax() {
+    final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    final long threadId = Thread.currentThread().getId();
+
+    final List<CaptureFormat> formats = cameraFormats();
+    final CaptureFormatLadder ladder = new CaptureFormatLadder(formats);
+    final double[] bandwidths = new double[1024];
+    final Random random = new Random(3);
+    for (int i = 0; i < bandwidths.length; i++) {
+      bandwidths[i] = random.nextDouble() * ladder.getMaxBandwidth();
+    }
+    long checksum = 0;
+    // Warm up both paths.
+    for (int i = 0; i < LOOKUPS; i++) {
+      checksum += chooseWithCollectionsMax(formats, bandwidths[i % bandwidths.length]).width;
+      checksum += ladder.getFormat(bandwidths[i % bandwidths.length]).width;
+    }
+
+    long startBytes = allocations.getThreadAllocatedBytes(threadId);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      checksum += chooseWithCollectionsMax(formats, bandwidths[i % bandwidths.length]).width;
+    }
+    final long maxNs = System.nanoTime() - startNs;
+    final long maxBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    startBytes = allocations.getThreadAllocatedBytes(threadId);
+    startNs = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      checksum += ladder.getFormat(bandwidths[i % bandwidths.length]).width;
+    }
+    final long ladderNs = System.nanoTime() - startNs;
+    final long ladderBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    LOG.info(formats.size() + " formats, ns per lookup: Collections.max "
+        + maxNs / LOOKUPS + ", ladder " + ladderNs / LOOKUPS + "; bytes per lookup: "
+        + "Collections.max " + maxBytes / LOOKUPS + ", ladder " + ladderBytes / LOOKUPS
+        + " (checksum " + checksum + ")");
+    assertTrue("ladder " + ladderNs + " ns, Collections.max " + maxNs, ladderNs * 4 < maxNs);
+    assertTrue(ladderBytes + " bytes", ladderBytes < LOOKUPS);
+  }
+
+  private static String describe(CaptureFormat format, double bandwidth) {
+    return format.width + "x" + format.height + "@"
+        + CaptureFormatLadder.calculateFramerate(bandwidth, format);
+  }
+
+  // The search the capture quality slider ran on every progress change before the ladder.
+  private static CaptureFormat chooseWithCollectionsMax(
+      List<CaptureFormat> formats, final double targetBandwidth) {
+    return Collections.max(formats, new Comparator<CaptureFormat>() {
+      @Override
+      public int compare(CaptureFormat first, CaptureFormat second) {
+        int firstFps = CaptureFormatLadder.calculateFramerate(targetBandwidth, first);
+        int secondFps = CaptureFormatLadder.calculateFramerate(targetBandwidth, second);
+
+        if ((firstFps >= 15 && secondFps >= 15) || firstFps == secondFps) {
+          // Compare resolution.
+          return first.width * first.height - second.width * second.height;
+        } else {
+          // Compare fps.
+          return firstFps - secondFps;
+        }
+      }
+    });
+  }
+}
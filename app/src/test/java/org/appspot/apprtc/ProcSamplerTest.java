@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs ProcSampler against a fixture /proc and /sys tree. */
+public class ProcSamplerTest {
+  private static final String STAT =
+      "cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0\n"
+      + "cpu0 1 2 3 4 5 6 7 0 0 0\n"
+      + "intr 123456\n";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File procRoot;
+  private File sysRoot;
+  private ProcSampler sampler;
+
+  @Before
+  public void setUp() throws IOException {
+    procRoot = folder.newFolder("proc");
+    sysRoot = folder.newFolder("sys");
+    sampler = new ProcSampler(procRoot, sysRoot);
+  }
+
+  @After
+  public void tearDown() {
+    sampler.close();
+  }
+
+  @Test
+  public void readsCpusPresent() throws IOException {
+    assertEquals(0, sampler.readCpusPresent());
+    write(sysRoot, "devices/system/cpu/present", "0-7\n");
+    assertEquals(8, sampler.readCpusPresent());
+    write(sysRoot, "devices/system/cpu/present", "0\n");
+    assertEquals(1, sampler.readCpusPresent());
+    write(sysRoot, "devices/system/cpu/present", "");
+    assertEquals(0, sampler.readCpusPresent());
+  }
+
+  @Test
+  public void readsProcStat() throws IOException {
+    write(procRoot, "stat", STAT);
+    final long[] stat = new long[3];
+    assertTrue(sampler.readProcStat(stat));
+    assertArrayEquals(
+        new long[] {5093818 + 271838 + 101374, 3512830 + 447076 + 272086, 165934119}, stat);
+  }
+
+  @Test
+  public void readsShortProcStat() throws IOException {
+    // Old kernels only report user, nice, system and idle.
+    write(procRoot, "stat", "cpu  10 20 30 40\n");
+    final long[] stat = new long[3];
+    assertTrue(sampler.readProcStat(stat));
+    assertArrayEquals(new long[] {30, 30, 40}, stat);
+  }
+
+  @Test
+  public void rejectsMalformedProcStat() throws IOException {
+    final long[] stat = new long[3];
+    assertFalse(sampler.readProcStat(stat));
+    write(procRoot, "stat", "intr 1 2 3 4 5\n");
+    assertFalse(sampler.readProcStat(stat));
+    write(procRoot, "stat", "cpu  1 2 3\ncpu0 4 5 6 7\n");
+    assertFalse(sampler.readProcStat(stat));
+    write(procRoot, "stat", "");
+    assertFalse(sampler.readProcStat(stat));
+    assertArrayEquals(new long[3], stat);
+  }
+
+  @Test
+  public void rereadsOpenFilesAfterTheyChange() throws IOException {
+    final File statFile = write(procRoot, "stat", STAT);
+    final long[] stat = new long[3];
+    assertTrue(sampler.readProcStat(stat));
+    // Rewritten in place: the open channel sees the new, shorter contents.
+    write(procRoot, "stat", "cpu  1 0 2 3 0 0 0\n");
+    assertTrue(sampler.readProcStat(stat));
+    assertArrayEquals(new long[] {1, 2, 3}, stat);
+
+    // A replaced file is only picked up once the old one fails to read.
+    assertTrue(statFile.delete());
+    write(procRoot, "stat", "cpu  7 0 8 9\n");
+    assertTrue(sampler.readProcStat(stat));
+    assertArrayEquals(new long[] {1, 2, 3}, stat);
+    sampler.close();
+    assertTrue(sampler.readProcStat(stat));
+    assertArrayEquals(new long[] {7, 8, 9}, stat);
+  }
+
+  @Test
+  public void readsFrequenciesAndReopensOfflineCores() throws IOException {
+    write(sysRoot, "devices/system/cpu/cpu0/cpufreq/cpuinfo_max_freq", "1804800\n");
+    write(sysRoot, "devices/system/cpu/cpu0/cpufreq/scaling_cur_freq", "300000\n");
+    assertEquals(1804800, sampler.readCpuMaxFreq(0));
+    assertEquals(300000, sampler.readCpuCurFreq(0));
+    write(sysRoot, "devices/system/cpu/cpu0/cpufreq/scaling_cur_freq", "1497600\n");
+    assertEquals(1497600, sampler.readCpuCurFreq(0));
+
+    // cpu3 is offline: its files are missing until it comes back.
+    assertEquals(0, sampler.readCpuMaxFreq(3));
+    assertEquals(0, sampler.readCpuCurFreq(3));
+    write(sysRoot, "devices/system/cpu/cpu3/cpufreq/scaling_cur_freq", "");
+    assertEquals(0, sampler.readCpuCurFreq(3));
+    write(sysRoot, "devices/system/cpu/cpu3/cpufreq/scaling_cur_freq", "2419200\n");
+    assertEquals(2419200, sampler.readCpuCurFreq(3));
+    assertEquals(1497600, sampler.readCpuCurFreq(0));
+  }
+
+  private static File write(File root, String path, String contents) throws IOException {
+    final File file = new File(root, path);
+    file.getParentFile().mkdirs();
+    // Truncates and rewrites the same file, like the kernel regenerating it.
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(contents.getBytes(StandardCharsets.US_ASCII));
+    }
+    return file;
+  }
+}
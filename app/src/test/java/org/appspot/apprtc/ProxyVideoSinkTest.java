@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+public class ProxyVideoSinkTest {
+  private static final int SINKS = 16;
+  private static final int FRAMES_PER_SECOND = 60;
+  private static final long STRESS_DURATION_MS = 2000;
+
+  @Test
+  public void forwardsToTargetAndCountsDrops() {
+    final ProxyVideoSink proxy = new ProxyVideoSink();
+    final CountingBuffer buffer = new CountingBuffer();
+    final VideoFrame frame = new VideoFrame(buffer, 0, 0);
+    final RecordingSink sink = new RecordingSink(0);
+
+    proxy.onFrame(frame);
+    assertEquals(1, proxy.getDroppedFrames());
+    assertNull(proxy.setTarget(sink));
+    proxy.onFrame(frame);
+    proxy.onFrame(frame);
+    assertEquals(2, sink.frames.get());
+    assertSame(sink, proxy.setTarget(null));
+    proxy.onFrame(frame);
+    assertEquals(2, sink.frames.get());
+    assertEquals(2, proxy.getDroppedFrames());
+    // The proxy hands frames on without touching their reference count.
+    assertEquals(0, buffer.refCountChanges.get());
+  }
+
+  @Test
+  public void targetCanSwapItselfOut() {
+    final ProxyVideoSink proxy = new ProxyVideoSink();
+    final RecordingSink next = new RecordingSink(0);
+    proxy.setTarget(new VideoSink() {
+      @Override
+      public void onFrame(VideoFrame frame) {
+        assertSame(this, proxy.setTarget(next));
+      }
+    });
+    final VideoFrame frame = new VideoFrame(new CountingBuffer(), 0, 0);
+    proxy.onFrame(frame);
+    proxy.onFrame(frame);
+    assertEquals(1, next.frames.get());
+  }
+
+  @Test(timeout = 5000)
+  public void targetCanSwapItselfOutWhileAnotherThreadWaits() throws InterruptedException {
+    final ProxyVideoSink proxy = new ProxyVideoSink();
+    final RecordingSink next = new RecordingSink(0);
+    final CountDownLatch delivering = new CountDownLatch(1);
+    final VideoSink swapping = new VideoSink() {
+      @Override
+      public void onFrame(VideoFrame frame) {
+        delivering.countDown();
+        // Long enough for the main thread to be waiting in setTarget().
+        sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+        proxy.setTarget(next);
+      }
+    };
+    proxy.setTarget(swapping);
+    final Thread producer =
+        new Thread(() -> proxy.onFrame(new VideoFrame(new CountingBuffer(), 0, 0)));
+    producer.start();
+    delivering.await();
+    // Waits for the delivery, which swaps in |next| meanwhile, without a deadlock.
+    assertSame(swapping, proxy.setTarget(null));
+    producer.join();
+    assertSame(next, proxy.setTarget(null));
+  }
+
+  /**
+   * Delivers 60 fps to each of 16 proxies while another thread keeps swapping their targets,
+   * and checks that no frame reaches a target after setTarget() replaced it.
+   */
+  @Test
+  public void noFrameReachesReplacedTarget() throws InterruptedException {
+    RecordingSink.totalFrames.set(0);
+    RecordingSink.lateFrames.set(0);
+    final List<ProxyVideoSink> proxies = new ArrayList<>();
+    for (int i = 0; i < SINKS; i++) {
+      proxies.add(new ProxyVideoSink());
+    }
+    final AtomicLong produced = new AtomicLong();
+    final long endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STRESS_DURATION_MS);
+
+    final List<Thread> producers = new ArrayList<>();
+    for (final ProxyVideoSink proxy : proxies) {
+      final Thread producer = new Thread(() -> {
+        final VideoFrame frame = new VideoFrame(new CountingBuffer(), 0, 0);
+        final long frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / FRAMES_PER_SECOND;
+        long nextFrameNs = System.nanoTime();
+        while (nextFrameNs < endNs) {
+          proxy.onFrame(frame);
+          produced.incrementAndGet();
+          nextFrameNs += frameIntervalNs;
+          sleepUntil(nextFrameNs);
+        }
+      });
+      producer.start();
+      producers.add(producer);
+    }
+
+    final Random random = new Random(1);
+    int swaps = 0;
+    while (System.nanoTime() < endNs) {
+      final ProxyVideoSink proxy = proxies.get(random.nextInt(SINKS));
+      final RecordingSink next =
+          random.nextInt(4) == 0 ? null : new RecordingSink(random.nextInt(3));
+      final RecordingSink previous = (RecordingSink) proxy.setTarget(next);
+      if (previous != null) {
+        previous.retire();
+      }
+      swaps++;
+      sleepUntil(System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(random.nextInt(2000)));
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    long dropped = 0;
+    for (ProxyVideoSink proxy : proxies) {
+      final RecordingSink last = (RecordingSink) proxy.setTarget(null);
+      if (last != null) {
+        last.retire();
+      }
+      dropped += proxy.getDroppedFrames();
+    }
+
+    assertEquals(0, RecordingSink.lateFrames.get());
+    assertEquals(produced.get(), RecordingSink.totalFrames.get() + dropped);
+    assertTrue(swaps > 100);
+    assertTrue(produced.get() > SINKS * FRAMES_PER_SECOND);
+  }
+
+  private static void sleepUntil(long deadlineNs) {
+    final long remainingNs = deadlineNs - System.nanoTime();
+    if (remainingNs <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(remainingNs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Counts frames and flags any that arrive once the proxy has let go of it. */
+  private static class RecordingSink implements VideoSink {
+    static final AtomicLong totalFrames = new AtomicLong();
+    static final AtomicInteger lateFrames = new AtomicInteger();
+
+    final AtomicInteger frames = new AtomicInteger();
+    private final int renderMs;
+    private volatile boolean retired;
+
+    RecordingSink(int renderMs) {
+      this.renderMs = renderMs;
+    }
+
+    void retire() {
+      retired = true;
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+      if (retired) {
+        lateFrames.incrementAndGet();
+      }
+      frames.incrementAndGet();
+      totalFrames.incrementAndGet();
+      // Renders slowly, so that setTarget() often runs during a delivery.
+      sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(renderMs));
+      if (retired) {
+        lateFrames.incrementAndGet();
+      }
+    }
+  }
+
+  private static class CountingBuffer implements VideoFrame.Buffer {
+    final AtomicInteger refCountChanges = new AtomicInteger();
+
+    @Override
+    public int getWidth() {
+      return 640;
+    }
+
+    @Override
+    public int getHeight() {
+      return 480;
+    }
+
+    @Override
+    public VideoFrame.I420Buffer toI420() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public VideoFrame.Buffer cropAndScale(
+        int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void retain() {
+      refCountChanges.incrementAndGet();
+    }
+
+    @Override
+    public void release() {
+      refCountChanges.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Session descriptions as produced by PeerConnection, plus malformed variants. */
+final class SdpCorpus {
+  private SdpCorpus() {}
+
+  /** An Android offer with audio, video and a data channel. */
+  static final String OFFER = join(
+      "v=0",
+      "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+      "s=-",
+      "t=0 0",
+      "a=group:BUNDLE 0 1 2",
+      "a=msid-semantic: WMS ARDAMS",
+      "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126",
+      "c=IN IP4 0.0.0.0",
+      "a=rtcp:9 IN IP4 0.0.0.0",
+      "a=ice-ufrag:7sFv",
+      "a=ice-pwd:dOTZKZNVlO9RSGsEGM63JXT2",
+      "a=ice-options:trickle renomination",
+      "a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:"
+          + "C2:43:F0:A1:58:D0:A1:2C:19:08",
+      "a=setup:actpass",
+      "a=mid:0",
+      "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+      "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+      "a=sendrecv",
+      "a=rtcp-mux",
+      "a=rtpmap:111 opus/48000/2",
+      "a=rtcp-fb:111 transport-cc",
+      "a=fmtp:111 minptime=10;useinbandfec=1",
+      "a=rtpmap:103 ISAC/16000",
+      "a=rtpmap:104 ISAC/32000",
+      "a=rtpmap:9 G722/8000",
+      "a=rtpmap:102 ILBC/8000",
+      "a=rtpmap:0 PCMU/8000",
+      "a=rtpmap:8 PCMA/8000",
+      "a=rtpmap:106 CN/32000",
+      "a=rtpmap:105 CN/16000",
+      "a=rtpmap:13 CN/8000",
+      "a=rtpmap:110 telephone-event/48000",
+      "a=rtpmap:112 telephone-event/32000",
+      "a=rtpmap:113 telephone-event/16000",
+      "a=rtpmap:126 telephone-event/8000",
+      "a=ssrc:3206419290 cname:XwI6QfWbHhBIuQ3w",
+      "a=ssrc:3206419290 msid:ARDAMS ARDAMSa0",
+      "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125",
+      "c=IN IP4 0.0.0.0",
+      "a=rtcp:9 IN IP4 0.0.0.0",
+      "a=ice-ufrag:7sFv",
+      "a=ice-pwd:dOTZKZNVlO9RSGsEGM63JXT2",
+      "a=mid:1",
+      "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset",
+      "a=sendrecv",
+      "a=rtcp-mux",
+      "a=rtcp-rsize",
+      "a=rtpmap:96 VP8/90000",
+      "a=rtcp-fb:96 goog-remb",
+      "a=rtcp-fb:96 transport-cc",
+      "a=rtcp-fb:96 ccm fir",
+      "a=rtcp-fb:96 nack",
+      "a=rtcp-fb:96 nack pli",
+      "a=rtpmap:97 rtx/90000",
+      "a=fmtp:97 apt=96",
+      "a=rtpmap:98 VP9/90000",
+      "a=rtcp-fb:98 goog-remb",
+      "a=rtcp-fb:98 nack",
+      "a=fmtp:98 profile-id=0",
+      "a=rtpmap:99 rtx/90000",
+      "a=fmtp:99 apt=98",
+      "a=rtpmap:100 H264/90000",
+      "a=rtcp-fb:100 goog-remb",
+      "a=rtcp-fb:100 nack pli",
+      "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+      "a=rtpmap:101 rtx/90000",
+      "a=fmtp:101 apt=100",
+      "a=rtpmap:127 red/90000",
+      "a=rtpmap:124 rtx/90000",
+      "a=fmtp:124 apt=127",
+      "a=rtpmap:125 ulpfec/90000",
+      "a=ssrc-group:FID 1729426478 2380429452",
+      "a=ssrc:1729426478 cname:XwI6QfWbHhBIuQ3w",
+      "a=ssrc:2380429452 cname:XwI6QfWbHhBIuQ3w",
+      "m=application 9 UDP/DTLS/SCTP webrtc-datachannel",
+      "c=IN IP4 0.0.0.0",
+      "a=mid:2",
+      "a=sctp-port:5000");
+
+  /** An answer that only accepted VP9, H264 and opus, with an H264 fmtp starting with a number. */
+  static final String ANSWER = join(
+      "v=0",
+      "o=- 1234 2 IN IP4 127.0.0.1",
+      "s=-",
+      "t=0 0",
+      "a=group:BUNDLE 0 1",
+      "m=audio 9 UDP/TLS/RTP/SAVPF 111 0",
+      "c=IN IP4 0.0.0.0",
+      "a=mid:0",
+      "a=rtpmap:111 opus/48000/2",
+      "a=rtpmap:0 PCMU/8000",
+      "m=video 9 UDP/TLS/RTP/SAVPF 98 100 102",
+      "c=IN IP4 0.0.0.0",
+      "a=mid:1",
+      "a=rtpmap:98 VP9/90000",
+      "a=rtpmap:100 H264/90000",
+      "a=fmtp:100 profile_level=1;packetization-mode=1",
+      "a=rtpmap:102 H264/90000",
+      "a=fmtp:102 packetization-mode=0");
+
+  /** Video section first, two video sections and an audio codec without a=fmtp. */
+  static final String TWO_VIDEO_SECTIONS = join(
+      "v=0",
+      "o=- 99 2 IN IP4 127.0.0.1",
+      "s=-",
+      "t=0 0",
+      "m=video 9 UDP/TLS/RTP/SAVPF 96 98",
+      "a=rtpmap:96 VP8/90000",
+      "a=rtpmap:98 VP9/90000",
+      "m=audio 9 UDP/TLS/RTP/SAVPF 103 0",
+      "a=rtpmap:103 ISAC/16000",
+      "a=rtpmap:0 PCMU/8000",
+      "m=video 9 UDP/TLS/RTP/SAVPF 96 100",
+      "a=rtpmap:96 VP8/90000",
+      "a=rtpmap:100 H264/90000");
+
+  /** Sections without payload types, a short m= line and malformed attribute lines. */
+  static final String MALFORMED = join(
+      "v=0",
+      "o=- 1 2 IN IP4 127.0.0.1",
+      "s=-",
+      "a=rtpmap:96 VP8/90000",
+      "m=audio 9",
+      "a=rtpmap:111 opus/48000/2",
+      "a=rtpmap:x opus/48000",
+      "a=rtpmap:200 opus/48000",
+      "a=rtpmap:112 opus/",
+      "a=rtpmap:113 opus/48000/",
+      "a=fmtp:111",
+      "a=fmtp:111 =10",
+      "m=video 9 UDP/TLS/RTP/SAVPF 96",
+      "a=rtpmap:96 VP8",
+      "a=rtpmap:97 VP8/90000/a",
+      "a=rtpmap:96 VP8/90000");
+
+  /** Every description the tests run through, including unterminated and padded variants. */
+  static List<String> all() {
+    return Arrays.asList(OFFER, ANSWER, TWO_VIDEO_SECTIONS, MALFORMED,
+        OFFER.substring(0, OFFER.length() - 2), ANSWER + "\r\n\r\n", "", "v=0",
+        OFFER.replace("\r\n", "\n"));
+  }
+
+  private static String join(String... lines) {
+    final StringBuilder builder = new StringBuilder();
+    for (String line : lines) {
+      builder.append(line).append("\r\n");
+    }
+    return builder.toString();
+  }
+}
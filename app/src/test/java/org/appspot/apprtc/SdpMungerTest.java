@@ -0,0 +1,313 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Checks that SdpMunger produces exactly what the regex based munging it replaced in
+ * PeerConnectionClient produced, for single edits and for the edit chains used there.
+ */
+public class SdpMungerTest {
+  private static final Logger LOG = Logger.getLogger(SdpMungerTest.class.getName());
+  private static final String[] VIDEO_CODECS = {"VP8", "VP9", "H264", "AV1", "red"};
+  private static final String[] AUDIO_CODECS = {"ISAC", "opus", "PCMU", "G722", "AMR"};
+  private static final int BENCHMARK_ROUNDS = 5_000;
+
+  @Test
+  public void preferCodecMatchesLegacy() {
+    for (String sdp : SdpCorpus.all()) {
+      for (String codec : VIDEO_CODECS) {
+        checkPreferCodec(sdp, codec, false);
+      }
+      for (String codec : AUDIO_CODECS) {
+        checkPreferCodec(sdp, codec, true);
+      }
+    }
+  }
+
+  @Test
+  public void setStartBitrateMatchesLegacy() {
+    for (String sdp : SdpCorpus.all()) {
+      for (String codec : VIDEO_CODECS) {
+        checkSetStartBitrate(sdp, codec, true, 1700);
+      }
+      for (String codec : AUDIO_CODECS) {
+        checkSetStartBitrate(sdp, codec, false, 32);
+      }
+    }
+  }
+
+  @Test
+  public void editChainMatchesLegacy() {
+    for (String sdp : SdpCorpus.all()) {
+      for (String videoCodec : VIDEO_CODECS) {
+        final SdpMunger munger = new SdpMunger(sdp);
+        munger.preferCodec("ISAC", true);
+        munger.preferCodec(videoCodec, false);
+        munger.setStartBitrate("opus", false, 32);
+        munger.setStartBitrate(videoCodec, true, 1000);
+        // The same edit twice appends the parameter twice, as before.
+        munger.setStartBitrate("opus", false, 64);
+
+        String expected = Legacy.preferCodec(sdp, "ISAC", true);
+        expected = Legacy.preferCodec(expected, videoCodec, false);
+        expected = Legacy.setStartBitrate("opus", false, expected, 32);
+        expected = Legacy.setStartBitrate(videoCodec, true, expected, 1000);
+        expected = Legacy.setStartBitrate("opus", false, expected, 64);
+        assertEquals(videoCodec + " in\n" + sdp, expected, munger.toString());
+      }
+    }
+  }
+
+  @Test
+  public void untouchedSdpIsReturnedAsIs() {
+    for (String sdp : SdpCorpus.all()) {
+      final SdpMunger munger = new SdpMunger(sdp);
+      assertFalse(munger.preferCodec("AV1", false));
+      assertFalse(munger.setStartBitrate("AMR", false, 32));
+      assertTrue(sdp == munger.toString());
+    }
+  }
+
+  @Test
+  public void insertsFmtpAfterRtpmap() {
+    final SdpMunger munger = new SdpMunger(SdpCorpus.OFFER);
+    assertTrue(munger.setStartBitrate("VP8", true, 1700));
+    assertTrue(munger.toString().contains(
+        "a=rtpmap:96 VP8/90000\r\na=fmtp:96 x-google-start-bitrate=1700\r\n"));
+  }
+
+  @Test
+  public void extendsNumericFmtp() {
+    final SdpMunger munger = new SdpMunger(SdpCorpus.OFFER);
+    assertTrue(munger.setStartBitrate("opus", false, 32));
+    assertTrue(munger.toString().contains(
+        "a=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=32000\r\n"));
+  }
+
+  /**
+   * Compares the time and allocations of the edit chain PeerConnectionClient runs on every
+   * local and remote description with the regex based munging it replaced, over the corpus.
+   */
+  @Test
+  public void benchmarkAgainstLegacy() {
+    final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    final long threadId = Thread.currentThread().getId();
+
+    final List<String> corpus = SdpCorpus.all();
+    long checksum = 0;
+    // Warm up both paths.
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += mungeWithLegacy(corpus.get(i % corpus.size())).length();
+      checksum += mungeWithSdpMunger(corpus.get(i % corpus.size())).length();
+    }
+
+    long startBytes = allocations.getThreadAllocatedBytes(threadId);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += mungeWithLegacy(corpus.get(i % corpus.size())).length();
+    }
+    final long legacyNs = System.nanoTime() - startNs;
+    final long legacyBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    startBytes = allocations.getThreadAllocatedBytes(threadId);
+    startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += mungeWithSdpMunger(corpus.get(i % corpus.size())).length();
+    }
+    final long mungerNs = System.nanoTime() - startNs;
+    final long mungerBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    LOG.info(corpus.size() + " descriptions, ns per edit chain: legacy "
+        + legacyNs / BENCHMARK_ROUNDS + ", SdpMunger " + mungerNs / BENCHMARK_ROUNDS
+        + "; bytes per edit chain: legacy " + legacyBytes / BENCHMARK_ROUNDS + ", SdpMunger "
+        + mungerBytes / BENCHMARK_ROUNDS + " (checksum " + checksum + ")");
+    assertTrue("SdpMunger " + mungerBytes + " bytes, legacy " + legacyBytes,
+        mungerBytes * 2 < legacyBytes);
+    assertTrue("SdpMunger " + mungerNs + " ns, legacy " + legacyNs, mungerNs < legacyNs);
+  }
+
+  // The edits PeerConnectionClient makes with ISAC, VP8 and a start bitrate for opus.
+  private static String mungeWithLegacy(String sdp) {
+    String munged = Legacy.preferCodec(sdp, "ISAC", true);
+    munged = Legacy.preferCodec(munged, "VP8", false);
+    return Legacy.setStartBitrate("opus", false, munged, 32);
+  }
+
+  private static String mungeWithSdpMunger(String sdp) {
+    final SdpMunger munger = new SdpMunger(sdp);
+    munger.preferCodec("ISAC", true);
+    munger.preferCodec("VP8", false);
+    munger.setStartBitrate("opus", false, 32);
+    return munger.toString();
+  }
+
+  private static void checkPreferCodec(String sdp, String codec, boolean isAudio) {
+    final SdpMunger munger = new SdpMunger(sdp);
+    final boolean changed = munger.preferCodec(codec, isAudio);
+    final String expected = Legacy.preferCodec(sdp, codec, isAudio);
+    assertEquals(codec + " in\n" + sdp, expected, munger.toString());
+    if (!changed) {
+      assertEquals(sdp, munger.toString());
+    }
+  }
+
+  private static void checkSetStartBitrate(
+      String sdp, String codec, boolean isVideoCodec, int bitrateKbps) {
+    final SdpMunger munger = new SdpMunger(sdp);
+    final boolean changed = munger.setStartBitrate(codec, isVideoCodec, bitrateKbps);
+    final String expected = Legacy.setStartBitrate(codec, isVideoCodec, sdp, bitrateKbps);
+    assertEquals(codec + " in\n" + sdp, expected, munger.toString());
+    if (!changed) {
+      assertEquals(sdp, munger.toString());
+    }
+  }
+
+  /** The munging code PeerConnectionClient used before SdpMunger, without logging. */
+  @SuppressWarnings("StringSplitter")
+  static final class Legacy {
+    private Legacy() {}
+
+    static String setStartBitrate(
+        String codec, boolean isVideoCodec, String sdp, int bitrateKbps) {
+      String[] lines = sdp.split("\r\n");
+      int rtpmapLineIndex = -1;
+      boolean sdpFormatUpdated = false;
+      String codecRtpMap = null;
+      String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+      Pattern codecPattern = Pattern.compile(regex);
+      for (int i = 0; i < lines.length; i++) {
+        Matcher codecMatcher = codecPattern.matcher(lines[i]);
+        if (codecMatcher.matches()) {
+          codecRtpMap = codecMatcher.group(1);
+          rtpmapLineIndex = i;
+          break;
+        }
+      }
+      if (codecRtpMap == null) {
+        return sdp;
+      }
+      regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
+      codecPattern = Pattern.compile(regex);
+      for (int i = 0; i < lines.length; i++) {
+        Matcher codecMatcher = codecPattern.matcher(lines[i]);
+        if (codecMatcher.matches()) {
+          if (isVideoCodec) {
+            lines[i] += "; x-google-start-bitrate=" + bitrateKbps;
+          } else {
+            lines[i] += "; maxaveragebitrate=" + (bitrateKbps * 1000);
+          }
+          sdpFormatUpdated = true;
+          break;
+        }
+      }
+      StringBuilder newSdpDescription = new StringBuilder();
+      for (int i = 0; i < lines.length; i++) {
+        newSdpDescription.append(lines[i]).append("\r\n");
+        if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+          String bitrateSet;
+          if (isVideoCodec) {
+            bitrateSet = "a=fmtp:" + codecRtpMap + " x-google-start-bitrate=" + bitrateKbps;
+          } else {
+            bitrateSet = "a=fmtp:" + codecRtpMap + " maxaveragebitrate=" + (bitrateKbps * 1000);
+          }
+          newSdpDescription.append(bitrateSet).append("\r\n");
+        }
+      }
+      return newSdpDescription.toString();
+    }
+
+    static String preferCodec(String sdp, String codec, boolean isAudio) {
+      final String[] lines = sdp.split("\r\n");
+      final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
+      if (mLineIndex == -1) {
+        return sdp;
+      }
+      final List<String> codecPayloadTypes = new ArrayList<>();
+      final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+      for (String line : lines) {
+        Matcher codecMatcher = codecPattern.matcher(line);
+        if (codecMatcher.matches()) {
+          codecPayloadTypes.add(codecMatcher.group(1));
+        }
+      }
+      if (codecPayloadTypes.isEmpty()) {
+        return sdp;
+      }
+      final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
+      if (newMLine == null) {
+        return sdp;
+      }
+      lines[mLineIndex] = newMLine;
+      return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
+    }
+
+    private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
+      final String mediaDescription = isAudio ? "m=audio " : "m=video ";
+      for (int i = 0; i < sdpLines.length; ++i) {
+        if (sdpLines[i].startsWith(mediaDescription)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String joinString(
+        Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
+      Iterator<? extends CharSequence> iter = s.iterator();
+      if (!iter.hasNext()) {
+        return "";
+      }
+      StringBuilder buffer = new StringBuilder(iter.next());
+      while (iter.hasNext()) {
+        buffer.append(delimiter).append(iter.next());
+      }
+      if (delimiterAtEnd) {
+        buffer.append(delimiter);
+      }
+      return buffer.toString();
+    }
+
+    private static String movePayloadTypesToFront(
+        List<String> preferredPayloadTypes, String mLine) {
+      final List<String> origLineParts = Arrays.asList(mLine.split(" "));
+      if (origLineParts.size() <= 3) {
+        return null;
+      }
+      final List<String> header = origLineParts.subList(0, 3);
+      final List<String> unpreferredPayloadTypes =
+          new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
+      unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
+      final List<String> newLineParts = new ArrayList<>();
+      newLineParts.addAll(header);
+      newLineParts.addAll(preferredPayloadTypes);
+      newLineParts.addAll(unpreferredPayloadTypes);
+      return joinString(newLineParts, " ", false /* delimiterAtEnd */);
+    }
+  }
+}
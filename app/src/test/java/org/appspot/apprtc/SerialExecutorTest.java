@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/** Runs SerialExecutor on real backing threads. */
+public class SerialExecutorTest {
+  private static final long TIMEOUT_MS = 5000;
+
+  private final ExecutorService backingExecutor = Executors.newFixedThreadPool(4);
+  private final SerialExecutor executor = new SerialExecutor("test", backingExecutor, 1000);
+
+  @After
+  public void tearDown() throws InterruptedException {
+    backingExecutor.shutdownNow();
+    assertTrue(backingExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void runsTasksOneAtATimeInSubmissionOrder() throws InterruptedException {
+    final int producerCount = 8;
+    final int tasksPerProducer = 500;
+    final Object submitLock = new Object();
+    final List<Integer> submitted = new ArrayList<>();
+    final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    final List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < producerCount; p++) {
+      final int producer = p;
+      producers.add(new Thread(() -> {
+        for (int i = 0; i < tasksPerProducer; i++) {
+          final int id = producer * tasksPerProducer + i;
+          // Records the order in which the executor saw the tasks.
+          synchronized (submitLock) {
+            submitted.add(id);
+            executor.execute(() -> {
+              if (running.incrementAndGet() != 1) {
+                overlapped.set(true);
+              }
+              ran.add(id);
+              running.decrementAndGet();
+            });
+          }
+        }
+      }));
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    for (Thread producer : producers) {
+      producer.join(TIMEOUT_MS);
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(TIMEOUT_MS));
+
+    assertFalse(overlapped.get());
+    assertEquals(producerCount * tasksPerProducer, ran.size());
+    synchronized (submitLock) {
+      assertEquals(submitted, ran);
+    }
+    assertEquals(0, executor.getQueueDepth());
+    assertTrue(executor.getMaxQueueDepth() >= 1);
+  }
+
+  @Test
+  public void throwingTaskDoesNotStallTheQueue() throws InterruptedException {
+    final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch release = new CountDownLatch(1);
+    // Keeps the tasks below queued behind each other.
+    executor.execute(() -> await(release));
+    for (int i = 0; i < 5; i++) {
+      final int id = i;
+      executor.execute(() -> {
+        ran.add(id);
+        if (id % 2 == 0) {
+          throw new IllegalStateException("Task " + id);
+        }
+      });
+    }
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(TIMEOUT_MS));
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), ran);
+    assertTrue(executor.isTerminated());
+  }
+
+  @Test
+  public void dropsTasksSubmittedAfterShutdown() throws InterruptedException {
+    final AtomicInteger ran = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute(() -> {
+      started.countDown();
+      await(release);
+    });
+    executor.execute(ran::incrementAndGet);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    executor.shutdown();
+    // Running and queued tasks keep the executor alive.
+    assertFalse(executor.isTerminated());
+    executor.execute(ran::incrementAndGet);
+    executor.execute(ran::incrementAndGet);
+    assertEquals(1, executor.getQueueDepth());
+
+    release.countDown();
+    assertTrue(executor.awaitTermination(TIMEOUT_MS));
+    assertEquals(1, ran.get());
+    executor.execute(ran::incrementAndGet);
+    Thread.sleep(100);
+    assertEquals(1, ran.get());
+    assertTrue(executor.toString(), executor.toString().endsWith("dropped: 3"));
+  }
+
+  @Test
+  public void awaitTerminationTimesOutWithoutShutdown() throws InterruptedException {
+    executor.execute(() -> {});
+    assertFalse(executor.awaitTermination(100));
+    assertFalse(executor.isTerminated());
+  }
+
+  /**
+   * Submits the close task like PeerConnectionClient.close(), immediately followed by
+   * shutdown(), and checks that it always runs, however far the backing thread has got.
+   */
+  @Test
+  public void closeTaskQueuedBeforeShutdownRuns() throws InterruptedException {
+    for (int i = 0; i < 1000; i++) {
+      final SerialExecutor client = new SerialExecutor("client" + i, backingExecutor, 1000);
+      final AtomicInteger work = new AtomicInteger();
+      final AtomicBoolean closed = new AtomicBoolean();
+      final AtomicBoolean ranAfterClose = new AtomicBoolean();
+      // Zero to two tasks already queued or running when the client is closed.
+      for (int j = 0; j < i % 3; j++) {
+        client.execute(work::incrementAndGet);
+      }
+      client.execute(() -> closed.set(true));
+      client.shutdown();
+      client.execute(() -> ranAfterClose.set(true));
+
+      assertTrue(client.toString(), client.awaitTermination(TIMEOUT_MS));
+      assertTrue(closed.get());
+      assertFalse(ranAfterClose.get());
+      assertEquals(i % 3, work.get());
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
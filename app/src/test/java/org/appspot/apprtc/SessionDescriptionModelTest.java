@@ -0,0 +1,307 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.appspot.apprtc.SessionDescriptionModel.MediaSection;
+import org.appspot.apprtc.SessionDescriptionModel.PayloadType;
+import org.junit.Test;
+
+public class SessionDescriptionModelTest {
+  private static final Logger LOG = Logger.getLogger(SessionDescriptionModelTest.class.getName());
+  private static final int BENCHMARK_ROUNDS = 20_000;
+
+  @Test
+  public void unmodifiedModelReturnsInput() {
+    for (String sdp : SdpCorpus.all()) {
+      assertSame(sdp, SessionDescriptionModel.parse(sdp).toString());
+    }
+  }
+
+  @Test
+  public void linesMatchSplit() {
+    for (String sdp : SdpCorpus.all()) {
+      final SessionDescriptionModel model = SessionDescriptionModel.parse(sdp);
+      final String[] lines = sdp.split("\r\n");
+      assertEquals(lines.length, model.getLineCount());
+      for (int i = 0; i < lines.length; i++) {
+        assertEquals(lines[i], model.getLine(i));
+        assertTrue(model.lineStartsWith(i, lines[i]));
+      }
+    }
+  }
+
+  @Test
+  public void rewritingALineWithItselfNormalizesLineBreaks() {
+    for (String sdp : SdpCorpus.all()) {
+      final SessionDescriptionModel model = SessionDescriptionModel.parse(sdp);
+      model.setLine(0, model.getLine(0));
+      final StringBuilder expected = new StringBuilder();
+      for (String line : sdp.split("\r\n")) {
+        expected.append(line).append("\r\n");
+      }
+      assertEquals(expected.toString(), model.toString());
+    }
+  }
+
+  @Test
+  public void indexesSections() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.OFFER);
+    final List<MediaSection> sections = model.getSections();
+    assertEquals(4, sections.size());
+    assertTrue(sections.get(0).isSessionSection());
+    assertEquals(-1, sections.get(0).getMediaLineIndex());
+    assertEquals("audio", sections.get(1).mediaType);
+    assertEquals("video", sections.get(2).mediaType);
+    assertEquals("application", sections.get(3).mediaType);
+    assertEquals(model.getLineCount(), sections.get(3).endLineIndex);
+    for (int i = 1; i < sections.size(); i++) {
+      assertEquals(sections.get(i - 1).endLineIndex, sections.get(i).startLineIndex);
+      assertTrue(model.lineStartsWith(sections.get(i).getMediaLineIndex(), "m="));
+    }
+    assertSame(sections.get(2), model.getFirstMediaSection("video"));
+    assertNull(model.getFirstMediaSection("text"));
+  }
+
+  @Test
+  public void indexesPayloadTypes() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.OFFER);
+    final MediaSection video = model.getFirstMediaSection("video");
+    final PayloadType vp8 = video.getPayloadType(96);
+    assertEquals("VP8", vp8.encodingName);
+    assertEquals("a=rtpmap:96 VP8/90000", model.getLine(vp8.rtpmapLineIndex));
+    assertEquals(5, vp8.rtcpFbLineIndices.size());
+    assertTrue(vp8.fmtpLineIndices.isEmpty());
+
+    final PayloadType h264 = video.getPayloadTypes("H264").get(0);
+    assertEquals(100, h264.payloadType);
+    assertEquals(1, h264.fmtpLineIndices.size());
+    assertTrue(model.lineStartsWith(h264.fmtpLineIndices.get(0), "a=fmtp:100 level"));
+
+    assertEquals(4, video.getPayloadTypes("rtx").size());
+    assertTrue(video.getPayloadTypes("opus").isEmpty());
+    assertNull(video.getPayloadType(111));
+    assertNull(video.getPayloadType(-1));
+    assertNull(video.getPayloadType(128));
+
+    final MediaSection audio = model.getFirstMediaSection("audio");
+    final List<PayloadType> isac = audio.getPayloadTypes("ISAC");
+    assertEquals(2, isac.size());
+    assertEquals(103, isac.get(0).payloadType);
+    assertEquals(104, isac.get(1).payloadType);
+  }
+
+  @Test
+  public void skipsMalformedAttributes() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.MALFORMED);
+    final MediaSection session = model.getSections().get(0);
+    assertTrue(session.isSessionSection());
+    assertEquals("VP8", session.getPayloadType(96).encodingName);
+
+    final MediaSection audio = model.getFirstMediaSection("audio");
+    final List<PayloadType> opus = audio.getPayloadTypes("opus");
+    assertEquals(1, opus.size());
+    assertEquals(111, opus.get(0).payloadType);
+    // "a=fmtp:111" has no parameters, "a=fmtp:111 =10" does.
+    assertEquals(1, opus.get(0).fmtpLineIndices.size());
+    assertNull(audio.getPayloadType(112).encodingName);
+    assertNull(audio.getPayloadType(113).encodingName);
+
+    // The first well-formed rtpmap for a payload type wins.
+    final MediaSection video = model.getFirstMediaSection("video");
+    final PayloadType vp8 = video.getPayloadType(96);
+    assertEquals(model.getLineCount() - 1, vp8.rtpmapLineIndex);
+    assertNull(video.getPayloadType(97).encodingName);
+  }
+
+  @Test
+  public void setLineReindexesPayloadTypes() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.ANSWER);
+    final MediaSection video = model.getFirstMediaSection("video");
+    final int rtpmap = video.getPayloadType(98).rtpmapLineIndex;
+
+    model.setLine(rtpmap, "a=rtpmap:98 AV1/90000");
+    assertTrue(video.getPayloadTypes("VP9").isEmpty());
+    assertSame(video.getPayloadType(98), video.getPayloadTypes("AV1").get(0));
+
+    final int fmtp = video.getPayloadType(100).fmtpLineIndices.get(0);
+    model.setLine(fmtp, "a=fmtp:98 profile=0");
+    assertTrue(video.getPayloadType(100).fmtpLineIndices.isEmpty());
+    assertEquals(fmtp, (int) video.getPayloadType(98).fmtpLineIndices.get(0));
+
+    model.setLine(video.getMediaLineIndex(), "m=video 9 UDP/TLS/RTP/SAVPF 100 98 102");
+    assertEquals("video", video.mediaType);
+    assertTrue(model.toString().contains(
+        "m=video 9 UDP/TLS/RTP/SAVPF 100 98 102\r\nc=IN IP4 0.0.0.0\r\n"));
+  }
+
+  @Test
+  public void insertLineShiftsIndices() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.OFFER);
+    final MediaSection audio = model.getFirstMediaSection("audio");
+    final MediaSection video = model.getFirstMediaSection("video");
+    final int audioEnd = audio.endLineIndex;
+    final int vp8Rtpmap = video.getPayloadType(96).rtpmapLineIndex;
+    final int opusRtpmap = audio.getPayloadType(111).rtpmapLineIndex;
+    final int lineCount = model.getLineCount();
+
+    model.insertLine(opusRtpmap + 1, "a=fmtp:111 stereo=1");
+    assertEquals(lineCount + 1, model.getLineCount());
+    assertEquals(audioEnd + 1, audio.endLineIndex);
+    assertEquals(audioEnd + 1, video.startLineIndex);
+    assertEquals(vp8Rtpmap + 1, video.getPayloadType(96).rtpmapLineIndex);
+    assertEquals(opusRtpmap, audio.getPayloadType(111).rtpmapLineIndex);
+    final List<Integer> fmtp = audio.getPayloadType(111).fmtpLineIndices;
+    assertEquals(2, fmtp.size());
+    assertEquals(opusRtpmap + 1, (int) fmtp.get(0));
+    assertEquals("a=fmtp:111 stereo=1", model.getLine(fmtp.get(0)));
+
+    // A line inserted at a section boundary belongs to the section before it.
+    model.insertLine(video.startLineIndex, "a=rtpmap:120 AV1/90000");
+    assertEquals("AV1", audio.getPayloadType(120).encodingName);
+    assertNull(video.getPayloadType(120));
+
+    // Growing past the initial capacity keeps every line.
+    for (int i = 0; i < 100; i++) {
+      model.insertLine(model.getLineCount(), "a=extra:" + i);
+    }
+    assertEquals("a=extra:99", model.getLine(model.getLineCount() - 1));
+    assertTrue(model.toString().contains("a=sctp-port:5000\r\na=extra:0\r\n"));
+    assertTrue(model.toString().endsWith("a=extra:98\r\na=extra:99\r\n"));
+  }
+
+  @Test
+  public void rejectsMediaLineChanges() {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(SdpCorpus.OFFER);
+    final int mediaLine = model.getFirstMediaSection("video").getMediaLineIndex();
+    try {
+      model.setLine(mediaLine, "a=inactive");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      model.setLine(0, "m=video 9 RTP/AVP 96");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      model.insertLine(1, "m=video 9 RTP/AVP 96");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      model.insertLine(0, "a=inactive");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+    try {
+      model.getLine(model.getLineCount());
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Compares parsing a description, rewriting one line and serializing it again with the
+   * split and join the munging code used to do for every edit, over the corpus.
+   */
+  @Test
+  public void benchmarkAgainstSplitAndJoin() {
+    final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    final long threadId = Thread.currentThread().getId();
+
+    final List<String> corpus = SdpCorpus.all();
+    for (String sdp : corpus) {
+      assertEquals(rewriteWithSplitAndJoin(sdp), rewriteWithModel(sdp));
+    }
+    long checksum = 0;
+    // Warm up both paths.
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += rewriteWithSplitAndJoin(corpus.get(i % corpus.size())).length();
+      checksum += rewriteWithModel(corpus.get(i % corpus.size())).length();
+    }
+
+    long startBytes = allocations.getThreadAllocatedBytes(threadId);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += rewriteWithSplitAndJoin(corpus.get(i % corpus.size())).length();
+    }
+    final long splitNs = System.nanoTime() - startNs;
+    final long splitBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    startBytes = allocations.getThreadAllocatedBytes(threadId);
+    startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      checksum += rewriteWithModel(corpus.get(i % corpus.size())).length();
+    }
+    final long modelNs = System.nanoTime() - startNs;
+    final long modelBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+    LOG.info(corpus.size() + " descriptions, round trips per second: split and join "
+        + BENCHMARK_ROUNDS * TimeUnit.SECONDS.toNanos(1) / splitNs + ", model "
+        + BENCHMARK_ROUNDS * TimeUnit.SECONDS.toNanos(1) / modelNs
+        + "; bytes per round trip: split and join " + splitBytes / BENCHMARK_ROUNDS
+        + ", model " + modelBytes / BENCHMARK_ROUNDS + " (checksum " + checksum + ")");
+    // The model also indexes every section and payload type, which split and join does not.
+    assertTrue("model " + modelNs + " ns, split and join " + splitNs, modelNs < splitNs * 2);
+    assertTrue("model " + modelBytes + " bytes, split and join " + splitBytes,
+        modelBytes < splitBytes * 2);
+  }
+
+  // Appends a space to the first a=rtpmap line, if there is one.
+  private static String rewriteWithSplitAndJoin(String sdp) {
+    final String[] lines = sdp.split("\r\n");
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].startsWith("a=rtpmap:")) {
+        lines[i] = lines[i] + " ";
+        break;
+      }
+    }
+    final StringBuilder builder = new StringBuilder();
+    for (String line : lines) {
+      builder.append(line).append("\r\n");
+    }
+    return builder.toString();
+  }
+
+  private static String rewriteWithModel(String sdp) {
+    final SessionDescriptionModel model = SessionDescriptionModel.parse(sdp);
+    for (int i = 0; i < model.getLineCount(); i++) {
+      if (model.lineStartsWith(i, "a=rtpmap:")) {
+        model.setLine(i, model.getLine(i) + " ");
+        break;
+      }
+    }
+    // Without an edit the model hands back the input, so normalize like split and join does.
+    if (model.toString() == sdp) {
+      model.setLine(0, model.getLine(0));
+    }
+    return model.toString();
+  }
+}
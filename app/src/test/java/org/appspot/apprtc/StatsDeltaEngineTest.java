@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class StatsDeltaEngineTest {
+  private static final int UNKNOWN = StatsSnapshot.UNKNOWN;
+
+  private final StatsDeltaEngine engine = new StatsDeltaEngine();
+  private final StatsSnapshot snapshot = new StatsSnapshot();
+
+  /** Cumulative counters of one call at one point in time. */
+  private static class Counters {
+    long bytesSent;
+    long packetsSent;
+    long framesEncoded;
+    long bytesReceived;
+    long packetsReceived;
+    long packetsLost;
+    long framesDecoded;
+    double jitterBufferDelay;
+    long jitterBufferEmittedCount;
+    long pairBytesSent;
+
+    Counters(int seconds) {
+      bytesSent = 125_000L * seconds;
+      packetsSent = 100L * seconds;
+      framesEncoded = 30L * seconds;
+      bytesReceived = 62_500L * seconds;
+      packetsReceived = 95L * seconds;
+      packetsLost = 5L * seconds;
+      framesDecoded = 25L * seconds;
+      // 40 ms per emitted frame.
+      jitterBufferDelay = 0.04 * 25 * seconds;
+      jitterBufferEmittedCount = 25L * seconds;
+      pairBytesSent = 130_000L * seconds;
+    }
+  }
+
+  private boolean report(long timestampMs, double timestampUs, Counters counters) {
+    engine.begin(snapshot, timestampMs);
+    final Map<String, Object> outbound = new HashMap<>();
+    outbound.put("kind", "video");
+    outbound.put("frameWidth", 1280L);
+    outbound.put("frameHeight", 720L);
+    outbound.put("targetBitrate", 1_200_000.0);
+    outbound.put("bytesSent", BigInteger.valueOf(counters.bytesSent));
+    outbound.put("packetsSent", counters.packetsSent);
+    outbound.put("framesEncoded", counters.framesEncoded);
+    engine.addStats("RTCOutboundRTPVideoStream_1", "outbound-rtp", timestampUs, outbound);
+
+    final Map<String, Object> audio = new HashMap<>();
+    audio.put("kind", "audio");
+    audio.put("bytesSent", BigInteger.valueOf(counters.bytesSent / 10));
+    engine.addStats("RTCOutboundRTPAudioStream_2", "outbound-rtp", timestampUs, audio);
+
+    final Map<String, Object> inbound = new HashMap<>();
+    inbound.put("mediaType", "video");
+    inbound.put("frameWidth", 640L);
+    inbound.put("frameHeight", 480L);
+    inbound.put("bytesReceived", BigInteger.valueOf(counters.bytesReceived));
+    inbound.put("packetsReceived", counters.packetsReceived);
+    inbound.put("packetsLost", (int) counters.packetsLost);
+    inbound.put("framesDecoded", counters.framesDecoded);
+    inbound.put("jitterBufferDelay", counters.jitterBufferDelay);
+    inbound.put("jitterBufferEmittedCount", BigInteger.valueOf(counters.jitterBufferEmittedCount));
+    engine.addStats("RTCInboundRTPVideoStream_3", "inbound-rtp", timestampUs, inbound);
+
+    final Map<String, Object> backupPair = new HashMap<>();
+    backupPair.put("nominated", false);
+    backupPair.put("state", "succeeded");
+    backupPair.put("bytesSent", BigInteger.ZERO);
+    engine.addStats("RTCIceCandidatePair_b", "candidate-pair", timestampUs, backupPair);
+
+    final Map<String, Object> pair = new HashMap<>();
+    pair.put("nominated", true);
+    pair.put("state", "succeeded");
+    pair.put("currentRoundTripTime", 0.05);
+    pair.put("availableOutgoingBitrate", 2_500_000.0);
+    pair.put("bytesSent", BigInteger.valueOf(counters.pairBytesSent));
+    pair.put("bytesReceived", BigInteger.valueOf(counters.bytesReceived));
+    engine.addStats("RTCIceCandidatePair_a", "candidate-pair", timestampUs, pair);
+
+    final Map<String, Object> remoteInbound = new HashMap<>();
+    remoteInbound.put("kind", "video");
+    remoteInbound.put("packetsLost", 7);
+    remoteInbound.put("roundTripTime", 0.048);
+    engine.addStats("RTCRemoteInboundRtpVideoStream_4", "remote-inbound-rtp", timestampUs,
+        remoteInbound);
+    return engine.end();
+  }
+
+  private static double seconds(int seconds) {
+    return 1e9 + seconds * 1e6;
+  }
+
+  @Test
+  public void firstReportHasValuesButNoRates() {
+    assertTrue(report(1000, seconds(1), new Counters(1)));
+    assertEquals(1000, snapshot.timestampMs);
+    assertEquals(1280, snapshot.sendFrameWidth);
+    assertEquals(720, snapshot.sendFrameHeight);
+    assertEquals(640, snapshot.recvFrameWidth);
+    assertEquals(1_200_000, snapshot.targetEncBitrate);
+    assertEquals(2_500_000, snapshot.availableSendBandwidth);
+    assertEquals(UNKNOWN, snapshot.availableReceiveBandwidth);
+    assertEquals(50, snapshot.connectionRttMs);
+    assertEquals(48, snapshot.sendRttMs);
+    assertEquals(7, snapshot.sendPacketsLost);
+    assertEquals(95, snapshot.recvPacketsReceived);
+    assertEquals(5, snapshot.recvPacketsLost);
+    assertEquals(130_000, snapshot.connectionBytesSent);
+    assertNoRates();
+    assertEquals(1280L, snapshot.videoSendStats.get("frameWidth"));
+    assertEquals(true, snapshot.connectionStats.get("nominated"));
+  }
+
+  @Test
+  public void computesRatesFromTheSecondReport() {
+    report(1000, seconds(1), new Counters(1));
+    assertTrue(report(2000, seconds(2), new Counters(2)));
+    assertRates(1);
+  }
+
+  @Test
+  public void scalesRatesByTheStatsTimestamps() {
+    report(1000, seconds(1), new Counters(1));
+    // The report was delivered late, but its objects were sampled 3 s after the first ones.
+    assertTrue(report(2000, seconds(4), new Counters(4)));
+    assertRates(1);
+  }
+
+  @Test
+  public void unknownRatesWhenCountersGoBackwards() {
+    report(1000, seconds(1), new Counters(10));
+    // E.g. the stream was recreated and its counters started over.
+    assertTrue(report(2000, seconds(2), new Counters(1)));
+    assertNoRates();
+    assertEquals(1280, snapshot.sendFrameWidth);
+    // The restarted counters are the base of the following rates.
+    assertTrue(report(3000, seconds(3), new Counters(2)));
+    assertRates(1);
+  }
+
+  @Test
+  public void unknownRatesWithoutElapsedTime() {
+    report(1000, seconds(1), new Counters(1));
+    // A cached report: the objects have not been sampled again.
+    assertTrue(report(1500, seconds(1), new Counters(1)));
+    assertNoRates();
+    assertTrue(report(2000, seconds(2), new Counters(2)));
+    assertRates(1);
+  }
+
+  @Test
+  public void reportCompletingAfterNewerOneIsStale() {
+    report(1000, seconds(1), new Counters(1));
+    report(3000, seconds(3), new Counters(3));
+    // The request of t = 2 s timed out and its report arrives last.
+    assertFalse(report(2000, seconds(2), new Counters(2)));
+    assertNoRates();
+    // Rates continue from the report of t = 3 s, not from the stale one.
+    assertTrue(report(4000, seconds(4), new Counters(4)));
+    assertRates(1);
+  }
+
+  @Test
+  public void forgetsObjectsMissingFromAReport() {
+    report(1000, seconds(1), new Counters(1));
+    engine.begin(snapshot, 2000);
+    assertTrue(engine.end());
+    assertNull(snapshot.videoSendStats);
+    assertEquals(UNKNOWN, snapshot.sendFrameWidth);
+    assertTrue(report(3000, seconds(3), new Counters(3)));
+    assertNoRates();
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    report(1000, seconds(1), new Counters(1));
+    engine.reset();
+    // Earlier than before the reset, e.g. the next call, but not stale.
+    assertTrue(report(500, seconds(2), new Counters(2)));
+    assertNoRates();
+  }
+
+  @Test
+  public void keepsMembersOfTheReport() {
+    final Map<String, Object> members = new HashMap<>();
+    members.put("kind", "video");
+    members.put("framesPerSecond", 29.6);
+    engine.begin(snapshot, 0);
+    engine.addStats("out", "outbound-rtp", 1, members);
+    engine.end();
+    assertSame(members, snapshot.videoSendStats);
+    assertEquals(30, snapshot.sendFps);
+  }
+
+  private void assertRates(int seconds) {
+    assertEquals(1_000_000 / seconds, snapshot.actualEncBitrate);
+    assertEquals(100 / seconds, snapshot.sendPacketRate);
+    assertEquals(30 / seconds, snapshot.sendFps);
+    assertEquals(500_000 / seconds, snapshot.recvBitrate);
+    assertEquals(95 / seconds, snapshot.recvPacketRate);
+    assertEquals(25 / seconds, snapshot.recvFps);
+    assertEquals(0.05, snapshot.recvLossFraction, 1e-9);
+    assertEquals(40, snapshot.recvJitterBufferMs);
+    assertEquals(1_040_000 / seconds, snapshot.transmitBitrate);
+  }
+
+  private void assertNoRates() {
+    assertEquals(UNKNOWN, snapshot.actualEncBitrate);
+    assertEquals(UNKNOWN, snapshot.sendPacketRate);
+    assertEquals(UNKNOWN, snapshot.sendFps);
+    assertEquals(UNKNOWN, snapshot.recvBitrate);
+    assertEquals(UNKNOWN, snapshot.recvPacketRate);
+    assertEquals(UNKNOWN, snapshot.recvFps);
+    assertEquals(UNKNOWN, snapshot.recvLossFraction, 0);
+    assertEquals(UNKNOWN, snapshot.recvJitterBufferMs);
+    assertEquals(UNKNOWN, snapshot.transmitBitrate);
+    assertEquals(UNKNOWN, snapshot.retransmitBitrate);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Writes ring files with StatsRecorder and reads them back with StatsRecordingReader. */
+public class StatsRecorderTest {
+  private static final int CAPACITY = 16;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsBackSamplesBeforeTheRingWraps() throws IOException {
+    final File file = folder.newFile("stats.ring");
+    final long startTimeMs = System.currentTimeMillis();
+    final StatsRecorder recorder = new StatsRecorder(file, CAPACITY);
+    for (int i = 0; i < 5; i++) {
+      recorder.record(createSnapshot(i), null);
+    }
+    // The count is published with every record, so the file is readable during the call.
+    assertEquals(5, new StatsRecordingReader(file).getSampleCount());
+    recorder.close();
+
+    final StatsRecordingReader reader = new StatsRecordingReader(file);
+    assertTrue(reader.getStartTimeMs() >= startTimeMs);
+    assertEquals(5, reader.getSampleCount());
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(expectedSample(i), reader.getSample(i));
+    }
+    assertEquals(file.length(),
+        StatsRecordingReader.HEADER_BYTES + (long) StatsRecordingReader.RECORD_BYTES * CAPACITY);
+  }
+
+  @Test
+  public void keepsNewestSamplesInOrderOnceTheRingWraps() throws IOException {
+    final File file = folder.newFile("stats.ring");
+    final StatsRecorder recorder = new StatsRecorder(file, CAPACITY);
+    final int recorded = 3 * CAPACITY + 5;
+    for (int i = 0; i < recorded; i++) {
+      recorder.record(createSnapshot(i), null);
+    }
+    recorder.close();
+    // Ignored once closed.
+    recorder.record(createSnapshot(recorded), null);
+
+    final StatsRecordingReader reader = new StatsRecordingReader(file);
+    assertEquals(CAPACITY, reader.getSampleCount());
+    final List<long[]> samples = reader.getSamples();
+    assertEquals(CAPACITY, samples.size());
+    for (int i = 0; i < CAPACITY; i++) {
+      assertArrayEquals(expectedSample(recorded - CAPACITY + i), samples.get(i));
+    }
+    try {
+      reader.getSample(CAPACITY);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+
+    final StringWriter csv = new StringWriter();
+    reader.writeCsv(csv);
+    final String[] lines = csv.toString().split("\n");
+    assertEquals(CAPACITY + 1, lines.length);
+    assertEquals(String.join(",", StatsRecordingReader.COLUMNS), lines[0]);
+    assertTrue(lines[1], lines[1].startsWith((recorded - CAPACITY) * 1000L + ","));
+    assertTrue(lines[CAPACITY], lines[CAPACITY].endsWith(",-1,-1"));
+  }
+
+  @Test
+  public void recreatingTruncatesTheRing() throws IOException {
+    final File file = folder.newFile("stats.ring");
+    StatsRecorder recorder = new StatsRecorder(file, CAPACITY);
+    for (int i = 0; i < CAPACITY + 1; i++) {
+      recorder.record(createSnapshot(i), null);
+    }
+    recorder.close();
+    recorder = new StatsRecorder(file, 2);
+    recorder.record(createSnapshot(100), null);
+    recorder.close();
+
+    final StatsRecordingReader reader = new StatsRecordingReader(file);
+    assertEquals(1, reader.getSampleCount());
+    assertArrayEquals(expectedSample(100), reader.getSample(0));
+  }
+
+  @Test
+  public void rejectsCorruptHeaders() throws IOException {
+    final File file = folder.newFile("stats.ring");
+    final StatsRecorder recorder = new StatsRecorder(file, CAPACITY);
+    recorder.record(createSnapshot(0), null);
+    recorder.close();
+
+    checkRejected(file, StatsRecordingReader.MAGIC_OFFSET, 0x52535241);
+    checkRejected(file, StatsRecordingReader.VERSION_OFFSET, StatsRecordingReader.VERSION + 1);
+    checkRejected(file, StatsRecordingReader.RECORD_BYTES_OFFSET,
+        StatsRecordingReader.RECORD_BYTES - 4);
+    checkRejected(file, StatsRecordingReader.CAPACITY_OFFSET, 0);
+    // More records than the file holds.
+    checkRejected(file, StatsRecordingReader.CAPACITY_OFFSET, CAPACITY + 1);
+    assertArrayEquals(expectedSample(0), new StatsRecordingReader(file).getSample(0));
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(StatsRecordingReader.HEADER_BYTES - 1);
+    }
+    checkRejected(file);
+  }
+
+  // Checks that the reader rejects |file| with |value| at |offset|, then restores the header.
+  private static void checkRejected(File file, int offset, int value) throws IOException {
+    final int original;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(offset);
+      original = raf.readInt();
+      raf.seek(offset);
+      raf.writeInt(value);
+    }
+    checkRejected(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(offset);
+      raf.writeInt(original);
+    }
+  }
+
+  private static void checkRejected(File file) {
+    try {
+      new StatsRecordingReader(file);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  // Sample |n|, with counters beyond int range and unknown values.
+  private static StatsSnapshot createSnapshot(int n) {
+    final StatsSnapshot snapshot = new StatsSnapshot();
+    snapshot.timestampMs = n * 1000L;
+    snapshot.sendFps = 30;
+    snapshot.sendFrameWidth = 1280;
+    snapshot.sendFrameHeight = 720;
+    snapshot.recvFps = n % 31;
+    snapshot.recvFrameWidth = 640;
+    snapshot.recvFrameHeight = 360;
+    snapshot.targetEncBitrate = 1_500_000 + n;
+    snapshot.actualEncBitrate = Long.MAX_VALUE - n;
+    snapshot.availableSendBandwidth = 3L * Integer.MAX_VALUE;
+    snapshot.availableReceiveBandwidth = Long.MIN_VALUE;
+    snapshot.connectionRttMs = StatsSnapshot.UNKNOWN;
+    snapshot.recvPacketsLost = n;
+    snapshot.recvPacketsReceived = 50L * n;
+    snapshot.recvJitterBufferMs = StatsSnapshot.UNKNOWN;
+    return snapshot;
+  }
+
+  // What the reader returns for createSnapshot(n) recorded without a CpuMonitor.
+  private static long[] expectedSample(int n) {
+    return new long[] {n * 1000L, 30, 1280, 720, n % 31, 640, 360, 1_500_000 + n,
+        Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, n, 50L * n, -1, -1, -1};
+  }
+}
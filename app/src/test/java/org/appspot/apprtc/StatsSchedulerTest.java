@@ -0,0 +1,348 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Drives StatsScheduler with a fake clock, timer and executor. */
+public class StatsSchedulerTest {
+  private final FakeTimer timer = new FakeTimer();
+  private final Queue<Runnable> executorTasks = new ArrayDeque<>();
+  private final Executor executor = executorTasks::add;
+  private final List<Long> requestTimesMs = new ArrayList<>();
+  private int outstanding;
+  private int maxOutstanding;
+  private final StatsScheduler scheduler =
+      new StatsScheduler(executor, timer, timer::nowMs, this ::requestStats);
+
+  private boolean requestStats() {
+    requestTimesMs.add(timer.nowMs());
+    outstanding++;
+    maxOutstanding = Math.max(maxOutstanding, outstanding);
+    return true;
+  }
+
+  private void completeRequest() {
+    if (outstanding > 0) {
+      outstanding--;
+      scheduler.onRequestDone();
+    }
+  }
+
+  // Advances the clock, running due ticks and then the queued requests.
+  private void advance(long ms) {
+    timer.advance(ms);
+    Runnable task;
+    while ((task = executorTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  @Test
+  public void ticksWithoutDrift() {
+    timer.advance(12345);
+    scheduler.start(1000);
+    for (int i = 0; i < 10; i++) {
+      advance(0);
+      completeRequest();
+      // Late completions must not shift the following ticks.
+      advance(1000);
+      completeRequest();
+    }
+    assertEquals(11, requestTimesMs.size());
+    for (int i = 0; i < requestTimesMs.size(); i++) {
+      assertEquals(12345 + 1000L * i, (long) requestTimesMs.get(i));
+    }
+    assertEquals(0, scheduler.getSkippedTicks());
+  }
+
+  @Test
+  public void skipsMissedTicksInsteadOfBursting() {
+    scheduler.start(1000);
+    advance(0);
+    completeRequest();
+    // The timer thread was stalled for 5.5 periods.
+    timer.stall(5500);
+    advance(0);
+    completeRequest();
+    assertEquals(2, requestTimesMs.size());
+    advance(500);
+    assertEquals(3, requestTimesMs.size());
+    assertEquals(6000, (long) requestTimesMs.get(2));
+  }
+
+  @Test
+  public void skipsTicksWhileRequestPending() {
+    scheduler.start(1000);
+    advance(0);
+    for (int i = 0; i < 5; i++) {
+      advance(1000);
+    }
+    assertEquals(1, requestTimesMs.size());
+    assertEquals(5, scheduler.getSkippedTicks());
+    completeRequest();
+    advance(1000);
+    assertEquals(2, requestTimesMs.size());
+  }
+
+  @Test
+  public void requestsAgainAfterTimeout() {
+    scheduler.start(1000);
+    advance(0);
+    for (int i = 0; i < 10; i++) {
+      advance(1000);
+    }
+    // The callback of the first request was lost.
+    assertEquals(2, requestTimesMs.size());
+    assertEquals(10000, (long) requestTimesMs.get(1));
+  }
+
+  @Test
+  public void stopsAndRestarts() {
+    scheduler.start(1000);
+    advance(0);
+    completeRequest();
+    scheduler.stop();
+    assertFalse(scheduler.isRunning());
+    advance(5000);
+    assertEquals(1, requestTimesMs.size());
+    scheduler.start(500);
+    assertTrue(scheduler.isRunning());
+    advance(0);
+    completeRequest();
+    advance(500);
+    assertEquals(3, requestTimesMs.size());
+    assertEquals(5500, (long) requestTimesMs.get(2));
+  }
+
+  @Test
+  public void setPeriodCountsFromLastTick() {
+    scheduler.start(1000);
+    advance(0);
+    completeRequest();
+    advance(700);
+    scheduler.setPeriod(2000);
+    advance(1299);
+    assertEquals(1, requestTimesMs.size());
+    advance(1);
+    assertEquals(2, requestTimesMs.size());
+    assertEquals(2000, (long) requestTimesMs.get(1));
+  }
+
+  /**
+   * Randomly starts, stops, restarts and changes the period while requests complete at random
+   * times, and checks that there is never more than one request outstanding.
+   */
+  @Test
+  public void atMostOneRequestOutstanding() {
+    final Random random = new Random(1);
+    for (int step = 0; step < 20000; step++) {
+      switch (random.nextInt(8)) {
+        case 0:
+          scheduler.start(100 + random.nextInt(2000));
+          break;
+        case 1:
+          scheduler.stop();
+          break;
+        case 2:
+          scheduler.setPeriod(100 + random.nextInt(2000));
+          break;
+        case 3:
+          completeRequest();
+          break;
+        default:
+          advance(random.nextInt(1500));
+          break;
+      }
+      assertTrue("Outstanding: " + outstanding, outstanding <= 1);
+      // Requests never get old enough to time out.
+      if (outstanding > 0 && timer.nowMs() - requestTimesMs.get(requestTimesMs.size() - 1) > 5000) {
+        completeRequest();
+      }
+    }
+    assertEquals(1, maxOutstanding);
+    assertTrue(requestTimesMs.size() > 1000);
+    assertTrue(scheduler.getSkippedTicks() > 100);
+    // At most one tick is ever scheduled.
+    assertTrue(timer.pendingCount() <= 1);
+  }
+
+  /** Runs scheduled tasks when the fake time is advanced. Only supports schedule(Runnable). */
+  private static class FakeTimer extends AbstractExecutorService
+      implements ScheduledExecutorService {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long nowMs;
+    private long sequence;
+
+    long nowMs() {
+      return nowMs;
+    }
+
+    // Runs every task due until |ms| from now, each at its own time.
+    void advance(long ms) {
+      final long endMs = nowMs + ms;
+      while (!tasks.isEmpty() && tasks.peek().timeMs <= endMs) {
+        final Task task = tasks.poll();
+        nowMs = Math.max(nowMs, task.timeMs);
+        task.run();
+      }
+      nowMs = endMs;
+    }
+
+    // Moves the clock without running anything, like a timer thread that did not get to run.
+    void stall(long ms) {
+      nowMs += ms;
+    }
+
+    int pendingCount() {
+      int count = 0;
+      for (Task task : tasks) {
+        if (!task.isCancelled()) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      final Task task = new Task(command, nowMs + unit.toMillis(delay), sequence++);
+      tasks.add(task);
+      return task;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(
+        Runnable command, long initialDelay, long period, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+        Runnable command, long initialDelay, long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+
+    private class Task implements ScheduledFuture<Object> {
+      final Runnable command;
+      final long timeMs;
+      final long order;
+      boolean cancelled;
+      boolean done;
+
+      Task(Runnable command, long timeMs, long order) {
+        this.command = command;
+        this.timeMs = timeMs;
+        this.order = order;
+      }
+
+      void run() {
+        if (!cancelled) {
+          done = true;
+          command.run();
+        }
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+        return unit.convert(timeMs - nowMs, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+        final Task task = (Task) other;
+        return timeMs != task.timeMs ? Long.compare(timeMs, task.timeMs)
+                                     : Long.compare(order, task.order);
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+          return false;
+        }
+        cancelled = true;
+        tasks.remove(this);
+        return true;
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+        return done || cancelled;
+      }
+
+      @Override
+      public Object get() {
+        return null;
+      }
+
+      @Override
+      public Object get(long timeout, TimeUnit unit) {
+        return null;
+      }
+    }
+  }
+}
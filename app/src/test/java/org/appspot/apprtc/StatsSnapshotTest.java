@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsSnapshotTest {
+  private static final Logger LOG = Logger.getLogger(StatsSnapshotTest.class.getName());
+  private static final int TICKS = 2000;
+
+  @Test
+  public void clearResetsEveryValue() throws IllegalAccessException {
+    final StatsSnapshot snapshot = new StatsSnapshot();
+    fill(snapshot);
+    snapshot.clear();
+    for (Field field : StatsSnapshot.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) || field.getType().isArray()) {
+        continue;
+      }
+      final String name = field.getName();
+      if (field.getType() == Map.class) {
+        assertNull(name, field.get(snapshot));
+      } else if (name.equals("timestampMs") || name.equals("topThreadCount")) {
+        assertEquals(name, 0, ((Number) field.get(snapshot)).intValue());
+      } else {
+        assertEquals(name, StatsSnapshot.UNKNOWN, ((Number) field.get(snapshot)).doubleValue(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void updateThreadCpuWithoutMonitor() {
+    final StatsSnapshot snapshot = new StatsSnapshot();
+    snapshot.topThreadCount = 2;
+    snapshot.updateThreadCpu(null);
+    assertEquals(0, snapshot.topThreadCount);
+  }
+
+  /**
+   * Compares the allocations per stats tick of the HUD's old per-report HashMap and string
+   * extraction with filling a reused snapshot through StatsDeltaEngine.
+   */
+  @Test
+  public void allocatesLessPerTickThanLegacyExtraction() {
+    final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    final long threadId = Thread.currentThread().getId();
+
+    final StatsReport[][] legacyReports = new StatsReport[TICKS][];
+    final Map<String, Map<String, Object>>[] standardReports = createStandardReports();
+    for (int tick = 0; tick < TICKS; tick++) {
+      legacyReports[tick] = createLegacyReports(tick);
+    }
+
+    // Warm up both paths before measuring.
+    int checksum = 0;
+    for (int tick = 0; tick < TICKS; tick++) {
+      checksum += legacyExtract(legacyReports[tick]).length();
+    }
+    final StatsSnapshot snapshot = new StatsSnapshot();
+    final StatsDeltaEngine engine = new StatsDeltaEngine();
+    final StringBuilder text = new StringBuilder(256);
+    for (int tick = 0; tick < TICKS; tick++) {
+      checksum += extract(engine, snapshot, standardReports, tick, text);
+    }
+
+    long startBytes = allocations.getThreadAllocatedBytes(threadId);
+    for (int tick = 0; tick < TICKS; tick++) {
+      checksum += legacyExtract(legacyReports[tick]).length();
+    }
+    final long legacyBytesPerTick =
+        (allocations.getThreadAllocatedBytes(threadId) - startBytes) / TICKS;
+
+    engine.reset();
+    startBytes = allocations.getThreadAllocatedBytes(threadId);
+    for (int tick = 0; tick < TICKS; tick++) {
+      checksum += extract(engine, snapshot, standardReports, tick, text);
+    }
+    final long snapshotBytesPerTick =
+        (allocations.getThreadAllocatedBytes(threadId) - startBytes) / TICKS;
+
+    assertEquals(30, snapshot.sendFps);
+    assertEquals(1280, snapshot.recvFrameWidth);
+    assertTrue(snapshot.actualEncBitrate > 0);
+    LOG.info("Bytes allocated per stats tick: legacy " + legacyBytesPerTick
+        + ", snapshot " + snapshotBytesPerTick + " (checksum " + checksum + ")");
+    assertTrue("snapshot " + snapshotBytesPerTick + " bytes, legacy " + legacyBytesPerTick,
+        snapshotBytesPerTick * 4 < legacyBytesPerTick);
+  }
+
+  // Fills |snapshot| from one round of reports and formats the HUD line, like the HUD does.
+  private static int extract(StatsDeltaEngine engine, StatsSnapshot snapshot,
+      Map<String, Map<String, Object>>[] reports, int tick, StringBuilder text) {
+    // RTCStatsReport hands out new member maps every round; alternate between two sets.
+    final Map<String, Map<String, Object>> report = reports[tick % reports.length];
+    engine.begin(snapshot, tick * 1000L);
+    for (Map.Entry<String, Map<String, Object>> stats : report.entrySet()) {
+      final Map<String, Object> members = stats.getValue();
+      engine.addStats(stats.getKey(), (String) members.get("type"), tick * 1e6, members);
+    }
+    engine.end();
+    text.setLength(0);
+    text.append("Fps:  ").append(snapshot.sendFps).append("\n");
+    text.append("Target BR: ").append(snapshot.targetEncBitrate).append("\n");
+    text.append("Actual BR: ").append(snapshot.actualEncBitrate).append("\n");
+    return text.length();
+  }
+
+  // The extraction HudFragment ran on every legacy StatsReport[] before StatsSnapshot.
+  private static String legacyExtract(StatsReport[] reports) {
+    StringBuilder encoderStat = new StringBuilder(128);
+    StringBuilder bweStat = new StringBuilder();
+    StringBuilder connectionStat = new StringBuilder();
+    StringBuilder videoSendStat = new StringBuilder();
+    StringBuilder videoRecvStat = new StringBuilder();
+    String fps = null;
+    String targetBitrate = null;
+    String actualBitrate = null;
+    for (StatsReport report : reports) {
+      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
+        Map<String, String> reportMap = getReportMap(report);
+        String trackId = reportMap.get("googTrackId");
+        if (trackId != null && trackId.contains("ARDAMSv0")) {
+          fps = reportMap.get("googFrameRateSent");
+          videoSendStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoSendStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("recv")) {
+        Map<String, String> reportMap = getReportMap(report);
+        String frameWidth = reportMap.get("googFrameWidthReceived");
+        if (frameWidth != null) {
+          videoRecvStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoRecvStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.id.equals("bweforvideo")) {
+        Map<String, String> reportMap = getReportMap(report);
+        targetBitrate = reportMap.get("googTargetEncBitrate");
+        actualBitrate = reportMap.get("googActualEncBitrate");
+        bweStat.append(report.id).append("\n");
+        for (StatsReport.Value value : report.values) {
+          String name = value.name.replace("goog", "").replace("Available", "");
+          bweStat.append(name).append("=").append(value.value).append("\n");
+        }
+      } else if (report.type.equals("googCandidatePair")) {
+        Map<String, String> reportMap = getReportMap(report);
+        String activeConnection = reportMap.get("googActiveConnection");
+        if (activeConnection != null && activeConnection.equals("true")) {
+          connectionStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            connectionStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      }
+    }
+    if (fps != null) {
+      encoderStat.append("Fps:  ").append(fps).append("\n");
+    }
+    if (targetBitrate != null) {
+      encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+    }
+    if (actualBitrate != null) {
+      encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+    }
+    return encoderStat.toString() + bweStat + connectionStat + videoSendStat + videoRecvStat;
+  }
+
+  private static Map<String, String> getReportMap(StatsReport report) {
+    Map<String, String> reportMap = new HashMap<>();
+    for (StatsReport.Value value : report.values) {
+      reportMap.put(value.name, value.value);
+    }
+    return reportMap;
+  }
+
+  // A legacy report as captured from a 720p call.
+  private static StatsReport[] createLegacyReports(int tick) {
+    final double timestamp = tick * 1000.0;
+    return new StatsReport[] {
+        new StatsReport("bweforvideo", "VideoBwe", timestamp, values(
+            "googAvailableSendBandwidth", "1500000", "googAvailableReceiveBandwidth", "2000000",
+            "googTargetEncBitrate", "1200000", "googActualEncBitrate", "" + (1100000 + tick),
+            "googRetransmitBitrate", "0", "googTransmitBitrate", "1150000",
+            "googBucketDelay", "0")),
+        new StatsReport("Conn-audio-1-0", "googCandidatePair", timestamp, values(
+            "googActiveConnection", "true", "bytesSent", "" + 150000 * tick,
+            "bytesReceived", "" + 200000 * tick, "googRtt", "42", "packetsSent", "" + 100 * tick,
+            "googLocalAddress", "10.0.0.2:40000", "googRemoteAddress", "10.0.0.3:50000",
+            "googTransportType", "udp", "googReadable", "true", "googWritable", "true")),
+        new StatsReport("ssrc_1234_send", "ssrc", timestamp, values(
+            "googTrackId", "ARDAMSv0", "ssrc", "1234", "bytesSent", "" + 140000 * tick,
+            "packetsSent", "" + 95 * tick, "packetsLost", "3", "googFrameRateSent", "30",
+            "googFrameRateInput", "30", "googFrameWidthSent", "1280",
+            "googFrameHeightSent", "720", "googRtt", "42", "googCodecName", "VP8",
+            "googEncodeUsagePercent", "25", "googAvgEncodeMs", "7",
+            "googAdaptationChanges", "0", "googCpuLimitedResolution", "false")),
+        new StatsReport("ssrc_5678_recv", "ssrc", timestamp, values(
+            "googTrackId", "ARDAMSv0", "ssrc", "5678", "bytesReceived", "" + 190000 * tick,
+            "packetsReceived", "" + 130 * tick, "packetsLost", "5", "googFrameRateReceived",
+            "30", "googFrameRateDecoded", "30", "googFrameRateOutput", "30",
+            "googFrameWidthReceived", "1280", "googFrameHeightReceived", "720",
+            "googJitterBufferMs", "40", "googCurrentDelayMs", "60", "googDecodeMs", "5",
+            "googCodecName", "VP8")),
+        new StatsReport("ssrc_9999_send", "ssrc", timestamp, values(
+            "googTrackId", "ARDAMSa0", "ssrc", "9999", "bytesSent", "" + 4000 * tick,
+            "audioInputLevel", "1200", "googCodecName", "opus")),
+    };
+  }
+
+  private static StatsReport.Value[] values(String... namesAndValues) {
+    final StatsReport.Value[] values = new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StatsReport.Value(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    return values;
+  }
+
+  // Two rounds of standard stats with growing counters.
+  @SuppressWarnings("unchecked")
+  private static Map<String, Map<String, Object>>[] createStandardReports() {
+    final Map<String, Map<String, Object>>[] reports = new Map[2];
+    for (int round = 0; round < reports.length; round++) {
+      final Map<String, Map<String, Object>> report = new LinkedHashMap<>();
+      report.put("OT01V1234", members("type", "outbound-rtp", "kind", "video",
+          "bytesSent", 140000L * (round + 1), "packetsSent", 95L * (round + 1),
+          "retransmittedBytesSent", 0L, "framesEncoded", 30L * (round + 1),
+          "framesPerSecond", 30.0, "frameWidth", 1280L, "frameHeight", 720L,
+          "targetBitrate", 1200000.0));
+      report.put("IT01V5678", members("type", "inbound-rtp", "kind", "video",
+          "bytesReceived", 190000L * (round + 1), "packetsReceived", 130L * (round + 1),
+          "packetsLost", 5, "framesDecoded", 30L * (round + 1), "frameWidth", 1280L,
+          "frameHeight", 720L, "jitterBufferDelay", 1.2 * (round + 1),
+          "jitterBufferEmittedCount", 30L * (round + 1)));
+      report.put("RI01V1234", members("type", "remote-inbound-rtp", "kind", "video",
+          "packetsLost", 3, "roundTripTime", 0.042));
+      report.put("CP01", members("type", "candidate-pair", "nominated", true,
+          "state", "succeeded", "bytesSent", 150000L * (round + 1),
+          "bytesReceived", 200000L * (round + 1), "currentRoundTripTime", 0.042,
+          "availableOutgoingBitrate", 1500000.0));
+      reports[round] = report;
+    }
+    return reports;
+  }
+
+  private static Map<String, Object> members(Object... namesAndValues) {
+    final Map<String, Object> members = new LinkedHashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      members.put((String) namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return members;
+  }
+
+  private static void fill(StatsSnapshot snapshot) throws IllegalAccessException {
+    for (Field field : StatsSnapshot.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+        continue;
+      }
+      final Class<?> type = field.getType();
+      if (type == int.class) {
+        field.setInt(snapshot, 7);
+      } else if (type == long.class) {
+        field.setLong(snapshot, 7);
+      } else if (type == double.class) {
+        field.setDouble(snapshot, 0.5);
+      } else if (type == Map.class) {
+        field.set(snapshot, new HashMap<String, Object>());
+      }
+    }
+  }
+}
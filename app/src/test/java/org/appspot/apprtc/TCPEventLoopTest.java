@@ -0,0 +1,289 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.appspot.apprtc.TCPChannelClient.Framing;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TCPEventLoopTest {
+  private static final Logger LOG = Logger.getLogger(TCPEventLoopTest.class.getName());
+  private static final int SOAK_CHANNEL_PAIRS = 500;
+  private static final int SOAK_MESSAGES_PER_CHANNEL = 20;
+
+  private TCPEventLoop eventLoop;
+
+  @Before
+  public void setUp() throws IOException {
+    eventLoop = new TCPEventLoop("TCPEventLoopTest");
+  }
+
+  @After
+  public void tearDown() {
+    eventLoop.shutdown();
+  }
+
+  @Test
+  public void runsTasksAndTimeoutsInOrder() throws InterruptedException {
+    final List<String> events = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    eventLoop.execute(() -> {
+      eventLoop.schedule(() -> {
+        events.add("timeout 50");
+        done.countDown();
+      }, 50);
+      eventLoop.schedule(() -> events.add("timeout 10"), 10);
+      eventLoop.schedule(() -> events.add("cancelled"), 20).cancel();
+      events.add("task");
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    final List<String> expected = new ArrayList<>();
+    expected.add("task");
+    expected.add("timeout 10");
+    expected.add("timeout 50");
+    assertEquals(expected, events);
+  }
+
+  @Test
+  public void timeoutDoesNotFireEarly() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final long[] elapsedNs = new long[1];
+    eventLoop.execute(() -> {
+      final long startNs = System.nanoTime();
+      eventLoop.schedule(() -> {
+        elapsedNs[0] = System.nanoTime() - startNs;
+        done.countDown();
+      }, 30);
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(elapsedNs[0] >= TimeUnit.MILLISECONDS.toNanos(30));
+  }
+
+  @Test
+  public void survivesThrowingTasksAndTimeouts() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    eventLoop.execute(() -> {
+      throw new RuntimeException("task");
+    });
+    eventLoop.execute(() -> eventLoop.schedule(() -> {
+      throw new RuntimeException("timeout");
+    }, 1));
+    eventLoop.execute(() -> eventLoop.schedule(done::countDown, 20));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void everyAcceptedTaskRunsAcrossShutdown() throws InterruptedException {
+    final int threads = 8;
+    final AtomicInteger accepted = new AtomicInteger();
+    final AtomicInteger ran = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(threads);
+    final List<Thread> producers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      final Thread producer = new Thread(() -> {
+        started.countDown();
+        while (eventLoop.execute(ran::incrementAndGet)) {
+          accepted.incrementAndGet();
+        }
+      });
+      producer.start();
+      producers.add(producer);
+    }
+    started.await();
+    Thread.sleep(20);
+    eventLoop.shutdown();
+    for (Thread producer : producers) {
+      producer.join(5000);
+      assertFalse(producer.isAlive());
+    }
+    // The loop runs the tasks it accepted before closing, then exits.
+    final long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (ran.get() < accepted.get() && System.nanoTime() < deadlineNs) {
+      Thread.sleep(1);
+    }
+    assertTrue(accepted.get() > 0);
+    assertEquals(accepted.get(), ran.get());
+    assertFalse(eventLoop.execute(() -> {}));
+  }
+
+  @Test
+  public void disconnectReturnsAfterShutdown() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final int port = findFreePort();
+    final RecordingEvents events = new RecordingEvents(null);
+    final TCPChannelClient[] server = new TCPChannelClient[1];
+    executor.submit(() -> {
+      server[0] = new TCPChannelClient(executor, events, "0.0.0.0", port, Framing.LINE, eventLoop);
+    }).get();
+    eventLoop.shutdown();
+    executor.submit(() -> server[0].disconnect()).get(5, TimeUnit.SECONDS);
+    executor.shutdown();
+  }
+
+  /**
+   * Opens 500 loopback connections on one loop, exchanges messages on all of them at once and
+   * closes them again, checking that no thread is started per connection.
+   */
+  @Test
+  public void soakManyConcurrentChannels() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final int threadsBefore = Thread.activeCount();
+    final int connections = 2 * SOAK_CHANNEL_PAIRS;
+    final int messages = SOAK_CHANNEL_PAIRS * SOAK_MESSAGES_PER_CHANNEL;
+    final CountDownLatch connected = new CountDownLatch(connections);
+    final CountDownLatch received = new CountDownLatch(2 * messages);
+    final CountDownLatch closed = new CountDownLatch(connections);
+    final AtomicInteger errors = new AtomicInteger();
+    final List<TCPChannelClient> clients = new ArrayList<>();
+    final long startNs = System.nanoTime();
+
+    // Bind every listening socket before connecting, so that no port picked for a listening
+    // socket is taken as the local port of an earlier connection.
+    final int[] ports = findFreePorts(SOAK_CHANNEL_PAIRS);
+    executor.submit(() -> {
+      for (int i = 0; i < SOAK_CHANNEL_PAIRS; i++) {
+        final TCPChannelClient[] server = new TCPChannelClient[1];
+        // The listening side echoes every message back.
+        server[0] = new TCPChannelClient(executor, new RecordingEvents(null) {
+          @Override
+          public void onTCPMessage(String message) {
+            received.countDown();
+            server[0].send(message);
+          }
+        }.counting(connected, closed, errors), "0.0.0.0", ports[i], getFraming(i), eventLoop);
+        clients.add(server[0]);
+      }
+    }).get();
+    final CountDownLatch listening = new CountDownLatch(1);
+    eventLoop.execute(listening::countDown);
+    assertTrue(listening.await(30, TimeUnit.SECONDS));
+    executor.submit(() -> {
+      for (int i = 0; i < SOAK_CHANNEL_PAIRS; i++) {
+        clients.add(new TCPChannelClient(executor,
+            new RecordingEvents(received).counting(connected, closed, errors), "127.0.0.1",
+            ports[i], getFraming(i), eventLoop));
+      }
+    }).get();
+    assertTrue(connected.await(30, TimeUnit.SECONDS));
+    final int threadsConnected = Thread.activeCount();
+
+    executor.submit(() -> {
+      for (int i = 0; i < SOAK_MESSAGES_PER_CHANNEL; i++) {
+        for (int client = SOAK_CHANNEL_PAIRS; client < clients.size(); client++) {
+          clients.get(client).send("{\"client\":" + client + ",\"seq\":" + i + "}");
+        }
+      }
+    });
+    assertTrue(received.await(30, TimeUnit.SECONDS));
+    final long exchangedNs = System.nanoTime();
+
+    executor.submit(() -> {
+      for (TCPChannelClient client : clients) {
+        client.disconnect();
+      }
+    }).get(30, TimeUnit.SECONDS);
+    assertTrue(closed.await(30, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    assertEquals(0, errors.get());
+    // Connections all run on the loop thread; only the executor thread (plus slack) is added.
+    assertTrue(threadsConnected + " threads, was " + threadsBefore,
+        threadsConnected <= threadsBefore + 2);
+    LOG.info(connections + " connections, " + 2 * messages + " messages in "
+        + TimeUnit.NANOSECONDS.toMillis(exchangedNs - startNs) + " ms, "
+        + (threadsConnected - threadsBefore) + " threads started");
+  }
+
+  private static Framing getFraming(int pair) {
+    return pair % 2 == 0 ? Framing.LENGTH_PREFIXED : Framing.LINE;
+  }
+
+  private static int[] findFreePorts(int count) throws IOException {
+    final ServerSocket[] sockets = new ServerSocket[count];
+    final int[] ports = new int[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        sockets[i] = new ServerSocket(0);
+        ports[i] = sockets[i].getLocalPort();
+      }
+    } finally {
+      for (ServerSocket socket : sockets) {
+        if (socket != null) {
+          socket.close();
+        }
+      }
+    }
+    return ports;
+  }
+
+  static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static class RecordingEvents implements TCPChannelEvents {
+    private final CountDownLatch received;
+    private CountDownLatch connected = new CountDownLatch(0);
+    private CountDownLatch closed = new CountDownLatch(0);
+    private AtomicInteger errors = new AtomicInteger();
+
+    RecordingEvents(CountDownLatch received) {
+      this.received = received;
+    }
+
+    RecordingEvents counting(
+        CountDownLatch connected, CountDownLatch closed, AtomicInteger errors) {
+      this.connected = connected;
+      this.closed = closed;
+      this.errors = errors;
+      return this;
+    }
+
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {
+      if (received != null) {
+        received.countDown();
+      }
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      errors.incrementAndGet();
+    }
+
+    @Override
+    public void onTCPClose() {
+      closed.countDown();
+    }
+  }
+}
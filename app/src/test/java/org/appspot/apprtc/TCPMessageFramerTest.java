@@ -0,0 +1,346 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.appspot.apprtc.TCPChannelClient.Framing;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.junit.Test;
+
+public class TCPMessageFramerTest {
+  private static final Logger LOG = Logger.getLogger(TCPMessageFramerTest.class.getName());
+  // TCPChannelClient.FRAMING_NEGOTIATION_TIMEOUT_MS.
+  private static final long NEGOTIATION_TIMEOUT_MS = 250;
+  private static final int ROUND_TRIPS = 1000;
+  private static final int BURST_MESSAGES = 10000;
+  private static final List<String> MESSAGES = Arrays.asList("{\"type\":\"offer\"}", "",
+      "é中😀 multi-byte", "x", repeat('a', 5000), "{\"type\":\"bye\"}");
+
+  @Test
+  public void decodesCoalescedReads() throws IOException {
+    for (Framing framing : Framing.values()) {
+      final byte[] stream = encode(framing, MESSAGES);
+      assertEquals(MESSAGES, decode(framing, stream, stream.length));
+    }
+  }
+
+  @Test
+  public void decodesSplitReads() throws IOException {
+    for (Framing framing : Framing.values()) {
+      final byte[] stream = encode(framing, MESSAGES);
+      for (int chunk = 1; chunk <= 7; chunk++) {
+        assertEquals(MESSAGES, decode(framing, stream, chunk));
+      }
+    }
+  }
+
+  @Test
+  public void decodesRandomlySplitReads() throws IOException {
+    final Random random = new Random(42);
+    for (Framing framing : Framing.values()) {
+      final byte[] stream = encode(framing, MESSAGES);
+      for (int run = 0; run < 100; run++) {
+        final TCPMessageFramer framer = TCPMessageFramer.create(framing);
+        final List<String> messages = new ArrayList<>();
+        int position = 0;
+        while (position < stream.length) {
+          final int count = Math.min(stream.length - position, 1 + random.nextInt(64));
+          final ByteBuffer in = ByteBuffer.wrap(stream, position, count);
+          framer.decode(in, messages);
+          assertFalse(in.hasRemaining());
+          position += count;
+        }
+        assertEquals(MESSAGES, messages);
+      }
+    }
+  }
+
+  @Test
+  public void lineFramingAcceptsCrLf() throws IOException {
+    final byte[] stream = "first\r\nsecond\n\r\npartial".getBytes(TCPMessageFramer.UTF_8);
+    assertEquals(Arrays.asList("first", "second", ""), decode(Framing.LINE, stream, 3));
+  }
+
+  @Test
+  public void lengthPrefixedFramingKeepsNewlines() throws IOException {
+    final List<String> messages = Collections.singletonList("line one\nline two\r\n");
+    final byte[] stream = encode(Framing.LENGTH_PREFIXED, messages);
+    assertEquals(messages, decode(Framing.LENGTH_PREFIXED, stream, 5));
+  }
+
+  @Test
+  public void dropsLargePayloadBufferAfterFrame() throws IOException {
+    final TCPMessageFramer.LengthPrefixedFramer framer =
+        (TCPMessageFramer.LengthPrefixedFramer) TCPMessageFramer.create(Framing.LENGTH_PREFIXED);
+    final List<String> messages = new ArrayList<>();
+
+    framer.decode(ByteBuffer.wrap(encode(Framing.LENGTH_PREFIXED, MESSAGES.subList(4, 5))),
+        messages);
+    assertEquals(5000, framer.getPayloadCapacity());
+
+    final String large = repeat('b', 2 * 1024 * 1024);
+    final byte[] stream = encode(Framing.LENGTH_PREFIXED, Collections.singletonList(large));
+    framer.decode(ByteBuffer.wrap(stream, 0, stream.length / 2), messages);
+    assertEquals(large.length(), framer.getPayloadCapacity());
+    framer.decode(ByteBuffer.wrap(stream, stream.length / 2, stream.length - stream.length / 2),
+        messages);
+    assertEquals(large, messages.get(1));
+    assertEquals(0, framer.getPayloadCapacity());
+
+    framer.decode(ByteBuffer.wrap(encode(Framing.LENGTH_PREFIXED, MESSAGES.subList(0, 1))),
+        messages);
+    assertEquals(MESSAGES.get(0), messages.get(2));
+    assertTrue(framer.getPayloadCapacity() <= TCPMessageFramer.RETAINED_BUFFER_BYTES);
+  }
+
+  @Test
+  public void rejectsInvalidFrameLength() {
+    final byte[][] headers = {
+        {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff},
+        ByteBuffer.allocate(4).putInt(TCPMessageFramer.MAX_MESSAGE_BYTES + 1).array()};
+    for (byte[] header : headers) {
+      try {
+        TCPMessageFramer.create(Framing.LENGTH_PREFIXED)
+            .decode(ByteBuffer.wrap(header), new ArrayList<String>());
+        fail();
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void detectsPreamble() {
+    final ByteBuffer preamble = TCPMessageFramer.createPreamble();
+    assertEquals(TCPMessageFramer.getPreambleLength(), preamble.remaining());
+    assertTrue(TCPMessageFramer.startsWithPreamble(preamble));
+    assertEquals(0, preamble.position());
+
+    final ByteBuffer prefix = preamble.duplicate();
+    prefix.limit(2);
+    assertFalse(TCPMessageFramer.startsWithPreamble(prefix));
+    assertTrue(TCPMessageFramer.mayStartWithPreamble(prefix));
+
+    final ByteBuffer line = ByteBuffer.wrap("{\"type\"".getBytes(TCPMessageFramer.UTF_8));
+    assertFalse(TCPMessageFramer.startsWithPreamble(line));
+    assertFalse(TCPMessageFramer.mayStartWithPreamble(line));
+  }
+
+  /**
+   * Echoes messages over a loopback connection with each framing and compares round trip
+   * latency, pipelined throughput and the time until the listening side's first message
+   * arrives, which includes the framing negotiation. A connecting side that only knows line
+   * framing costs a listening side that prefers length prefixed framing the negotiation
+   * timeout before anything is sent.
+   */
+  @Test
+  public void benchmarkFramingOverLoopback() throws Exception {
+    final String message = createSignalingMessage(1024);
+    // Warm up.
+    runLoopback(Framing.LINE, Framing.LINE, message);
+    runLoopback(Framing.LENGTH_PREFIXED, Framing.LENGTH_PREFIXED, message);
+
+    final LoopbackResult line = runLoopback(Framing.LINE, Framing.LINE, message);
+    final LoopbackResult lengthPrefixed =
+        runLoopback(Framing.LENGTH_PREFIXED, Framing.LENGTH_PREFIXED, message);
+    final LoopbackResult fallback = runLoopback(Framing.LENGTH_PREFIXED, Framing.LINE, message);
+    LOG.info(message.length() + " byte messages. Line: " + line + ". Length prefixed: "
+        + lengthPrefixed + ". Length prefixed falling back to line: " + fallback + ".");
+
+    final long timeoutNs = TimeUnit.MILLISECONDS.toNanos(NEGOTIATION_TIMEOUT_MS);
+    assertTrue(fallback.toString(), fallback.firstMessageNs >= timeoutNs);
+    assertTrue(line.toString(), line.firstMessageNs < timeoutNs);
+    assertTrue(lengthPrefixed.toString(), lengthPrefixed.firstMessageNs < timeoutNs);
+    // Both framings decode in bulk, so the negotiation buys payloads with newlines rather than
+    // throughput; the rates are only reported.
+    assertTrue(line.toString(), line.messagesPerSecond > 0);
+    assertTrue(lengthPrefixed.toString(), lengthPrefixed.messagesPerSecond > 0);
+  }
+
+  /** Measurements of one loopback connection. */
+  private static class LoopbackResult {
+    long firstMessageNs;
+    long p99RoundTripNs;
+    long messagesPerSecond;
+
+    @Override
+    public String toString() {
+      return "first message after " + TimeUnit.NANOSECONDS.toMillis(firstMessageNs)
+          + " ms, p99 round trip " + TimeUnit.NANOSECONDS.toMicros(p99RoundTripNs) + " us, "
+          + messagesPerSecond + " messages/s";
+    }
+  }
+
+  // Connects a client with |clientFraming| to an echoing server with |serverFraming| and
+  // measures them with |message|.
+  private static LoopbackResult runLoopback(
+      Framing serverFraming, Framing clientFraming, String message) throws Exception {
+    final TCPEventLoop eventLoop = new TCPEventLoop("TCPMessageFramerTest");
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    final AtomicInteger errors = new AtomicInteger();
+    final LoopbackResult result = new LoopbackResult();
+    final TCPChannelClient[] clients = new TCPChannelClient[2];
+    try {
+      final int port = TCPEventLoopTest.findFreePort();
+      executor.submit(() -> {
+        clients[0] = new TCPChannelClient(executor, new LoopbackEvents(errors) {
+          @Override
+          public void onTCPConnected(boolean server) {
+            clients[0].send("hello");
+          }
+
+          @Override
+          public void onTCPMessage(String message) {
+            clients[0].send(message);
+          }
+        }, "0.0.0.0", port, serverFraming, eventLoop);
+      }).get();
+      final CountDownLatch listening = new CountDownLatch(1);
+      eventLoop.execute(listening::countDown);
+      assertTrue(listening.await(5, TimeUnit.SECONDS));
+
+      final long startNs = System.nanoTime();
+      executor.submit(() -> {
+        clients[1] = new TCPChannelClient(executor, new LoopbackEvents(errors) {
+          @Override
+          public void onTCPMessage(String message) {
+            received.add(message);
+          }
+        }, "127.0.0.1", port, clientFraming, eventLoop);
+      }).get();
+      assertEquals("hello", received.poll(5, TimeUnit.SECONDS));
+      result.firstMessageNs = System.nanoTime() - startNs;
+
+      final long[] roundTripsNs = new long[ROUND_TRIPS];
+      for (int i = 0; i < ROUND_TRIPS; i++) {
+        final long sentNs = System.nanoTime();
+        executor.execute(() -> clients[1].send(message));
+        assertEquals(message, received.poll(5, TimeUnit.SECONDS));
+        roundTripsNs[i] = System.nanoTime() - sentNs;
+      }
+      Arrays.sort(roundTripsNs);
+      result.p99RoundTripNs = roundTripsNs[ROUND_TRIPS * 99 / 100];
+
+      final long burstStartNs = System.nanoTime();
+      executor.execute(() -> {
+        for (int i = 0; i < BURST_MESSAGES; i++) {
+          clients[1].send(message);
+        }
+      });
+      for (int i = 0; i < BURST_MESSAGES; i++) {
+        assertEquals(message, received.poll(5, TimeUnit.SECONDS));
+      }
+      result.messagesPerSecond = BURST_MESSAGES * TimeUnit.SECONDS.toNanos(1)
+          / (System.nanoTime() - burstStartNs);
+      assertEquals(0, errors.get());
+    } finally {
+      executor.submit(() -> {
+        for (TCPChannelClient client : clients) {
+          if (client != null) {
+            client.disconnect();
+          }
+        }
+      }).get(5, TimeUnit.SECONDS);
+      executor.shutdown();
+      eventLoop.shutdown();
+    }
+    return result;
+  }
+
+  // A signaling message like a candidate or SDP exchanged over direct TCP connections, of
+  // roughly |size| characters.
+  private static String createSignalingMessage(int size) {
+    final StringBuilder builder = new StringBuilder("{\"type\":\"offer\",\"sdp\":\"v=0");
+    for (int payloadType = 96; builder.length() < size; payloadType++) {
+      builder.append("\\r\\na=rtpmap:").append(payloadType).append(" VP8/90000");
+    }
+    return builder.append("\"}").toString();
+  }
+
+  private static class LoopbackEvents implements TCPChannelEvents {
+    private final AtomicInteger errors;
+
+    LoopbackEvents(AtomicInteger errors) {
+      this.errors = errors;
+    }
+
+    @Override
+    public void onTCPConnected(boolean server) {}
+
+    @Override
+    public void onTCPMessage(String message) {}
+
+    @Override
+    public void onTCPError(String description) {
+      errors.incrementAndGet();
+    }
+
+    @Override
+    public void onTCPClose() {}
+  }
+
+  private static byte[] encode(Framing framing, List<String> messages) {
+    final TCPMessageFramer framer = TCPMessageFramer.create(framing);
+    final List<ByteBuffer> buffers = new ArrayList<>();
+    for (String message : messages) {
+      framer.encode(message, buffers);
+    }
+    int length = 0;
+    for (ByteBuffer buffer : buffers) {
+      length += buffer.remaining();
+    }
+    final ByteBuffer stream = ByteBuffer.allocate(length);
+    for (ByteBuffer buffer : buffers) {
+      stream.put(buffer);
+    }
+    return stream.array();
+  }
+
+  // Feeds |stream| to a new decoder in reads of |chunk| bytes.
+  private static List<String> decode(Framing framing, byte[] stream, int chunk)
+      throws IOException {
+    final TCPMessageFramer framer = TCPMessageFramer.create(framing);
+    final List<String> messages = new ArrayList<>();
+    for (int position = 0; position < stream.length; position += chunk) {
+      final ByteBuffer in =
+          ByteBuffer.wrap(stream, position, Math.min(chunk, stream.length - position));
+      framer.decode(in, messages);
+      assertFalse(in.hasRemaining());
+    }
+    return messages;
+  }
+
+  private static String repeat(char c, int count) {
+    final char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs ThreadCpuSampler against a fixture /proc/self/task tree. */
+public class ThreadCpuSamplerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File procRoot;
+  private ThreadCpuSampler sampler;
+
+  @Before
+  public void setUp() throws IOException {
+    procRoot = folder.newFolder("proc");
+    sampler = new ThreadCpuSampler(procRoot);
+  }
+
+  @After
+  public void tearDown() {
+    sampler.close();
+  }
+
+  @Test
+  public void failsWithoutThreads() throws IOException {
+    assertFalse(sampler.sample(0));
+    assertTrue(new File(procRoot, "self/task").mkdirs());
+    assertFalse(sampler.sample(1000));
+    // Unparsable stat files do not count as read.
+    writeFile("self/task/100/stat", "100 no comm\n");
+    writeFile("self/task/101/stat", "101 (main) S 1 2 3\n");
+    assertFalse(sampler.sample(2000));
+  }
+
+  @Test
+  public void readsCommWithSpacesAndParentheses() throws IOException {
+    writeStat(100, "Signal ing", 0, 0);
+    writeStat(101, "a) b (c", 0, 0);
+    writeStat(102, ")", 0, 0);
+    assertTrue(sampler.sample(0));
+    writeStat(100, "Signal ing", 30, 10);
+    writeStat(101, "a) b (c", 20, 0);
+    writeStat(102, ")", 5, 5);
+    assertTrue(sampler.sample(1000));
+    assertArrayEquals(new String[] {"Signal ing 40", "a) b (c 20", ") 10"}, getTopThreads(4));
+  }
+
+  @Test
+  public void foldsDigitRunsIntoGroups() throws IOException {
+    writeStat(100, "pool-3-thread-1", 0, 0);
+    writeStat(101, "pool-3-thread-12", 0, 0);
+    writeStat(102, "pool-12-thread-2", 0, 0);
+    writeStat(103, "RxComputationThreadPool-1", 0, 0);
+    writeStat(104, "main", 0, 0);
+    assertTrue(sampler.sample(0));
+    writeStat(100, "pool-3-thread-1", 10, 0);
+    writeStat(101, "pool-3-thread-12", 10, 5);
+    writeStat(102, "pool-12-thread-2", 0, 10);
+    writeStat(103, "RxComputationThreadPool-1", 20, 0);
+    writeStat(104, "main", 5, 0);
+    assertTrue(sampler.sample(1000));
+    assertArrayEquals(new String[] {"pool-#-thread-# 35", "RxComputationThreadPool-# 20",
+        "main 5"}, getTopThreads(4));
+  }
+
+  @Test
+  public void followsThreadExitAndRename() throws IOException {
+    writeStat(100, "main", 100, 0);
+    writeStat(101, "Thread-7", 50, 0);
+    writeStat(102, "worker", 10, 0);
+    assertTrue(sampler.sample(0));
+
+    // 101 exits, 102 renames itself and 103 starts.
+    deleteStat(101);
+    writeStat(100, "main", 110, 0);
+    writeStat(102, "AudioRecordJavaThread", 40, 0);
+    writeStat(103, "Thread-8", 60, 0);
+    assertTrue(sampler.sample(1000));
+    // The renamed thread's ticks since the last sample move with it. The new thread has no
+    // baseline yet, so its group is listed without CPU time.
+    assertArrayEquals(new String[] {"AudioRecordJavaThread 30", "main 10", "Thread-# 0"},
+        getTopThreads(4));
+
+    writeStat(103, "Thread-8", 80, 0);
+    assertTrue(sampler.sample(2000));
+    assertArrayEquals(new String[] {"Thread-# 20", "AudioRecordJavaThread 0", "main 0"},
+        sortedAfterFirst(getTopThreads(4)));
+
+    // Once all of its threads are gone, a group is dropped.
+    deleteStat(103);
+    assertTrue(sampler.sample(3000));
+    assertArrayEquals(new String[] {"AudioRecordJavaThread 0", "main 0"},
+        sorted(getTopThreads(4)));
+  }
+
+  @Test
+  public void ranksGroupsByCpuPercent() throws IOException {
+    writeStat(100, "idle", 0, 0);
+    writeStat(101, "encoder", 0, 0);
+    writeStat(102, "decoder", 0, 0);
+    writeStat(103, "network", 0, 0);
+    assertTrue(sampler.sample(10000));
+    // The first sample has no interval to compare against.
+    assertArrayEquals(new String[] {"decoder 0", "encoder 0", "idle 0", "network 0"},
+        sorted(getTopThreads(4)));
+
+    writeStat(101, "encoder", 120, 60);
+    writeStat(102, "decoder", 30, 0);
+    writeStat(103, "network", 1, 0);
+    // 180 ticks in 500 ms are 3.6 cores, and 1 tick is 2 % rounded.
+    assertTrue(sampler.sample(10500));
+    assertArrayEquals(new String[] {"encoder 360", "decoder 60", "network 2", "idle 0"},
+        getTopThreads(4));
+    // Shorter arrays get the busiest groups.
+    assertArrayEquals(new String[] {"encoder 360", "decoder 60"}, getTopThreads(2));
+    final String[] names = new String[3];
+    assertEquals(1, sampler.getTopThreads(names, new int[1]));
+    assertEquals("encoder", names[0]);
+
+    // 1 tick in 300 ms rounds up to 3 %, 1 tick in 3000 ms down to 0 %.
+    writeStat(103, "network", 2, 0);
+    assertTrue(sampler.sample(10800));
+    assertArrayEquals(new String[] {"network 3", "decoder 0", "encoder 0", "idle 0"},
+        sortedAfterFirst(getTopThreads(4)));
+    writeStat(103, "network", 3, 0);
+    assertTrue(sampler.sample(13800));
+    assertEquals("network 0", getTopThreads(1)[0]);
+  }
+
+  // Returns "<name> <cpu percent>" for the top |count| groups of the last sample.
+  private String[] getTopThreads(int count) {
+    final String[] names = new String[count];
+    final int[] cpuPercents = new int[count];
+    final String[] result = new String[sampler.getTopThreads(names, cpuPercents)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = names[i] + " " + cpuPercents[i];
+    }
+    return result;
+  }
+
+  // Groups with equal CPU time come in no particular order.
+  private static String[] sorted(String[] groups) {
+    Arrays.sort(groups);
+    return groups;
+  }
+
+  private static String[] sortedAfterFirst(String[] groups) {
+    Arrays.sort(groups, 1, groups.length);
+    return groups;
+  }
+
+  private void writeStat(int tid, String comm, long utime, long stime) throws IOException {
+    writeFile("self/task/" + tid + "/stat", tid + " (" + comm + ") S 1 " + tid + " " + tid
+        + " 0 -1 4194624 2573 0 1 0 " + utime + " " + stime + " 0 0 20 0 48 0 123456\n");
+  }
+
+  private void deleteStat(int tid) {
+    final File dir = new File(procRoot, "self/task/" + tid);
+    assertTrue(new File(dir, "stat").delete());
+    assertTrue(dir.delete());
+  }
+
+  private void writeFile(String path, String contents) throws IOException {
+    final File file = new File(procRoot, path);
+    file.getParentFile().mkdirs();
+    // Truncates and rewrites the same file, like the kernel regenerating it.
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Writes WAV files and parses them back chunk by chunk. */
+public class WavFileSinkTest {
+  private static final int SAMPLE_RATE = 48000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writesRiffHeader() throws IOException {
+    final byte[] audio = audio(9600);
+    final Wav wav = parse(write(new WavFileSink(SAMPLE_RATE, 2), "stereo.wav", audio));
+    assertEquals("RIFF", wav.riffId);
+    assertEquals(wav.fileBytes - 8, wav.riffSize);
+    assertEquals(1, wav.formatTag);
+    assertEquals(2, wav.channelCount);
+    assertEquals(SAMPLE_RATE, wav.sampleRate);
+    assertEquals(SAMPLE_RATE * 4, wav.byteRate);
+    assertEquals(4, wav.blockAlign);
+    assertEquals(16, wav.bitsPerSample);
+    assertFalse(wav.hasDs64);
+    assertEquals(audio.length, wav.dataSize);
+    assertArrayEquals(audio, wav.data);
+  }
+
+  @Test
+  public void writesEmptyFile() throws IOException {
+    final Wav wav = parse(write(new WavFileSink(SAMPLE_RATE, 1), "empty.wav", new byte[0]));
+    assertEquals(wav.fileBytes - 8, wav.riffSize);
+    assertEquals(0, wav.dataSize);
+  }
+
+  @Test
+  public void padsOddDataSize() throws IOException {
+    final byte[] audio = audio(1001);
+    final Wav wav = parse(write(new WavFileSink(SAMPLE_RATE, 1), "odd.wav", audio));
+    // The pad byte counts towards the RIFF size but not towards the data size.
+    assertEquals(0, wav.fileBytes % 2);
+    assertEquals(wav.fileBytes - 8, wav.riffSize);
+    assertEquals(1001, wav.dataSize);
+    assertArrayEquals(audio, wav.data);
+  }
+
+  @Test
+  public void isReadableByJavaSound() throws Exception {
+    final byte[] audio = audio(4800);
+    final File file = write(new WavFileSink(SAMPLE_RATE, 1), "javasound.wav", audio);
+    final AudioInputStream stream;
+    try {
+      stream = AudioSystem.getAudioInputStream(file);
+    } catch (UnsupportedAudioFileException e) {
+      throw new AssertionError("Not a valid WAV file", e);
+    }
+    try {
+      final AudioFormat format = stream.getFormat();
+      assertEquals(SAMPLE_RATE, format.getSampleRate(), 0);
+      assertEquals(1, format.getChannels());
+      assertEquals(16, format.getSampleSizeInBits());
+      assertFalse(format.isBigEndian());
+      assertEquals(audio.length / 2, stream.getFrameLength());
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void rewritesOversizedFileAsRf64() throws IOException {
+    final byte[] audio = audio(4000);
+    // Any file with more than 1000 bytes of audio counts as too big for RIFF.
+    final WavFileSink sink = new WavFileSink(SAMPLE_RATE, 2, 1000);
+    final Wav wav = parse(write(sink, "big.wav", audio));
+    assertEquals("RF64", wav.riffId);
+    assertEquals(0xffffffffL, wav.riffSize);
+    assertTrue(wav.hasDs64);
+    assertEquals(wav.fileBytes - 8, wav.ds64RiffSize);
+    assertEquals(audio.length, wav.ds64DataSize);
+    assertEquals(audio.length / 4, wav.ds64SampleCount);
+    assertEquals(0, wav.ds64TableLength);
+    assertEquals(0xffffffffL, wav.dataSize);
+    assertArrayEquals(audio, wav.data);
+    assertEquals(2, wav.channelCount);
+  }
+
+  @Test
+  public void keepsRiffAtTheLimit() throws IOException {
+    final File small = write(new WavFileSink(SAMPLE_RATE, 1), "small.wav", audio(100));
+    final long limit = small.length() - 8;
+    final Wav wav = parse(write(new WavFileSink(SAMPLE_RATE, 1, limit), "limit.wav", audio(100)));
+    assertEquals("RIFF", wav.riffId);
+    assertEquals(limit, wav.riffSize);
+  }
+
+  @Test
+  public void isReusedForSegments() throws IOException {
+    final WavFileSink sink = new WavFileSink(SAMPLE_RATE, 1);
+    final File first = folder.newFile("segment_000.wav");
+    final File second = folder.newFile("segment_001.wav");
+    sink.open(first);
+    sink.write(ByteBuffer.wrap(audio(300)));
+    // Opening the next segment completes the previous one.
+    sink.open(second);
+    sink.write(ByteBuffer.wrap(audio(200)));
+    sink.write(ByteBuffer.wrap(audio(200)));
+    sink.close();
+    sink.close();
+    assertEquals(300, parse(first).dataSize);
+    assertEquals(400, parse(second).dataSize);
+    assertEquals(parse(second).fileBytes - 8, parse(second).riffSize);
+  }
+
+  private File write(WavFileSink sink, String name, byte[] audio) throws IOException {
+    final File file = folder.newFile(name);
+    sink.open(file);
+    // In pieces, like the writer thread hands over the ring.
+    for (int offset = 0; offset < audio.length; offset += 777) {
+      sink.write(ByteBuffer.wrap(audio, offset, Math.min(777, audio.length - offset)));
+    }
+    sink.close();
+    return file;
+  }
+
+  private static byte[] audio(int length) {
+    final byte[] audio = new byte[length];
+    for (int i = 0; i < length; i++) {
+      audio[i] = (byte) (i * 7 + 3);
+    }
+    return audio;
+  }
+
+  private static class Wav {
+    long fileBytes;
+    String riffId;
+    long riffSize;
+    boolean hasDs64;
+    long ds64RiffSize;
+    long ds64DataSize;
+    long ds64SampleCount;
+    int ds64TableLength;
+    int formatTag;
+    int channelCount;
+    int sampleRate;
+    int byteRate;
+    int blockAlign;
+    int bitsPerSample;
+    long dataSize;
+    byte[] data;
+  }
+
+  // Walks the chunks like a player would, using the ds64 sizes when the file is RF64.
+  private static Wav parse(File file) throws IOException {
+    final ByteBuffer buffer =
+        ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    final Wav wav = new Wav();
+    wav.fileBytes = buffer.limit();
+    wav.riffId = fourCc(buffer);
+    wav.riffSize = buffer.getInt() & 0xffffffffL;
+    assertEquals("WAVE", fourCc(buffer));
+    while (buffer.remaining() >= 8) {
+      final String id = fourCc(buffer);
+      final long size = buffer.getInt() & 0xffffffffL;
+      final int start = buffer.position();
+      switch (id) {
+        case "ds64":
+          wav.hasDs64 = true;
+          wav.ds64RiffSize = buffer.getLong();
+          wav.ds64DataSize = buffer.getLong();
+          wav.ds64SampleCount = buffer.getLong();
+          wav.ds64TableLength = buffer.getInt();
+          break;
+        case "fmt ":
+          wav.formatTag = buffer.getShort();
+          wav.channelCount = buffer.getShort();
+          wav.sampleRate = buffer.getInt();
+          wav.byteRate = buffer.getInt();
+          wav.blockAlign = buffer.getShort();
+          wav.bitsPerSample = buffer.getShort();
+          break;
+        case "data":
+          wav.dataSize = size;
+          final long dataBytes = size == 0xffffffffL && wav.hasDs64 ? wav.ds64DataSize : size;
+          wav.data = Arrays.copyOfRange(buffer.array(), start, start + (int) dataBytes);
+          break;
+        default:
+          break;
+      }
+      final long dataBytes = id.equals("data") ? wav.data.length : size;
+      buffer.position(start + (int) (dataBytes + (dataBytes & 1)));
+    }
+    assertEquals(0, buffer.remaining());
+    return wav;
+  }
+
+  private static String fourCc(ByteBuffer buffer) {
+    final byte[] id = new byte[4];
+    buffer.get(id);
+    return new String(id, StandardCharsets.US_ASCII);
+  }
+}
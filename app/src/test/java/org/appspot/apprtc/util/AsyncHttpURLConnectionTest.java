@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2020 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs requests against an embedded HTTP server. */
+public class AsyncHttpURLConnectionTest {
+  private static final int BURST_SIZE = 1000;
+  // Pending request limit of rejectedRequestsFailAsynchronously().
+  private static final int MAX_PENDING_WHEN_REJECTING = 100;
+  private static final int POOL_SIZE = 4;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private String baseUrl;
+  private volatile CountDownLatch slowResponse = new CountDownLatch(0);
+  private final int defaultMaxPendingRequests = AsyncHttpURLConnection.getMaxPendingRequests();
+
+  @Before
+  public void setUp() throws IOException {
+    // Otherwise delayed ACKs of the split response writes add ~40 ms to every request.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/echo", exchange -> respond(exchange, 200, readBody(exchange)));
+    server.createContext("/missing", exchange -> respond(exchange, 404, "not found"));
+    server.createContext("/slow", exchange -> {
+      try {
+        slowResponse.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      respond(exchange, 200, "late");
+    });
+    serverExecutor = Executors.newFixedThreadPool(16);
+    server.setExecutor(serverExecutor);
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    AsyncHttpURLConnection.setMaxPendingRequests(defaultMaxPendingRequests);
+    slowResponse.countDown();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void burstOfPostsUsesBoundedPool() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(BURST_SIZE);
+    final AtomicInteger errors = new AtomicInteger();
+    final AtomicInteger mismatches = new AtomicInteger();
+    final Set<Thread> callbackThreads = ConcurrentHashMap.newKeySet();
+
+    // All at once, the way a reconnecting client flushes its backlog.
+    for (int i = 0; i < BURST_SIZE; i++) {
+      final String body = "message " + i;
+      new AsyncHttpURLConnection("POST", baseUrl + "/echo", body, new AsyncHttpEvents() {
+        @Override
+        public void onHttpError(String errorMessage) {
+          errors.incrementAndGet();
+          finish();
+        }
+
+        @Override
+        public void onHttpComplete(String response) {
+          if (!body.equals(response)) {
+            mismatches.incrementAndGet();
+          }
+          finish();
+        }
+
+        private void finish() {
+          callbackThreads.add(Thread.currentThread());
+          done.countDown();
+        }
+      }).send();
+    }
+    assertTrue(done.await(60, TimeUnit.SECONDS));
+
+    assertEquals(0, errors.get());
+    assertEquals(0, mismatches.get());
+    assertTrue(callbackThreads.toString(), callbackThreads.size() <= POOL_SIZE);
+  }
+
+  @Test
+  public void rejectedRequestsFailAsynchronously() throws InterruptedException {
+    // Block the pool and fill its queue, so that the rest of the burst is rejected.
+    slowResponse = new CountDownLatch(1);
+    AsyncHttpURLConnection.setMaxPendingRequests(MAX_PENDING_WHEN_REJECTING);
+    final Thread caller = Thread.currentThread();
+    final AtomicInteger callerThreadCallbacks = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(BURST_SIZE);
+    for (int i = 0; i < BURST_SIZE; i++) {
+      new AsyncHttpURLConnection("GET", baseUrl + "/slow", null, new AsyncHttpEvents() {
+        @Override
+        public void onHttpError(String errorMessage) {
+          if (errorMessage.contains("rejected")) {
+            rejected.incrementAndGet();
+          }
+          finish();
+        }
+
+        @Override
+        public void onHttpComplete(String response) {
+          finish();
+        }
+
+        private void finish() {
+          if (Thread.currentThread() == caller) {
+            callerThreadCallbacks.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }).send();
+    }
+    slowResponse.countDown();
+    assertTrue(done.await(60, TimeUnit.SECONDS));
+    assertEquals(BURST_SIZE - MAX_PENDING_WHEN_REJECTING, rejected.get());
+    assertEquals(0, callerThreadCallbacks.get());
+  }
+
+  @Test
+  public void hugeContentLengthIsNotPreallocated() throws Exception {
+    // Announces 2 GB but sends a few bytes and closes the connection.
+    try (ServerSocket lyingServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+      final Thread serverThread = new Thread(() -> {
+        try (Socket socket = lyingServer.accept()) {
+          final InputStream in = socket.getInputStream();
+          // Skip the request headers.
+          int matched = 0;
+          while (matched < 4) {
+            final int c = in.read();
+            if (c == -1) {
+              return;
+            }
+            matched = (c == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+          }
+          socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n"
+              + "\r\npartial").getBytes("UTF-8"));
+        } catch (IOException e) {
+          // The client went away.
+        }
+      });
+      serverThread.start();
+      final String result =
+          sendAndWaitToUrl("GET", "http://127.0.0.1:" + lyingServer.getLocalPort() + "/", 8000);
+      // HttpURLConnection may report the early end of the body or return what it got.
+      assertTrue(result, result.equals("ok: partial") || result.startsWith("error: "));
+      serverThread.join();
+    }
+  }
+
+  @Test
+  public void reportsNon200AndTimeout() throws InterruptedException {
+    assertTrue(sendAndWait("GET", "/missing", 8000).startsWith("error: Non-200"));
+    slowResponse = new CountDownLatch(1);
+    assertTrue(sendAndWait("GET", "/slow", 200).endsWith("timeout"));
+    slowResponse.countDown();
+    // The pool keeps working after a timed out request.
+    assertEquals("ok: ping", sendAndWait("POST", "/echo", 8000));
+  }
+
+  @Test
+  public void noCallbackAfterCancel() throws InterruptedException {
+    slowResponse = new CountDownLatch(1);
+    final AtomicReference<String> result = new AtomicReference<>();
+    final AsyncHttpURLConnection request =
+        new AsyncHttpURLConnection("GET", baseUrl + "/slow", null, recordingEvents(result, null));
+    request.send();
+    request.cancel();
+    slowResponse.countDown();
+    // Let the request finish or fail on the pool.
+    assertEquals("ok: ping", sendAndWait("POST", "/echo", 8000));
+    Thread.sleep(100);
+    assertEquals(null, result.get());
+  }
+
+  @Test
+  public void cancelWaitsForRunningCallback() throws InterruptedException {
+    final CountDownLatch callbackStarted = new CountDownLatch(1);
+    final AtomicInteger callbacksRunning = new AtomicInteger();
+    final AtomicReference<Thread> callbackThread = new AtomicReference<>();
+    final AsyncHttpURLConnection request = new AsyncHttpURLConnection(
+        "POST", baseUrl + "/echo", "ping", new AsyncHttpEvents() {
+          @Override
+          public void onHttpError(String errorMessage) {
+            onHttpComplete(errorMessage);
+          }
+
+          @Override
+          public void onHttpComplete(String response) {
+            callbackThread.set(Thread.currentThread());
+            callbacksRunning.incrementAndGet();
+            callbackStarted.countDown();
+            try {
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            callbacksRunning.decrementAndGet();
+          }
+        });
+    request.send();
+    assertTrue(callbackStarted.await(10, TimeUnit.SECONDS));
+    request.cancel();
+    assertEquals(0, callbacksRunning.get());
+    assertNotSame(Thread.currentThread(), callbackThread.get());
+  }
+
+  @Test
+  public void callbackCanCancelItself() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AsyncHttpURLConnection[] request = new AsyncHttpURLConnection[1];
+    request[0] = new AsyncHttpURLConnection(
+        "POST", baseUrl + "/echo", "ping", new AsyncHttpEvents() {
+          @Override
+          public void onHttpError(String errorMessage) {
+            done.countDown();
+          }
+
+          @Override
+          public void onHttpComplete(String response) {
+            request[0].cancel();
+            done.countDown();
+          }
+        });
+    request[0].send();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  private String sendAndWait(String method, String path, int timeoutMs)
+      throws InterruptedException {
+    return sendAndWaitToUrl(method, baseUrl + path, timeoutMs);
+  }
+
+  private String sendAndWaitToUrl(String method, String url, int timeoutMs)
+      throws InterruptedException {
+    final AtomicReference<String> result = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AsyncHttpURLConnection request = new AsyncHttpURLConnection(
+        method, url, method.equals("POST") ? "ping" : null, recordingEvents(result, done));
+    request.setTimeoutMs(timeoutMs);
+    request.send();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    return result.get();
+  }
+
+  private static AsyncHttpEvents recordingEvents(
+      AtomicReference<String> result, CountDownLatch done) {
+    return new AsyncHttpEvents() {
+      @Override
+      public void onHttpError(String errorMessage) {
+        result.set("error: " + errorMessage);
+        if (done != null) {
+          done.countDown();
+        }
+      }
+
+      @Override
+      public void onHttpComplete(String response) {
+        result.set("ok: " + response);
+        if (done != null) {
+          done.countDown();
+        }
+      }
+    };
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    final InputStream in = exchange.getRequestBody();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    final byte[] bytes = body.getBytes("UTF-8");
+    try {
+      exchange.sendResponseHeaders(code, bytes.length);
+      final OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } catch (IOException e) {
+      // The client went away, e.g. after a timeout or cancel().
+      exchange.close();
+    }
+  }
+}
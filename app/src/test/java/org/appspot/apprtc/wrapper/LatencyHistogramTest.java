@@ -0,0 +1,140 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram("Test");
+
+    private static long ms(double ms) {
+        return (long) (ms * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    // Returns the bucket counts printed by toString().
+    private String buckets() {
+        final String text = histogram.toString();
+        return text.substring(text.indexOf('[') + 1, text.indexOf(']'));
+    }
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMs(50));
+        assertEquals(0, histogram.getPercentileMs(100));
+        assertEquals("Test: 0 samples, avg 0 ms, p50 <0 ms, p90 <0 ms, p99 <0 ms, max 0 ms "
+                + "[0 0 0 0 0 0 0 0 0 0 0 0 0]", histogram.toString());
+    }
+
+    @Test
+    public void countsIntoPowerOfTwoBuckets() {
+        // The lower bound of every bucket and the value just below the next one.
+        final long[] latenciesMs = {0, 1, 2, 3, 4, 7, 8, 1023, 1024, 2047, 2048, 60000};
+        for (final long latencyMs : latenciesMs) {
+            histogram.add(TimeUnit.MILLISECONDS.toNanos(latencyMs));
+        }
+        histogram.add(ms(0.999));
+        assertEquals("2 1 2 2 1 0 0 0 0 0 1 2 2", buckets());
+        assertEquals(latenciesMs.length + 1, histogram.getCount());
+    }
+
+    @Test
+    public void countsNegativeLatenciesAsZero() {
+        histogram.add(-5);
+        assertEquals("1 0 0 0 0 0 0 0 0 0 0 0 0", buckets());
+        assertEquals(1, histogram.getPercentileMs(100));
+    }
+
+    @Test
+    public void reportsBucketUpperBounds() {
+        for (int i = 0; i < 50; i++) {
+            histogram.add(ms(0.5));
+        }
+        for (int i = 0; i < 40; i++) {
+            histogram.add(ms(3));
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.add(ms(100));
+        }
+        histogram.add(ms(5000));
+        assertEquals(1, histogram.getPercentileMs(0));
+        assertEquals(1, histogram.getPercentileMs(50));
+        assertEquals(4, histogram.getPercentileMs(50.5));
+        assertEquals(4, histogram.getPercentileMs(90));
+        assertEquals(128, histogram.getPercentileMs(99));
+        // The last bucket has no upper bound, so the maximum is reported.
+        assertEquals(5000, histogram.getPercentileMs(100));
+    }
+
+    @Test
+    public void neverReportsMoreThanTheMaximum() {
+        for (int i = 0; i < 10; i++) {
+            histogram.add(ms(5));
+        }
+        // The bucket is [4, 8) ms, but nothing took 6 ms or more.
+        assertEquals(6, histogram.getPercentileMs(50));
+        assertEquals(6, histogram.getPercentileMs(100));
+    }
+
+    @Test
+    public void minimumIsTheFirstPopulatedBucket() {
+        histogram.add(ms(3));
+        histogram.add(ms(300));
+        assertEquals(4, histogram.getPercentileMs(0));
+        assertEquals(4, histogram.getPercentileMs(50));
+        assertEquals(301, histogram.getPercentileMs(51));
+    }
+
+    @Test
+    public void reportsAverageAndMaximum() {
+        histogram.add(ms(10));
+        histogram.add(ms(20));
+        histogram.add(ms(90));
+        assertEquals("Test: 3 samples, avg 40 ms, p50 <32 ms, p90 <91 ms, p99 <91 ms, max 90 ms "
+                + "[0 0 0 0 1 1 0 1 0 0 0 0 0]", histogram.toString());
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        histogram.add(ms(5000));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMs(100));
+        histogram.add(ms(2));
+        assertEquals(3, histogram.getPercentileMs(100));
+        assertEquals("0 0 1 0 0 0 0 0 0 0 0 0 0", buckets());
+    }
+
+    @Test
+    public void countsEverySampleFromManyThreads() throws InterruptedException {
+        final int threadCount = 8;
+        final int samplesPerThread = 100_000;
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < samplesPerThread; i++) {
+                    histogram.add(ms((seed * samplesPerThread + i) % 4096));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadCount * samplesPerThread, histogram.getCount());
+        long bucketTotal = 0;
+        for (final String bucket : buckets().split(" ")) {
+            bucketTotal += Long.parseLong(bucket);
+        }
+        assertEquals(histogram.getCount(), bucketTotal);
+        assertTrue(histogram.getPercentileMs(50) <= histogram.getPercentileMs(99));
+        assertEquals(4095, histogram.getPercentileMs(100));
+    }
+}
@@ -0,0 +1,147 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.wrapper.OutboundMessageQueue.Message;
+import org.appspot.apprtc.wrapper.OutboundMessageQueue.Priority;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class OutboundMessageQueueTest {
+  private static final String SIGNAL = StompWebSocketChannelClient.SEND_URL;
+
+  private long nowMs = 1000;
+  private final OutboundMessageQueue queue = new OutboundMessageQueue(4, 30000, () -> nowMs);
+
+  private static List<String> payloads(List<Message> messages) {
+    final List<String> payloads = new ArrayList<>();
+    for (final Message message : messages) {
+      payloads.add(message.payload);
+    }
+    return payloads;
+  }
+
+  @Test
+  public void replaysControlMessagesBeforeCandidates() {
+    assertTrue(queue.add("c1", SIGNAL, Priority.CANDIDATES));
+    assertTrue(queue.add("offer", SIGNAL, Priority.CONTROL));
+    assertTrue(queue.add("c2", SIGNAL, Priority.CANDIDATES));
+    assertTrue(queue.add("chat", StompWebSocketChannelClient.RANDOM_CHAT_URL, Priority.CONTROL));
+    assertEquals(4, queue.size());
+
+    final List<Message> messages = queue.drain();
+    assertEquals(Arrays.asList("offer", "chat", "c1", "c2"), payloads(messages));
+    // Every message keeps its own destination and tier.
+    assertEquals(StompWebSocketChannelClient.RANDOM_CHAT_URL, messages.get(1).destination);
+    assertEquals(Priority.CANDIDATES, messages.get(2).priority);
+    assertEquals(0, queue.size());
+    assertTrue(queue.drain().isEmpty());
+  }
+
+  @Test
+  public void oldestCandidateMakesRoomWhenFull() {
+    queue.add("c1", SIGNAL, Priority.CANDIDATES);
+    queue.add("c2", SIGNAL, Priority.CANDIDATES);
+    queue.add("offer", SIGNAL, Priority.CONTROL);
+    queue.add("c3", SIGNAL, Priority.CANDIDATES);
+    assertTrue(queue.add("c4", SIGNAL, Priority.CANDIDATES));
+    assertTrue(queue.add("bye", SIGNAL, Priority.CONTROL));
+    assertEquals(2, queue.getDroppedCount());
+    assertEquals(Arrays.asList("offer", "bye", "c3", "c4"), payloads(queue.drain()));
+  }
+
+  @Test
+  public void dropsControlMessageWhenFullOfControlMessages() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.add("m" + i, SIGNAL, Priority.CONTROL));
+    }
+    assertFalse(queue.add("m4", SIGNAL, Priority.CONTROL));
+    assertFalse(queue.add("c0", SIGNAL, Priority.CANDIDATES));
+    assertEquals(2, queue.getDroppedCount());
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), payloads(queue.drain()));
+  }
+
+  @Test
+  public void dropsStaleCandidates() {
+    queue.add("c1", SIGNAL, Priority.CANDIDATES);
+    nowMs += 20000;
+    queue.add("c2", SIGNAL, Priority.CANDIDATES);
+    queue.add("offer", SIGNAL, Priority.CONTROL);
+    nowMs += 10001;
+    // c1 is older than 30 s now, c2 is not. Control messages never get stale.
+    assertEquals(Arrays.asList("offer", "c2"), payloads(queue.drain()));
+    assertEquals(1, queue.getDroppedCount());
+  }
+
+  @Test
+  public void staleCandidatesMakeRoomBeforeFreshOnes() {
+    queue.add("c1", SIGNAL, Priority.CANDIDATES);
+    nowMs += 40000;
+    queue.add("c2", SIGNAL, Priority.CANDIDATES);
+    queue.add("c3", SIGNAL, Priority.CANDIDATES);
+    queue.add("c4", SIGNAL, Priority.CANDIDATES);
+    assertTrue(queue.add("c5", SIGNAL, Priority.CANDIDATES));
+    assertEquals(Arrays.asList("c2", "c3", "c4", "c5"), payloads(queue.drain()));
+  }
+
+  @Test
+  public void requeuedMessagesGoAheadOfNewerOnes() {
+    queue.add("offer", SIGNAL, Priority.CONTROL);
+    queue.add("c1", SIGNAL, Priority.CANDIDATES);
+    final List<Message> unsent = queue.drain();
+    nowMs += 100;
+    // Sent while the lost connection was being replaced.
+    queue.add("c2", SIGNAL, Priority.CANDIDATES);
+    queue.add("bye", SIGNAL, Priority.CONTROL);
+    queue.requeue(unsent);
+    assertEquals(Arrays.asList("offer", "bye", "c1", "c2"), payloads(queue.drain()));
+    assertEquals(0, queue.getDroppedCount());
+  }
+
+  @Test
+  public void requeueKeepsControlMessagesOverCandidates() {
+    final List<Message> unsent = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      unsent.add(new Message("m" + i, SIGNAL, Priority.CONTROL, nowMs));
+      unsent.add(new Message("c" + i, SIGNAL, Priority.CANDIDATES, nowMs));
+    }
+    queue.add("m3", SIGNAL, Priority.CONTROL);
+    queue.requeue(unsent);
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), payloads(queue.drain()));
+    assertEquals(3, queue.getDroppedCount());
+
+    // With control messages only, the newest ones are dropped.
+    unsent.clear();
+    for (int i = 0; i < 6; i++) {
+      unsent.add(new Message("m" + i, SIGNAL, Priority.CONTROL, nowMs));
+    }
+    queue.requeue(unsent);
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), payloads(queue.drain()));
+    assertEquals(5, queue.getDroppedCount());
+  }
+
+  @Test
+  public void requeuedCandidatesKeepTheirAge() {
+    final List<Message> unsent = new ArrayList<>();
+    unsent.add(new Message("c1", SIGNAL, Priority.CANDIDATES, nowMs - 30001));
+    unsent.add(new Message("c2", SIGNAL, Priority.CANDIDATES, nowMs - 29999));
+    queue.requeue(unsent);
+    assertEquals(Arrays.asList("c2"), payloads(queue.drain()));
+    assertEquals(1, queue.getDroppedCount());
+  }
+
+  @Test
+  public void clearKeepsTheDroppedCount() {
+    queue.add("c1", SIGNAL, Priority.CANDIDATES);
+    nowMs += 30001;
+    queue.add("offer", SIGNAL, Priority.CONTROL);
+    queue.clear();
+    assertEquals(0, queue.size());
+    assertEquals(1, queue.getDroppedCount());
+  }
+}
@@ -0,0 +1,344 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.gson.Gson;
+
+import org.appspot.apprtc.wrapper.SignalingMessageDecoder.SignalType;
+import org.appspot.apprtc.wrapper.SignalingMessageDecoder.SignalingMessage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+public class SignalingMessageDecoderTest {
+    private static final Logger LOG = Logger.getLogger(SignalingMessageDecoderTest.class.getName());
+    private static final int BENCHMARK_ROUNDS = 20_000;
+    private static final String SDP = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\na=\"quoted\\\"\r\n";
+
+    private final Gson gson = new Gson();
+    private final SignalingMessageDecoder decoder = new SignalingMessageDecoder(gson);
+
+    @Test
+    public void roomFieldsMatchGson() throws IOException {
+        final String[] messages = {
+                "{\"type\":2,\"status\":0,\"code\":\"FINDING\"}",
+                "{\"type\":2,\"code\":\"FOUND\",\"roomId\":\"r1\",\"isInitiator\":true,"
+                        + "\"signature\":\"s\",\"partnerSID\":\"p1\",\"partnerInfo\":"
+                        + "{\"nickname\":\"n\",\"birth\":1990,\"gender\":\"f\",\"lastOnline\":5}}",
+                "{\"type\":5,\"status\":1,\"code\":\"LEAVE_ROOM\",\"roomId\":\"r1\"}",
+                "{\"type\":5,\"status\":null,\"isInitiator\":null,\"extra\":[1,{\"a\":2}]}",
+                "{\"code\":\"FINDING\",\"type\":2}",
+        };
+        for (final String message : messages) {
+            final RoomResponse expected = gson.fromJson(message, RoomResponse.class);
+            final RoomResponse actual = decoder.decode(message).room;
+            assertEquals(message, expected.type, actual.type);
+            assertEquals(message, expected.status, actual.status);
+            assertEquals(message, expected.code, actual.code);
+            assertEquals(message, expected.roomId, actual.roomId);
+            assertEquals(message, expected.isInitiator, actual.isInitiator);
+            assertEquals(message, expected.signature, actual.signature);
+            assertEquals(message, expected.partnerSID, actual.partnerSID);
+            assertEquals(message, expected.isSuccess(), actual.isSuccess());
+            if (expected.partnerInfo == null) {
+                assertNull(actual.partnerInfo);
+            } else {
+                assertEquals(expected.partnerInfo.nickname, actual.partnerInfo.nickname);
+                assertEquals(expected.partnerInfo.birth, actual.partnerInfo.birth);
+                assertEquals(expected.partnerInfo.lastOnline, actual.partnerInfo.lastOnline);
+            }
+        }
+    }
+
+    @Test
+    public void missingStatusKeepsSuccess() throws IOException {
+        final RoomResponse room = decoder.decode("{\"type\":2,\"code\":\"FINDING\"}").room;
+        assertEquals(Integer.valueOf(BaseResponse.SUCCESS), room.status);
+        assertTrue(room.isSuccess());
+    }
+
+    @Test
+    public void decodesEncodedSdp() throws IOException {
+        final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+        for (final boolean nested : new boolean[] {false, true}) {
+            encoder.setNestedMessages(nested);
+            for (final String type : new String[] {"offer", "answer"}) {
+                final SignalingMessage message =
+                        decoder.decode(asServerMessage(encoder.encodeSdp("sid", "room", type, SDP)));
+                assertEquals(BaseResponse.TYPE_SIGNAL_MSG, message.type);
+                assertNull(message.room);
+                assertEquals(type.equals("offer") ? SignalType.OFFER : SignalType.ANSWER,
+                        message.signalType);
+                assertEquals(SDP, message.sdp.description);
+            }
+        }
+    }
+
+    @Test
+    public void decodesEncodedCandidates() throws IOException {
+        final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+        final List<IceCandidate> candidates = Arrays.asList(
+                new IceCandidate("0", 0, "candidate:1 1 udp 2122260223 10.0.0.1 5000 typ host"),
+                new IceCandidate("1", 1, "candidate:2 1 tcp 1518280447 10.0.0.1 9 typ host"));
+        for (final boolean nested : new boolean[] {false, true}) {
+            encoder.setNestedMessages(nested);
+
+            SignalingMessage message = decoder.decode(asServerMessage(encoder.encodeCandidates(
+                    "sid", "room", "candidates", Collections.singletonList(candidates.get(0)))));
+            assertEquals(SignalType.CANDIDATE, message.signalType);
+            assertCandidates(candidates.subList(0, 1), message.candidates);
+
+            message = decoder.decode(asServerMessage(
+                    encoder.encodeCandidates("sid", "room", "candidates", candidates)));
+            assertEquals(SignalType.CANDIDATES, message.signalType);
+            assertCandidates(candidates, message.candidates);
+
+            message = decoder.decode(asServerMessage(
+                    encoder.encodeCandidates("sid", "room", "remove-candidates", candidates)));
+            assertEquals(SignalType.REMOVE_CANDIDATES, message.signalType);
+            assertCandidates(candidates, message.candidates);
+        }
+    }
+
+    @Test
+    public void decodesOtherSignals() throws IOException {
+        SignalingMessage message = decoder.decode("{\"type\":3,\"msg\":\"{\\\"type\\\":\\\"bye\\\"}\"}");
+        assertEquals(SignalType.BYE, message.signalType);
+
+        message = decoder.decode("{\"type\":3,\"msg\":{\"type\":\"renegotiate\",\"x\":[1]}}");
+        assertEquals(SignalType.UNKNOWN, message.signalType);
+        assertEquals("renegotiate", message.signalTypeName);
+
+        message = decoder.decode("{\"type\":3,\"msg\":\"\",\"error\":\"TO_NOT_FOUND\"}");
+        assertEquals(SignalType.NONE, message.signalType);
+        assertEquals("TO_NOT_FOUND", message.error);
+
+        message = decoder.decode("{\"type\":1,\"status\":0,\"code\":\"REGISTERED\"}");
+        assertEquals(BaseResponse.TYPE_REGISTER_USR, message.type);
+        assertNull(message.room);
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        final String[] messages = {
+                "{\"status\":0}",
+                "{\"type\":3,\"msg\":{\"type\":\"offer\"}}",
+                "{\"type\":3,\"msg\":{\"type\":\"candidate\",\"id\":\"0\"}}",
+                "{\"type\":3,\"msg\":{\"type\":\"candidates\"}}",
+                "{\"type\":3,\"msg\":{\"type\":\"candidates\",\"candidates\":[{\"id\":\"0\"}]}}",
+                "{\"type\":3,",
+        };
+        for (final String message : messages) {
+            try {
+                decoder.decode(message);
+                fail(message);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /** Decodes one message and sums up what it read, so that the work is not optimized away. */
+    private interface Decode {
+        long decode(String message) throws Exception;
+    }
+
+    /** Bytes allocated and latencies of one benchmark run. */
+    private static class BenchmarkResult {
+        long bytes;
+        final long[] latenciesNs = new long[BENCHMARK_ROUNDS];
+        long checksum;
+
+        long getMeanNs() {
+            long sum = 0;
+            for (final long latencyNs : latenciesNs) {
+                sum += latencyNs;
+            }
+            return sum / latenciesNs.length;
+        }
+
+        long getP99Ns() {
+            final long[] sorted = latenciesNs.clone();
+            Arrays.sort(sorted);
+            return sorted[sorted.length * 99 / 100];
+        }
+
+        long getBytesPerMessage() {
+            return bytes / BENCHMARK_ROUNDS;
+        }
+
+        @Override
+        public String toString() {
+            return getMeanNs() + "/" + getP99Ns() + " ns mean/p99, " + getBytesPerMessage()
+                    + " bytes per message";
+        }
+    }
+
+    /**
+     * Compares the allocations and latency of decoding a call setup's worth of server messages
+     * with the JSONObject and Gson parsing onWebSocketMessage did before the decoder. The
+     * decoder also runs on the nested form of the peer messages, which the old path could not
+     * read.
+     */
+    @Test
+    public void benchmarkAgainstJsonObject() throws Exception {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        final List<String> messages = createCallSetupMessages(false);
+        final List<String> nestedMessages = createCallSetupMessages(true);
+        for (int i = 0; i < messages.size(); i++) {
+            final long expected = decodeWithJsonObject(messages.get(i));
+            assertEquals(messages.get(i), expected, checksum(decoder.decode(messages.get(i))));
+            assertEquals(nestedMessages.get(i), expected,
+                    checksum(decoder.decode(nestedMessages.get(i))));
+        }
+        final Decode legacy = this ::decodeWithJsonObject;
+        final Decode streaming = message -> checksum(decoder.decode(message));
+        // Warm up all paths.
+        benchmark(allocations, legacy, messages);
+        benchmark(allocations, streaming, messages);
+        benchmark(allocations, streaming, nestedMessages);
+
+        final BenchmarkResult legacyResult = benchmark(allocations, legacy, messages);
+        final BenchmarkResult stringResult = benchmark(allocations, streaming, messages);
+        final BenchmarkResult nestedResult = benchmark(allocations, streaming, nestedMessages);
+        LOG.info(messages.size() + " messages, JSONObject: " + legacyResult
+                + "; decoder: " + stringResult + "; decoder, nested: " + nestedResult
+                + " (checksum " + (legacyResult.checksum + stringResult.checksum
+                + nestedResult.checksum) + ")");
+        assertTrue("decoder " + stringResult + ", JSONObject " + legacyResult,
+                stringResult.getMeanNs() < legacyResult.getMeanNs());
+        assertTrue("decoder " + nestedResult + ", JSONObject " + legacyResult,
+                nestedResult.getMeanNs() < legacyResult.getMeanNs());
+        // Each JsonReader starts with a 2 KB buffer, and a peer message in string form needs a
+        // second one, so small messages cost more than with JSONObject. The nested form does
+        // not, and skips unescaping the peer message into an intermediate string.
+        assertTrue("decoder " + stringResult + ", JSONObject " + legacyResult,
+                stringResult.bytes < legacyResult.bytes * 2);
+        assertTrue("decoder " + nestedResult + ", JSONObject " + legacyResult,
+                nestedResult.bytes < legacyResult.bytes);
+    }
+
+    private static BenchmarkResult benchmark(com.sun.management.ThreadMXBean allocations,
+            Decode decode, List<String> messages) throws Exception {
+        final long threadId = Thread.currentThread().getId();
+        final BenchmarkResult result = new BenchmarkResult();
+        final long startBytes = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            final long startNs = System.nanoTime();
+            result.checksum += decode.decode(messages.get(i % messages.size()));
+            result.latenciesNs[i] = System.nanoTime() - startNs;
+        }
+        result.bytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+        return result;
+    }
+
+    // The room, SDP and candidate messages one side of a call receives, as the server sends
+    // them, with the peer messages in |nested| form or in string form.
+    private static List<String> createCallSetupMessages(boolean nested) {
+        final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+        encoder.setNestedMessages(nested);
+        final StringBuilder sdp = new StringBuilder(SDP);
+        for (int payloadType = 96; sdp.length() < 4096; payloadType++) {
+            sdp.append("a=rtpmap:").append(payloadType).append(" VP8/90000\r\n")
+                    .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n");
+        }
+        final List<IceCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            candidates.add(new IceCandidate("0", 0, "candidate:" + i + " 1 udp "
+                    + (2122260223 - i) + " 192.168.1." + (i + 2) + " 5000 typ host generation 0"));
+        }
+        final List<String> messages = new ArrayList<>();
+        messages.add("{\"type\":2,\"status\":0,\"code\":\"FOUND\",\"roomId\":\"r1\","
+                + "\"isInitiator\":false,\"signature\":\"s\",\"partnerSID\":\"p1\","
+                + "\"partnerInfo\":{\"nickname\":\"n\",\"birth\":1990,\"gender\":\"f\"}}");
+        messages.add(asServerMessage(encoder.encodeSdp("sid", "r1", "offer", sdp.toString())));
+        for (final IceCandidate candidate : candidates) {
+            messages.add(asServerMessage(encoder.encodeCandidates(
+                    "sid", "r1", "candidates", Collections.singletonList(candidate))));
+        }
+        messages.add(asServerMessage(
+                encoder.encodeCandidates("sid", "r1", "candidates", candidates)));
+        return messages;
+    }
+
+    // Parses |message| like onWebSocketMessage did before the decoder, and sums up the parts
+    // it read like checksum() does.
+    private long decodeWithJsonObject(String message) throws JSONException {
+        JSONObject json = new JSONObject(message);
+        final int type = json.getInt("type");
+        if (type != BaseResponse.TYPE_SIGNAL_MSG) {
+            final RoomResponse room = gson.fromJson(message, RoomResponse.class);
+            return type + room.roomId.length() + room.partnerSID.length();
+        }
+        json = new JSONObject(json.getString("msg"));
+        final String signalType = json.optString("type");
+        if (signalType.equals("offer") || signalType.equals("answer")) {
+            return type + new SessionDescription(SessionDescription.Type.fromCanonicalForm(
+                    signalType), json.getString("sdp")).description.length();
+        }
+        if (signalType.equals("candidate")) {
+            return type + toJavaCandidate(json).sdp.length();
+        }
+        final JSONArray candidateArray = json.getJSONArray("candidates");
+        long sum = type;
+        for (int i = 0; i < candidateArray.length(); ++i) {
+            sum += toJavaCandidate(candidateArray.getJSONObject(i)).sdp.length();
+        }
+        return sum;
+    }
+
+    private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
+        return new IceCandidate(
+                json.getString("id"), json.getInt("label"), json.getString("candidate"));
+    }
+
+    private static long checksum(SignalingMessage message) {
+        if (message.room != null) {
+            return message.type + message.room.roomId.length()
+                    + message.room.partnerSID.length();
+        }
+        if (message.sdp != null) {
+            return message.type + message.sdp.description.length();
+        }
+        long sum = message.type;
+        for (final IceCandidate candidate : message.candidates) {
+            sum += candidate.sdp.length();
+        }
+        return sum;
+    }
+
+    // The server forwards the "msg" field of a send command as a signal message.
+    private static String asServerMessage(String command) {
+        final int msgStart = command.indexOf("\"msg\":");
+        return "{\"type\":3," + command.substring(msgStart);
+    }
+
+    private static void assertCandidates(List<IceCandidate> expected, IceCandidate[] actual) {
+        assertEquals(expected.size(), actual.length);
+        for (int i = 0; i < actual.length; i++) {
+            assertEquals(expected.get(i).sdpMid, actual[i].sdpMid);
+            assertEquals(expected.get(i).sdpMLineIndex, actual[i].sdpMLineIndex);
+            assertEquals(expected.get(i).sdp, actual[i].sdp);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Checks that SignalingMessageEncoder sends what the JSONObject code it replaced in
+ * StompWebSocketRTCClient sent, for every message to the partner.
+ */
+public class SignalingMessageEncoderTest {
+    private static final Logger LOG = Logger.getLogger(SignalingMessageEncoderTest.class.getName());
+    private static final int BENCHMARK_ROUNDS = 5_000;
+    private static final String TO_SID = "partner \"sid\"";
+    private static final String ROOM_ID = "room/1";
+    // Quotes, backslashes, control and non-ASCII characters, and HTML that Gson would escape.
+    private static final String SDP = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\na=\"quoted\\\"\r\n"
+            + "a=tab\there\u0001\u001f\r\na=unicode:é中😀 </script>&='\r\n";
+    private static final List<IceCandidate> CANDIDATES = Arrays.asList(
+            new IceCandidate("0", 0, "candidate:1 1 udp 2122260223 10.0.0.1 5000 typ host"),
+            new IceCandidate("audio", 1, "candidate:2 1 tcp 1518280447 10.0.0.1 9 typ host"),
+            new IceCandidate(null, 2,
+                    "candidate:3 1 udp 1686052607 \"203.0.113.1\" 5001 typ srflx"));
+
+    private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+
+    @Test
+    public void sdpMatchesLegacy() throws JSONException {
+        for (final String type : new String[] {"offer", "answer"}) {
+            final JSONObject json = new JSONObject();
+            json.put("sdp", SDP);
+            json.put("type", type);
+            checkMatchesLegacy(json, encoder.encodeSdp(TO_SID, ROOM_ID, type, SDP));
+        }
+    }
+
+    @Test
+    public void candidatesMatchLegacy() throws JSONException {
+        for (final IceCandidate candidate : CANDIDATES) {
+            final JSONObject json = toJsonCandidate(candidate);
+            json.put("type", "candidate");
+            checkMatchesLegacy(json, encoder.encodeCandidates(
+                    TO_SID, ROOM_ID, "candidates", Collections.singletonList(candidate)));
+        }
+        for (final String type : new String[] {"candidates", "remove-candidates"}) {
+            final JSONObject json = new JSONObject();
+            json.put("type", type);
+            final JSONArray jsonArray = new JSONArray();
+            for (final IceCandidate candidate : CANDIDATES) {
+                jsonArray.put(toJsonCandidate(candidate));
+            }
+            json.put("candidates", jsonArray);
+            checkMatchesLegacy(json, encoder.encodeCandidates(TO_SID, ROOM_ID, type, CANDIDATES));
+        }
+        // Removing a single candidate still uses the array form.
+        final JSONObject json = new JSONObject();
+        json.put("type", "remove-candidates");
+        json.put("candidates", new JSONArray().put(toJsonCandidate(CANDIDATES.get(0))));
+        checkMatchesLegacy(json, encoder.encodeCandidates(TO_SID, ROOM_ID, "remove-candidates",
+                CANDIDATES.subList(0, 1)));
+    }
+
+    @Test
+    public void nestedMessagesCarryTheSameObject() throws JSONException {
+        encoder.setNestedMessages(true);
+        final JSONObject json = new JSONObject();
+        json.put("sdp", SDP);
+        json.put("type", "offer");
+        final JsonObject encoded =
+                parse(encoder.encodeSdp(TO_SID, ROOM_ID, "offer", SDP)).getAsJsonObject();
+        assertTrue(encoded.get("msg").isJsonObject());
+        assertEquals(parse(json.toString()), encoded.get("msg"));
+        assertEquals(withParsedMsg(parse(sendMessageToPartner(json.toString(), TO_SID, ROOM_ID))),
+                withParsedMsg(encoded));
+    }
+
+    @Test
+    public void templateFollowsPartnerAndRoom() throws JSONException {
+        encoder.encodeSdp(TO_SID, ROOM_ID, "offer", SDP);
+        final JSONObject json = new JSONObject();
+        json.put("sdp", SDP);
+        json.put("type", "offer");
+        assertEquals(withParsedMsg(parse(sendMessageToPartner(json.toString(), "other", ROOM_ID))),
+                withParsedMsg(parse(encoder.encodeSdp("other", ROOM_ID, "offer", SDP))));
+        assertEquals(withParsedMsg(parse(sendMessageToPartner(json.toString(), "other", "room2"))),
+                withParsedMsg(parse(encoder.encodeSdp("other", "room2", "offer", SDP))));
+    }
+
+    /**
+     * Compares the time and allocations of encoding an offer, a single candidate, a candidate
+     * batch and a removal with the JSONObject code the encoder replaced.
+     */
+    @Test
+    public void benchmarkAgainstJsonObject() throws JSONException {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        final long threadId = Thread.currentThread().getId();
+
+        final StringBuilder sdp = new StringBuilder(SDP);
+        for (int payloadType = 96; sdp.length() < 6144; payloadType++) {
+            sdp.append("a=rtpmap:").append(payloadType).append(" VP8/90000\r\n")
+                    .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n");
+        }
+        final String description = sdp.toString();
+        long checksum = 0;
+        // Warm up all paths.
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            checksum += encodeWithJsonObject(description);
+            checksum += encodeWithEncoder(description, false);
+            checksum += encodeWithEncoder(description, true);
+        }
+
+        long startBytes = allocations.getThreadAllocatedBytes(threadId);
+        long startNs = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            checksum += encodeWithJsonObject(description);
+        }
+        final long legacyNs = System.nanoTime() - startNs;
+        final long legacyBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+        startBytes = allocations.getThreadAllocatedBytes(threadId);
+        startNs = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            checksum += encodeWithEncoder(description, false);
+        }
+        final long stringNs = System.nanoTime() - startNs;
+        final long stringBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+        startBytes = allocations.getThreadAllocatedBytes(threadId);
+        startNs = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            checksum += encodeWithEncoder(description, true);
+        }
+        final long nestedNs = System.nanoTime() - startNs;
+        final long nestedBytes = allocations.getThreadAllocatedBytes(threadId) - startBytes;
+
+        LOG.info(description.length() + " character SDP and 3 candidate messages, ns per round: "
+                + "JSONObject " + legacyNs / BENCHMARK_ROUNDS + ", encoder "
+                + stringNs / BENCHMARK_ROUNDS + ", nested " + nestedNs / BENCHMARK_ROUNDS
+                + "; bytes per round: JSONObject " + legacyBytes / BENCHMARK_ROUNDS
+                + ", encoder " + stringBytes / BENCHMARK_ROUNDS + ", nested "
+                + nestedBytes / BENCHMARK_ROUNDS + "; bytes on the wire per offer: string "
+                + encoder.encodeSdp(TO_SID, ROOM_ID, "offer", description).length()
+                + " (checksum " + checksum + ")");
+        assertTrue("encoder " + stringNs + " ns, JSONObject " + legacyNs, stringNs < legacyNs);
+        assertTrue("nested " + nestedNs + " ns, encoder " + stringNs, nestedNs < stringNs);
+        assertTrue("encoder " + stringBytes + " bytes, JSONObject " + legacyBytes,
+                stringBytes * 2 < legacyBytes);
+        assertTrue("nested " + nestedBytes + " bytes, encoder " + stringBytes,
+                nestedBytes < stringBytes);
+    }
+
+    // Sends an offer, a single candidate, a batch of candidates and a removal like the encoder
+    // replaced, and returns the total length.
+    private static long encodeWithJsonObject(String description) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("sdp", description);
+        json.put("type", "offer");
+        long length = sendMessageToPartner(json.toString(), TO_SID, ROOM_ID).length();
+
+        json = toJsonCandidate(CANDIDATES.get(0));
+        json.put("type", "candidate");
+        length += sendMessageToPartner(json.toString(), TO_SID, ROOM_ID).length();
+
+        for (final String type : new String[] {"candidates", "remove-candidates"}) {
+            json = new JSONObject();
+            json.put("type", type);
+            final JSONArray jsonArray = new JSONArray();
+            for (final IceCandidate candidate : CANDIDATES) {
+                jsonArray.put(toJsonCandidate(candidate));
+            }
+            json.put("candidates", jsonArray);
+            length += sendMessageToPartner(json.toString(), TO_SID, ROOM_ID).length();
+        }
+        return length;
+    }
+
+    private long encodeWithEncoder(String description, boolean nested) {
+        encoder.setNestedMessages(nested);
+        long length = encoder.encodeSdp(TO_SID, ROOM_ID, "offer", description).length();
+        length += encoder.encodeCandidates(TO_SID, ROOM_ID, "candidates",
+                CANDIDATES.subList(0, 1)).length();
+        length += encoder.encodeCandidates(TO_SID, ROOM_ID, "candidates", CANDIDATES).length();
+        length += encoder.encodeCandidates(
+                TO_SID, ROOM_ID, "remove-candidates", CANDIDATES).length();
+        return length;
+    }
+
+    // Compares the message the encoder produced with the one the legacy code built around |json|.
+    private static void checkMatchesLegacy(JSONObject json, String encoded) throws JSONException {
+        final String legacy = sendMessageToPartner(json.toString(), TO_SID, ROOM_ID);
+        assertEquals(encoded, withParsedMsg(parse(legacy)), withParsedMsg(parse(encoded)));
+        // The peer message is a string like before, so every partner can read it.
+        assertTrue(parse(encoded).getAsJsonObject().get("msg").getAsJsonPrimitive().isString());
+    }
+
+    // StompWebSocketRTCClient.sendMessageToPartner() before the encoder.
+    private static String sendMessageToPartner(String message, String toSID, String roomID)
+            throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("cmd", "send");
+        json.put("msg", message);
+        json.put("toSID", toSID);
+        json.put("roomID", roomID);
+        return json.toString();
+    }
+
+    // StompWebSocketRTCClient.toJsonCandidate() before the encoder.
+    private static JSONObject toJsonCandidate(IceCandidate candidate) throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("label", candidate.sdpMLineIndex);
+        json.put("id", candidate.sdpMid);
+        json.put("candidate", candidate.sdp);
+        return json;
+    }
+
+    private static JsonElement parse(String json) {
+        return new JsonParser().parse(json);
+    }
+
+    // Replaces a "msg" string with the JSON it contains, so that messages compare by content
+    // rather than by key order and escaping.
+    private static JsonElement withParsedMsg(JsonElement message) {
+        final JsonObject copy = message.getAsJsonObject().deepCopy();
+        final JsonElement msg = copy.get("msg");
+        if (msg.isJsonPrimitive()) {
+            copy.add("msg", parse(msg.getAsString()));
+        }
+        return copy;
+    }
+}
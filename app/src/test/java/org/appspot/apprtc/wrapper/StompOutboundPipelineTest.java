@@ -0,0 +1,283 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import io.reactivex.Completable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.CompletableSubject;
+import ua.naiksoftware.stomp.Stomp;
+import ua.naiksoftware.stomp.StompClient;
+
+import org.appspot.apprtc.wrapper.standin.StompStandInServer;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public class StompOutboundPipelineTest {
+  private static final Logger LOG = Logger.getLogger(StompOutboundPipelineTest.class.getName());
+  private static final Executor DIRECT = Runnable::run;
+
+  /** One frame handed to the StompClient, completed by the test. */
+  private static class SentFrame {
+    final String destination;
+    final String payload;
+    final CompletableSubject completion = CompletableSubject.create();
+
+    SentFrame(String destination, String payload) {
+      this.destination = destination;
+      this.payload = payload;
+    }
+  }
+
+  private final List<SentFrame> sent = new ArrayList<>();
+  private final StompClient ws = new StompClient(null) {
+    @Override
+    public Completable send(String destination, String data) {
+      final SentFrame frame = new SentFrame(destination, data);
+      sent.add(frame);
+      return frame.completion;
+    }
+  };
+
+  @Test
+  public void sendsInOrderUpToTheInFlightLimit() {
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(ws, DIRECT, 8, 2);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(pipeline.send("/app/signal", "m" + i));
+    }
+    assertEquals(2, sent.size());
+    assertEquals(2, pipeline.getInFlight());
+    assertEquals(3, pipeline.getQueueDepth());
+
+    // Completing out of order frees a slot all the same.
+    sent.get(1).completion.onComplete();
+    assertEquals(3, sent.size());
+    for (int i = 0; i < sent.size(); i++) {
+      sent.get(i).completion.onComplete();
+    }
+    assertEquals(5, sent.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("/app/signal", sent.get(i).destination);
+      assertEquals("m" + i, sent.get(i).payload);
+    }
+    assertEquals(0, pipeline.getInFlight());
+    assertEquals(0, pipeline.getQueueDepth());
+    assertTrue(pipeline.toString(), pipeline.toString().startsWith("sent: 5, failed: 0"));
+  }
+
+  @Test
+  public void dropsFramesWhenTheQueueIsFull() {
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(ws, DIRECT, 3, 1);
+    // The first frame goes in flight right away, the next three fill the queue.
+    for (int i = 0; i < 4; i++) {
+      assertTrue(pipeline.send("/app/signal", "m" + i));
+    }
+    assertFalse(pipeline.send("/app/signal", "dropped"));
+    assertEquals(3, pipeline.getQueueDepth());
+    assertTrue(pipeline.toString(), pipeline.toString().contains("dropped: 1"));
+
+    sent.get(0).completion.onComplete();
+    assertTrue(pipeline.send("/app/signal", "m4"));
+    while (sent.size() < 5 || pipeline.getInFlight() > 0) {
+      sent.get(sent.size() - 1).completion.onComplete();
+    }
+    assertEquals("m4", sent.get(4).payload);
+  }
+
+  @Test
+  public void countsFailedFramesAndGoesOn() {
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(ws, DIRECT, 8, 1);
+    pipeline.send("/app/signal", "m0");
+    pipeline.send("/app/signal", "m1");
+    sent.get(0).completion.onError(new IllegalStateException("Not connected"));
+    assertEquals(2, sent.size());
+    sent.get(1).completion.onComplete();
+    assertTrue(pipeline.toString(), pipeline.toString().startsWith("sent: 1, failed: 1"));
+  }
+
+  @Test
+  public void countsFramesTheClientThrowsOnAsFailed() {
+    final AtomicInteger attempts = new AtomicInteger();
+    final StompClient throwing = new StompClient(null) {
+      @Override
+      public Completable send(String destination, String data) {
+        attempts.incrementAndGet();
+        throw new IllegalStateException("Not connected");
+      }
+    };
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(throwing, DIRECT, 8, 1);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(pipeline.send("/app/signal", "m" + i));
+    }
+    assertEquals(3, attempts.get());
+    assertEquals(0, pipeline.getInFlight());
+    assertTrue(pipeline.toString(), pipeline.toString().startsWith("sent: 0, failed: 3"));
+  }
+
+  @Test
+  public void closeDropsQueuedFramesAndCancelsFramesInFlight() {
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(ws, DIRECT, 8, 2);
+    for (int i = 0; i < 4; i++) {
+      pipeline.send("/app/signal", "m" + i);
+    }
+    assertTrue(sent.get(0).completion.hasObservers());
+    pipeline.close();
+    assertFalse(sent.get(0).completion.hasObservers());
+    assertFalse(sent.get(1).completion.hasObservers());
+    assertEquals(0, pipeline.getInFlight());
+    assertEquals(0, pipeline.getQueueDepth());
+    assertFalse(pipeline.send("/app/signal", "late"));
+    assertEquals(2, sent.size());
+    assertTrue(pipeline.toString(),
+        pipeline.toString().startsWith("sent: 0, failed: 0, dropped: 3"));
+    pipeline.close();
+  }
+
+  @Test
+  public void closeAndTakeUnsentReturnsFramesInFlightAndQueued() {
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(ws, DIRECT, 8, 2);
+    pipeline.send("/app/signal", "offer", OutboundMessageQueue.Priority.CONTROL);
+    pipeline.send("/app/signal", "c1", OutboundMessageQueue.Priority.CANDIDATES);
+    pipeline.send("/app/register", "register");
+    pipeline.send("/app/signal", "c2", OutboundMessageQueue.Priority.CANDIDATES);
+    // Written already, so not returned.
+    sent.get(0).completion.onComplete();
+
+    final List<OutboundMessageQueue.Message> unsent = pipeline.closeAndTakeUnsent();
+    assertEquals(3, unsent.size());
+    assertEquals("c1", unsent.get(0).payload);
+    assertEquals(OutboundMessageQueue.Priority.CANDIDATES, unsent.get(0).priority);
+    assertEquals("register", unsent.get(1).payload);
+    assertEquals("/app/register", unsent.get(1).destination);
+    assertEquals(OutboundMessageQueue.Priority.CONTROL, unsent.get(1).priority);
+    assertEquals("c2", unsent.get(2).payload);
+    assertFalse(sent.get(1).completion.hasObservers());
+    assertEquals(0, pipeline.getInFlight());
+    assertTrue(pipeline.toString(),
+        pipeline.toString().startsWith("sent: 1, failed: 0, dropped: 0"));
+    assertTrue(pipeline.closeAndTakeUnsent().isEmpty());
+  }
+
+  @Test
+  public void cancelsFrameSubscribedAfterClose() {
+    final AtomicInteger disposed = new AtomicInteger();
+    final StompOutboundPipeline[] pipeline = new StompOutboundPipeline[1];
+    // Closes the pipeline between handing the frame over and the subscription.
+    final StompClient closing = new StompClient(null) {
+      @Override
+      public Completable send(String destination, String data) {
+        pipeline[0].close();
+        return Completable.never().doOnDispose(disposed::incrementAndGet);
+      }
+    };
+    pipeline[0] = new StompOutboundPipeline(closing, DIRECT, 8, 1);
+    pipeline[0].send("/app/signal", "m0");
+    assertEquals(1, disposed.get());
+  }
+
+  /** Pipelines of many connections send on one shared thread and start no threads per frame. */
+  @Test
+  public void sharesOneSenderThread() throws InterruptedException {
+    final int pipelineCount = 50;
+    final int framesPerPipeline = 200;
+    final Set<String> senderThreads = new HashSet<>();
+    final CountDownLatch done = new CountDownLatch(pipelineCount * framesPerPipeline);
+    final StompClient completing = new StompClient(null) {
+      @Override
+      public Completable send(String destination, String data) {
+        synchronized (senderThreads) {
+          senderThreads.add(Thread.currentThread().getName());
+        }
+        return Completable.complete().doOnComplete(done::countDown);
+      }
+    };
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final long startedThreads = threads.getTotalStartedThreadCount();
+    final List<StompOutboundPipeline> pipelines = new ArrayList<>();
+    for (int i = 0; i < pipelineCount; i++) {
+      pipelines.add(new StompOutboundPipeline(completing));
+    }
+    for (int frame = 0; frame < framesPerPipeline; frame++) {
+      for (final StompOutboundPipeline pipeline : pipelines) {
+        // Wait for the sender instead of overflowing the queue.
+        while (!pipeline.send("/app/signal", "m" + frame)) {
+          Thread.yield();
+        }
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(1, senderThreads.size());
+    assertTrue(senderThreads.contains("StompSender"));
+    // At most the shared sender itself, if no earlier test started it.
+    assertTrue(threads.getTotalStartedThreadCount() - startedThreads <= 1);
+  }
+
+  /**
+   * Sends 10k frames to the STOMP stand-in over a real StompClient and checks that no threads
+   * are started while they are sent and answered.
+   */
+  @Test
+  public void threadCountStaysFlatAgainstStandIn() throws Exception {
+    final int messageCount = 10_000;
+    final StompStandInServer server = new StompStandInServer(0);
+    server.start();
+    final StompClient client = Stomp.over(Stomp.ConnectionProvider.OKHTTP, server.getUrl());
+    final StompOutboundPipeline pipeline = new StompOutboundPipeline(client);
+    try {
+      final String signature = "pipeline-test";
+      final CountDownLatch registered = new CountDownLatch(1);
+      final CountDownLatch answered = new CountDownLatch(messageCount);
+      final Disposable topic = client.topic("/user/" + signature + Code.SEND_MSG_URL)
+          .subscribe(message -> {
+            if (message.getPayload().contains(Code.REGISTERED)) {
+              registered.countDown();
+            } else if (message.getPayload().contains(Code.TO_NOT_FOUND)) {
+              answered.countDown();
+            }
+          });
+      client.connect();
+      final RegisterUser registerUser = new RegisterUser();
+      registerUser.signature = signature;
+      assertTrue(pipeline.send(StompWebSocketChannelClient.REGISTER_SOCKET,
+          new Gson().toJson(registerUser)));
+      assertTrue(registered.await(10, TimeUnit.SECONDS));
+
+      final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      final long startedThreads = threads.getTotalStartedThreadCount();
+      final long startNs = System.nanoTime();
+      for (int i = 0; i < messageCount; i++) {
+        // Nobody is in a room with us, so the stand-in answers every one with TO_NOT_FOUND.
+        final String message = "{\"toSID\":\"nobody\",\"msg\":\"m" + i + "\"}";
+        while (!pipeline.send(StompWebSocketChannelClient.SEND_URL, message)) {
+          Thread.yield();
+        }
+      }
+      assertTrue(answered.await(30, TimeUnit.SECONDS));
+      final long startedDuringSend = threads.getTotalStartedThreadCount() - startedThreads;
+      LOG.info(messageCount + " messages in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs) + " ms, threads started: "
+          + startedDuringSend + ", " + pipeline);
+      assertEquals(0, startedDuringSend);
+      assertEquals(0, pipeline.getQueueDepth());
+      topic.dispose();
+    } finally {
+      pipeline.close();
+      client.disconnect();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.wrapper.StompWebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.wrapper.standin.StompStandInServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/** Runs StompWebSocketChannelClient against the STOMP stand-in. */
+public class StompWebSocketChannelClientTest {
+  // Nobody is in a room with the client, so the stand-in answers each signal with TO_NOT_FOUND.
+  private static final String SIGNAL = "{\"toSID\":\"nobody\",\"msg\":\"hello\"}";
+
+  private static class Events implements StompWebSocketChannelClient.WebSocketChannelEvents {
+    final AtomicInteger registered = new AtomicInteger();
+    final AtomicInteger answered = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+
+    @Override
+    public void onWebSocketMessage(String message) {
+      if (message.contains(Code.REGISTERED)) {
+        registered.incrementAndGet();
+      } else if (message.contains(Code.TO_NOT_FOUND)) {
+        answered.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void onWebSocketClose() {
+      closed.incrementAndGet();
+    }
+
+    @Override
+    public void onWebSocketError(String description) {
+      errors.incrementAndGet();
+    }
+  }
+
+  private final StompStandInServer server = new StompStandInServer(0);
+  private final EventLoopSignalingExecutor executor = new EventLoopSignalingExecutor("Signaling");
+  private final Events events = new Events();
+  private final StompWebSocketChannelClient client =
+      new StompWebSocketChannelClient(executor, events, null);
+
+  @Before
+  public void setUp() throws Exception {
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    call(() -> {
+      client.disconnect(false);
+      return null;
+    });
+    executor.shutdown();
+    server.close();
+  }
+
+  private <T> T call(Callable<T> callable) throws Exception {
+    final FutureTask<T> task = new FutureTask<>(callable);
+    executor.execute(task);
+    return task.get(5, TimeUnit.SECONDS);
+  }
+
+  private WebSocketConnectionState getState() throws Exception {
+    return call(client::getState);
+  }
+
+  private static boolean waitFor(BooleanSupplier condition, long timeoutMs)
+      throws InterruptedException {
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadlineNs) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private void connect() throws Exception {
+    call(() -> {
+      client.connect(server.getUrl(), null, "test");
+      final RegisterUser registerUser = new RegisterUser();
+      registerUser.signature = "test";
+      // Registers once connected.
+      client.register(null, null, registerUser);
+      return null;
+    });
+  }
+
+  private void send(String message) throws Exception {
+    call(() -> {
+      client.send(message);
+      return null;
+    });
+  }
+
+  @Test
+  public void replaysMessagesSentBeforeRegistration() throws Exception {
+    connect();
+    for (int i = 0; i < 10; i++) {
+      send(SIGNAL);
+    }
+    assertTrue(waitFor(() -> events.answered.get() == 10, 5000));
+    assertEquals(1, events.registered.get());
+    assertEquals(WebSocketConnectionState.REGISTERED, getState());
+    send(SIGNAL);
+    assertTrue(waitFor(() -> events.answered.get() == 11, 5000));
+  }
+
+  @Test
+  public void disconnectWhileOpeningClosesTheSocket() throws Exception {
+    call(() -> {
+      client.connect(server.getUrl(), null, "test");
+      client.disconnect(false);
+      return null;
+    });
+    // Long enough for the socket to open and register, had it been left open.
+    Thread.sleep(1000);
+    assertEquals(WebSocketConnectionState.CLOSED, getState());
+    assertEquals(0, server.getSessionCount());
+    assertEquals(0, events.registered.get());
+  }
+
+  @Test
+  public void disconnectCancelsPendingReconnect() throws Exception {
+    connect();
+    assertTrue(waitFor(() -> events.registered.get() == 1, 5000));
+    server.setKillProbability(1);
+    send(SIGNAL);
+    // The connection is lost and a reconnect is scheduled.
+    assertTrue(waitFor(() -> server.getKilledCount() == 1, 5000));
+    assertTrue(waitFor(() -> {
+      try {
+        return getState() == WebSocketConnectionState.NEW;
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    }, 5000));
+    server.setKillProbability(0);
+    call(() -> {
+      client.disconnect(true);
+      return null;
+    });
+    // Longer than the first reconnect delay.
+    Thread.sleep(1000);
+    assertEquals(WebSocketConnectionState.CLOSED, getState());
+    assertEquals(0, server.getSessionCount());
+    assertEquals(1, events.registered.get());
+    assertEquals(0, events.closed.get());
+  }
+
+  /**
+   * Sends signals while the stand-in kills the connection on randomly chosen ones, and checks
+   * that exactly those are lost: the client reconnects every time without giving up, replays
+   * everything it queued meanwhile, and works normally once the kills stop.
+   */
+  @Test
+  public void survivesRandomBrokerKills() throws Exception {
+    final int messageCount = 300;
+    // About one in this many messages kills the connection it is written to.
+    final int killEvery = 30;
+    final Random random = new Random(1234);
+    final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    final Set<String> triggers = ConcurrentHashMap.newKeySet();
+    server.setSignalListener(received::add);
+    // Each trigger kills its connection once; sent again, it would be handled.
+    server.setKillFilter(triggers::remove);
+    connect();
+    assertTrue(waitFor(() -> events.registered.get() == 1, 5000));
+
+    final List<String> expected = new ArrayList<>();
+    final List<String> killedBy = new ArrayList<>();
+    List<String> burst = null;
+    for (int i = 0; i < messageCount; i++) {
+      final String message = signal("m" + i);
+      if (random.nextInt(killEvery) != 0) {
+        expected.add(message);
+        send(message);
+        continue;
+      }
+      // Nothing else is in flight when the trigger is written, so it is the only frame lost.
+      final int receivedCount = expected.size();
+      assertTrue("Not received before kill " + killedBy.size(),
+          waitFor(() -> received.size() == receivedCount, 5000));
+      triggers.add(message);
+      killedBy.add(message);
+      final long killedCount = server.getKilledCount() + 1;
+      send(message);
+      assertTrue(waitFor(() -> server.getKilledCount() == killedCount, 5000));
+      assertTrue(waitForState(WebSocketConnectionState.NEW));
+      if (burst == null) {
+        burst = sendBurstWhileReconnecting();
+        expected.addAll(burst);
+      }
+      // Keeps the messages until the next kill below the capacity of the send queue.
+      assertTrue(waitForState(WebSocketConnectionState.REGISTERED));
+    }
+    assertTrue(waitFor(() -> received.size() >= expected.size(), 5000));
+
+    final List<String> receivedCopy;
+    synchronized (received) {
+      receivedCopy = new ArrayList<>(received);
+    }
+    assertEquals(expected.size(), receivedCopy.size());
+    assertEquals(new HashSet<>(expected), new HashSet<>(receivedCopy));
+    for (final String message : killedBy) {
+      assertFalse(receivedCopy.contains(message));
+    }
+    final int burstStart = receivedCopy.indexOf(burst.get(0));
+    final int burstEnd = Math.min(burstStart + burst.size(), receivedCopy.size());
+    assertEquals(burst, receivedCopy.subList(burstStart, burstEnd));
+    assertTrue(killedBy.size() >= 2);
+    assertEquals(killedBy.size(), server.getKilledCount());
+    assertEquals(killedBy.size() + 1, events.registered.get());
+    assertEquals(0, events.closed.get());
+    assertEquals(0, events.errors.get());
+
+    server.setKillFilter(null);
+    final int answered = events.answered.get();
+    for (int i = 0; i < 20; i++) {
+      send(SIGNAL);
+    }
+    assertTrue(waitFor(() -> events.answered.get() == answered + 20, 5000));
+    assertEquals(1, server.getSessionCount());
+  }
+
+  private boolean waitForState(WebSocketConnectionState state) throws InterruptedException {
+    return waitFor(() -> {
+      try {
+        return getState() == state;
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    }, 5000);
+  }
+
+  // Queues more SDP and candidate messages than the send queue holds while the client is
+  // reconnecting, and returns the ones that should get through, in replay order.
+  private List<String> sendBurstWhileReconnecting() throws Exception {
+    final int burstSize = OutboundMessageQueue.DEFAULT_CAPACITY + 24;
+    final List<String> control = new ArrayList<>();
+    final List<String> candidates = new ArrayList<>();
+    call(() -> {
+      assertEquals(WebSocketConnectionState.NEW, client.getState());
+      for (int i = 0; i < burstSize; i++) {
+        if (i % 11 < 3) {
+          control.add(signal("sdp" + i));
+          client.send(control.get(control.size() - 1), StompWebSocketChannelClient.SEND_URL,
+              OutboundMessageQueue.Priority.CONTROL);
+        } else {
+          candidates.add(signal("candidate" + i));
+          client.send(candidates.get(candidates.size() - 1),
+              StompWebSocketChannelClient.SEND_URL, OutboundMessageQueue.Priority.CANDIDATES);
+        }
+      }
+      return null;
+    });
+    // The oldest candidates made room, every SDP message was kept and is replayed first.
+    final List<String> replayed = new ArrayList<>(control);
+    replayed.addAll(candidates.subList(
+        burstSize - OutboundMessageQueue.DEFAULT_CAPACITY, candidates.size()));
+    return replayed;
+  }
+
+  // A signal for nobody carrying |text|.
+  private static String signal(String text) {
+    return "{\"toSID\":\"nobody\",\"msg\":\"" + text + "\"}";
+  }
+}
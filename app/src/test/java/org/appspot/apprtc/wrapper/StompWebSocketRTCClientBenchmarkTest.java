@@ -0,0 +1,226 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.wrapper.standin.StompStandInServer;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs many real StompWebSocketRTCClient instances on one shared executor against the STOMP
+ * stand-in, and reports setup time, offer/answer throughput and memory use per client.
+ */
+public class StompWebSocketRTCClientBenchmarkTest {
+    private static final Logger LOG =
+            Logger.getLogger(StompWebSocketRTCClientBenchmarkTest.class.getName());
+    private static final int CLIENT_COUNT = 200;
+    private static final int CANDIDATE_COUNT = 4;
+    // Offer/answer round trips per pair after setup.
+    private static final int ROUNDS = 50;
+
+    private final String sdp = createSdp(2048);
+    private final CountDownLatch setUp = new CountDownLatch(CLIENT_COUNT);
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private volatile CountDownLatch roundsDone;
+
+    /** One benchmark client. Its callbacks run on the shared executor thread. */
+    private class Peer implements SignalingEvents {
+        final StompWebSocketRTCClient client;
+        final String signature;
+        boolean initiator;
+        boolean haveRemoteSdp;
+        int remoteCandidates;
+        boolean isSetUp;
+        int rounds;
+
+        Peer(SignalingExecutor executor, String signature) {
+            this.signature = signature;
+            final RegisterUser registerUser = new RegisterUser();
+            registerUser.signature = signature;
+            registerUser.user = new User();
+            registerUser.user.uuid = signature;
+            registerUser.user.nickname = "bench-" + signature;
+            client = new StompWebSocketRTCClient(null, registerUser, executor);
+            client.setSignalingEvents(this);
+        }
+
+        void start(String url) {
+            client.connectToRoom(new RoomConnectionParameters(url, null, false));
+            final RandomChatReq request = new RandomChatReq();
+            request.signature = signature;
+            request.from = signature;
+            request.reqTimeMillis = System.currentTimeMillis();
+            // Queued until the client is registered.
+            client.sendRandomChatRequest(request);
+        }
+
+        // Sends the next offer, or counts this pair as done.
+        void nextRound() {
+            if (rounds++ < ROUNDS) {
+                client.sendOfferSdp(new SessionDescription(SessionDescription.Type.OFFER, sdp));
+            } else {
+                roundsDone.countDown();
+            }
+        }
+
+        private void checkSetUp() {
+            if (!isSetUp && haveRemoteSdp && remoteCandidates == CANDIDATE_COUNT) {
+                isSetUp = true;
+                setUp.countDown();
+            }
+        }
+
+        @Override
+        public void onConnectedToRoom(SignalingParameters params) {
+            initiator = params.room.isInitiator;
+            if (initiator) {
+                client.sendOfferSdp(new SessionDescription(SessionDescription.Type.OFFER, sdp));
+            }
+            for (int i = 0; i < CANDIDATE_COUNT; i++) {
+                client.sendLocalIceCandidate(new IceCandidate("0", 0, "candidate:" + i
+                        + " 1 udp " + (2122260223 - i) + " 192.168.1." + (i + 2) + " "
+                        + (50000 + i) + " typ host generation 0"));
+            }
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescription description) {
+            received.incrementAndGet();
+            if (!initiator) {
+                client.sendAnswerSdp(new SessionDescription(SessionDescription.Type.ANSWER, sdp));
+            }
+            if (!haveRemoteSdp) {
+                haveRemoteSdp = true;
+                checkSetUp();
+            } else if (initiator) {
+                nextRound();
+            }
+        }
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidate candidate) {
+            remoteCandidates++;
+            checkSetUp();
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {}
+
+        @Override
+        public void onChannelClose() {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            errors.incrementAndGet();
+        }
+    }
+
+    private static long usedHeapBytes() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static boolean waitFor(CountDownLatch latch) throws InterruptedException {
+        return latch.await(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void manyClientsOnOneExecutor() throws Exception {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        final StompStandInServer server = new StompStandInServer(0);
+        server.start();
+        final EventLoopSignalingExecutor executor = new EventLoopSignalingExecutor("Signaling");
+        final List<Peer> peers = new ArrayList<>();
+        try {
+            final FutureTask<Long> threadIdTask = new FutureTask<>(
+                    () -> Thread.currentThread().getId());
+            executor.execute(threadIdTask);
+            final long executorThreadId = threadIdTask.get();
+            final long baseHeapBytes = usedHeapBytes();
+
+            final long setupStartNs = System.nanoTime();
+            for (int i = 0; i < CLIENT_COUNT; i++) {
+                final Peer peer = new Peer(executor, "bench" + i);
+                peers.add(peer);
+                peer.start(server.getUrl());
+            }
+            assertTrue("Not set up: " + setUp.getCount(), waitFor(setUp));
+            final long setupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStartNs);
+            // Includes the OkHttp connection and the stand-in's session of every client.
+            final long heapPerClient = (usedHeapBytes() - baseHeapBytes) / CLIENT_COUNT;
+
+            // Initiators start the rounds, each pair runs them back to back.
+            roundsDone = new CountDownLatch(CLIENT_COUNT / 2);
+            final int receivedBefore = received.get();
+            final long startBytes = allocations.getThreadAllocatedBytes(executorThreadId);
+            final long startNs = System.nanoTime();
+            executor.execute(() -> {
+                for (final Peer peer : peers) {
+                    if (peer.initiator) {
+                        peer.nextRound();
+                    }
+                }
+            });
+            assertTrue("Pairs not done: " + roundsDone.getCount(), waitFor(roundsDone));
+            final long elapsedNs = System.nanoTime() - startNs;
+            final int messages = received.get() - receivedBefore;
+            final long bytesPerMessage =
+                    (allocations.getThreadAllocatedBytes(executorThreadId) - startBytes) / messages;
+
+            LOG.info(CLIENT_COUNT + " clients set up in " + setupMs + " ms, "
+                    + messages + " SDP messages in " + TimeUnit.NANOSECONDS.toMillis(elapsedNs)
+                    + " ms (" + messages * TimeUnit.SECONDS.toNanos(1) / elapsedNs + "/s), "
+                    + bytesPerMessage + " bytes allocated per message on the executor, "
+                    + heapPerClient / 1024 + " KB heap per client");
+            assertEquals(0, errors.get());
+            assertEquals(CLIENT_COUNT * ROUNDS, messages);
+            assertEquals(CLIENT_COUNT, server.getSessionCount());
+        } finally {
+            for (final Peer peer : peers) {
+                peer.client.disconnectFromRoom();
+            }
+            executor.execute(executor::shutdown);
+            server.close();
+        }
+    }
+
+    // A session description of roughly |size| characters.
+    private static String createSdp(int size) {
+        final StringBuilder builder = new StringBuilder(size + 64);
+        builder.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n");
+        int payloadType = 96;
+        while (builder.length() < size) {
+            builder.append("a=rtpmap:").append(payloadType).append(" VP8/90000\r\n")
+                    .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n");
+            payloadType = payloadType < 126 ? payloadType + 1 : 96;
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,240 @@
+package org.appspot.apprtc.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.wrapper.standin.StompStandInServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs two StompWebSocketRTCClient instances on one executor against the STOMP stand-in, and
+ * checks how local ICE candidates are batched on the way to the partner.
+ */
+public class StompWebSocketRTCClientTest {
+    // Longer than any test waits, so that only a removal or disconnect ends the batch.
+    private static final long LONG_WINDOW_MS = 60000;
+    // Several times the default batch window.
+    private static final long QUIET_MS = 300;
+
+    private final StompStandInServer server = new StompStandInServer(0);
+    private final EventLoopSignalingExecutor executor = new EventLoopSignalingExecutor("Signaling");
+    // Peer messages relayed by the stand-in, in the order it handled them.
+    private final List<JsonObject> signals = Collections.synchronizedList(new ArrayList<>());
+    private Peer sender;
+    private Peer receiver;
+
+    /** One client. Its callbacks run on the executor thread. */
+    private static class Peer implements SignalingEvents {
+        final StompWebSocketRTCClient client;
+        final String signature;
+        final CountDownLatch connected = new CountDownLatch(1);
+        // "candidate:..." and "removed:..." entries in the order they arrived.
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean initiator;
+        volatile int errors;
+
+        Peer(SignalingExecutor executor, String signature) {
+            this.signature = signature;
+            final RegisterUser registerUser = new RegisterUser();
+            registerUser.signature = signature;
+            registerUser.user = new User();
+            registerUser.user.uuid = signature;
+            registerUser.user.nickname = signature;
+            client = new StompWebSocketRTCClient(null, registerUser, executor);
+            client.setSignalingEvents(this);
+        }
+
+        void start(String url) {
+            client.connectToRoom(new RoomConnectionParameters(url, null, false));
+            final RandomChatReq request = new RandomChatReq();
+            request.signature = signature;
+            request.from = signature;
+            request.reqTimeMillis = System.currentTimeMillis();
+            client.sendRandomChatRequest(request);
+        }
+
+        @Override
+        public void onConnectedToRoom(SignalingParameters params) {
+            initiator = params.room.isInitiator;
+            connected.countDown();
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescription description) {}
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidate candidate) {
+            events.add("candidate:" + candidate.sdp);
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {
+            for (final IceCandidate candidate : candidates) {
+                events.add("removed:" + candidate.sdp);
+            }
+        }
+
+        @Override
+        public void onChannelClose() {
+            errors++;
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            errors++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+        server.setSignalListener(
+                body -> signals.add(new JsonParser().parse(body).getAsJsonObject()));
+        sender = new Peer(executor, "sender");
+        receiver = new Peer(executor, "receiver");
+        sender.start(server.getUrl());
+        receiver.start(server.getUrl());
+        assertTrue(sender.connected.await(5, TimeUnit.SECONDS));
+        assertTrue(receiver.connected.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.client.disconnectFromRoom();
+        receiver.client.disconnectFromRoom();
+        call(() -> {
+            executor.shutdown();
+            return null;
+        });
+        server.close();
+    }
+
+    @Test
+    public void candidatesWithinTheWindowGoOutAsOneMessage() throws Exception {
+        final List<IceCandidate> candidates = createCandidates(3);
+        for (final IceCandidate candidate : candidates) {
+            sender.client.sendLocalIceCandidate(candidate);
+        }
+        assertTrue(waitForEvents(receiver, 3));
+        assertEquals(1, signals.size());
+        final JsonObject message = getPeerMessage(0);
+        assertEquals("candidates", message.get("type").getAsString());
+        assertEquals(3, message.getAsJsonArray("candidates").size());
+        assertEquals(toEvents("candidate:", candidates), receiver.events);
+
+        // A candidate gathered once the window has closed starts a new batch.
+        sender.client.sendLocalIceCandidate(createCandidates(4).get(3));
+        assertTrue(waitForEvents(receiver, 4));
+        assertEquals(2, signals.size());
+        assertEquals("candidate", getPeerMessage(1).get("type").getAsString());
+        assertEquals(0, sender.errors + receiver.errors);
+    }
+
+    @Test
+    public void removalFlushesPendingCandidatesFirst() throws Exception {
+        sender.client.setCandidateBatchWindowMs(LONG_WINDOW_MS);
+        final List<IceCandidate> candidates = createCandidates(2);
+        for (final IceCandidate candidate : candidates) {
+            sender.client.sendLocalIceCandidate(candidate);
+        }
+        sender.client.sendLocalIceCandidateRemovals(new IceCandidate[] {candidates.get(0)});
+        assertTrue(waitForEvents(receiver, 3));
+
+        assertEquals(2, signals.size());
+        assertEquals("candidates", getPeerMessage(0).get("type").getAsString());
+        assertEquals("remove-candidates", getPeerMessage(1).get("type").getAsString());
+        final List<String> expected = toEvents("candidate:", candidates);
+        expected.addAll(toEvents("removed:", candidates.subList(0, 1)));
+        assertEquals(expected, receiver.events);
+    }
+
+    @Test
+    public void nothingIsSentAfterDisconnect() throws Exception {
+        // Only the initiator checks its room state, the other peer goes straight to sending.
+        final Peer leaving = sender.initiator ? receiver : sender;
+        final Peer staying = leaving == sender ? receiver : sender;
+        final List<IceCandidate> candidates = createCandidates(3);
+        // Pending when the client disconnects.
+        leaving.client.sendLocalIceCandidate(candidates.get(0));
+        leaving.client.disconnectFromRoom();
+        // Gathered after the disconnect.
+        leaving.client.sendLocalIceCandidate(candidates.get(1));
+        leaving.client.sendLocalIceCandidateRemovals(new IceCandidate[] {candidates.get(2)});
+        // Runs after every task above, then waits out several batch windows.
+        call(() -> null);
+        Thread.sleep(QUIET_MS);
+        assertTrue(staying.events.isEmpty());
+
+        // The stand-in is still relaying, so the messages would have shown up by now.
+        staying.client.sendLocalIceCandidate(candidates.get(2));
+        assertTrue(waitFor(() -> signals.size() == 1));
+        Thread.sleep(QUIET_MS);
+        assertEquals(1, signals.size());
+        assertEquals(candidates.get(2).sdp, getPeerMessage(0).get("candidate").getAsString());
+        assertTrue(staying.events.isEmpty());
+    }
+
+    private <T> T call(Callable<T> callable) throws Exception {
+        final FutureTask<T> task = new FutureTask<>(callable);
+        executor.execute(task);
+        return task.get(5, TimeUnit.SECONDS);
+    }
+
+    // Returns the peer message of the |index|th signal the stand-in handled.
+    private JsonObject getPeerMessage(int index) {
+        final String msg = signals.get(index).get("msg").getAsString();
+        return new JsonParser().parse(msg).getAsJsonObject();
+    }
+
+    private static List<IceCandidate> createCandidates(int count) {
+        final List<IceCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            candidates.add(new IceCandidate("0", 0, "candidate:" + i + " 1 udp "
+                    + (2122260223 - i) + " 192.168.1." + (i + 2) + " 5000 typ host"));
+        }
+        return candidates;
+    }
+
+    private static List<String> toEvents(String prefix, List<IceCandidate> candidates) {
+        final List<String> events = new ArrayList<>();
+        for (final IceCandidate candidate : candidates) {
+            events.add(prefix + candidate.sdp);
+        }
+        return events;
+    }
+
+    private static boolean waitForEvents(Peer peer, int count) throws InterruptedException {
+        return waitFor(() -> peer.events.size() >= count);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition)
+            throws InterruptedException {
+        final long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadlineNs) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,411 @@
+package org.appspot.apprtc.wrapper.standin;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.appspot.apprtc.wrapper.BaseResponse;
+import org.appspot.apprtc.wrapper.Code;
+import org.appspot.apprtc.wrapper.RandomChatReq;
+import org.appspot.apprtc.wrapper.RegisterUser;
+import org.appspot.apprtc.wrapper.SignalingMessageEncoder;
+import org.appspot.apprtc.wrapper.StompWebSocketChannelClient;
+import org.appspot.apprtc.wrapper.User;
+import org.webrtc.IceCandidate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives many simulated signaling clients through register, random chat, offer/answer with
+ * ICE candidates and leave, and reports setup time percentiles.
+ *
+ * <p>Each simulated client speaks STOMP over its own WebSocket the way
+ * StompWebSocketRTCClient does and encodes its messages with {@link SignalingMessageEncoder}.
+ * The initiator sends an offer of about 6 KB and its candidates, the receiver answers with an
+ * answer and candidates. Setup time is counted from the random chat request until the remote
+ * SDP and candidates have arrived. Clients are paired by the server, so use an even count.
+ *
+ * <p>Runs against an in-process {@link StompStandInServer} unless a server URL is given:
+ * <pre>
+ * SignalingLoadGenerator [--clients=1000] [--rate=200] [--candidates=4] [--nested]
+ *     [--timeout-ms=30000] [--url=ws://host:port/ws/websocket]
+ * </pre>
+ */
+public class SignalingLoadGenerator {
+    private final int clientCount;
+    private final int clientsPerSecond;
+    private final int candidateCount;
+    private final boolean nestedMessages;
+    private final int timeoutMs;
+    private final URI serverUri;
+    private final String sdp = createSdp(6 * 1024);
+    private final Recorder connectTimes = new Recorder("connect+register");
+    private final Recorder matchTimes = new Recorder("random chat match");
+    private final Recorder setupTimes = new Recorder("setup");
+    private final Recorder totalTimes = new Recorder("total");
+    // Failure reasons and their counts, guarded by |this|.
+    private final Map<String, Integer> failures = new TreeMap<>();
+
+    public SignalingLoadGenerator(URI serverUri, int clientCount, int clientsPerSecond,
+            int candidateCount, boolean nestedMessages, int timeoutMs) {
+        this.serverUri = serverUri;
+        this.clientCount = clientCount;
+        this.clientsPerSecond = clientsPerSecond;
+        this.candidateCount = candidateCount;
+        this.nestedMessages = nestedMessages;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Runs all clients and prints the report. Returns the number of failed clients. */
+    public int run() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(clientCount);
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            final Thread thread = new Thread(null, () -> {
+                try {
+                    new SimulatedClient().run();
+                } finally {
+                    done.countDown();
+                }
+            }, "LoadClient-" + i, 256 * 1024);
+            thread.setDaemon(true);
+            thread.start();
+            // Ramp up at the configured rate.
+            final long nextStartNs = startNs + TimeUnit.SECONDS.toNanos(i + 1) / clientsPerSecond;
+            final long sleepNs = nextStartNs - System.nanoTime();
+            if (sleepNs > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNs);
+            }
+        }
+        done.await(timeoutMs * 2L + TimeUnit.SECONDS.toMillis(clientCount / clientsPerSecond),
+                TimeUnit.MILLISECONDS);
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+
+        int failed;
+        synchronized (this) {
+            failed = 0;
+            for (final int count : failures.values()) {
+                failed += count;
+            }
+        }
+        failed += (int) done.getCount();
+        System.out.println("Clients: " + clientCount + ", completed: " + totalTimes.size()
+                + ", failed: " + failed + ", elapsed: " + elapsedMs + " ms"
+                + (nestedMessages ? ", nested messages" : ""));
+        System.out.println(connectTimes);
+        System.out.println(matchTimes);
+        System.out.println(setupTimes);
+        System.out.println(totalTimes);
+        synchronized (this) {
+            for (final Map.Entry<String, Integer> failure : failures.entrySet()) {
+                System.out.println("  failed: " + failure.getKey() + " x" + failure.getValue());
+            }
+        }
+        if (done.getCount() > 0) {
+            System.out.println("  still running: " + done.getCount());
+        }
+        return failed;
+    }
+
+    private synchronized void recordFailure(String reason) {
+        final Integer count = failures.get(reason);
+        failures.put(reason, count == null ? 1 : count + 1);
+    }
+
+    // One signaling client, run on its own thread.
+    private class SimulatedClient {
+        private final Gson gson = new Gson();
+        private final JsonParser parser = new JsonParser();
+        private final SignalingMessageEncoder encoder = new SignalingMessageEncoder();
+        private final String signature = UUID.randomUUID().toString().replace("-", "");
+        private final ArrayDeque<JsonObject> earlyMessages = new ArrayDeque<>();
+        private String phase = "connect";
+        @Nullable private WebSocketConnection connection;
+
+        void run() {
+            encoder.setNestedMessages(nestedMessages);
+            try {
+                final long startNs = System.nanoTime();
+                connection = WebSocketConnection.connect(serverUri.getHost(), serverUri.getPort(),
+                        serverUri.getPath(), timeoutMs);
+                connection.sendText(new StompFrame("CONNECT")
+                        .header("accept-version", "1.1,1.2")
+                        .header("heart-beat", "0,0")
+                        .header(StompWebSocketChannelClient.LOGIN, "guest")
+                        .header(StompWebSocketChannelClient.PASSCODE, "passcode")
+                        .serialize());
+                expectFrame("CONNECTED");
+                send(new StompFrame("SUBSCRIBE")
+                        .header("id", "sub-0")
+                        .header("destination", "/user/" + signature + Code.SEND_MSG_URL));
+
+                phase = "register";
+                final RegisterUser registerUser = new RegisterUser();
+                registerUser.signature = signature;
+                registerUser.user = new User();
+                registerUser.user.uuid = signature;
+                registerUser.user.nickname = "load-" + signature.substring(0, 8);
+                send(StompWebSocketChannelClient.REGISTER_SOCKET, gson.toJson(registerUser));
+                JsonObject message = nextMessage();
+                if (getInt(message, "type") != BaseResponse.TYPE_REGISTER_USR
+                        || !Code.REGISTERED.equals(getString(message, "code"))) {
+                    throw new IOException("Unexpected register response " + message);
+                }
+                final long registeredNs = System.nanoTime();
+
+                phase = "random chat";
+                final RandomChatReq request = new RandomChatReq();
+                request.signature = signature;
+                request.from = signature;
+                request.reqTimeMillis = System.currentTimeMillis();
+                send(StompWebSocketChannelClient.RANDOM_CHAT_URL, gson.toJson(request));
+                while (true) {
+                    message = nextMessage();
+                    final int type = getInt(message, "type");
+                    if (type == BaseResponse.TYPE_SIGNAL_MSG) {
+                        // The partner's offer can overtake our own room response.
+                        earlyMessages.add(message);
+                    } else if (type == BaseResponse.TYPE_ROOM_CHAT
+                            && getInt(message, "status") == BaseResponse.SUCCESS) {
+                        break;
+                    }
+                }
+                final long matchedNs = System.nanoTime();
+                final String roomId = getString(message, "roomId");
+                final String partnerSID = getString(message, "partnerSID");
+                final boolean initiator = message.get("isInitiator").getAsBoolean();
+
+                phase = "offer/answer";
+                if (initiator) {
+                    sendSdpAndCandidates(partnerSID, roomId, "offer");
+                }
+                boolean haveSdp = false;
+                boolean haveCandidates = false;
+                while (!haveSdp || !haveCandidates) {
+                    message = earlyMessages.isEmpty() ? nextMessage() : earlyMessages.poll();
+                    final int type = getInt(message, "type");
+                    if (type == BaseResponse.TYPE_ROOM_CHAT
+                            && Code.FINDING.equals(getString(message, "code"))) {
+                        // The server may still deliver FINDING after pairing us.
+                        continue;
+                    }
+                    if (type != BaseResponse.TYPE_SIGNAL_MSG) {
+                        throw new IOException("Unexpected message during setup " + message);
+                    }
+                    final String signalType = getSignalType(message);
+                    if ("offer".equals(signalType) && !initiator) {
+                        haveSdp = true;
+                        sendSdpAndCandidates(partnerSID, roomId, "answer");
+                    } else if ("answer".equals(signalType) && initiator) {
+                        haveSdp = true;
+                    } else if ("candidate".equals(signalType) || "candidates".equals(signalType)) {
+                        haveCandidates = true;
+                    }
+                }
+                final long setupNs = System.nanoTime();
+
+                phase = "leave";
+                if (initiator) {
+                    send(StompWebSocketChannelClient.LEAVE_ROOM_URL, "{}");
+                }
+                do {
+                    message = nextMessage();
+                } while (getInt(message, "type") != BaseResponse.TYPE_LEAVE_ROOM);
+                send(new StompFrame("DISCONNECT"));
+                final long endNs = System.nanoTime();
+
+                connectTimes.add(registeredNs - startNs);
+                matchTimes.add(matchedNs - registeredNs);
+                setupTimes.add(setupNs - registeredNs);
+                totalTimes.add(endNs - startNs);
+            } catch (IOException | RuntimeException e) {
+                recordFailure(phase + ": " + e.getClass().getSimpleName());
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void sendSdpAndCandidates(String partnerSID, String roomId, String type)
+                throws IOException {
+            send(StompWebSocketChannelClient.SEND_URL,
+                    encoder.encodeSdp(partnerSID, roomId, type, sdp));
+            final List<IceCandidate> candidates = new ArrayList<>();
+            for (int i = 0; i < candidateCount; i++) {
+                candidates.add(new IceCandidate("0", 0, "candidate:" + i + " 1 udp "
+                        + (2122260223 - i) + " 192.168.1." + (i + 2) + " " + (50000 + i)
+                        + " typ host generation 0 ufrag abcd network-id 1"));
+            }
+            if (!candidates.isEmpty()) {
+                send(StompWebSocketChannelClient.SEND_URL,
+                        encoder.encodeCandidates(partnerSID, roomId, "candidates", candidates));
+            }
+        }
+
+        private void send(String destination, String body) throws IOException {
+            send(new StompFrame("SEND", body)
+                    .header("destination", destination)
+                    .header("content-length", Integer.toString(body.length())));
+        }
+
+        private void send(StompFrame frame) throws IOException {
+            connection.sendText(frame.serialize());
+        }
+
+        private StompFrame expectFrame(String command) throws IOException {
+            while (true) {
+                final String text = connection.readText();
+                if (text == null) {
+                    throw new IOException("Connection closed");
+                }
+                final StompFrame frame = StompFrame.parse(text);
+                if (frame == null) {
+                    continue;
+                }
+                if (!frame.command.equals(command)) {
+                    throw new IOException("Expected " + command + ", got " + frame);
+                }
+                return frame;
+            }
+        }
+
+        private JsonObject nextMessage() throws IOException {
+            return parser.parse(expectFrame("MESSAGE").body).getAsJsonObject();
+        }
+
+        // Returns the "type" of the peer message, sent as an escaped string or nested object.
+        @Nullable
+        private String getSignalType(JsonObject message) {
+            JsonElement msg = message.get("msg");
+            if (msg == null || msg.isJsonNull()) {
+                return null;
+            }
+            if (msg.isJsonPrimitive()) {
+                msg = parser.parse(msg.getAsString());
+            }
+            return getString(msg.getAsJsonObject(), "type");
+        }
+    }
+
+    private static int getInt(JsonObject object, String name) {
+        final JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? -1 : element.getAsInt();
+    }
+
+    @Nullable
+    private static String getString(JsonObject object, String name) {
+        final JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    // A session description of roughly |size| characters with a typical line mix.
+    private static String createSdp(int size) {
+        final StringBuilder builder = new StringBuilder(size + 256);
+        builder.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n")
+                .append("a=group:BUNDLE 0 1\r\na=msid-semantic: WMS stream\r\n");
+        int payloadType = 96;
+        while (builder.length() < size) {
+            builder.append("a=rtpmap:").append(payloadType).append(" VP8/90000\r\n")
+                    .append("a=rtcp-fb:").append(payloadType).append(" goog-remb\r\n")
+                    .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n")
+                    .append("a=fmtp:").append(payloadType + 1).append(" apt=")
+                    .append(payloadType).append("\r\n")
+                    .append("a=ssrc:").append(1000 + payloadType)
+                    .append(" cname:4TOk42mSjXCkVIa6\r\n");
+            payloadType = payloadType < 126 ? payloadType + 2 : 96;
+        }
+        return builder.toString();
+    }
+
+    // Latencies in ms with exact percentiles.
+    private static class Recorder {
+        private final String name;
+        private final List<Long> samplesNs = new ArrayList<>();
+
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long latencyNs) {
+            samplesNs.add(latencyNs);
+        }
+
+        synchronized int size() {
+            return samplesNs.size();
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (samplesNs.isEmpty()) {
+                return "  " + name + ": no samples";
+            }
+            final List<Long> sorted = new ArrayList<>(samplesNs);
+            Collections.sort(sorted);
+            return "  " + name + " ms: p50 " + percentileMs(sorted, 50)
+                    + ", p90 " + percentileMs(sorted, 90) + ", p99 " + percentileMs(sorted, 99)
+                    + ", max " + percentileMs(sorted, 100);
+        }
+
+        private static String percentileMs(List<Long> sorted, double percentile) {
+            final int index =
+                    Math.max(0, (int) Math.ceil(sorted.size() * percentile / 100) - 1);
+            return String.format("%.1f", sorted.get(index) / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 1000;
+        int rate = 200;
+        int candidates = 4;
+        boolean nested = false;
+        int timeoutMs = 30000;
+        String url = null;
+        for (final String arg : args) {
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(value);
+            } else if (arg.startsWith("--candidates=")) {
+                candidates = Integer.parseInt(value);
+            } else if (arg.equals("--nested")) {
+                nested = true;
+            } else if (arg.startsWith("--timeout-ms=")) {
+                timeoutMs = Integer.parseInt(value);
+            } else if (arg.startsWith("--url=")) {
+                url = value;
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        StompStandInServer server = null;
+        if (url == null) {
+            server = new StompStandInServer(0);
+            server.start();
+            url = server.getUrl();
+        }
+        System.out.println("Signaling load against " + url);
+        final int failed = new SignalingLoadGenerator(
+                URI.create(url), clients, rate, candidates, nested, timeoutMs).run();
+        if (server != null) {
+            System.out.println("Server forwarded " + server.getForwardedCount()
+                    + " signal messages");
+            server.close();
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,152 @@
+package org.appspot.apprtc.wrapper.standin;
+
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A STOMP 1.2 frame: a command, headers and a text body.
+ *
+ * <p>Header values are escaped as required by STOMP 1.2, except in CONNECT and CONNECTED
+ * frames. Every WebSocket message carries one frame; a message with only line breaks is a
+ * heart-beat.
+ */
+public class StompFrame {
+    public final String command;
+    public final Map<String, String> headers = new LinkedHashMap<>();
+    public final String body;
+
+    public StompFrame(String command, String body) {
+        this.command = command;
+        this.body = body;
+    }
+
+    public StompFrame(String command) {
+        this(command, "");
+    }
+
+    public StompFrame header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Nullable
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /** Parses the frame in |text|, or returns null if it is a heart-beat. */
+    @Nullable
+    public static StompFrame parse(String text) {
+        int position = 0;
+        // Heart-beats and the line breaks allowed before a frame.
+        while (position < text.length()
+                && (text.charAt(position) == '\n' || text.charAt(position) == '\r')) {
+            position++;
+        }
+        if (position == text.length()) {
+            return null;
+        }
+        int lineEnd = lineEnd(text, position);
+        final String command = trimCr(text.substring(position, lineEnd));
+        final boolean escaped = !command.equals("CONNECT") && !command.equals("CONNECTED");
+        final Map<String, String> headers = new LinkedHashMap<>();
+        position = lineEnd + 1;
+        while (position < text.length()) {
+            lineEnd = lineEnd(text, position);
+            final String line = trimCr(text.substring(position, lineEnd));
+            position = lineEnd + 1;
+            if (line.isEmpty()) {
+                break;
+            }
+            final int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed header: " + line);
+            }
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1);
+            if (escaped) {
+                name = unescape(name);
+                value = unescape(value);
+            }
+            // Only the first occurrence of a repeated header counts.
+            if (!headers.containsKey(name)) {
+                headers.put(name, value);
+            }
+        }
+        int bodyEnd = text.indexOf('\0', Math.min(position, text.length()));
+        if (bodyEnd < 0) {
+            bodyEnd = text.length();
+        }
+        final String body = position < bodyEnd ? text.substring(position, bodyEnd) : "";
+        final StompFrame frame = new StompFrame(command, body);
+        frame.headers.putAll(headers);
+        return frame;
+    }
+
+    /** Returns the frame in wire format, terminated by a NUL character. */
+    public String serialize() {
+        final boolean escaped = !command.equals("CONNECT") && !command.equals("CONNECTED");
+        final StringBuilder builder = new StringBuilder(command.length() + body.length() + 128);
+        builder.append(command).append('\n');
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            builder.append(escaped ? escape(header.getKey()) : header.getKey()).append(':')
+                    .append(escaped ? escape(header.getValue()) : header.getValue()).append('\n');
+        }
+        return builder.append('\n').append(body).append('\0').toString();
+    }
+
+    @Override
+    public String toString() {
+        return command + " " + headers;
+    }
+
+    private static int lineEnd(String text, int position) {
+        final int end = text.indexOf('\n', position);
+        return end < 0 ? text.length() : end;
+    }
+
+    private static String trimCr(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('\n') < 0 && value.indexOf(':') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n")
+                .replace(":", "\\c");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                builder.append(c);
+                continue;
+            }
+            final char next = value.charAt(++i);
+            switch (next) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'c':
+                    builder.append(':');
+                    break;
+                default:
+                    builder.append(next);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,501 @@
+package org.appspot.apprtc.wrapper.standin;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import org.appspot.apprtc.wrapper.BaseResponse;
+import org.appspot.apprtc.wrapper.Code;
+import org.appspot.apprtc.wrapper.PublicInfo;
+import org.appspot.apprtc.wrapper.RegisterUser;
+import org.appspot.apprtc.wrapper.RegisteredResponse;
+import org.appspot.apprtc.wrapper.RoomResponse;
+import org.appspot.apprtc.wrapper.StompWebSocketChannelClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * In-process stand-in for the signaling server, speaking STOMP 1.2 over WebSocket.
+ *
+ * <p>Implements the destinations used by {@link StompWebSocketChannelClient}:
+ * <ul>
+ * <li>/app/register answers with a REGISTERED {@link RegisteredResponse}.
+ * <li>/app/randomChat pairs the session with the one waiting longest and sends both a
+ * {@link RoomResponse}; the one that waited is the initiator. Without a partner it answers
+ * FINDING.
+ * <li>/app/signal forwards "msg", string or object, to the session "toSID" in the same room
+ * as a {@link BaseResponse#TYPE_SIGNAL_MSG} message.
+ * <li>/app/leaveRoom sends both sessions of the room a {@link BaseResponse#TYPE_LEAVE_ROOM}
+ * message.
+ * </ul>
+ * Responses go to the session's subscription of /user/{signature}/queue/messages. The
+ * session id passed as partnerSID is generated by the stand-in. Closing a session in a room
+ * makes the partner leave the room as well.
+ *
+ * <p>Each session is served by its own thread. setKillProbability() makes the server drop
+ * connections at random points, and setKillFilter() on chosen messages, to test reconnects.
+ */
+public class StompStandInServer implements Closeable {
+    public static final String WS_PATH = "/ws/websocket";
+
+    private static class Session {
+        final String id;
+        final WebSocketConnection connection;
+        // All fields below are guarded by the server lock.
+        final Map<String, String> subscriptions = new HashMap<>();
+        // Messages for the user destination sent before the client subscribed to it.
+        final List<String> pendingUserMessages = new ArrayList<>();
+        @Nullable String signature;
+        @Nullable PublicInfo info;
+        @Nullable Room room;
+        boolean closed;
+
+        Session(String id, WebSocketConnection connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+    }
+
+    private static class Room {
+        final String id;
+        final Session initiator;
+        final Session receiver;
+
+        Room(String id, Session initiator, Session receiver) {
+            this.id = id;
+            this.initiator = initiator;
+            this.receiver = receiver;
+        }
+
+        Session partnerOf(Session session) {
+            return session == initiator ? receiver : initiator;
+        }
+    }
+
+    private final Gson gson = new Gson();
+    private final int requestedPort;
+    private final Object lock = new Object();
+    private final AtomicLong sessionCounter = new AtomicLong();
+    private final AtomicLong roomCounter = new AtomicLong();
+    private final AtomicLong messageCounter = new AtomicLong();
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong killedCount = new AtomicLong();
+    @Nullable private ServerSocket serverSocket;
+    private volatile double killProbability;
+    @Nullable private volatile Predicate<String> killFilter;
+    @Nullable private volatile Consumer<String> signalListener;
+    // All fields below are guarded by |lock|.
+    private final Map<String, Session> sessions = new HashMap<>();
+    @Nullable private Session waitingSession;
+
+    /** Creates a server on |port|, or on a free port if |port| is 0. */
+    public StompStandInServer(int port) {
+        this.requestedPort = port;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        // All interfaces, so devices on the local network can connect too.
+        serverSocket.bind(new InetSocketAddress(requestedPort), 1024);
+        final Thread acceptThread = new Thread(this ::acceptLoop, "StandInAccept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Returns the URL to pass to the signaling client. */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + getPort() + WS_PATH;
+    }
+
+    /** Makes every inbound frame close its connection abruptly with |probability|. */
+    public void setKillProbability(double probability) {
+        killProbability = probability;
+    }
+
+    /**
+     * Makes every SEND frame whose body matches |filter| close its connection abruptly
+     * instead of being handled, or no frame if |filter| is null.
+     */
+    public void setKillFilter(@Nullable Predicate<String> filter) {
+        killFilter = filter;
+    }
+
+    /**
+     * Calls |listener| with the body of every /app/signal frame the server handles, on the
+     * thread of its session.
+     */
+    public void setSignalListener(@Nullable Consumer<String> listener) {
+        signalListener = listener;
+    }
+
+    public int getSessionCount() {
+        synchronized (lock) {
+            return sessions.size();
+        }
+    }
+
+    /** Returns the number of signal messages forwarded between partners. */
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    public long getKilledCount() {
+        return killedCount.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        final List<Session> openSessions;
+        synchronized (lock) {
+            openSessions = new ArrayList<>(sessions.values());
+        }
+        for (final Session session : openSessions) {
+            session.connection.abort();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+            // Small stacks, since load tests open thousands of sessions.
+            final Thread thread =
+                    new Thread(null, () -> serve(socket), "StandInSession", 256 * 1024);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        final WebSocketConnection connection;
+        try {
+            connection = WebSocketConnection.accept(socket);
+        } catch (IOException e) {
+            return;
+        }
+        final Session session =
+                new Session(Long.toHexString(sessionCounter.incrementAndGet()), connection);
+        synchronized (lock) {
+            sessions.put(session.id, session);
+        }
+        try {
+            String text;
+            while ((text = connection.readText()) != null) {
+                final StompFrame frame = StompFrame.parse(text);
+                if (frame == null) {
+                    continue;
+                }
+                final Predicate<String> filter = killFilter;
+                if ((killProbability > 0
+                        && ThreadLocalRandom.current().nextDouble() < killProbability)
+                        || (filter != null && frame.command.equals("SEND")
+                                && filter.test(frame.body))) {
+                    killedCount.incrementAndGet();
+                    connection.abort();
+                    break;
+                }
+                if (!handleFrame(session, frame)) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The session ends below.
+        } finally {
+            connection.abort();
+            onSessionClosed(session);
+        }
+    }
+
+    // Returns false if the session should end.
+    private boolean handleFrame(Session session, StompFrame frame) throws IOException {
+        switch (frame.command) {
+            case "CONNECT":
+            case "STOMP":
+                session.connection.sendText(new StompFrame("CONNECTED")
+                        .header("version", "1.2")
+                        .header("heart-beat", "0,0")
+                        .header("server", "StompStandInServer")
+                        .serialize());
+                break;
+            case "SUBSCRIBE":
+                subscribe(session, frame.getHeader("destination"), frame.getHeader("id"));
+                break;
+            case "UNSUBSCRIBE":
+                synchronized (lock) {
+                    session.subscriptions.values().remove(frame.getHeader("id"));
+                }
+                break;
+            case "SEND":
+                handleSend(session, frame.getHeader("destination"), frame.body);
+                break;
+            case "DISCONNECT":
+                sendReceipt(session, frame);
+                return false;
+            default:
+                session.connection.sendText(new StompFrame("ERROR", "Unsupported frame")
+                        .header("message", "Unsupported command " + frame.command)
+                        .serialize());
+                return false;
+        }
+        sendReceipt(session, frame);
+        return true;
+    }
+
+    private void sendReceipt(Session session, StompFrame frame) throws IOException {
+        final String receipt = frame.getHeader("receipt");
+        if (receipt != null) {
+            session.connection.sendText(
+                    new StompFrame("RECEIPT").header("receipt-id", receipt).serialize());
+        }
+    }
+
+    private void subscribe(Session session, @Nullable String destination, @Nullable String id) {
+        if (destination == null || id == null) {
+            return;
+        }
+        final List<String> pending;
+        synchronized (lock) {
+            session.subscriptions.put(destination, id);
+            if (!destination.endsWith(Code.SEND_MSG_URL)) {
+                return;
+            }
+            pending = new ArrayList<>(session.pendingUserMessages);
+            session.pendingUserMessages.clear();
+        }
+        for (final String message : pending) {
+            sendToUser(session, message);
+        }
+    }
+
+    private void handleSend(Session session, @Nullable String destination, String body) {
+        if (destination == null) {
+            return;
+        }
+        switch (destination) {
+            case StompWebSocketChannelClient.REGISTER_SOCKET:
+                register(session, body);
+                break;
+            case StompWebSocketChannelClient.RANDOM_CHAT_URL:
+                randomChat(session);
+                break;
+            case StompWebSocketChannelClient.SEND_URL:
+                signal(session, body);
+                break;
+            case StompWebSocketChannelClient.LEAVE_ROOM_URL:
+                leaveRoom(session);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void register(Session session, String body) {
+        final RegisterUser registerUser;
+        try {
+            registerUser = gson.fromJson(body, RegisterUser.class);
+        } catch (JsonSyntaxException e) {
+            sendToUser(session, gson.toJson(
+                    response(new RegisteredResponse(), BaseResponse.FAILED, Code.USR_NOT_FOUND)));
+            return;
+        }
+        synchronized (lock) {
+            session.signature = registerUser != null ? registerUser.signature : null;
+            if (registerUser != null && registerUser.user != null) {
+                final PublicInfo info = new PublicInfo();
+                info.nickname = registerUser.user.nickname;
+                info.birth = registerUser.user.birth;
+                info.gender = registerUser.user.gender;
+                info.lastOnline = registerUser.user.lastOnline;
+                session.info = info;
+            }
+        }
+        sendToUser(session, gson.toJson(
+                response(new RegisteredResponse(), BaseResponse.SUCCESS, Code.REGISTERED)));
+    }
+
+    private void randomChat(Session session) {
+        final Room room;
+        synchronized (lock) {
+            if (session.room != null) {
+                return;
+            }
+            if (waitingSession == null || waitingSession == session || waitingSession.closed) {
+                waitingSession = session;
+                room = null;
+            } else {
+                room = new Room(Long.toString(roomCounter.incrementAndGet()), waitingSession,
+                        session);
+                waitingSession = null;
+                room.initiator.room = room;
+                room.receiver.room = room;
+            }
+        }
+        if (room == null) {
+            final RoomResponse finding = new RoomResponse();
+            finding.status = BaseResponse.FAILED;
+            finding.code = Code.FINDING;
+            sendToUser(session, gson.toJson(finding));
+            return;
+        }
+        sendToUser(room.initiator, gson.toJson(roomResponse(room, room.initiator)));
+        sendToUser(room.receiver, gson.toJson(roomResponse(room, room.receiver)));
+    }
+
+    private void signal(Session session, String body) {
+        final Consumer<String> listener = signalListener;
+        if (listener != null) {
+            listener.accept(body);
+        }
+        final JsonObject envelope;
+        try {
+            envelope = new JsonParser().parse(body).getAsJsonObject();
+        } catch (JsonSyntaxException | IllegalStateException e) {
+            return;
+        }
+        final JsonElement toSID = envelope.get("toSID");
+        final JsonElement msg = envelope.get("msg");
+        final Session target;
+        synchronized (lock) {
+            target = toSID != null && toSID.isJsonPrimitive() ? sessions.get(toSID.getAsString())
+                                                              : null;
+            if (target != null && (target.room == null || target.room != session.room)) {
+                return;
+            }
+        }
+        final JsonObject message = new JsonObject();
+        message.addProperty("type", BaseResponse.TYPE_SIGNAL_MSG);
+        if (target == null || msg == null) {
+            message.addProperty("status", BaseResponse.FAILED);
+            message.addProperty("code", Code.TO_NOT_FOUND);
+            sendToUser(session, message.toString());
+            return;
+        }
+        message.addProperty("status", BaseResponse.SUCCESS);
+        // Passed on as is, an escaped string or a nested object.
+        message.add("msg", msg);
+        forwardedCount.incrementAndGet();
+        sendToUser(target, message.toString());
+    }
+
+    private void leaveRoom(Session session) {
+        final Room room;
+        synchronized (lock) {
+            if (waitingSession == session) {
+                waitingSession = null;
+            }
+            room = session.room;
+            if (room == null) {
+                return;
+            }
+            room.initiator.room = null;
+            room.receiver.room = null;
+        }
+        final RoomResponse leave = new RoomResponse().leaveRoom();
+        leave.roomId = room.id;
+        final String message = gson.toJson(leave);
+        sendToUser(room.initiator, message);
+        sendToUser(room.receiver, message);
+    }
+
+    private void onSessionClosed(Session session) {
+        synchronized (lock) {
+            session.closed = true;
+            sessions.remove(session.id);
+        }
+        leaveRoom(session);
+    }
+
+    private void sendToUser(Session session, String message) {
+        String subscriptionId = null;
+        String destination = null;
+        synchronized (lock) {
+            if (session.closed) {
+                return;
+            }
+            for (final Map.Entry<String, String> subscription : session.subscriptions.entrySet()) {
+                if (subscription.getKey().endsWith(Code.SEND_MSG_URL)) {
+                    destination = subscription.getKey();
+                    subscriptionId = subscription.getValue();
+                    break;
+                }
+            }
+            if (subscriptionId == null) {
+                session.pendingUserMessages.add(message);
+                return;
+            }
+        }
+        try {
+            session.connection.sendText(new StompFrame("MESSAGE", message)
+                    .header("destination", destination)
+                    .header("subscription", subscriptionId)
+                    .header("message-id", Long.toString(messageCounter.incrementAndGet()))
+                    .header("content-type", "application/json;charset=UTF-8")
+                    .serialize());
+        } catch (IOException e) {
+            // The session thread notices the broken connection.
+            session.connection.abort();
+        }
+    }
+
+    private RoomResponse roomResponse(Room room, Session session) {
+        final Session partner = room.partnerOf(session);
+        final RoomResponse response = new RoomResponse();
+        response.roomId = room.id;
+        response.isInitiator = session == room.initiator;
+        response.signature = session.signature;
+        response.partnerSID = partner.id;
+        synchronized (lock) {
+            response.partnerInfo = partner.info;
+        }
+        return response;
+    }
+
+    private static <T extends BaseResponse> T response(T response, int status, String code) {
+        response.type = BaseResponse.TYPE_REGISTER_USR;
+        response.status = status;
+        response.code = code;
+        return response;
+    }
+
+    /** Runs the stand-in on the port given as the only argument, 8080 by default. */
+    public static void main(String[] args) throws Exception {
+        final StompStandInServer server =
+                new StompStandInServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.start();
+        System.out.println("STOMP stand-in listening on " + server.getUrl());
+        Thread.currentThread().join();
+    }
+}
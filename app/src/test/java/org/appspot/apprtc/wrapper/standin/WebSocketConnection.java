@@ -0,0 +1,321 @@
+package org.appspot.apprtc.wrapper.standin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Minimal RFC 6455 WebSocket endpoint over a plain socket, enough for STOMP text frames.
+ *
+ * <p>Supports the opening handshake on both sides, text messages split into fragments,
+ * ping/pong and the closing handshake. Extensions and binary messages are not supported.
+ * Reading must be done from one thread; sending is thread safe.
+ */
+public class WebSocketConnection implements Closeable {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    // Clients mask their frames, servers do not.
+    private final boolean client;
+    private final Object writeLock = new Object();
+    private volatile boolean closeSent;
+
+    private WebSocketConnection(Socket socket, InputStream in, boolean client) throws IOException {
+        this.socket = socket;
+        this.in = in;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.client = client;
+    }
+
+    /** Performs the server side of the opening handshake on an accepted |socket|. */
+    public static WebSocketConnection accept(Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final String requestLine = readLine(in);
+        final Map<String, String> headers = readHeaders(in);
+        final String key = headers.get("sec-websocket-key");
+        if (!requestLine.startsWith("GET ") || key == null
+                || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+            final OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.close();
+            throw new IOException("Not a WebSocket upgrade: " + requestLine);
+        }
+        final StringBuilder response = new StringBuilder()
+                .append("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(acceptKey(key)).append("\r\n");
+        final String protocols = headers.get("sec-websocket-protocol");
+        if (protocols != null) {
+            response.append("Sec-WebSocket-Protocol: ")
+                    .append(protocols.split(",")[0].trim()).append("\r\n");
+        }
+        response.append("\r\n");
+        final WebSocketConnection connection = new WebSocketConnection(socket, in, false);
+        connection.writeRaw(response.toString().getBytes(StandardCharsets.US_ASCII));
+        return connection;
+    }
+
+    /**
+     * Connects to ws://|host|:|port||path| and performs the client side of the handshake.
+     * |timeoutMs| bounds the connect and every later read.
+     */
+    public static WebSocketConnection connect(String host, int port, String path, int timeoutMs)
+            throws IOException {
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeoutMs);
+        socket.connect(new InetSocketAddress(host, port), timeoutMs);
+        final byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        final String key = Base64.getEncoder().encodeToString(nonce);
+        final String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final WebSocketConnection connection = new WebSocketConnection(socket, in, true);
+        connection.writeRaw(request.getBytes(StandardCharsets.US_ASCII));
+        final String statusLine = readLine(in);
+        final Map<String, String> headers = readHeaders(in);
+        if (!statusLine.startsWith("HTTP/1.1 101")
+                || !acceptKey(key).equals(headers.get("sec-websocket-accept"))) {
+            socket.close();
+            throw new IOException("WebSocket handshake failed: " + statusLine);
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the next text message. Answers pings and the closing handshake on the way and
+     * returns null once the connection is closed.
+     */
+    public String readText() throws IOException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean inMessage = false;
+        while (true) {
+            final int b0 = in.read();
+            if (b0 < 0) {
+                return null;
+            }
+            final boolean fin = (b0 & 0x80) != 0;
+            final int opcode = b0 & 0x0F;
+            final int b1 = readByte();
+            final boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            if (length > MAX_MESSAGE_BYTES || message.size() + length > MAX_MESSAGE_BYTES) {
+                throw new IOException("Message too large: " + length);
+            }
+            final byte[] mask = new byte[4];
+            if (masked) {
+                readFully(mask);
+            }
+            final byte[] payload = new byte[(int) length];
+            readFully(payload);
+            if (masked) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            switch (opcode) {
+                case OPCODE_TEXT:
+                case OPCODE_BINARY:
+                case OPCODE_CONTINUATION:
+                    if ((opcode == OPCODE_CONTINUATION) != inMessage) {
+                        throw new IOException("Unexpected fragment, opcode " + opcode);
+                    }
+                    message.write(payload, 0, payload.length);
+                    if (!fin) {
+                        inMessage = true;
+                        break;
+                    }
+                    return new String(message.toByteArray(), StandardCharsets.UTF_8);
+                case OPCODE_PING:
+                    writeFrame(OPCODE_PONG, payload);
+                    break;
+                case OPCODE_PONG:
+                    break;
+                case OPCODE_CLOSE:
+                    if (!closeSent) {
+                        closeSent = true;
+                        writeFrame(OPCODE_CLOSE, payload);
+                    }
+                    socket.close();
+                    return null;
+                default:
+                    throw new IOException("Unknown opcode " + opcode);
+            }
+        }
+    }
+
+    public void sendText(String text) throws IOException {
+        writeFrame(OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Sends a close frame and closes the socket. */
+    @Override
+    public void close() {
+        try {
+            if (!closeSent && !socket.isClosed()) {
+                closeSent = true;
+                // Status 1000, normal closure.
+                writeFrame(OPCODE_CLOSE, new byte[] {0x03, (byte) 0xE8});
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        abort();
+    }
+
+    /** Closes the socket without a closing handshake, like a dropped network connection. */
+    public void abort() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do.
+        }
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        final int length = payload.length;
+        final byte[] header = new byte[14];
+        int headerLength = 0;
+        header[headerLength++] = (byte) (0x80 | opcode);
+        final int maskBit = client ? 0x80 : 0;
+        if (length < 126) {
+            header[headerLength++] = (byte) (maskBit | length);
+        } else if (length < 65536) {
+            header[headerLength++] = (byte) (maskBit | 126);
+            header[headerLength++] = (byte) (length >>> 8);
+            header[headerLength++] = (byte) length;
+        } else {
+            header[headerLength++] = (byte) (maskBit | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                header[headerLength++] = (byte) ((long) length >>> shift);
+            }
+        }
+        byte[] body = payload;
+        if (client) {
+            final byte[] mask = new byte[4];
+            ThreadLocalRandom.current().nextBytes(mask);
+            System.arraycopy(mask, 0, header, headerLength, 4);
+            headerLength += 4;
+            body = new byte[length];
+            for (int i = 0; i < length; i++) {
+                body[i] = (byte) (payload[i] ^ mask[i & 3]);
+            }
+        }
+        synchronized (writeLock) {
+            out.write(header, 0, headerLength);
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    private void writeRaw(byte[] bytes) throws IOException {
+        synchronized (writeLock) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(
+                    sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads one CRLF terminated line of the handshake without reading past it.
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (true) {
+            final int c = in.read();
+            if (c < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+            if (c == '\n') {
+                final int end = line.length();
+                return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1)
+                                                               : line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    // Reads the header lines up to the empty line, with lower case names.
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+}